@@ -6,7 +6,10 @@ import java.io.Serializable;
 import java.math.BigInteger;
 import java.security.PublicKey;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -21,6 +24,11 @@ public class Chat implements Serializable {
     private ArrayList<ChatMessage> pendingChatMessages;
     private ConcurrentHashMap<BigInteger, PublicKey> usersPubKeys;
 
+    /**
+     * Sequence number of the first chat message kept: the ones before it were moved to the chat history of a server
+     */
+    private long firstMessage;
+
     public Chat(String creatorEmail, String name) {
         this.idChat = Utilities.generateChatId(creatorEmail);
         this.creatorEmail = creatorEmail;
@@ -43,6 +51,11 @@ public class Chat implements Serializable {
         this.usersPubKeys = new ConcurrentHashMap<>();
     }
 
+    public Chat(BigInteger idChat, String chatName, String creatorEmail) {
+        this(idChat, chatName);
+        this.creatorEmail = creatorEmail;
+    }
+
     public String getCreatorEmail() {
         return creatorEmail;
     }
@@ -71,18 +84,77 @@ public class Chat implements Serializable {
         return chatMessages;
     }
 
+    public long getFirstMessage() {
+        return firstMessage;
+    }
+
+    public void setFirstMessage(long firstMessage) {
+        this.firstMessage = firstMessage;
+    }
+
+    /**
+     * @return number of chat messages ever added, including the ones moved to the chat history
+     */
+    public synchronized long getMessageCount() {
+        return firstMessage + chatMessages.size();
+    }
+
+    /**
+     * Replaces the chat messages kept, such as by the last page of a chat
+     *
+     * @param firstMessage sequence number of the first chat message
+     * @param chatMessages chat messages, in order
+     */
+    public synchronized void setChatMessages(long firstMessage, List<ChatMessage> chatMessages) {
+        this.chatMessages = new ArrayList<>(chatMessages);
+        this.firstMessage = firstMessage;
+    }
+
+    /**
+     * Adds chat messages before the ones kept, such as an older page of a chat
+     *
+     * @param firstMessage sequence number of the first chat message
+     * @param chatMessages chat messages, in order
+     */
+    public synchronized void addOlderChatMessages(long firstMessage, List<ChatMessage> chatMessages) {
+        this.chatMessages.addAll(0, chatMessages);
+        this.firstMessage = firstMessage;
+    }
+
+    /**
+     * Drops the oldest chat messages kept, once they are in the chat history
+     *
+     * @param count number of chat messages
+     */
+    public synchronized void evictChatMessages(int count) {
+        chatMessages.subList(0, count).clear();
+        firstMessage += count;
+    }
+
     public ArrayList<ChatMessage> getChatPendingMessages() {
         return pendingChatMessages;
     }
 
-    public void addChatMessage(ChatMessage chatMessage) {
+    public synchronized void addChatMessage(ChatMessage chatMessage) {
         chatMessages.add(chatMessage);
     }
 
-    public void addPendingChatMessage(ChatMessage chatMessage) {
+    public synchronized void addPendingChatMessage(ChatMessage chatMessage) {
         pendingChatMessages.add(chatMessage);
     }
 
+    /**
+     * @return hash of the participants and of the public keys on the chat with their users, the same for equal ones,
+     * so a key replaced by a new one changes it
+     */
+    public int getMembersHash() {
+        int keysHash = 0;
+        for (Map.Entry<BigInteger, PublicKey> entry : usersPubKeys.entrySet())
+            keysHash += entry.getKey().hashCode() ^ Arrays.hashCode(entry.getValue().getEncoded());
+
+        return 31 * participants.hashCode() + keysHash;
+    }
+
     public ConcurrentHashMap<BigInteger, PublicKey> getUsersPubKeys() {
         return usersPubKeys;
     }
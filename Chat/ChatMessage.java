@@ -30,6 +30,10 @@ public class ChatMessage implements Serializable {
         this.filename = filename;
     }
 
+    public Date getCreationDate() {
+        return creationDate;
+    }
+
     public BigInteger getUserId() {
         return userId;
     }
@@ -0,0 +1,74 @@
+package Chat;
+
+import java.io.Serializable;
+import java.math.BigInteger;
+import java.util.ArrayList;
+
+/**
+ * Chat messages of a chat with sequence numbers in [from, to), answer to GET_CHAT_PAGE
+ * Chat messages the server no longer keeps are left out, so a page may hold fewer than to - from
+ */
+public class ChatPage implements Serializable {
+
+    private BigInteger chatId;
+    private long from;
+    private long to;
+    private long start;
+    private long end;
+    private ArrayList<ChatMessage> chatMessages;
+
+    /**
+     * @param chatId       chat id
+     * @param from         sequence number of the first chat message of the page
+     * @param to           sequence number after the last chat message of the page
+     * @param start        sequence number of the first chat message the server keeps
+     * @param end          sequence number after the last chat message of the chat
+     * @param chatMessages chat messages, in order
+     */
+    public ChatPage(BigInteger chatId, long from, long to, long start, long end, ArrayList<ChatMessage> chatMessages) {
+        this.chatId = chatId;
+        this.from = from;
+        this.to = to;
+        this.start = start;
+        this.end = end;
+        this.chatMessages = chatMessages;
+    }
+
+    public BigInteger getChatId() {
+        return chatId;
+    }
+
+    public long getFrom() {
+        return from;
+    }
+
+    public long getTo() {
+        return to;
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    public long getEnd() {
+        return end;
+    }
+
+    public ArrayList<ChatMessage> getChatMessages() {
+        return chatMessages;
+    }
+
+    /**
+     * @return true if the server keeps chat messages before this page
+     */
+    public boolean hasOlder() {
+        return from > start;
+    }
+
+    /**
+     * @return true if the chat has chat messages after this page
+     */
+    public boolean hasNewer() {
+        return to < end;
+    }
+}
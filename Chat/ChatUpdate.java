@@ -0,0 +1,54 @@
+package Chat;
+
+import java.io.Serializable;
+import java.math.BigInteger;
+import java.util.ArrayList;
+
+/**
+ * What changed on a chat since a client last synced it, part of the answer to SYNC
+ */
+public class ChatUpdate implements Serializable {
+
+    private BigInteger chatId;
+    private Chat chat;
+    private ChatPage page;
+    private int pendingFrom;
+    private ArrayList<ChatMessage> pendingMessages;
+
+    /**
+     * @param chatId          chat id
+     * @param chat            chat with its name, participants and keys, and no chat messages, if the client does
+     *                        not know the chat or its participants or keys changed; null otherwise
+     * @param page            new chat messages, or the last page of the chat if the client does not know it or
+     *                        missed too many
+     * @param pendingFrom     position of the first new pending message on the pending messages of the chat
+     * @param pendingMessages new pending messages
+     */
+    public ChatUpdate(BigInteger chatId, Chat chat, ChatPage page, int pendingFrom, ArrayList<ChatMessage> pendingMessages) {
+        this.chatId = chatId;
+        this.chat = chat;
+        this.page = page;
+        this.pendingFrom = pendingFrom;
+        this.pendingMessages = pendingMessages;
+    }
+
+    public BigInteger getChatId() {
+        return chatId;
+    }
+
+    public Chat getChat() {
+        return chat;
+    }
+
+    public ChatPage getPage() {
+        return page;
+    }
+
+    public int getPendingFrom() {
+        return pendingFrom;
+    }
+
+    public ArrayList<ChatMessage> getPendingMessages() {
+        return pendingMessages;
+    }
+}
@@ -2,11 +2,15 @@ package Client;
 
 import Chat.Chat;
 import Chat.ChatMessage;
+import Chat.ChatPage;
+import Chat.ChatUpdate;
 import Messages.Message;
 import Protocols.ClientConnection;
+import Protocols.FileTransfers;
 import Server.Node;
 import Server.User;
 import Utilities.Constants;
+import Utilities.Threads;
 
 import javax.crypto.NoSuchPaddingException;
 import java.io.*;
@@ -14,12 +18,13 @@ import java.math.BigInteger;
 import java.security.*;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.Scanner;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static Client.Client.Task.*;
 import static Utilities.Constants.*;
@@ -28,12 +33,29 @@ import static java.lang.Thread.sleep;
 
 public class Client extends User {
 
+    /**
+     * Typed on an open chat to load the chat messages before the ones shown
+     */
+    private static final String OLDER_MESSAGES = "/older";
+
     private Scanner scannerIn;
-    private ExecutorService threadPool = Executors.newFixedThreadPool(MAX_NUMBER_OF_REQUESTS);
+    private ExecutorService threadPool = Threads.newTaskExecutor(MAX_NUMBER_OF_REQUESTS);
     private ClientConnection connection;
 
+    /**
+     * Files waiting for the server to set up their upload, by the upload id the server answers with
+     */
+    private ConcurrentHashMap<String, File> uploads = new ConcurrentHashMap<>();
+    private AtomicLong nextUploadId = new AtomicLong();
+
     private Task actualState;
     private ConcurrentHashMap<BigInteger, Chat> chats;
+
+    /**
+     * What the client has of each chat on the server, sent on SYNC: the chat messages and pending messages it has
+     * and the hash of the participants and keys it has, by chat id
+     */
+    private ConcurrentHashMap<BigInteger, long[]> syncPoints = new ConcurrentHashMap<>();
     private int currentChat = 0;
     private PrivateKey privateKey;
     private PublicKey publicKey;
@@ -134,7 +156,7 @@ public class Client extends User {
         System.out.println(menu);
 
 
-        askForClientChats();
+        syncChats();
         //askForPendingChats();
 
         int option = scannerIn.nextInt();
@@ -178,14 +200,10 @@ public class Client extends User {
         if (!option.equals("")) {
             System.out.println(Integer.parseInt(option));
             BigInteger requiredChatId = tempChats[Integer.parseInt(option) - 1];
-            if (chats.containsKey(requiredChatId))
-                openChat(requiredChatId);
-            else {
-                Message message = new Message(GET_CHAT, getClientId(), RESPONSIBLE, requiredChatId.toString());
-                actualState = Task.WAITING_FOR_CHAT;
-                message.getBody();
-                connection.sendMessage(message);
-            }
+
+            //only the last page of the chat is loaded, older ones as they are asked for
+            actualState = Task.WAITING_FOR_CHAT;
+            askForChatPage(requiredChatId, CHAT_END);
         } else signInMenu();
 
     }
@@ -260,55 +278,26 @@ public class Client extends User {
 
             BigInteger requiredChatId = tempChats[Integer.parseInt(chatNumber) - 1];
             System.out.println("chatId " + requiredChatId);
-            Date date = new Date();
-
-            FileInputStream inputStream;
-
+            File file = new File(filename);
 
-            try {
-                inputStream = new FileInputStream(filename);
-            } catch (FileNotFoundException e) {
+            if (!file.isFile()) {
                 System.out.println("Could not open file to backup.");
                 signInMenu();
                 return;
             }
 
-            ChatMessage chatMessage = new ChatMessage(requiredChatId, date, getClientId(), null, IMAGE_MESSAGE, filename);
+            ChatMessage chatMessage = new ChatMessage(requiredChatId, new Date(), getClientId(), null, IMAGE_MESSAGE, filename);
             Message saveFile = new Message(STORE_FILE_MESSAGE, getClientId(), RESPONSIBLE, chatMessage, getClientId());
             connection.sendMessage(saveFile);
 
-            try {
-
-                int bytesRead;
-                byte[] chunk = new byte[8192];
-
-                while ((bytesRead = inputStream.read(chunk)) != -1) {
-
-                    byte[] chunkToSend = new byte[bytesRead];
-                    System.arraycopy(chunk, 0, chunkToSend, 0, bytesRead);
-
-                    Message messageToSend = null;
-                    ChatMessage chatMessageToSend = new ChatMessage(requiredChatId, date, getClientId(), chunkToSend, IMAGE_MESSAGE, filename);
-
-                    messageToSend = new Message(FILE_TRANSACTION, getClientId(), RESPONSIBLE, chatMessageToSend, getClientId());
-
-                    connection.sendMessage(messageToSend);
-
-                  /*  Message response = connection.receiveMessage();
-
-                    if (!response.getMessageType().equals(CLIENT_SUCCESS)) {
-                        System.out.println("ERROR SENDING FILE...");
-                        return;
-                    }*/
-
-                }
-
-                signInMenu();
-
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+            //the file itself goes on a bulk connection, once the server answers with the token of the upload
+            String uploadId = Long.toString(nextUploadId.incrementAndGet());
+            uploads.put(uploadId, file);
+            Message upload = new Message(FILE_TRANSACTION, getClientId(), RESPONSIBLE, chatMessage, getClientId());
+            upload.setArguments(Long.toString(file.length()), uploadId);
+            connection.sendMessage(upload);
 
+            signInMenu();
 
         } else signInMenu();
     }
@@ -332,15 +321,22 @@ public class Client extends User {
             System.out.println(alert);
             printChatPendingMessages(chatId);
 
-            String send = "\n \n Send a message: " + "\n" + "\n" + "\n" + "\n";
+            String send = "\n \n Send a message (" + OLDER_MESSAGES + " for older messages): " + "\n" + "\n" + "\n" + "\n";
             System.out.println(send);
             currentChat = chatId.intValue();
 
             String messageToSend = console.readLine();
             while (!messageToSend.equals("")) {
+                if (messageToSend.equals(OLDER_MESSAGES)) {
+                    askForChatPage(chatId, Long.toString(chat.getFirstMessage()));
+                    messageToSend = console.readLine();
+                    continue;
+                }
+
                 Date date = new Date();
                 ChatMessage chatMessage = new ChatMessage(chatId, date, getClientId(), messageToSend.getBytes(), TEXT_MESSAGE);
                 chats.get(chatId).addChatMessage(chatMessage);
+                countChatMessage(chatId);
                 Message message = new Message(NEW_MESSAGE, getClientId(), RESPONSIBLE, chatMessage, getClientId());
                 connection.sendMessage(message);
                 messageToSend = null;
@@ -574,8 +570,8 @@ public class Client extends User {
 
         //TODO: How to do this???
         String body[] = new String[4];
-        if (message.getBody() != null)
-            body = message.getBody().split(" ");
+        if (message.getArguments().length > 0)
+            body = message.getArguments();
 
         switch (actualState) {
             case SIGNED_IN:
@@ -610,6 +606,11 @@ public class Client extends User {
                 openChat(new BigInteger(body[0]));
                 break;
             case WAITING_FOR_CHAT:
+                if (message.getMessageType().equals(CLIENT_ERROR)) {
+                    printError(body[0]);
+                    signInMenu();
+                    break;
+                }
                 System.out.println("Received Chat");
                 Chat chat = (Chat) message.getObject();
                 chats.remove(chat.getIdChat());
@@ -628,9 +629,17 @@ public class Client extends User {
                 if (chatTemp != null)
                     chats.put(chatTemp.getIdChat(), chatTemp);
                 break;
+            case CHATTING:
+                if (message.getMessageType().equals(CLIENT_ERROR))
+                    printError(body[0]);
+                break;
             case HOLDING:
                 signInMenu();
                 break;
+            case DOWNLOADING_FILE:
+                printError(body[0]);
+                signInMenu();
+                break;
             case WAITING_SIGNOUT:
                 actualState = HOLDING;
                 connection.stopTasks();
@@ -669,9 +678,18 @@ public class Client extends User {
             case ERROR_DOWNLOADING_FILE:
                 System.out.println("\nError Downloading file, wrong name or path ..");
                 break;
+            case ERROR_UPLOADING_FILE:
+                System.out.println("\nError sending file, chat not found ..");
+                break;
+            case ERROR_LOADING_CHAT:
+                System.out.println("\nError loading chat, chat not found ..");
+                break;
             case USER_NOT_EXISTS:
                 System.out.println("\nUser not found so not added to chat ..");
                 break;
+            case MESSAGE_NOT_SENT:
+                System.out.println("\nMessage not sent, the server could not save it ..");
+                break;
             default:
                 break;
         }
@@ -720,6 +738,52 @@ public class Client extends User {
         connection.sendMessage(message);
     }
 
+    /**
+     * Asks for the chat messages of a chat before a cursor
+     *
+     * @param chatId chat id
+     * @param cursor sequence number after the last chat message wanted, or CHAT_END for the last page
+     */
+    public void askForChatPage(BigInteger chatId, String cursor) {
+        Message message = new Message(GET_CHAT_PAGE, getClientId(), RESPONSIBLE, chatId.toString(), cursor, OLDER, Integer.toString(CHAT_PAGE_SIZE));
+        connection.sendMessage(message);
+    }
+
+    /**
+     * Shows a page of chat messages: the last page of the chat being opened, or an older page of the open chat
+     *
+     * @param page chat page
+     */
+    public void receiveChatPage(ChatPage page) {
+        Chat chat = chats.get(page.getChatId());
+        if (chat == null)
+            return;
+
+        if (actualState == Task.WAITING_FOR_CHAT) {
+            chat.setChatMessages(page.getFrom(), page.getChatMessages());
+            long[] point = syncPoints.get(page.getChatId());
+            if (point != null)
+                point[0] = Math.max(point[0], page.getTo());
+            openChat(page.getChatId());
+            return;
+        }
+
+        if (page.getChatMessages().isEmpty()) {
+            System.out.println("\nNo older messages");
+            return;
+        }
+
+        chat.addOlderChatMessages(page.getFrom(), page.getChatMessages());
+        System.out.println("\nOlder messages:");
+        for (ChatMessage message : page.getChatMessages()) {
+            if (message.getType().equals(TEXT_MESSAGE))
+                System.out.println(new String(message.getContent()));
+            else System.out.println("Received new file with name : " + message.getFilename());
+        }
+        if (!page.hasOlder())
+            System.out.println("(start of the chat)");
+    }
+
     public void askForClientChats() {
 
         System.out.println("Loading your chats ... ");
@@ -728,35 +792,136 @@ public class Client extends User {
         connection.sendMessage(message);
     }
 
+    /**
+     * Asks for what changed on the chats of the user since they were last synced
+     */
+    public void syncChats() {
+        System.out.println("Loading your chats ... ");
+
+        ArrayList<String> body = new ArrayList<>();
+        syncPoints.forEach((chatId, point) -> {
+            if (chats.containsKey(chatId)) {
+                body.add(chatId.toString());
+                body.add(Long.toString(point[0]));
+                body.add(Long.toString(point[1]));
+                body.add(Long.toString(point[2]));
+            }
+        });
+
+        Message message = new Message(SYNC, getClientId(), RESPONSIBLE, body.toArray(new String[0]));
+        actualState = Task.GET_CHATS;
+        connection.sendMessage(message);
+    }
+
+    /**
+     * Applies what changed on the chats of the user: adds the chats it did not know, the new chat messages and
+     * pending messages, and the participants and keys that changed
+     *
+     * @param updates chat updates
+     */
+    public void receiveUpdates(ArrayList<?> updates) {
+        int messages = 0;
+
+        for (Object object : updates) {
+            ChatUpdate update = (ChatUpdate) object;
+            Chat chat = chats.get(update.getChatId());
+            Chat header = update.getChat();
+            if (chat == null && header == null)
+                continue;
+
+            if (chat == null) {
+                chat = header;
+                chats.put(chat.getIdChat(), chat);
+                System.out.println("Added new Chat with chat name: " + chat.getChatName());
+            } else if (header != null) {
+                for (String participant : header.getParticipants())
+                    chat.addParticipant(participant);
+                chat.getUsersPubKeys().putAll(header.getUsersPubKeys());
+            }
+
+            long[] point = syncPoints.computeIfAbsent(chat.getIdChat(), chatId -> new long[]{-1, 0, 0});
+            ChatPage page = update.getPage();
+            if (page != null) {
+                if (point[0] < 0 || page.getFrom() != point[0])
+                    chat.setChatMessages(page.getFrom(), page.getChatMessages());
+                else
+                    for (ChatMessage chatMessage : page.getChatMessages())
+                        chat.addChatMessage(chatMessage);
+                point[0] = page.getTo();
+                messages += page.getChatMessages().size();
+            }
+
+            for (ChatMessage chatMessage : update.getPendingMessages())
+                chat.addPendingChatMessage(chatMessage);
+            point[1] = update.getPendingFrom() + update.getPendingMessages().size();
+            point[2] = chat.getMembersHash();
+            messages += update.getPendingMessages().size();
+        }
+
+        if (!updates.isEmpty())
+            System.out.println(updates.size() + " chats updated, " + messages + " new messages");
+    }
+
+    /**
+     * Counts a chat message the server added to a chat of the user outside of SYNC
+     *
+     * @param chatId chat id
+     */
+    public void countChatMessage(BigInteger chatId) {
+        long[] point = syncPoints.get(chatId);
+        if (point != null && point[0] >= 0)
+            point[0]++;
+    }
+
     public void askForPendingChats() {
         System.out.println("Checking for new chats ... ");
         Message message = new Message(GET_ALL_PENDING_CHATS, getClientId(), RESPONSIBLE);
         connection.sendMessage(message);
     }
 
-    public void storeFile(ChatMessage chatMessage) {
+    /**
+     * Sends or receives a file on a bulk connection to the server, as set up by a FILE_TRANSFER answer
+     * Downloads are stored on data/client/ClientId
+     *
+     * @param message FILE_TRANSFER message: Token Direction Host BulkPort Size Filename [UploadId]
+     */
+    public void transferFile(Message message) {
+        String[] body = message.getArguments();
+        String token = body[0];
+        String host = body[2];
+        int port = Integer.parseInt(body[3]);
+        long size = Long.parseLong(body[4]);
+        String filename = body[5];
+
+        if (body[1].equals(UPLOAD)) {
+            File file = body.length > 6 ? uploads.remove(body[6]) : null;
+            if (file == null)
+                return;
 
-        File yourFile = new File("data/client/" + getClientId().intValue() + "/" + chatMessage.getFilename());
-        System.out.println(yourFile.getPath());
-        OutputStream outputStream = null;
+            threadPool.submit(() -> {
+                try {
+                    FileTransfers.upload(host, port, token, file);
+                    System.out.println("\nSent file " + filename);
+                } catch (IOException e) {
+                    System.out.println("\nError sending file " + filename + ": " + e.getMessage());
+                }
+            });
+        } else {
+            File file = new File("data/client/" + getClientId().intValue() + "/" + filename);
+            System.out.println("Receiving ........ " + file.getPath());
+
+            threadPool.submit(() -> {
+                try {
+                    FileTransfers.download(host, port, token, file, size);
+                    System.out.println("\nReceived file " + file.getPath());
+                } catch (IOException e) {
+                    System.out.println("\nError downloading file " + filename + ": " + e.getMessage());
+                }
 
-        if (!yourFile.exists()) {
-            yourFile.getParentFile().mkdirs(); // Will create parent directories if not exists
-            try {
-                yourFile.createNewFile();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
-        try {
-            outputStream = new FileOutputStream(yourFile, true);
-            System.out.println(chatMessage.getContent().length);
-            outputStream.write(chatMessage.getContent());
-        } catch (IOException e) {
-            e.printStackTrace();
+                if (actualState == Task.DOWNLOADING_FILE)
+                    signInMenu();
+            });
         }
-
-        System.out.println("Receiving ........ ");
     }
 
     public void updateConnection(String newServerIp, int newServerPort) {
@@ -782,9 +947,6 @@ public class Client extends User {
 
     public void recoverConnection() {
 
-        int serverId = Integer.remainderUnsigned(createHash(serverIp + Integer.toString(serverPort)).intValue()
-                , 128);
-
         Node node = new Node(serverIp, serverPort);
 
         System.out.println("boas: " + node.getNodeId());
@@ -806,7 +968,7 @@ public class Client extends User {
             System.out.println("\nError connecting");
         }
 
-        Message connectToServer = new Message(SERVER_DOWN, getClientId(), NOT_RESPONSIBLE, Integer.toString(node.getNodeId()));
+        Message connectToServer = new Message(SERVER_DOWN, getClientId(), NOT_RESPONSIBLE, node.getNodeId().toString());
         connection.sendMessage(connectToServer);
 
         try {
@@ -5,6 +5,7 @@ import java.math.BigInteger;
 import java.security.PublicKey;
 
 import static Utilities.Constants.CRLF;
+import static Utilities.Constants.NO_REQUEST_ID;
 
 /**
  * Message class.
@@ -16,7 +17,7 @@ public class Message implements Serializable {
     private BigInteger receiver;
     private String initialServerAddress;
     private int initialServerPort;
-    private String body;
+    private String[] arguments;
     private String responsible;
     private String email;
     private String password;
@@ -24,6 +25,10 @@ public class Message implements Serializable {
     private PublicKey publicKey;
     private Object object;
     private String chatId;
+    /**
+     * Id matching an answer to its request on a connection shared by many requests, NO_REQUEST_ID if there is none
+     */
+    private long requestId = NO_REQUEST_ID;
 
     /**
      * Message Constructor
@@ -36,7 +41,7 @@ public class Message implements Serializable {
         this.messageType = messageType;
         this.senderId = senderId;
         this.responsible = responsible;
-        this.body = String.join(" ", body);
+        this.arguments = body;
         this.initialServerPort = -1;
         this.initialServerAddress = null;
     }
@@ -45,7 +50,6 @@ public class Message implements Serializable {
         this.messageType = messageType;
         this.senderId = senderId;
         this.responsible = responsible;
-        this.body = String.join(" ", body);
         this.initialServerPort = -1;
         this.initialServerAddress = null;
         this.privateKey = privateKey;
@@ -56,7 +60,6 @@ public class Message implements Serializable {
         this.messageType = messageType;
         this.senderId = senderId;
         this.responsible = responsible;
-        this.body = String.join(" ", body);
         this.initialServerPort = -1;
         this.initialServerAddress = null;
         this.email = email;
@@ -69,7 +72,6 @@ public class Message implements Serializable {
         this.messageType = messageType;
         this.senderId = senderId;
         this.responsible = responsible;
-        this.body = String.join(" ", body);
         this.initialServerPort = -1;
         this.initialServerAddress = null;
         this.chatId = chatId;
@@ -86,7 +88,7 @@ public class Message implements Serializable {
         this.responsible = responsible;
 
         if (obj instanceof String)
-            this.body = String.join(" ", (String) obj);
+            this.arguments = new String[]{(String) obj};
         else
             this.object = obj;
     }
@@ -100,7 +102,7 @@ public class Message implements Serializable {
         this.responsible = responsible;
 
         if (obj instanceof String)
-            this.body = String.join(" ", (String) obj);
+            this.arguments = new String[]{(String) obj};
         else
             this.object = obj;
     }
@@ -149,16 +151,29 @@ public class Message implements Serializable {
     }
 
     /**
-     * Returns message body
+     * Returns message body, the arguments separated by spaces
      *
-     * @return body
+     * @return body, or null if the message has no arguments
      */
     public String getBody() {
-        return body;
+        return arguments == null ? null : String.join(" ", arguments);
     }
 
     public void setBody(String body) {
-        this.body = body;
+        this.arguments = body == null ? null : body.split(" ");
+    }
+
+    /**
+     * Returns message arguments, as they were given to the constructor
+     *
+     * @return arguments, empty if the message has none
+     */
+    public String[] getArguments() {
+        return arguments == null ? new String[0] : arguments;
+    }
+
+    public void setArguments(String... arguments) {
+        this.arguments = arguments;
     }
 
     /**
@@ -170,6 +185,10 @@ public class Message implements Serializable {
         return object;
     }
 
+    public void setObject(Object object) {
+        this.object = object;
+    }
+
     /**
      * Prints message content
      */
@@ -270,4 +289,12 @@ public class Message implements Serializable {
     public void setChatId(String chatId) {
         this.chatId = chatId;
     }
+
+    public long getRequestId() {
+        return requestId;
+    }
+
+    public void setRequestId(long requestId) {
+        this.requestId = requestId;
+    }
 }
\ No newline at end of file
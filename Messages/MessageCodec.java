@@ -0,0 +1,972 @@
+package Messages;
+
+import Chat.Chat;
+import Chat.ChatMessage;
+import Chat.ChatPage;
+import Chat.ChatUpdate;
+import Server.Node;
+import Server.User;
+import Utilities.RingIdentifier;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static Utilities.Constants.*;
+
+/**
+ * Binary wire format of messages
+ * Frame: [Length] [Opcode] [Responsible] [Fields] [Fields present...]
+ * Message types are sent as a 2 byte opcode, ids as fixed width unsigned integers, and
+ * users, chats, chat messages and nodes field by field, with no class descriptors
+ * Other objects fall back to java serialization
+ * Once both ends agree to it with a HELLO, frames of at least COMPRESSION_THRESHOLD bytes are deflated, if that
+ * makes them smaller: [Length | COMPRESSED] [Uncompressed length] [Deflated frame]
+ * One codec per connection: it reuses its encoding buffer, so it is not thread safe
+ * No state is kept between messages, apart from that buffer, which is dropped after a large message; each
+ * compressed frame is deflated on its own
+ */
+public class MessageCodec {
+
+    /**
+     * Message types by opcode, only ever appended to, since the opcode is the position on the array
+     * Types no longer sent keep their opcode, so the ones after them do not move
+     */
+    private static final String[] MESSAGE_TYPES = {
+            FINGERTABLE, NEWNODE, NEWNODE_ANSWER, PREDECESSOR, GET_PREDECESSOR, PREDECESSOR_ANSWER, "SUCCESSOR_FT",
+            USER_UPDATED_CONNECTION, INVITE_USER, SUCCESSOR, SIGNIN, SIGNUP, CLIENT_SUCCESS, CLIENT_ERROR,
+            CREATE_CHAT, GET_CHAT, GET_ALL_CHATS, GET_ALL_PENDING_CHATS, NEW_CHAT_INVITATION, NEW_MESSAGE,
+            FILE_TRANSACTION, STORE_FILE_MESSAGE, STORE_FILE_ON_PARTICIPANT, DOWNLOAD_FILE, SIGNOUT, SENT_FILE,
+            BACKUP_USER, SERVER_SUCCESS, SERVER_ERROR, ADD_USER, PUBLIC_KEY, ADD_PUBLIC_KEY,
+            CREATE_CHAT_BY_INVITATION, NEW_MESSAGE_TO_PARTICIPANT, DOWNLOADING_FILE, SERVER_DOWN,
+            SERVER_UPDATE_CONNECTION, FIND_SUCCESSOR, FIND_SUCCESSOR_ANSWER, TRANSFER_BATCH, TRANSFER_ACK,
+            ADDED_PUB_KEYS, PING, PONG, HELLO, FILE_TRANSFER, GET_CHAT_PAGE, CHAT_PAGE, SYNC, CHAT_UPDATES,
+            TRANSFER_HISTORY
+    };
+
+    private static final Map<String, Integer> OPCODES = new HashMap<>();
+
+    static {
+        for (int i = 0; i < MESSAGE_TYPES.length; i++)
+            OPCODES.putIfAbsent(MESSAGE_TYPES[i], i);
+    }
+
+    /**
+     * Opcode of message types not on the table, followed by the type itself
+     */
+    private static final int UNKNOWN_TYPE = 0xFFFF;
+
+    private static final int RING_ID_BYTES = (RING_BITS + 7) / 8;
+
+    //Responsible field
+    private static final byte NONE = 0;
+    private static final byte IS_RESPONSIBLE = 1;
+    private static final byte IS_NOT_RESPONSIBLE = 2;
+
+    //Fields present on the message
+    private static final int SENDER_ID = 1;
+    private static final int RECEIVER = 1 << 1;
+    private static final int INITIAL_SERVER = 1 << 2;
+    private static final int ARGUMENTS = 1 << 3;
+    private static final int EMAIL = 1 << 4;
+    private static final int PASSWORD = 1 << 5;
+    private static final int PRIVATE_KEY = 1 << 6;
+    private static final int PUBLIC_KEY_FIELD = 1 << 7;
+    private static final int OBJECT = 1 << 8;
+    private static final int CHAT_ID = 1 << 9;
+    private static final int REQUEST_ID = 1 << 10;
+
+    //Object types
+    private static final byte NULL_OBJECT = 0;
+    private static final byte NODE_OBJECT = 1;
+    private static final byte USER_OBJECT = 2;
+    private static final byte CHAT_OBJECT = 3;
+    private static final byte CHAT_MESSAGE_OBJECT = 4;
+    private static final byte LIST_OBJECT = 5;
+    private static final byte SERIALIZED_OBJECT = 6;
+    private static final byte CHAT_PAGE_OBJECT = 7;
+    private static final byte CHAT_UPDATE_OBJECT = 8;
+
+    /**
+     * Set on the length of compressed frames
+     */
+    private static final int COMPRESSED = 1 << 31;
+
+    /**
+     * Encoding buffer kept between messages, at most this size
+     */
+    private static final int RETAINED_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Large frames are only deflated if this many bytes from their middle get at least 1/8 smaller, so already
+     * compressed content, such as most file chunks, costs a fraction of deflating it whole
+     */
+    private static final int SAMPLE_SIZE = 1024;
+
+    private static final AtomicLong compressedFrames = new AtomicLong();
+    private static final AtomicLong uncompressedBytes = new AtomicLong();
+    private static final AtomicLong deflatedBytes = new AtomicLong();
+    private static final AtomicLong compressionNanos = new AtomicLong();
+
+    private FrameBuffer buffer = new FrameBuffer(1024);
+    private DataOutputStream bufferOutput = new DataOutputStream(buffer);
+
+    private final int level;
+    private volatile boolean compress = false;
+    private Deflater deflater;
+    private Inflater inflater;
+    private byte[] deflated = new byte[0];
+
+    public MessageCodec() {
+        this(COMPRESSION_LEVEL);
+    }
+
+    /**
+     * @param level deflate level of the compressed frames, from 1 (fastest) to 9 (smallest)
+     */
+    public MessageCodec(int level) {
+        this.level = level;
+    }
+
+    /**
+     * @return HELLO listing the codecs this end compresses frames with, none with -Dwire.compression=none
+     */
+    public static Message hello() {
+        return new Message(HELLO, null, null, WIRE_COMPRESSION ? new String[]{DEFLATE} : new String[0]);
+    }
+
+    /**
+     * Compresses the frames written from now on if the HELLO of the other end lists a codec this end has
+     * Compressed frames are read whether or not this end agreed to write them
+     *
+     * @param hello HELLO of the other end
+     */
+    public void acceptHello(Message hello) {
+        compress = WIRE_COMPRESSION && Arrays.asList(hello.getArguments()).contains(DEFLATE);
+    }
+
+    /**
+     * @return true if frames written are compressed
+     */
+    public boolean isCompressing() {
+        return compress;
+    }
+
+    /**
+     * Writes a message as one length prefixed frame, without flushing
+     *
+     * @param message message to be sent
+     * @param out     connection stream
+     */
+    public void write(Message message, DataOutputStream out) throws IOException {
+        buffer.reset();
+        encode(message, bufferOutput);
+        checkFrameLength(message, buffer.size());
+
+        int size = compress && buffer.size() >= COMPRESSION_THRESHOLD ? deflate(buffer.bytes(), 0, buffer.size()) : -1;
+        if (size >= 0) {
+            out.writeInt(COMPRESSED | (4 + size));
+            out.writeInt(buffer.size());
+            out.write(deflated, 0, size);
+        } else {
+            out.writeInt(buffer.size());
+            buffer.writeTo(out);
+        }
+
+        if (buffer.size() > RETAINED_BUFFER_SIZE) {
+            buffer = new FrameBuffer(1024);
+            bufferOutput = new DataOutputStream(buffer);
+        }
+        if (deflated.length > RETAINED_BUFFER_SIZE)
+            deflated = new byte[0];
+    }
+
+    /**
+     * Reads the next frame of a connection
+     *
+     * @param in connection stream
+     * @return message received
+     * @throws IOException if the connection is down or the frame is malformed
+     */
+    public Message read(DataInputStream in) throws IOException {
+        int header = in.readInt();
+
+        byte[] frame = new byte[frameLength(header)];
+        in.readFully(frame);
+
+        return decodeFrame(header, frame);
+    }
+
+    /**
+     * @param header first 4 bytes of a frame
+     * @return length of the rest of the frame
+     * @throws StreamCorruptedException if the length is not valid
+     */
+    public static int frameLength(int header) throws StreamCorruptedException {
+        int length = header & ~COMPRESSED;
+
+        if (length > MAX_FRAME_SIZE)
+            throw new StreamCorruptedException("Invalid frame length " + length);
+        return length;
+    }
+
+    /**
+     * Refuses to send a frame the other end would not read, before any of it is written
+     *
+     * @param message message encoded
+     * @param length  length of the encoded message
+     * @throws FrameTooLargeException if it is longer than MAX_FRAME_SIZE
+     */
+    private static void checkFrameLength(Message message, int length) throws FrameTooLargeException {
+        if (length > MAX_FRAME_SIZE)
+            throw new FrameTooLargeException(message.getMessageType(), length);
+    }
+
+    /**
+     * A message was too large to be sent as one frame
+     */
+    public static class FrameTooLargeException extends IOException {
+
+        public FrameTooLargeException(String messageType, int length) {
+            super(messageType + " of " + length + " bytes is over the frame limit of " + MAX_FRAME_SIZE + " bytes");
+        }
+    }
+
+    /**
+     * Decodes a frame, inflating it first if it is compressed
+     *
+     * @param header first 4 bytes of the frame
+     * @param frame  rest of the frame
+     * @throws IOException if the frame is malformed
+     */
+    public Message decodeFrame(int header, byte[] frame) throws IOException {
+        return decode((header & COMPRESSED) != 0 ? inflate(frame) : frame);
+    }
+
+    /**
+     * Encodes a message as a whole frame, length included, for connections that send from a queue
+     * Unlike the other methods of the codec, it may be called by many threads at once
+     *
+     * @param message message to be sent
+     * @return frame, ready to be read
+     */
+    public ByteBuffer encodeFrame(Message message) throws IOException {
+        FrameBuffer bytes = new FrameBuffer(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeInt(0);
+        encode(message, out);
+
+        int length = bytes.size() - 4;
+        checkFrameLength(message, length);
+        if (compress && length >= COMPRESSION_THRESHOLD) {
+            synchronized (this) {
+                int size = deflate(bytes.bytes(), 4, length);
+                if (size >= 0) {
+                    ByteBuffer frame = ByteBuffer.allocate(8 + size);
+                    frame.putInt(COMPRESSED | (4 + size)).putInt(length).put(deflated, 0, size).flip();
+                    if (deflated.length > RETAINED_BUFFER_SIZE)
+                        deflated = new byte[0];
+                    return frame;
+                }
+            }
+        }
+
+        ByteBuffer frame = ByteBuffer.wrap(bytes.toByteArray());
+        frame.putInt(0, length);
+        return frame;
+    }
+
+    /**
+     * Deflates part of a frame into the deflated buffer
+     *
+     * @return deflated size, or -1 if deflating would not make the frame smaller
+     */
+    private int deflate(byte[] frame, int offset, int length) {
+        long start = System.nanoTime();
+
+        if (deflater == null)
+            deflater = new Deflater(level);
+
+        //the uncompressed length goes before the deflated bytes, so they must take 4 bytes less to be worth it
+        int room = length - 4;
+        if (deflated.length < Math.max(room, SAMPLE_SIZE))
+            deflated = new byte[Math.max(room, SAMPLE_SIZE)];
+
+        if (length >= 4 * SAMPLE_SIZE && deflate(frame, offset + length / 2, SAMPLE_SIZE, SAMPLE_SIZE - SAMPLE_SIZE / 8) < 0) {
+            compressionNanos.addAndGet(System.nanoTime() - start);
+            return -1;
+        }
+
+        int size = deflate(frame, offset, length, room);
+
+        compressionNanos.addAndGet(System.nanoTime() - start);
+        if (size < 0)
+            return -1;
+
+        compressedFrames.incrementAndGet();
+        uncompressedBytes.addAndGet(length);
+        deflatedBytes.addAndGet(4 + size);
+        return size;
+    }
+
+    /**
+     * @return deflated size, or -1 if it would take more than room bytes
+     */
+    private int deflate(byte[] frame, int offset, int length, int room) {
+        deflater.reset();
+        deflater.setInput(frame, offset, length);
+        deflater.finish();
+
+        int size = 0;
+        while (!deflater.finished() && size < room)
+            size += deflater.deflate(deflated, size, room - size);
+
+        return deflater.finished() ? size : -1;
+    }
+
+    /**
+     * Inflates a compressed frame: [Uncompressed length] [Deflated frame]
+     */
+    private byte[] inflate(byte[] frame) throws IOException {
+        if (frame.length < 4)
+            throw new StreamCorruptedException("Truncated compressed frame");
+
+        int length = ByteBuffer.wrap(frame).getInt();
+        if (length < 0 || length > MAX_FRAME_SIZE)
+            throw new StreamCorruptedException("Invalid uncompressed frame length " + length);
+
+        if (inflater == null)
+            inflater = new Inflater();
+        inflater.reset();
+        inflater.setInput(frame, 4, frame.length - 4);
+
+        byte[] inflated = new byte[length];
+        try {
+            int size = 0;
+            while (size < length && !inflater.finished()) {
+                int read = inflater.inflate(inflated, size, length - size);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                size += read;
+            }
+
+            if (size != length || !inflater.finished())
+                throw new StreamCorruptedException("Compressed frame does not inflate to " + length + " bytes");
+        } catch (DataFormatException e) {
+            throw new StreamCorruptedException("Invalid compressed frame: " + e.getMessage());
+        }
+
+        return inflated;
+    }
+
+    /**
+     * @return frames compressed by every connection of the process
+     */
+    public static long getCompressedFrames() {
+        return compressedFrames.get();
+    }
+
+    /**
+     * @return size of the compressed frames before compression
+     */
+    public static long getUncompressedBytes() {
+        return uncompressedBytes.get();
+    }
+
+    /**
+     * @return size of the compressed frames, uncompressed length included
+     */
+    public static long getDeflatedBytes() {
+        return deflatedBytes.get();
+    }
+
+    /**
+     * @return time spent deflating, frames that did not get smaller included
+     */
+    public static long getCompressionNanos() {
+        return compressionNanos.get();
+    }
+
+    public static void printCompressionMetrics() {
+        long before = uncompressedBytes.get(), after = deflatedBytes.get();
+        System.out.println(String.format("Compression: %d frames, %.1f KB to %.1f KB (%.0f%% saved), %d ms deflating",
+                compressedFrames.get(), before / 1024.0, after / 1024.0, before == 0 ? 0 : 100.0 * (before - after) / before,
+                compressionNanos.get() / 1000000));
+    }
+
+    /**
+     * Encodes a message, without the frame length
+     */
+    public static void encode(Message message, DataOutput out) throws IOException {
+
+        Integer opcode = OPCODES.get(message.getMessageType());
+        out.writeShort(opcode == null ? UNKNOWN_TYPE : opcode);
+        if (opcode == null)
+            writeString(out, message.getMessageType());
+
+        String responsible = message.getResponsible();
+        if (RESPONSIBLE.equals(responsible))
+            out.writeByte(IS_RESPONSIBLE);
+        else if (NOT_RESPONSIBLE.equals(responsible))
+            out.writeByte(IS_NOT_RESPONSIBLE);
+        else
+            out.writeByte(NONE);
+
+        int fields = 0;
+        if (message.getSenderId() != null) fields |= SENDER_ID;
+        if (message.getReceiver() != null) fields |= RECEIVER;
+        if (message.getInitialServerAddress() != null) fields |= INITIAL_SERVER;
+        if (message.getArguments().length > 0) fields |= ARGUMENTS;
+        if (message.getEmail() != null) fields |= EMAIL;
+        if (message.getPassword() != null) fields |= PASSWORD;
+        if (message.getPrivateKey() != null) fields |= PRIVATE_KEY;
+        if (message.getPublicKey() != null) fields |= PUBLIC_KEY_FIELD;
+        if (message.getObject() != null) fields |= OBJECT;
+        if (message.getChatId() != null) fields |= CHAT_ID;
+        if (message.getRequestId() != NO_REQUEST_ID) fields |= REQUEST_ID;
+        out.writeShort(fields);
+
+        if ((fields & SENDER_ID) != 0)
+            writeId(out, message.getSenderId());
+        if ((fields & RECEIVER) != 0)
+            writeId(out, message.getReceiver());
+        if ((fields & INITIAL_SERVER) != 0) {
+            writeString(out, message.getInitialServerAddress());
+            out.writeInt(message.getInitialServerPort());
+        }
+        if ((fields & ARGUMENTS) != 0) {
+            String[] arguments = message.getArguments();
+            writeLength(out, arguments.length);
+            for (String argument : arguments)
+                writeString(out, argument);
+        }
+        if ((fields & EMAIL) != 0)
+            writeString(out, message.getEmail());
+        if ((fields & PASSWORD) != 0)
+            writeString(out, message.getPassword());
+        if ((fields & PRIVATE_KEY) != 0)
+            writeBytes(out, message.getPrivateKey());
+        if ((fields & PUBLIC_KEY_FIELD) != 0)
+            writePublicKey(out, message.getPublicKey());
+        if ((fields & OBJECT) != 0)
+            writeObject(out, message.getObject());
+        if ((fields & CHAT_ID) != 0)
+            writeString(out, message.getChatId());
+        if ((fields & REQUEST_ID) != 0)
+            out.writeLong(message.getRequestId());
+    }
+
+    /**
+     * Decodes a frame, without its length
+     *
+     * @throws IOException if the frame is malformed
+     */
+    public static Message decode(byte[] frame) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame));
+
+        try {
+            Message message = decode(in);
+            if (in.available() > 0)
+                throw new StreamCorruptedException(in.available() + " bytes left on the frame");
+            return message;
+        } catch (EOFException e) {
+            throw new StreamCorruptedException("Truncated frame");
+        }
+    }
+
+    public static Message decode(DataInput in) throws IOException {
+
+        int opcode = in.readUnsignedShort();
+        String messageType;
+        if (opcode == UNKNOWN_TYPE)
+            messageType = readString(in);
+        else if (opcode < MESSAGE_TYPES.length)
+            messageType = MESSAGE_TYPES[opcode];
+        else
+            throw new StreamCorruptedException("Unknown opcode " + opcode);
+
+        String responsible;
+        switch (in.readByte()) {
+            case IS_RESPONSIBLE:
+                responsible = RESPONSIBLE;
+                break;
+            case IS_NOT_RESPONSIBLE:
+                responsible = NOT_RESPONSIBLE;
+                break;
+            default:
+                responsible = null;
+                break;
+        }
+
+        int fields = in.readUnsignedShort();
+
+        Message message = new Message(messageType, (fields & SENDER_ID) != 0 ? readId(in) : null, responsible, (Object) null);
+
+        if ((fields & RECEIVER) != 0)
+            message.setReceiver(readId(in));
+        if ((fields & INITIAL_SERVER) != 0) {
+            message.setInitialServerAddress(readString(in));
+            message.setInitialServerPort(in.readInt());
+        }
+        if ((fields & ARGUMENTS) != 0) {
+            String[] arguments = new String[readLength(in)];
+            for (int i = 0; i < arguments.length; i++)
+                arguments[i] = readString(in);
+            message.setArguments(arguments);
+        }
+        if ((fields & EMAIL) != 0)
+            message.setEmail(readString(in));
+        if ((fields & PASSWORD) != 0)
+            message.setPassword(readString(in));
+        if ((fields & PRIVATE_KEY) != 0)
+            message.setPrivateKey(readBytes(in));
+        if ((fields & PUBLIC_KEY_FIELD) != 0)
+            message.setPublicKey(readPublicKey(in));
+        if ((fields & OBJECT) != 0)
+            message.setObject(readObject(in));
+        if ((fields & CHAT_ID) != 0)
+            message.setChatId(readString(in));
+        if ((fields & REQUEST_ID) != 0)
+            message.setRequestId(in.readLong());
+
+        return message;
+    }
+
+    private static void writeObject(DataOutput out, Object object) throws IOException {
+
+        if (object == null) {
+            out.writeByte(NULL_OBJECT);
+        } else if (object instanceof Node) {
+            out.writeByte(NODE_OBJECT);
+            writeNode(out, (Node) object);
+        } else if (object.getClass() == User.class) {
+            out.writeByte(USER_OBJECT);
+            writeUser(out, (User) object);
+        } else if (object.getClass() == Chat.class) {
+            out.writeByte(CHAT_OBJECT);
+            writeChat(out, (Chat) object);
+        } else if (object.getClass() == ChatMessage.class) {
+            out.writeByte(CHAT_MESSAGE_OBJECT);
+            writeChatMessage(out, (ChatMessage) object);
+        } else if (object.getClass() == ChatPage.class) {
+            out.writeByte(CHAT_PAGE_OBJECT);
+            writeChatPage(out, (ChatPage) object);
+        } else if (object.getClass() == ChatUpdate.class) {
+            out.writeByte(CHAT_UPDATE_OBJECT);
+            writeChatUpdate(out, (ChatUpdate) object);
+        } else if (object.getClass() == ArrayList.class) {
+            out.writeByte(LIST_OBJECT);
+            List<?> list = (List<?>) object;
+            writeLength(out, list.size());
+            for (Object element : list)
+                writeObject(out, element);
+        } else {
+            out.writeByte(SERIALIZED_OBJECT);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream objectOutput = new ObjectOutputStream(bytes)) {
+                objectOutput.writeObject(object);
+            }
+            writeBytes(out, bytes.toByteArray());
+        }
+    }
+
+    private static Object readObject(DataInput in) throws IOException {
+
+        byte type = in.readByte();
+        switch (type) {
+            case NULL_OBJECT:
+                return null;
+            case NODE_OBJECT:
+                return readNode(in);
+            case USER_OBJECT:
+                return readUser(in);
+            case CHAT_OBJECT:
+                return readChat(in);
+            case CHAT_MESSAGE_OBJECT:
+                return readChatMessage(in);
+            case CHAT_PAGE_OBJECT:
+                return readChatPage(in);
+            case CHAT_UPDATE_OBJECT:
+                return readChatUpdate(in);
+            case LIST_OBJECT:
+                int size = readLength(in);
+                ArrayList<Object> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++)
+                    list.add(readObject(in));
+                return list;
+            case SERIALIZED_OBJECT:
+                try (ObjectInputStream objectInput = new ObjectInputStream(new ByteArrayInputStream(readBytes(in)))) {
+                    return objectInput.readObject();
+                } catch (ClassNotFoundException e) {
+                    throw new InvalidClassException(e.getMessage());
+                }
+            default:
+                throw new StreamCorruptedException("Unknown object type " + type);
+        }
+    }
+
+    /**
+     * Node: [NodeId] [NodeIp] [NodePort]
+     */
+    private static void writeNode(DataOutput out, Node node) throws IOException {
+        writeFixed(out, node.getNodeId().toBigInteger(), RING_ID_BYTES);
+        writeString(out, node.getNodeIp());
+        out.writeInt(node.getNodePort());
+    }
+
+    private static Node readNode(DataInput in) throws IOException {
+        RingIdentifier nodeId = new RingIdentifier(readFixed(in, RING_ID_BYTES));
+        return new Node(readString(in), in.readInt(), nodeId);
+    }
+
+    /**
+     * User: [Email] [Password] [PrivateKey] [PublicKey] [Chats] [PendingRequests]
+     */
+    private static void writeUser(DataOutput out, User user) throws IOException {
+        writeString(out, user.getEmail());
+        writeId(out, user.getPassword());
+        writeNullableBytes(out, user.getPrivateKey());
+        writeNullablePublicKey(out, user.getPublicKey());
+        writeChats(out, user.getChats());
+        writeChats(out, user.getPendingRequests());
+    }
+
+    private static User readUser(DataInput in) throws IOException {
+        User user = new User(readString(in), readId(in), readNullableBytes(in), readNullablePublicKey(in));
+        readChats(in, user.getChats());
+        readChats(in, user.getPendingRequests());
+        return user;
+    }
+
+    private static void writeChats(DataOutput out, Map<BigInteger, Chat> chats) throws IOException {
+        ArrayList<Map.Entry<BigInteger, Chat>> entries = new ArrayList<>(chats.entrySet());
+
+        writeLength(out, entries.size());
+        for (Map.Entry<BigInteger, Chat> entry : entries) {
+            writeId(out, entry.getKey());
+            writeChat(out, entry.getValue());
+        }
+    }
+
+    private static void readChats(DataInput in, Map<BigInteger, Chat> chats) throws IOException {
+        int size = readLength(in);
+        for (int i = 0; i < size; i++)
+            chats.put(readId(in), readChat(in));
+    }
+
+    /**
+     * Chat: [ChatId] [ChatName] [CreatorEmail] [Participants] [FirstMessage] [Messages] [PendingMessages] [PublicKeys]
+     */
+    private static void writeChat(DataOutput out, Chat chat) throws IOException {
+        writeId(out, chat.getIdChat());
+        writeString(out, chat.getChatName());
+        writeString(out, chat.getCreatorEmail());
+
+        ArrayList<String> participants = new ArrayList<>(chat.getParticipants());
+        writeLength(out, participants.size());
+        for (String participant : participants)
+            writeString(out, participant);
+
+        //the sequence number of the first message goes with the messages, as messages move to the chat history
+        long firstMessage;
+        ChatMessage[] chatMessages;
+        ChatMessage[] pendingMessages;
+        synchronized (chat) {
+            firstMessage = chat.getFirstMessage();
+            chatMessages = chat.getChatMessages().toArray(new ChatMessage[0]);
+            pendingMessages = chat.getChatPendingMessages().toArray(new ChatMessage[0]);
+        }
+        out.writeLong(firstMessage);
+        writeChatMessages(out, Arrays.asList(chatMessages));
+        writeChatMessages(out, Arrays.asList(pendingMessages));
+
+        ArrayList<Map.Entry<BigInteger, PublicKey>> keys = new ArrayList<>(chat.getUsersPubKeys().entrySet());
+        writeLength(out, keys.size());
+        for (Map.Entry<BigInteger, PublicKey> key : keys) {
+            writeId(out, key.getKey());
+            writePublicKey(out, key.getValue());
+        }
+    }
+
+    private static Chat readChat(DataInput in) throws IOException {
+        Chat chat = new Chat(readId(in), readString(in), readString(in));
+
+        int participants = readLength(in);
+        for (int i = 0; i < participants; i++)
+            chat.addParticipant(readString(in));
+
+        chat.setFirstMessage(in.readLong());
+        int messages = readLength(in);
+        for (int i = 0; i < messages; i++)
+            chat.addChatMessage(readChatMessage(in));
+
+        int pendingMessages = readLength(in);
+        for (int i = 0; i < pendingMessages; i++)
+            chat.addPendingChatMessage(readChatMessage(in));
+
+        int keys = readLength(in);
+        for (int i = 0; i < keys; i++)
+            chat.getUsersPubKeys().put(readId(in), readPublicKey(in));
+
+        return chat;
+    }
+
+    private static void writeChatMessages(DataOutput out, List<ChatMessage> chatMessages) throws IOException {
+        ChatMessage[] snapshot = chatMessages.toArray(new ChatMessage[0]);
+
+        writeLength(out, snapshot.length);
+        for (ChatMessage chatMessage : snapshot)
+            writeChatMessage(out, chatMessage);
+    }
+
+    /**
+     * Chat page: [ChatId] [From] [To] [Start] [End] [Messages]
+     */
+    private static void writeChatPage(DataOutput out, ChatPage page) throws IOException {
+        writeId(out, page.getChatId());
+        out.writeLong(page.getFrom());
+        out.writeLong(page.getTo());
+        out.writeLong(page.getStart());
+        out.writeLong(page.getEnd());
+        writeChatMessages(out, page.getChatMessages());
+    }
+
+    private static ChatPage readChatPage(DataInput in) throws IOException {
+        BigInteger chatId = readId(in);
+        long from = in.readLong();
+        long to = in.readLong();
+        long start = in.readLong();
+        long end = in.readLong();
+
+        int messages = readLength(in);
+        ArrayList<ChatMessage> chatMessages = new ArrayList<>(messages);
+        for (int i = 0; i < messages; i++)
+            chatMessages.add(readChatMessage(in));
+
+        return new ChatPage(chatId, from, to, start, end, chatMessages);
+    }
+
+    /**
+     * Chat update: [ChatId] [Chat or null] [Page or null] [PendingFrom] [PendingMessages]
+     */
+    private static void writeChatUpdate(DataOutput out, ChatUpdate update) throws IOException {
+        writeId(out, update.getChatId());
+        writeObject(out, update.getChat());
+        writeObject(out, update.getPage());
+        out.writeInt(update.getPendingFrom());
+        writeChatMessages(out, update.getPendingMessages());
+    }
+
+    private static ChatUpdate readChatUpdate(DataInput in) throws IOException {
+        BigInteger chatId = readId(in);
+        Chat chat = (Chat) readObject(in);
+        ChatPage page = (ChatPage) readObject(in);
+        int pendingFrom = in.readInt();
+
+        int messages = readLength(in);
+        ArrayList<ChatMessage> pendingMessages = new ArrayList<>(messages);
+        for (int i = 0; i < messages; i++)
+            pendingMessages.add(readChatMessage(in));
+
+        return new ChatUpdate(chatId, chat, page, pendingFrom, pendingMessages);
+    }
+
+    /**
+     * Encodes a chat message on its own, as kept on the chat history of a server
+     */
+    public static void encode(ChatMessage chatMessage, DataOutput out) throws IOException {
+        writeChatMessage(out, chatMessage);
+    }
+
+    public static ChatMessage decodeChatMessage(DataInput in) throws IOException {
+        return readChatMessage(in);
+    }
+
+    /**
+     * Chat message: [ChatId] [CreationDate] [UserId] [Content] [Type] [Filename]
+     */
+    private static void writeChatMessage(DataOutput out, ChatMessage chatMessage) throws IOException {
+        writeNullableId(out, chatMessage.getChatId());
+        out.writeLong(chatMessage.getCreationDate() == null ? Long.MIN_VALUE : chatMessage.getCreationDate().getTime());
+        writeNullableId(out, chatMessage.getUserId());
+        writeNullableBytes(out, chatMessage.getContent());
+        writeString(out, chatMessage.getType());
+        writeString(out, chatMessage.getFilename());
+    }
+
+    private static ChatMessage readChatMessage(DataInput in) throws IOException {
+        BigInteger chatId = readNullableId(in);
+        long creationDate = in.readLong();
+        BigInteger userId = readNullableId(in);
+        byte[] content = readNullableBytes(in);
+        String type = readString(in);
+        String filename = readString(in);
+
+        return new ChatMessage(chatId, creationDate == Long.MIN_VALUE ? null : new Date(creationDate), userId, content, type, filename);
+    }
+
+    /**
+     * Public key: [Algorithm] [X.509 encoding]
+     */
+    private static void writePublicKey(DataOutput out, PublicKey publicKey) throws IOException {
+        writeString(out, publicKey.getAlgorithm());
+        writeBytes(out, publicKey.getEncoded());
+    }
+
+    private static PublicKey readPublicKey(DataInput in) throws IOException {
+        String algorithm = readString(in);
+        byte[] encoded = readBytes(in);
+
+        try {
+            return KeyFactory.getInstance(algorithm).generatePublic(new X509EncodedKeySpec(encoded));
+        } catch (GeneralSecurityException e) {
+            throw new InvalidObjectException("Invalid " + algorithm + " public key: " + e.getMessage());
+        }
+    }
+
+    private static void writeNullablePublicKey(DataOutput out, PublicKey publicKey) throws IOException {
+        out.writeBoolean(publicKey != null);
+        if (publicKey != null)
+            writePublicKey(out, publicKey);
+    }
+
+    private static PublicKey readNullablePublicKey(DataInput in) throws IOException {
+        return in.readBoolean() ? readPublicKey(in) : null;
+    }
+
+    /**
+     * Ids (user, chat and sender ids, password hashes) are SHA-256 hashes, sent as ID_BYTES unsigned bytes
+     */
+    private static void writeId(DataOutput out, BigInteger id) throws IOException {
+        writeFixed(out, id, ID_BYTES);
+    }
+
+    private static BigInteger readId(DataInput in) throws IOException {
+        return readFixed(in, ID_BYTES);
+    }
+
+    private static void writeNullableId(DataOutput out, BigInteger id) throws IOException {
+        out.writeBoolean(id != null);
+        if (id != null)
+            writeId(out, id);
+    }
+
+    private static BigInteger readNullableId(DataInput in) throws IOException {
+        return in.readBoolean() ? readId(in) : null;
+    }
+
+    private static void writeFixed(DataOutput out, BigInteger value, int width) throws IOException {
+
+        if (value.signum() < 0 || value.bitLength() > width * 8)
+            throw new InvalidObjectException("Identifier " + value + " does not fit on " + width + " bytes");
+
+        byte[] bytes = value.toByteArray();
+        int length = Math.min(bytes.length, width);
+
+        for (int i = length; i < width; i++)
+            out.writeByte(0);
+        out.write(bytes, bytes.length - length, length);
+    }
+
+    private static BigInteger readFixed(DataInput in, int width) throws IOException {
+        byte[] bytes = new byte[width];
+        in.readFully(bytes);
+        return new BigInteger(1, bytes);
+    }
+
+    /**
+     * Strings: [Length + 1] [UTF-8 bytes], a length of 0 meaning null
+     */
+    private static void writeString(DataOutput out, String value) throws IOException {
+        writeNullableBytes(out, value == null ? null : value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        byte[] bytes = readNullableBytes(in);
+        return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeNullableBytes(DataOutput out, byte[] bytes) throws IOException {
+        writeLength(out, bytes == null ? 0 : bytes.length + 1);
+        if (bytes != null)
+            out.write(bytes);
+    }
+
+    private static byte[] readNullableBytes(DataInput in) throws IOException {
+        int length = readLength(in);
+        if (length == 0)
+            return null;
+
+        byte[] bytes = new byte[length - 1];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static void writeBytes(DataOutput out, byte[] bytes) throws IOException {
+        writeLength(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInput in) throws IOException {
+        byte[] bytes = new byte[readLength(in)];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * Lengths and counts, as unsigned varints: 7 bits per byte, high bit set on every byte but the last
+     */
+    private static void writeLength(DataOutput out, int length) throws IOException {
+        while ((length & ~0x7F) != 0) {
+            out.writeByte((length & 0x7F) | 0x80);
+            length >>>= 7;
+        }
+        out.writeByte(length);
+    }
+
+    private static int readLength(DataInput in) throws IOException {
+        int length = 0;
+
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = in.readByte();
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (length < 0 || length > MAX_FRAME_SIZE)
+                    throw new StreamCorruptedException("Invalid length " + length);
+                return length;
+            }
+        }
+
+        throw new StreamCorruptedException("Malformed length");
+    }
+
+    /**
+     * Byte array stream whose bytes can be deflated without copying them first
+     */
+    private static class FrameBuffer extends ByteArrayOutputStream {
+
+        private FrameBuffer(int size) {
+            super(size);
+        }
+
+        private byte[] bytes() {
+            return buf;
+        }
+    }
+}
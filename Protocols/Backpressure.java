@@ -0,0 +1,210 @@
+package Protocols;
+
+import Messages.Message;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static Utilities.Constants.*;
+
+/**
+ * Pushes to clients, written without making the pushing thread wait on a client that reads slowly
+ * Each client has at most PUSH_QUEUE_LIMIT messages waiting to be written; a push to a client whose queue is
+ * full overflows, and the overflow policy decides whether it is dropped, the default, waits for room, or disconnects the client
+ * Waiting holds a dispatcher thread, so a few stalled clients can slow down other connections
+ * A dropped push is not lost: the caller leaves it in the offline inbox of the user, read on the next sign in
+ * A client that does not read a queued message for PUSH_STALL_TIMEOUT is disconnected whatever the policy
+ */
+public class Backpressure {
+
+    private static final Backpressure SHARED = new Backpressure(Overflow.parse(PUSH_OVERFLOW), PUSH_QUEUE_LIMIT, PUSH_BLOCK_TIMEOUT, PUSH_STALL_TIMEOUT);
+
+    private final Overflow overflow;
+    private final int limit;
+    private final long blockTimeout;
+    private final long stallTimeout;
+
+    private final AtomicLong pushed = new AtomicLong();
+    private final AtomicLong overflowed = new AtomicLong();
+    private final AtomicLong blocked = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong disconnected = new AtomicLong();
+    private final AtomicLong stalled = new AtomicLong();
+
+    /**
+     * What a push to a client with a full queue does
+     */
+    public enum Overflow {
+        /**
+         * Waits for room, for up to the block timeout, and is dropped if there is none by then
+         */
+        BLOCK,
+        /**
+         * Is dropped right away
+         */
+        DROP,
+        /**
+         * Closes the connection of the client, which reads what it missed when it signs in again
+         */
+        DISCONNECT;
+
+        private static Overflow parse(String name) {
+            try {
+                return valueOf(name.toUpperCase());
+            } catch (IllegalArgumentException e) {
+                System.out.println("Unknown push overflow policy " + name + ", using drop");
+                return DROP;
+            }
+        }
+    }
+
+    /**
+     * @param overflow     what a push to a client with a full queue does
+     * @param limit        messages waiting to be written to a client before a push overflows
+     * @param blockTimeout time, in milliseconds, a blocking push waits for room
+     * @param stallTimeout time, in milliseconds, a client may take to read a queued message before it is disconnected
+     */
+    public Backpressure(Overflow overflow, int limit, long blockTimeout, long stallTimeout) {
+        this.overflow = overflow;
+        this.limit = limit;
+        this.blockTimeout = blockTimeout;
+        this.stallTimeout = stallTimeout;
+    }
+
+    /**
+     * @return pushes of the process, with the policy set by the push properties
+     */
+    public static Backpressure getShared() {
+        return SHARED;
+    }
+
+    /**
+     * Queues a message to a client, following the overflow policy if its queue is full
+     *
+     * @param connection connection of the client
+     * @param message    message to be sent
+     * @return true if the message was queued, false if it was dropped or the client disconnected
+     */
+    public boolean push(Connection connection, Message message) {
+        return push(connection, message, overflow);
+    }
+
+    /**
+     * Queues a message to a client, following the given overflow policy if its queue is full
+     * Messages that can only be sent on the connection block rather than being dropped
+     *
+     * @param connection connection of the client
+     * @param message    message to be sent
+     * @param overflow   what to do if the queue is full
+     * @return true if the message was queued, false if it was dropped or the client disconnected
+     */
+    public boolean push(Connection connection, Message message, Overflow overflow) {
+        pushed.incrementAndGet();
+
+        if (disconnectIfStalled(connection))
+            return false;
+
+        if (connection.getQueued() >= limit) {
+            overflowed.incrementAndGet();
+
+            switch (overflow) {
+                case DISCONNECT:
+                    disconnect(connection);
+                    return false;
+                case DROP:
+                    dropped.incrementAndGet();
+                    return false;
+                case BLOCK:
+                    blocked.incrementAndGet();
+                    if (!awaitRoom(connection)) {
+                        dropped.incrementAndGet();
+                        return false;
+                    }
+                    break;
+            }
+        }
+
+        try {
+            connection.queueMessage(message);
+            return true;
+        } catch (IOException e) {
+            System.out.println("Failed to push " + message.getMessageType() + ", the client connection is down");
+            return false;
+        }
+    }
+
+    /**
+     * Disconnects a client that has not read a queued message for longer than the stall timeout, releasing
+     * the thread stuck writing to it
+     *
+     * @param connection connection of the client
+     * @return true if the client was disconnected
+     */
+    public boolean disconnectIfStalled(Connection connection) {
+        if (connection.isAborted())
+            return true;
+        if (connection.getStalledFor() < stallTimeout)
+            return false;
+
+        stalled.incrementAndGet();
+        disconnect(connection);
+        return true;
+    }
+
+    private void disconnect(Connection connection) {
+        System.out.println("Disconnecting slow client, " + connection.getQueued() + " messages waiting");
+        disconnected.incrementAndGet();
+        connection.abort();
+    }
+
+    /**
+     * Waits for the queue of a client to have room, or for the block timeout to pass
+     */
+    private boolean awaitRoom(Connection connection) {
+        return connection.awaitQueuedBelow(limit, blockTimeout);
+    }
+
+    public long getPushed() {
+        return pushed.get();
+    }
+
+    /**
+     * @return pushes that found the queue of the client full
+     */
+    public long getOverflowed() {
+        return overflowed.get();
+    }
+
+    /**
+     * @return pushes that waited for room
+     */
+    public long getBlocked() {
+        return blocked.get();
+    }
+
+    /**
+     * @return pushes dropped, left to the offline inbox
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return clients disconnected for reading too slowly
+     */
+    public long getDisconnected() {
+        return disconnected.get();
+    }
+
+    /**
+     * @return clients disconnected as they stopped reading
+     */
+    public long getStalled() {
+        return stalled.get();
+    }
+
+    public void printMetrics() {
+        System.out.println("Pushes: " + pushed + " pushed, " + overflowed + " found a full queue (" + blocked + " waited, "
+                + dropped + " dropped to the inbox), " + disconnected + " slow clients disconnected (" + stalled + " stalled)");
+    }
+}
@@ -2,11 +2,14 @@ package Protocols;
 
 import Chat.Chat;
 import Chat.ChatMessage;
+import Chat.ChatPage;
 import Client.Client;
 import Messages.Message;
+import Utilities.RingIdentifier;
 
 import java.io.IOException;
 import java.math.BigInteger;
+import java.util.ArrayList;
 
 import static Utilities.Constants.*;
 
@@ -53,7 +56,7 @@ public class ClientConnection extends Connection implements Runnable {
 
         Message message = super.receiveMessage();
 
-        System.out.println("\nReceiving message - Header: " + message.getMessageType() + " Sender: " + Integer.remainderUnsigned(message.getSenderId().intValue(), 128) + " Body " + message.getBody());
+        System.out.println("\nReceiving message - Header: " + message.getMessageType() + " Sender: " + RingIdentifier.fromHash(message.getSenderId()) + " Body " + message.getBody());
 
         return message;
     }
@@ -90,6 +93,7 @@ public class ClientConnection extends Connection implements Runnable {
                 //TODO: Message Type
 
                 ChatMessage chatMessage = (ChatMessage) message.getObject();
+                client.countChatMessage(chatMessage.getChatId());
                 if (chatMessage.getType().equals(IMAGE_MESSAGE))
                     System.out.println("Received a new file\n");
                 else if (chatMessage.getType().equals(TEXT_MESSAGE))
@@ -106,16 +110,22 @@ public class ClientConnection extends Connection implements Runnable {
                     else System.out.println("Received new file with name : " + chatMessage.getFilename());
                 }
                 break;
-            case DOWNLOADING_FILE:
-                client.storeFile((ChatMessage) message.getObject());
+            case FILE_TRANSFER:
+                client.transferFile(message);
+                break;
+            case CHAT_PAGE:
+                client.receiveChatPage((ChatPage) message.getObject());
+                break;
+            case CHAT_UPDATES:
+                client.receiveUpdates((ArrayList<?>) message.getObject());
                 break;
             case SERVER_UPDATE_CONNECTION:
-                body = message.getBody().split(" ");
+                body = message.getArguments();
                 client.updateConnection(body[0], Integer.parseInt(body[1]));
                 break;
             case SERVER_SUCCESS:
             case SERVER_ERROR:
-                body = message.getBody().split(" ");
+                body = message.getArguments();
                 client.printError(body[0]);
                 break;
             case ADDED_PUB_KEYS:
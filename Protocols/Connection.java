@@ -1,29 +1,75 @@
 package Protocols;
 
 import Messages.Message;
+import Messages.MessageCodec;
+import Utilities.Threads;
 
-import javax.net.ssl.SSLSocket;
-import javax.net.ssl.SSLSocketFactory;
 import java.io.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-import static Utilities.Constants.MAX_NUMBER_OF_THREADS;
+import static Utilities.Constants.BINARY_WIRE_FORMAT;
+import static Utilities.Constants.HELLO;
+import static Utilities.Constants.WIRE_COMPRESSION;
 
 /**
  * Handles connections
  */
 public class Connection {
 
-    protected SSLSocket sslSocket;
+    protected Transport.Link link;
     protected BufferedReader in;
     protected ObjectInputStream inputStream;
     protected ObjectOutputStream outputStream;
+    protected DataInputStream frameInputStream;
+    protected DataOutputStream frameOutputStream;
+    protected MessageCodec codec;
+    protected MessageChannel channel;
+
+    /**
+     * Time closing waits for the queued messages to be written, in milliseconds
+     */
+    private static final long CLOSE_WRITE_TIMEOUT = 1000;
+
+    /**
+     * Threads writing the messages queued without waiting, each one only for as long as there are messages to write
+     */
+    private static final ExecutorService WRITERS = Threads.newConnectionExecutor();
+
+    /**
+     * Messages waiting to be written, by whichever sending thread finds no other one writing
+     */
+    private final ConcurrentLinkedQueue<Message> outbound = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean writing = new AtomicBoolean();
+    private final AtomicBoolean writerScheduled = new AtomicBoolean();
+    private volatile IOException writeFailure;
+    private volatile boolean aborted = false;
+    private boolean helloSent = false;
+
+    /**
+     * Messages queued and not yet flushed, and when the last one was written
+     */
+    private final AtomicInteger queued = new AtomicInteger();
+    private volatile long lastWritten = System.currentTimeMillis();
+
+    /**
+     * Threads waiting for fewer messages to be queued, woken up by the thread writing them
+     */
+    private final Object room = new Object();
+    private volatile int waitingForRoom = 0;
+    private final AtomicLong messagesWritten = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
 
     protected String ip;
     protected int port;
 
-    protected ExecutorService service = Executors.newFixedThreadPool(MAX_NUMBER_OF_THREADS);
+    /**
+     * Handles the received messages one at a time, on the threads shared by every connection
+     */
+    protected Dispatcher.SerialExecutor service = Dispatcher.getShared().newSerialExecutor();
 
     public Connection(String ip, int port) {
 
@@ -32,44 +78,218 @@ public class Connection {
     }
 
     /**
-     * Handles new SSL Connections to the server
+     * Handles new connections to the server
      *
-     * @param socket
+     * @param link connection accepted by the server
      */
-    public Connection(SSLSocket socket) {
-        this.sslSocket = socket;
+    public Connection(Transport.Link link) {
+        this.link = link;
         try {
-            in = new BufferedReader(new InputStreamReader(sslSocket.getInputStream()));
-            outputStream = new ObjectOutputStream(sslSocket.getOutputStream());
-            inputStream = new ObjectInputStream(sslSocket.getInputStream());
+            in = new BufferedReader(new InputStreamReader(link.getInputStream()));
+            openStreams();
         } catch (IOException e) {
             e.printStackTrace();
             System.out.println("Error creating buffered reader...");
         }
     }
 
+    /**
+     * Handles a connection accepted by the NIO front end
+     *
+     * @param channel connection, written by its event loop
+     */
+    public Connection(MessageChannel channel) {
+        this.channel = channel;
+    }
+
     /**
      * Connects to a certain ip and port
+     * On binary connections, offers to compress with a HELLO, without waiting for the answer: frames are
+     * compressed once it arrives
      */
     public void connect() throws IOException {
-        SSLSocketFactory sslSocketFactory = (SSLSocketFactory) SSLSocketFactory.getDefault();
-        sslSocket = (SSLSocket) sslSocketFactory.createSocket(ip, port);
-        sslSocket.setEnabledCipherSuites(sslSocket.getSupportedCipherSuites());
-        outputStream = new ObjectOutputStream(sslSocket.getOutputStream());
-        inputStream = new ObjectInputStream(sslSocket.getInputStream());
+        link = Transport.getDefault().connect(ip, port);
+        openStreams();
+
+        if (codec != null && WIRE_COMPRESSION)
+            sendHello();
+    }
+
+    private void sendHello() throws IOException {
+        helloSent = true;
+        enqueue(MessageCodec.hello());
+        writeOutbound();
+    }
+
+    /**
+     * Opens buffered streams over the connection, so each message goes out in as few
+     * TLS records as possible instead of one per field
+     * Binary frames go through the codec; on the serialized wire format the object stream
+     * header is flushed right away, since the peer blocks reading it
+     */
+    private void openStreams() throws IOException {
+        if (BINARY_WIRE_FORMAT) {
+            codec = new MessageCodec();
+            frameOutputStream = new DataOutputStream(new BufferedOutputStream(link.getOutputStream()));
+            frameInputStream = new DataInputStream(new BufferedInputStream(link.getInputStream()));
+            return;
+        }
+
+        outputStream = new ObjectOutputStream(new BufferedOutputStream(link.getOutputStream()));
+        outputStream.flush();
+        inputStream = new ObjectInputStream(new BufferedInputStream(link.getInputStream()));
     }
 
     /**
      * Sends a message
+     * Any number of threads may send at once: messages are queued, and the thread that finds no other one
+     * writing writes every queued message and flushes them together, so they share TLS records
+     * The message may still be queued when this returns, behind another thread writing
      *
      * @param message message to be sent
+     * @throws IOException if this message, or an earlier one, could not be written
      */
     public void sendMessage(Message message) throws IOException {
 
         if (message == null)
             throw new IOException();
-        outputStream.writeObject(message);
 
+        if (channel != null) {
+            channel.send(message);
+            return;
+        }
+
+        enqueue(message);
+        writeOutbound();
+    }
+
+    /**
+     * Queues a message, leaving it to be written by another thread if no sending thread is writing,
+     * so the caller never waits on a peer that reads slowly
+     *
+     * @param message message to be sent
+     * @throws IOException if an earlier message could not be written
+     */
+    public void queueMessage(Message message) throws IOException {
+
+        if (message == null)
+            throw new IOException();
+
+        if (channel != null) {
+            channel.send(message);
+            return;
+        }
+
+        enqueue(message);
+
+        //the thread writing, if any, checks the queue again once done
+        if (!writing.get() && writerScheduled.compareAndSet(false, true))
+            WRITERS.execute(() -> {
+                writerScheduled.set(false);
+                try {
+                    writeOutbound();
+                } catch (IOException e) {
+                    System.out.println("Failed to write queued messages");
+                }
+            });
+    }
+
+    private void enqueue(Message message) throws IOException {
+        if (writeFailure != null)
+            throw new IOException("Connection failed", writeFailure);
+
+        //a queue that was empty starts counting its wait now
+        if (queued.getAndIncrement() == 0)
+            lastWritten = System.currentTimeMillis();
+        outbound.add(message);
+    }
+
+    private void writeOutbound() throws IOException {
+        //a message queued just as the writer finished is left to the next thread that finds it
+        while (!outbound.isEmpty() && writing.compareAndSet(false, true)) {
+            try {
+                writeQueued();
+            } finally {
+                writing.set(false);
+            }
+        }
+    }
+
+    private void writeQueued() throws IOException {
+        MessageCodec.FrameTooLargeException tooLarge = null;
+        try {
+            int written = 0;
+            Message message;
+            while ((message = outbound.poll()) != null) {
+                if (codec != null) {
+                    //nothing of a message too large is written, so the connection goes on with the next one
+                    try {
+                        codec.write(message, frameOutputStream);
+                    } catch (MessageCodec.FrameTooLargeException e) {
+                        System.out.println("Dropped " + e.getMessage());
+                        tooLarge = e;
+                        written++;
+                        continue;
+                    }
+                } else {
+                    //forget the objects written: the stream would keep every one of them, and send objects changed since as references to the old copy
+                    outputStream.writeObject(message);
+                    outputStream.reset();
+                }
+                messagesWritten.incrementAndGet();
+                lastWritten = System.currentTimeMillis();
+                written++;
+            }
+
+            if (codec != null)
+                frameOutputStream.flush();
+            else
+                outputStream.flush();
+            flushes.incrementAndGet();
+
+            lastWritten = System.currentTimeMillis();
+            queued.addAndGet(-written);
+            signalRoom();
+        } catch (IOException e) {
+            writeFailure = e;
+            outbound.clear();
+            queued.set(0);
+            signalRoom();
+
+            //whoever reads the connection learns it is down, and so do senders whose messages were dropped
+            try {
+                link.close();
+            } catch (IOException closeFailure) {
+                System.out.println("Failed to close connection");
+            }
+            throw e;
+        }
+
+        if (tooLarge != null)
+            throw tooLarge;
+    }
+
+    /**
+     * Waits for the messages queued by other threads to be written, for a while: a thread stuck writing to a
+     * peer that stopped reading is only released by closing the connection
+     */
+    private void awaitQueued() {
+        long deadline = System.currentTimeMillis() + CLOSE_WRITE_TIMEOUT;
+
+        while (writeFailure == null && (!outbound.isEmpty() || writing.get()) && System.currentTimeMillis() < deadline) {
+            if (!writing.compareAndSet(false, true)) {
+                Thread.yield();
+                continue;
+            }
+
+            try {
+                writeQueued();
+            } catch (IOException e) {
+                return;
+            } finally {
+                writing.set(false);
+            }
+        }
     }
 
     /**
@@ -79,6 +299,19 @@ public class Connection {
      */
     public Message receiveMessage() throws IOException, ClassNotFoundException {
 
+        if (channel != null)
+            throw new IOException("Messages of this connection are received by its event loop");
+
+        if (codec != null) {
+            Message message;
+            while (HELLO.equals((message = codec.read(frameInputStream)).getMessageType())) {
+                codec.acceptHello(message);
+                if (!helloSent)
+                    sendHello();
+            }
+            return message;
+        }
+
         return (Message) inputStream.readObject();
 
     }
@@ -87,18 +320,129 @@ public class Connection {
      * Close the connection
      */
     public void closeConnection() {
+        if (channel != null) {
+            channel.close();
+            return;
+        }
+
+        if (link != null)
+            awaitQueued();
+
         try {
-            sslSocket.close();
+            link.close();
         } catch (IOException e) {
             e.printStackTrace();
             System.out.println("\nFailed to close ssl connection");
         }
     }
 
+    /**
+     * Closes the connection right away, dropping the queued messages, as when the peer stopped reading:
+     * a thread stuck writing to it fails instead of waiting for it
+     */
+    public void abort() {
+        aborted = true;
+        signalRoom();
+
+        if (channel != null) {
+            channel.abort();
+            return;
+        }
+
+        if (writeFailure == null)
+            writeFailure = new IOException("Connection aborted");
+        outbound.clear();
+        queued.set(0);
+
+        try {
+            if (link != null)
+                link.close();
+        } catch (IOException e) {
+            System.out.println("Failed to close connection");
+        }
+    }
+
+    /**
+     * @return true if the connection was closed with abort
+     */
+    public boolean isAborted() {
+        return aborted;
+    }
+
     public void stopTasks() {
         service.shutdownNow();
     }
 
+    /**
+     * @return messages queued and not yet written
+     */
+    public int getQueued() {
+        return channel != null ? channel.getQueued() : queued.get();
+    }
+
+    /**
+     * @return time, in milliseconds, since a queued message was last written, 0 if there is none queued
+     */
+    public long getStalledFor() {
+        if (channel != null)
+            return channel.getStalledFor();
+
+        return queued.get() == 0 ? 0 : System.currentTimeMillis() - lastWritten;
+    }
+
+    /**
+     * Waits for fewer than limit messages to be queued, without polling: the thread writing them wakes it up
+     *
+     * @param limit   messages queued to wait below
+     * @param timeout time, in milliseconds, to wait at most
+     * @return true if there is room, false if the timeout passed or the connection was aborted
+     */
+    public boolean awaitQueuedBelow(int limit, long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+
+        synchronized (room) {
+            waitingForRoom++;
+            try {
+                while (getQueued() >= limit) {
+                    long left = deadline - System.currentTimeMillis();
+                    if (aborted || left <= 0)
+                        return false;
+                    room.wait(left);
+                }
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                waitingForRoom--;
+            }
+        }
+    }
+
+    /**
+     * Wakes up the threads waiting for room, once queued messages were written or dropped
+     */
+    void signalRoom() {
+        if (waitingForRoom > 0)
+            synchronized (room) {
+                room.notifyAll();
+            }
+    }
+
+    /**
+     * @return messages written on the connection
+     */
+    public long getMessagesWritten() {
+        return messagesWritten.get();
+    }
+
+    /**
+     * @return flushes done, each one sending every message written since the one before
+     */
+    public long getFlushes() {
+        return flushes.get();
+    }
+
     public String getIp() {
         return ip;
     }
@@ -0,0 +1,470 @@
+package Protocols;
+
+import Messages.Message;
+import Server.Node;
+import Utilities.Threads;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.math.BigInteger;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static Utilities.Constants.*;
+
+/**
+ * Persistent connections to other servers, kept open between messages so each message
+ * does not pay for a new TLS handshake
+ * Many requests share a connection at once: each request carries an id, answered with the same id, and a
+ * reader per connection hands every answer to the request waiting for it, in whatever order they arrive
+ * Connections idle for a while are checked with a PING before being used again, and closed once idle for too long
+ * Messages whose handling writes more than one answer on the connection, or keeps it, must not go through the pool
+ */
+public class ConnectionPool {
+
+    /**
+     * Open connections by server address
+     */
+    private final ConcurrentHashMap<String, CopyOnWriteArrayList<SharedConnection>> connections = new ConcurrentHashMap<>();
+    private final BigInteger senderId;
+    private final AtomicLong nextRequestId = new AtomicLong(NO_REQUEST_ID);
+    private final ExecutorService readers = Threads.newConnectionExecutor();
+    private volatile boolean closed = false;
+
+    private final AtomicLong opened = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+    private final AtomicLong pipelined = new AtomicLong();
+    private final AtomicLong healthChecks = new AtomicLong();
+    private final AtomicLong failedHealthChecks = new AtomicLong();
+    private final AtomicLong broken = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+
+    /**
+     * @param senderId id sent on the health checks
+     */
+    public ConnectionPool(BigInteger senderId) {
+        this.senderId = senderId;
+    }
+
+    /**
+     * Sends a message and waits for its answer
+     * A connection that was already open and fails is dropped and the message is sent again on a new one, up to
+     * POOL_RETRIES times, if it could not be written or asks for something without changing it
+     * Otherwise the server may have handled it and only the answer was lost, so it is not sent again, and only
+     * whether the server can still be reached is checked
+     *
+     * @param node    destination server
+     * @param message message to be sent
+     * @return answer
+     * @throws PeerUnreachableException if no connection to the server could be opened
+     * @throws SocketTimeoutException   if there was no answer after POOL_REQUEST_TIMEOUT
+     * @throws IOException              if the connection failed before the answer arrived
+     */
+    public Message request(Node node, Message message) throws IOException {
+
+        for (int attempt = 0; ; attempt++) {
+            SharedConnection shared = acquire(node);
+
+            try {
+                Message answer = shared.request(message);
+                answer.setRequestId(NO_REQUEST_ID);
+                return answer;
+            } catch (SocketTimeoutException e) {
+                throw e;
+            } catch (IOException e) {
+                //a connection just opened failed, the server itself is the problem
+                if (shared.isNew(message))
+                    throw unwrap(e);
+
+                if (attempt >= POOL_RETRIES || !(e instanceof NotSentException || isIdempotent(message))) {
+                    acquire(node);
+                    throw unwrap(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends a message that has no answer
+     * A connection that was already open and fails is dropped and the message is sent again on a new one, up to
+     * POOL_RETRIES times
+     *
+     * @param node    destination server
+     * @param message message to be sent
+     * @throws PeerUnreachableException if no connection to the server could be opened
+     * @throws IOException              if the connection failed while sending
+     */
+    public void send(Node node, Message message) throws IOException {
+
+        for (int attempt = 0; ; attempt++) {
+            SharedConnection shared = acquire(node);
+
+            try {
+                shared.send(message);
+                return;
+            } catch (NotSentException e) {
+                if (shared.isNew(message))
+                    throw unwrap(e);
+
+                if (attempt >= POOL_RETRIES) {
+                    acquire(node);
+                    throw unwrap(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the failure a message could not be written for, or the failure itself
+     */
+    private static IOException unwrap(IOException e) {
+        return e instanceof NotSentException ? (IOException) e.getCause() : e;
+    }
+
+    /**
+     * @return true if handling the message twice has the same effect as handling it once
+     */
+    private static boolean isIdempotent(Message message) {
+        String type = message.getMessageType();
+        return type.startsWith("GET_") || SYNC.equals(type) || FIND_SUCCESSOR.equals(type) || PING.equals(type);
+    }
+
+    /**
+     * Takes the open connection to a server with the fewest requests waiting, checking it first if it was idle
+     * for a while, or opens a new one if there is none or they are all busy and there is room for another
+     */
+    private SharedConnection acquire(Node node) throws IOException {
+
+        String address = address(node);
+        CopyOnWriteArrayList<SharedConnection> open = connections.computeIfAbsent(address, k -> new CopyOnWriteArrayList<>());
+
+        while (true) {
+            SharedConnection best = leastBusy(open);
+
+            if (best == null || (best.inFlight() > 0 && open.size() < POOL_CONNECTIONS_PER_SERVER)) {
+                synchronized (open) {
+                    //another thread may have opened one meanwhile
+                    best = leastBusy(open);
+                    if (best == null || (best.inFlight() > 0 && open.size() < POOL_CONNECTIONS_PER_SERVER))
+                        return connect(node, address, open);
+                }
+            }
+
+            if (System.currentTimeMillis() - best.lastUsed >= POOL_VALIDATE_AFTER && best.inFlight() == 0 && !isAlive(best)) {
+                best.fail(new IOException("Health check failed"));
+                continue;
+            }
+
+            reused.incrementAndGet();
+            if (best.inFlight() > 0)
+                pipelined.incrementAndGet();
+            return best;
+        }
+    }
+
+    private static SharedConnection leastBusy(CopyOnWriteArrayList<SharedConnection> open) {
+        SharedConnection best = null;
+
+        for (SharedConnection shared : open)
+            if (!shared.closed && (best == null || shared.inFlight() < best.inFlight()))
+                best = shared;
+
+        return best;
+    }
+
+    private SharedConnection connect(Node node, String address, CopyOnWriteArrayList<SharedConnection> open) throws IOException {
+        if (closed)
+            throw new IOException("Connection pool closed");
+
+        Connection connection = new Connection(node.getNodeIp(), node.getNodePort());
+        try {
+            connection.connect();
+        } catch (IOException e) {
+            throw new PeerUnreachableException(node, e);
+        }
+
+        SharedConnection shared = new SharedConnection(address, connection, open);
+        open.add(shared);
+        opened.incrementAndGet();
+        readers.execute(shared::read);
+
+        return shared;
+    }
+
+    /**
+     * Health check: PING, expecting a PONG back
+     */
+    private boolean isAlive(SharedConnection shared) {
+        healthChecks.incrementAndGet();
+
+        try {
+            if (shared.request(new Message(PING, senderId, RESPONSIBLE)).getMessageType().equals(PONG))
+                return true;
+        } catch (IOException e) {
+            System.out.println("Pooled connection to " + shared.address + " is down");
+        }
+
+        failedHealthChecks.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Closes the connections idle for longer than POOL_IDLE_TIMEOUT
+     */
+    public void evictIdle() {
+        long now = System.currentTimeMillis();
+
+        for (CopyOnWriteArrayList<SharedConnection> open : connections.values())
+            for (SharedConnection shared : open)
+                if (shared.inFlight() == 0 && now - shared.lastUsed >= POOL_IDLE_TIMEOUT) {
+                    shared.close(new IOException("Idle connection closed"));
+                    evicted.incrementAndGet();
+                }
+    }
+
+    /**
+     * Closes the connections to a server that went down, failing the requests waiting on them
+     *
+     * @param node any node of the server
+     */
+    public void remove(Node node) {
+        CopyOnWriteArrayList<SharedConnection> open = connections.remove(address(node));
+        if (open == null)
+            return;
+
+        for (SharedConnection shared : open)
+            shared.fail(new IOException("Server " + address(node) + " is down"));
+    }
+
+    /**
+     * Closes every connection, failing the requests still waiting for an answer
+     */
+    public void close() {
+        closed = true;
+
+        for (Map.Entry<String, CopyOnWriteArrayList<SharedConnection>> entry : connections.entrySet())
+            for (SharedConnection shared : entry.getValue())
+                shared.fail(new IOException("Connection pool closed"));
+
+        readers.shutdownNow();
+    }
+
+    /**
+     * @return number of TLS handshakes done
+     */
+    public long getOpened() {
+        return opened.get();
+    }
+
+    /**
+     * @return number of messages sent on a connection already open, each one a handshake avoided
+     */
+    public long getReused() {
+        return reused.get();
+    }
+
+    /**
+     * @return number of messages sent on a connection while other requests were waiting on it
+     */
+    public long getPipelined() {
+        return pipelined.get();
+    }
+
+    public long getHealthChecks() {
+        return healthChecks.get();
+    }
+
+    public long getFailedHealthChecks() {
+        return failedHealthChecks.get();
+    }
+
+    public long getBroken() {
+        return broken.get();
+    }
+
+    public long getEvicted() {
+        return evicted.get();
+    }
+
+    public int getOpen() {
+        return connections.values().stream().mapToInt(CopyOnWriteArrayList::size).sum();
+    }
+
+    /**
+     * @return requests waiting for their answer
+     */
+    public int getInFlight() {
+        return connections.values().stream().flatMap(CopyOnWriteArrayList::stream).mapToInt(SharedConnection::inFlight).sum();
+    }
+
+    public void printMetrics() {
+        System.out.println("Connection pool: " + opened + " opened, " + reused + " reused (handshakes avoided), "
+                + pipelined + " pipelined, " + healthChecks + " health checks (" + failedHealthChecks + " failed), "
+                + broken + " broken, " + evicted + " evicted, " + getOpen() + " open, " + getInFlight() + " in flight");
+    }
+
+    private static String address(Node node) {
+        return node.getNodeIp() + ":" + node.getNodePort();
+    }
+
+    /**
+     * Connection shared by the requests to a server, and the requests waiting for their answer on it
+     */
+    private class SharedConnection {
+
+        private final String address;
+        private final Connection connection;
+        private final CopyOnWriteArrayList<SharedConnection> open;
+        private final ConcurrentHashMap<Long, CompletableFuture<Message>> pending = new ConcurrentHashMap<>();
+        private volatile long lastUsed = System.currentTimeMillis();
+        private volatile boolean closed = false;
+
+        /**
+         * First message sent, a failure before it was answered means the server could not be reached
+         */
+        private volatile Message first;
+
+        private SharedConnection(String address, Connection connection, CopyOnWriteArrayList<SharedConnection> open) {
+            this.address = address;
+            this.connection = connection;
+            this.open = open;
+        }
+
+        private int inFlight() {
+            return pending.size();
+        }
+
+        /**
+         * @return true if the message was the first one sent on the connection
+         */
+        private boolean isNew(Message message) {
+            return first == message;
+        }
+
+        private Message request(Message message) throws IOException {
+            long requestId = nextRequestId.incrementAndGet();
+            CompletableFuture<Message> answer = new CompletableFuture<>();
+            pending.put(requestId, answer);
+
+            message.setRequestId(requestId);
+            try {
+                write(message);
+            } catch (NotSentException e) {
+                pending.remove(requestId);
+                throw e;
+            }
+
+            try {
+                return answer.get(POOL_REQUEST_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+            } catch (TimeoutException e) {
+                pending.remove(requestId);
+                throw new SocketTimeoutException("No answer from " + address + " to " + message.getMessageType());
+            } catch (InterruptedException e) {
+                pending.remove(requestId);
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } finally {
+                lastUsed = System.currentTimeMillis();
+            }
+        }
+
+        private void send(Message message) throws IOException {
+            message.setRequestId(NO_REQUEST_ID);
+            write(message);
+            lastUsed = System.currentTimeMillis();
+        }
+
+        /**
+         * @throws NotSentException if the message could not be written whole, so the server cannot have handled it
+         */
+        private void write(Message message) throws NotSentException {
+            if (first == null)
+                first = message;
+            if (closed)
+                throw new NotSentException(new IOException("Connection to " + address + " closed"));
+
+            try {
+                connection.sendMessage(message);
+            } catch (IOException e) {
+                fail(e);
+                throw new NotSentException(e);
+            }
+        }
+
+        /**
+         * Hands the answers read to the requests waiting for them, until the connection is closed
+         */
+        private void read() {
+            while (!closed) {
+                try {
+                    Message message = connection.receiveMessage();
+                    CompletableFuture<Message> answer = pending.remove(message.getRequestId());
+
+                    if (answer != null)
+                        answer.complete(message);
+                    else
+                        System.out.println("Dropped message " + message.getMessageType() + " from " + address + " with no request waiting");
+                } catch (IOException | ClassNotFoundException e) {
+                    fail(e instanceof IOException ? (IOException) e : new IOException(e));
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Closes the connection, as it is broken, failing the requests waiting on it
+         */
+        private void fail(IOException cause) {
+            if (!closed && !ConnectionPool.this.closed)
+                broken.incrementAndGet();
+            close(cause);
+        }
+
+        /**
+         * Closes the connection, failing the requests waiting on it, if any
+         */
+        private synchronized void close(IOException cause) {
+            if (closed)
+                return;
+
+            closed = true;
+            open.remove(this);
+            connection.closeConnection();
+            connection.stopTasks();
+
+            for (CompletableFuture<Message> answer : pending.values())
+                answer.completeExceptionally(cause);
+            pending.clear();
+        }
+    }
+
+    /**
+     * No connection to a server could be opened
+     */
+    public static class PeerUnreachableException extends IOException {
+
+        public PeerUnreachableException(Node node, IOException cause) {
+            super("Could not connect to " + node.getNodeIp() + ":" + node.getNodePort(), cause);
+        }
+    }
+
+    /**
+     * A message could not be written on a connection, the failure being the cause
+     */
+    private static class NotSentException extends IOException {
+
+        private NotSentException(IOException cause) {
+            super(cause.getMessage(), cause);
+        }
+    }
+}
@@ -0,0 +1,317 @@
+package Protocols;
+
+import Utilities.Threads;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static Utilities.Constants.*;
+
+/**
+ * Threads handling the received messages of every connection of the process
+ * Each connection hands its messages to its own serial executor, so they are handled one at a time and in order,
+ * while the connections share the threads
+ * A connection with -Ddispatcher.connection.queue messages waiting is saturated: it stops reading until half of them
+ * were handled, so the messages queued here stay bounded and no reading thread ever handles a message itself
+ * Handlers may wait for other servers, so while every thread is busy new ones are started, up to
+ * -Ddispatcher.max.threads, before messages queue
+ * With -Dserver.io=virtual each message runs on a virtual thread instead, still in order for its connection
+ */
+public class Dispatcher {
+
+    private static final Dispatcher SHARED = new Dispatcher(DISPATCHER_THREADS, DISPATCHER_MAX_THREADS, DISPATCHER_CONNECTION_QUEUE);
+
+    private final ExecutorService executor;
+    private final ThreadPoolExecutor pool;
+    private final int connectionQueue;
+    private final AtomicLong saturated = new AtomicLong();
+    private final AtomicInteger pending = new AtomicInteger();
+
+    /**
+     * @param threads         threads kept to handle messages
+     * @param maxThreads      threads started while every thread is busy
+     * @param connectionQueue messages a connection may have waiting before it stops reading
+     */
+    public Dispatcher(int threads, int maxThreads, int connectionQueue) {
+        this.connectionQueue = Math.max(2, connectionQueue);
+
+        if (Threads.isVirtual()) {
+            executor = Threads.newConnectionExecutor();
+            pool = null;
+            return;
+        }
+
+        AtomicInteger count = new AtomicInteger();
+        ThreadFactory factory = task -> {
+            Thread thread = new Thread(task, "dispatcher-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+
+        TaskQueue queue = new TaskQueue();
+        pool = new ThreadPoolExecutor(threads, Math.max(threads, maxThreads), 60, TimeUnit.SECONDS, queue, factory, (task, executor) -> {
+            if (!executor.isShutdown())
+                queue.enqueue(task);
+        });
+        queue.pool = pool;
+        pool.allowCoreThreadTimeOut(true);
+        executor = pool;
+    }
+
+    /**
+     * @return dispatcher shared by the connections of the process
+     */
+    public static Dispatcher getShared() {
+        return SHARED;
+    }
+
+    /**
+     * @return new executor running its tasks one at a time, in the order they were given
+     */
+    public SerialExecutor newSerialExecutor() {
+        return new SerialExecutor();
+    }
+
+    /**
+     * Runs a task with no ordering constraint
+     *
+     * @param task task to be run
+     */
+    public void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    /**
+     * @return tasks given to serial executors and not yet run
+     */
+    public int getPending() {
+        return pending.get();
+    }
+
+    /**
+     * @return serial executors waiting for a thread
+     */
+    public int getQueueDepth() {
+        return pool == null ? 0 : pool.getQueue().size();
+    }
+
+    /**
+     * @return times a connection stopped reading, as it had too many messages waiting
+     */
+    public long getSaturated() {
+        return saturated.get();
+    }
+
+    public int getThreads() {
+        return pool == null ? 0 : pool.getPoolSize();
+    }
+
+    public void printMetrics() {
+        System.out.println("Dispatcher: " + getThreads() + " threads, " + getQueueDepth() + " queued, "
+                + getPending() + " pending messages, " + saturated + " times a connection stopped reading");
+    }
+
+    /**
+     * Tasks of one connection, run one at a time on the dispatcher threads
+     * Only one of its tasks is on the dispatcher queue at a time, the others wait here
+     */
+    public class SerialExecutor implements Executor {
+
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+        private boolean scheduled = false;
+        private boolean shutdown = false;
+
+        /**
+         * Tasks given and not yet finished, in order or not
+         */
+        private int unfinished = 0;
+        private boolean saturated = false;
+        private Runnable onDrained;
+
+        private SerialExecutor() {
+        }
+
+        /**
+         * Queues a task, ignored once the executor is shut down
+         *
+         * @param task task to be run after the ones already given
+         */
+        @Override
+        public void execute(Runnable task) {
+            synchronized (this) {
+                if (shutdown)
+                    return;
+
+                tasks.add(task);
+                pending.incrementAndGet();
+                started();
+                if (scheduled)
+                    return;
+                scheduled = true;
+            }
+
+            executor.execute(this::drain);
+        }
+
+        /**
+         * Runs a task with no ordering constraint, counted with the tasks of this executor, ignored once it is shut down
+         *
+         * @param task task to be run
+         */
+        public void executeConcurrently(Runnable task) {
+            synchronized (this) {
+                if (shutdown)
+                    return;
+                started();
+            }
+
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    finished();
+                }
+            });
+        }
+
+        /**
+         * @return true if this executor has too many tasks waiting, so its connection must stop reading
+         */
+        public synchronized boolean isSaturated() {
+            return saturated;
+        }
+
+        /**
+         * Waits until this executor is no longer saturated, or is shut down
+         * Only for a connection read on a thread of its own, since it blocks that thread
+         */
+        public synchronized void awaitRoom() {
+            while (saturated && !shutdown) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+
+        /**
+         * @param onDrained called, on a dispatcher thread, when this executor is no longer saturated
+         */
+        public synchronized void setOnDrained(Runnable onDrained) {
+            this.onDrained = onDrained;
+        }
+
+        private void started() {
+            unfinished++;
+            if (!saturated && unfinished >= connectionQueue) {
+                saturated = true;
+                Dispatcher.this.saturated.incrementAndGet();
+            }
+        }
+
+        private void finished() {
+            Runnable drained;
+            synchronized (this) {
+                unfinished--;
+                if (!saturated || unfinished > connectionQueue / 2)
+                    return;
+
+                saturated = false;
+                notifyAll();
+                drained = onDrained;
+            }
+
+            if (drained != null)
+                drained.run();
+        }
+
+        /**
+         * Runs the queued tasks, handing the thread back to the other connections after a few
+         */
+        private void drain() {
+            while (true) {
+                for (int i = 0; i < DRAIN_BATCH; i++) {
+                    Runnable task;
+                    synchronized (this) {
+                        task = tasks.poll();
+                        if (task == null) {
+                            scheduled = false;
+                            return;
+                        }
+                    }
+
+                    pending.decrementAndGet();
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    } finally {
+                        finished();
+                    }
+                }
+
+                //with nothing else waiting there is no one to hand the thread to, so keep going
+                if (pool == null || !pool.getQueue().isEmpty()) {
+                    executor.execute(this::drain);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Runs the tasks already queued and ignores new ones
+         */
+        public synchronized void shutdown() {
+            shutdown = true;
+            notifyAll();
+        }
+
+        /**
+         * Drops the tasks not yet running and ignores new ones
+         */
+        public synchronized void shutdownNow() {
+            shutdown = true;
+            pending.addAndGet(-tasks.size());
+            unfinished -= tasks.size();
+            tasks.clear();
+            notifyAll();
+        }
+    }
+
+    /**
+     * Queue of the dispatcher threads, refusing tasks while threads can still be started, so the pool grows before
+     * tasks wait behind handlers blocked on other servers
+     */
+    private static class TaskQueue extends LinkedBlockingQueue<Runnable> {
+
+        private ThreadPoolExecutor pool;
+
+        @Override
+        public boolean offer(Runnable task) {
+            if (pool.getPoolSize() < pool.getMaximumPoolSize() && pool.getActiveCount() >= pool.getPoolSize())
+                return false;
+            return super.offer(task);
+        }
+
+        /**
+         * Queues a task refused while a thread could be started, once the pool could not start one
+         */
+        private void enqueue(Runnable task) {
+            super.offer(task);
+        }
+    }
+
+    /**
+     * Tasks a serial executor runs before going back to the end of the queue
+     */
+    private static final int DRAIN_BATCH = 16;
+}
@@ -2,23 +2,42 @@ package Protocols;
 
 
 import Server.Node;
-import Server.Server;
+import Utilities.RingIdentifier;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static Utilities.Constants.MAX_FINGER_TABLE_SIZE;
-import static Utilities.Constants.MAX_NUMBER_OF_NODES;
+import static Utilities.Constants.SUCCESSOR_LIST_SIZE;
 
+/**
+ * Ring state of a virtual node: finger table, predecessor and successor list
+ * The finger table is an immutable snapshot swapped on every update, so lookups read it
+ * without locking while updates, serialized on this object, publish a new one
+ */
 public class DistributedHashTable implements Serializable {
 
-    private ArrayList<Node> fingerTable = new ArrayList<Node>();
-    private Node predecessor;
-    private Server server;
+    private final AtomicReference<FingerTable> fingerTable = new AtomicReference<FingerTable>();
+    private RingIdentifier[] fingerStarts = new RingIdentifier[MAX_FINGER_TABLE_SIZE + 1];
+    private volatile Node predecessor;
 
-    public DistributedHashTable(Server server) {
-        this.server = server;
-        this.predecessor = server;
+    /**
+     * Next r successors, replaced as a whole on every stabilization
+     */
+    private volatile List<Node> successorList = new ArrayList<Node>();
+    private Node localNode;
+
+    /**
+     * @param localNode ring position (virtual node) this table belongs to
+     */
+    public DistributedHashTable(Node localNode) {
+        this.localNode = localNode;
+        this.predecessor = localNode;
+        for (int i = 1; i <= MAX_FINGER_TABLE_SIZE; i++) {
+            fingerStarts[i] = localNode.getNodeId().addPowerOfTwo(i - 1);
+        }
         initFingerTable();
         printFingerTable();
     }
@@ -28,212 +47,123 @@ public class DistributedHashTable implements Serializable {
      * Initializes the finger table with m values (max number of nodes = 2^m)
      */
     public void initFingerTable() {
-        for (int i = 0; i <= MAX_FINGER_TABLE_SIZE; i++) {
-            fingerTable.add(server);
-        }
+        fingerTable.set(new FingerTable(localNode, fingerStarts));
     }
 
     /**
-     * Looks up in the finger table which server has the closest smallest key comparing to the key we want to lookup
+     * Looks up the next node a request for the given key must be sent to.
+     * Returns this node if it is responsible for the key, its successor if the key
+     * falls between this node and its successor, or otherwise the closest preceding finger
      *
-     * @param key 256-bit identifier
+     * @param key ring identifier
      */
-   /* public Node nodeLookUp(int key) {
-
-        key = Integer.remainderUnsigned(key, 128);
-
-        long distance, position;
-        Node successor = server;
-        long previousId = server.getNodeId();
-        for (int i = 1; i < fingerTable.size(); i++) {
-            Node node = fingerTable.get(i);
-
-            distance = (long) Math.pow(2, (double) i - 1);
-            position = server.getNodeId() + distance;
-            if (key > server.getNodeId()) {
-                if (node.getNodeId() > key) {
-                    successor = node;
-                    break;
-                }
-            } else {
-                if (node.getNodeId() < previousId) {
-                    if (key < node.getNodeId()) {
-                        successor = node;
-                    }
-                    previousId = node.getNodeId();
-                }
-            }
-        }
-
-        if (successor == server && key > server.getNodeId()) {
-
-            for (int i = 2; i < fingerTable.size(); i++) {
-                Node tempNode1 = fingerTable.get(i-1);
-                Node tempNode2 = fingerTable.get(i);
+    public Node nodeLookUp(RingIdentifier key) {
 
-                if (tempNode1.getNodeId() > tempNode2.getNodeId()) {
-                    successor = tempNode2;
-                    break;
-                }
-
-                if(tempNode1.getNodeId() == tempNode2.getNodeId() && tempNode1.getNodeId() != server.getNodeId()){
-                    successor = tempNode1;
-                }
-            }
+        FingerTable fingers = fingerTable.get();
+        Node successor = fingers.get(1);
+        Node next;
 
+        if (isResponsibleFor(fingers, key)) {
+            next = localNode;
+        } else if (key.isBetween(localNode.getNodeId(), successor.getNodeId())) {
+            next = successor;
+        } else {
+            next = fingers.closestPrecedingFinger(key);
+            if (next.equals(localNode))
+                next = successor;
         }
 
-        System.out.println("Successor of " + key + " : " + successor.getNodeId());
-        return successor;
-    }*/
+        return next;
+    }
 
     /**
-     * Looks up in the finger table which server has the closest smallest key comparing to the key we want to lookup
+     * Verifies if this node is the successor of a given key, that is, if the key
+     * is in the interval (predecessor, node]
      *
-     * @param key 256-bit identifier
+     * @param key ring identifier
+     * @return true if this node is responsible for the key
      */
-    public Node nodeLookUp(int key) {
-
-        int goesAround = fingerTable.get(MAX_FINGER_TABLE_SIZE).getNodeId() - server.getNodeId();
-        int keyGoesAround = key - server.getNodeId();
-
-        Node successor = server;
-
-        if (goesAround <= 0) { //Goes around
-            if (keyGoesAround <= 0) {
-                for (int i = 1; i < fingerTable.size(); i++) {
-                    Node tempNode1 = fingerTable.get(i);
-
-                    if (tempNode1.getNodeId() > server.getNodeId())
-                        continue;
-
-                    if (key < tempNode1.getNodeId()) {
-                        successor = tempNode1;
-                        break;
-                    }
-                }
-            } else {
-                if ((fingerTable.get(1).getNodeId() - server.getNodeId()) < 0) {
-                    successor = fingerTable.get(1);
-                } else {
-                    for (int i = 1; i < fingerTable.size() - 1; i++) {
-                        Node tempNode1 = fingerTable.get(i);
-                        Node tempNode2 = fingerTable.get(i + 1);
-                        if (key < tempNode1.getNodeId()) {
-                            successor = tempNode1;
-                            break;
-                        }
-
-                        if (tempNode2.getNodeId() < tempNode1.getNodeId()) {
-                            successor = tempNode2;
-                            break;
-                        }
-                    }
-                }
-            }
-        } else { //Don't go around
-            for (int i = 7; i > 1; i--) {
-                Node tempNode1 = fingerTable.get(i);
-                Node tempNode2 = fingerTable.get(i - 1);
-
-                if (key < tempNode1.getNodeId() && key > tempNode2.getNodeId()) {
-                    successor = tempNode1;
-                    break;
-                }
-                if (key < tempNode1.getNodeId())
-                    successor = tempNode1;
-            }
-        }
-
-        System.out.println("Successor of " + key + " : " + successor.getNodeId());
-        return successor;
+    public boolean isResponsibleFor(RingIdentifier key) {
+        return isResponsibleFor(fingerTable.get(), key);
     }
 
-    /*
-    public Node lookUp(int key) {
-        int goesAround = fingerTable.get(MAX_FINGER_TABLE_SIZE).getNodeId() - server.getNodeId();
-        int keyGoesAround = key - server.getNodeId();
+    private boolean isResponsibleFor(FingerTable fingers, RingIdentifier key) {
 
-        Node successor = server;
+        if (fingers.get(1).equals(localNode))
+            return true;
 
-        if(goesAround < 0){ //Goes around
-            if(keyGoesAround < 0){
-                for (int i = 1; i < fingerTable.size(); i++) {
-                    Node tempNode1 = fingerTable.get(i);
+        Node predecessor = this.predecessor;
 
-                    if(tempNode1.getNodeId() > server.getNodeId())
-                        continue;
+        if (predecessor.equals(localNode))
+            return false;
 
-                    if(key < tempNode1.getNodeId()){
-                        successor = tempNode1;
-                        break;
-                    }
-                }
-            }
-            else {
-                if((fingerTable.get(1).getNodeId() - server.getNodeId()) < 0){
-                    successor = fingerTable.get(1);
-                }
-                else {
-                    for (int i = 1; i < fingerTable.size() - 1; i++) {
-                        Node tempNode1 = fingerTable.get(i);
-                        Node tempNode2 = fingerTable.get(i+1);
-
-                        if(key < tempNode1.getNodeId()){
-                            successor = tempNode1;
-                            break;
-                        }
-
-                        if(tempNode2.getNodeId() <= tempNode1.getNodeId()){
-                            successor = tempNode2;
-                            break;
-                        }
-                    }
-                }
-            }
-        }
-        else { //Don't go around
-            for (int i = 7; i > 1; i++) {
-                Node tempNode1 = fingerTable.get(i);
-                Node tempNode2 = fingerTable.get(i-1);
-
-                if(key < tempNode1.getNodeId() && key > tempNode2.getNodeId()){
-                    successor = tempNode1;
-                    break;
-                }
-                if(key < tempNode1.getNodeId())
-                    successor = tempNode1;
-            }
-        }
+        return key.isBetween(predecessor.getNodeId(), localNode.getNodeId());
+    }
 
-        return successor;
+    /**
+     * Verifies if this node successor is responsible for a given key, that is,
+     * if the key is in the interval (node, successor]
+     *
+     * @param key ring identifier
+     * @return true if the successor is responsible for the key
+     */
+    public boolean isSuccessorResponsibleFor(RingIdentifier key) {
+        return key.isBetween(localNode.getNodeId(), fingerTable.get().get(1).getNodeId());
     }
-*/
-    public void removeNode(int nodeId) {
-        ArrayList<Node> oldFT = new ArrayList<Node>();
 
-        for (int i = 0; i <= MAX_FINGER_TABLE_SIZE; i++) {
-            oldFT.add(fingerTable.get(i));
+    /**
+     * Searches the finger table, from the farthest finger to the nearest, for the
+     * node that most immediately precedes the key
+     *
+     * @param key ring identifier
+     * @return closest preceding node, or this node if no finger precedes the key
+     */
+    public Node closestPrecedingFinger(RingIdentifier key) {
+        return fingerTable.get().closestPrecedingFinger(key);
+    }
 
-        }
-        fingerTable.clear();
+    /**
+     * Start of the interval covered by the i-th finger: (n + 2^(i-1)) mod 2^m
+     *
+     * @param i finger index, from 1 to m
+     * @return ring identifier
+     */
+    public RingIdentifier fingerStart(int i) {
+        return fingerStarts[i];
+    }
 
-        initFingerTable();
+    /**
+     * Removes a node that is down: it leaves the successor list, so the next live
+     * successor takes its place, and the fingers are rebuilt from the remaining known nodes
+     *
+     * @param nodeId identifier of the node that is down
+     */
+    public synchronized void removeNode(RingIdentifier nodeId) {
+        ArrayList<Node> knownNodes = fingerTable.get().toList();
+        ArrayList<Node> successors = new ArrayList<Node>();
 
-        System.out.println("Old finger table:");
-        printFingerTable();
+        for (Node node : successorList) {
+            if (!node.getNodeId().equals(nodeId))
+                successors.add(node);
+        }
+        knownNodes.addAll(successors);
 
-        for (int i = 1; i <= MAX_FINGER_TABLE_SIZE; i++) {
-            if (oldFT.get(i).getNodeId() != nodeId) {
-                updateFingerTable(oldFT.get(i));
+        FingerTable fingers = new FingerTable(localNode, fingerStarts);
+
+        for (Node node : knownNodes) {
+            if (!node.getNodeId().equals(nodeId)) {
+                fingers = fingers.with(node);
             }
         }
-        if (predecessor.getNodeId() != nodeId) {
-            updateFingerTable(predecessor);
+        if (!predecessor.getNodeId().equals(nodeId)) {
+            fingers = fingers.with(predecessor);
         } else {
-            predecessor = server;
+            predecessor = localNode;
         }
 
+        fingerTable.set(fingers);
+        successorList = successors;
+
 
         System.out.println("New finger table:");
         printFingerTable();
@@ -241,106 +171,172 @@ public class DistributedHashTable implements Serializable {
     }
 
     /**
-     * This functions updates the server finger table with the new node info
+     * Replaces the successor list with the successor followed by its own successors
      *
-     * @param newNode new node on the distributed hash table
+     * @param successor           this node successor
+     * @param successorSuccessors successor list of the successor
      */
-    public void updateFingerTable(Node newNode) {
-
-        long position;
-        long distance;
-
-        for (int i = 1; i < fingerTable.size(); i++) {
-            Node node = fingerTable.get(i);
-
-            distance = (long) Math.pow(2, (double) i - 1);
-            position = server.getNodeId() + distance;
-            if (node.getNodeId() == server.getNodeId() && newNode.getNodeId() >= position) {
-                fingerTable.set(i, newNode);
-            } else if (newNode.getNodeId() >= position && newNode.getNodeId() < node.getNodeId()) {
-                fingerTable.set(i, newNode);
-            } else if (newNode.getNodeId() < server.getNodeId()) {
-                if (newNode.getNodeId() < node.getNodeId()) {
-                    if (MAX_NUMBER_OF_NODES - position + newNode.getNodeId() >= 0 && MAX_NUMBER_OF_NODES - server.getNodeId() + node.getNodeId() > MAX_NUMBER_OF_NODES - server.getNodeId() + newNode.getNodeId()) {
-                        if (node.getNodeId() < server.getNodeId() || node.getNodeId() == server.getNodeId()) {
-                            fingerTable.set(i, newNode);
-                            System.out.println("3");
-                        }
-
-                    } else if (MAX_NUMBER_OF_NODES - position + newNode.getNodeId() >= 0 && node.getNodeId() == server.getNodeId()) {
-                        fingerTable.set(i, newNode);
-                        System.out.println("4");
-                    }
-                }
-            } else if (newNode.getNodeId() > server.getNodeId() && newNode.getNodeId() >= position && node.getNodeId() < position) {
-                if (MAX_NUMBER_OF_NODES - server.getNodeId() + node.getNodeId() < MAX_NUMBER_OF_NODES - server.getNodeId() + newNode.getNodeId()) {
-                    fingerTable.set(i, newNode);
-                }
-            }
+    public synchronized void updateSuccessorList(Node successor, List<Node> successorSuccessors) {
+        ArrayList<Node> successors = new ArrayList<Node>();
+
+        successors.add(successor);
+        for (Node node : successorSuccessors) {
+            if (successors.size() >= SUCCESSOR_LIST_SIZE)
+                break;
+            if (!node.equals(localNode) && !successors.contains(node))
+                successors.add(node);
         }
+
+        successorList = successors;
+    }
+
+    public List<Node> getSuccessorList() {
+        return successorList;
     }
 
     /**
-     * Receives the successor finger table and updates is own finger table
+     * This functions updates the node finger table with the new node info
+     * Each finger i keeps the first known node that succeeds (n + 2^(i-1)) on the ring
      *
-     * @param successorFingerTable successor finger table
+     * @param newNode new node on the distributed hash table
+     * @return true if any finger changed
      */
-    public void updateFingerTableFromSuccessor(ArrayList<Node> successorFingerTable) {
+    public synchronized boolean updateFingerTable(Node newNode) {
 
-        System.out.println(successorFingerTable.size());
-        for (int i = 0; i < successorFingerTable.size(); i++) {
-            updateFingerTable(successorFingerTable.get(i));
-        }
+        FingerTable fingers = fingerTable.get();
+        FingerTable updated = fingers.with(newNode);
 
-        printFingerTable();
+        if (updated == fingers)
+            return false;
+
+        fingerTable.set(updated);
+        return true;
+    }
+
+    /**
+     * Sets the i-th finger, as found by a lookup of its start
+     *
+     * @param i    finger index, from 1 to m
+     * @param node successor of the finger start
+     * @return true if the finger changed
+     */
+    public synchronized boolean setFinger(int i, Node node) {
+
+        FingerTable fingers = fingerTable.get();
+        FingerTable updated = fingers.with(i, node);
+
+        if (updated == fingers)
+            return false;
+
+        fingerTable.set(updated);
+        return true;
     }
 
     public Node fingerTableNode(int id) {
-        return fingerTable.get(id);
+        return fingerTable.get().get(id);
+    }
+
+    /**
+     * @return ring position this table belongs to
+     */
+    public Node getNode() {
+        return localNode;
+    }
+
+    /**
+     * Removes every node hosted by the same server as a node that is down,
+     * since all its virtual nodes fail together
+     *
+     * @param downNode node that is down
+     */
+    public synchronized void removeServer(Node downNode) {
+        ArrayList<Node> known = fingerTable.get().toList();
+        known.addAll(successorList);
+        known.add(predecessor);
+
+        for (Node node : known) {
+            if (!node.equals(localNode) && (node.equals(downNode) || node.isSameServer(downNode)))
+                removeNode(node.getNodeId());
+        }
+    }
+
+    /**
+     * Searches the known nodes for the one with a given identifier
+     *
+     * @param nodeId ring identifier
+     * @return known node, or null if this table does not know it
+     */
+    public Node findKnownNode(RingIdentifier nodeId) {
+        if (predecessor.getNodeId().equals(nodeId))
+            return predecessor;
+
+        FingerTable fingers = fingerTable.get();
+        for (int i = 0; i < fingers.size(); i++) {
+            if (fingers.get(i).getNodeId().equals(nodeId))
+                return fingers.get(i);
+        }
+
+        for (Node node : successorList) {
+            if (node.getNodeId().equals(nodeId))
+                return node;
+        }
+
+        return null;
     }
 
     public Node getPredecessor() {
         return predecessor;
     }
 
-    public void setPredecessor(Node node) {
+    /**
+     * @param node new predecessor
+     * @return true if the predecessor changed
+     */
+    public synchronized boolean setPredecessor(Node node) {
 
-        if (getPredecessor().getNodeId() != node.getNodeId()) {
+        if (!getPredecessor().equals(node)) {
             updateFingerTable(node);
             predecessor = node;
             System.out.println("New predecessor: " + node.getNodeId());
+            return true;
         }
+
+        return false;
     }
 
     public void printFingerTable() {
         System.out.println("FINGERTABLE");
         System.out.println("-----------");
-        System.out.println("Node ID: " + server.getNodeId());
+        System.out.println("Node ID: " + localNode.getNodeId());
         System.out.println("Predecessor: " + getPredecessor().getNodeId());
         System.out.println("-----------");
-        System.out.println("FINGERtableSize: " + fingerTable.size());
-        for (int i = 1; i < fingerTable.size(); i++) {
-            System.out.println(i + "    " + fingerTable.get(i).getNodeId());
+        FingerTable fingers = fingerTable.get();
+        System.out.println("FINGERtableSize: " + fingers.size());
+        for (int i = 1; i < fingers.size(); i++) {
+            System.out.println(i + "    " + fingers.get(i).getNodeId());
         }
         System.out.println("-----------");
     }
 
-    public ArrayList<Node> getFingerTable() {
-        return fingerTable;
+    /**
+     * @return current finger table snapshot
+     */
+    public FingerTable getFingerTable() {
+        return fingerTable.get();
     }
 
+    /**
+     * @return first finger, or the first live node of the successor list, or null if this node is alone
+     */
     public Node getSuccessor() {
 
-        Node successor = null;
+        Node successor = fingerTable.get().get(1);
 
-        for (Node node : fingerTable) {
-            if (node.getNodeId() != server.getNode().getNodeId()) {
-                successor = node;
-                break;
-            }
-        }
+        if (!successor.equals(localNode))
+            return successor;
 
-        return successor;
+        List<Node> successors = successorList;
+        return successors.isEmpty() ? null : successors.get(0);
     }
 
 }
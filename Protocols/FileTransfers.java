@@ -0,0 +1,324 @@
+package Protocols;
+
+import Utilities.Threads;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import static Utilities.Constants.BULK_BUFFER_SIZE;
+import static Utilities.Constants.BULK_HANDSHAKE_TIMEOUT;
+import static Utilities.Constants.BULK_TOKEN_TIMEOUT;
+
+/**
+ * Files, moved apart from the connections carrying messages
+ * A message sets up each transfer and is answered with a token; the file then goes on a connection of its own
+ * to the bulk listener of the server, the token first and the bytes right after it
+ * Bytes are copied between the file channel and the connection through a buffer of BULK_BUFFER_SIZE bytes, with
+ * no message per piece of the file, and chat messages never wait behind a file
+ * Transfers not started within BULK_TOKEN_TIMEOUT expire
+ */
+public class FileTransfers {
+
+    /**
+     * Answer to an upload, once the whole file is stored
+     */
+    private static final int STORED = 1;
+
+    private final Transport.Listener listener;
+    private final ExecutorService connections = Threads.newConnectionExecutor();
+    private final ConcurrentHashMap<String, Transfer> pending = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+
+    private final AtomicLong uploads = new AtomicLong();
+    private final AtomicLong downloads = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    /**
+     * @param ip   server ip
+     * @param port bulk port
+     * @throws IOException if the port could not be listened on
+     */
+    public FileTransfers(String ip, int port) throws IOException {
+        listener = Transport.getDefault().listen(ip, port);
+    }
+
+    /**
+     * Starts accepting bulk connections, each served on a thread of its own
+     */
+    public void start() {
+        connections.execute(this::accept);
+    }
+
+    private void accept() {
+        while (!listener.isClosed()) {
+            try {
+                Transport.Link link = listener.accept();
+                connections.execute(() -> serve(link));
+            } catch (IOException e) {
+                if (listener.isClosed())
+                    return;
+                System.out.println("Failed to accept bulk connection");
+            }
+        }
+    }
+
+    /**
+     * Sets up a file to be received
+     *
+     * @param target file to be written, replaced once every byte arrived
+     * @param size   file size
+     * @param stored called with the file once stored, or null
+     * @return token of the transfer
+     */
+    public String expectUpload(File target, long size, Consumer<File> stored) {
+        return register(new Transfer(target, size, true, stored));
+    }
+
+    /**
+     * Sets up a file to be sent
+     *
+     * @param source file to be read
+     * @return token of the transfer
+     */
+    public String offerDownload(File source) {
+        return register(new Transfer(source, source.length(), false, null));
+    }
+
+    private String register(Transfer transfer) {
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+
+        String token = new BigInteger(1, bytes).toString(16);
+        pending.put(token, transfer);
+        return token;
+    }
+
+    /**
+     * Reads the token of a bulk connection, then receives or sends the file of its transfer
+     */
+    private void serve(Transport.Link link) {
+        try {
+            DataInputStream in = new DataInputStream(link.getInputStream());
+            DataOutputStream out = new DataOutputStream(link.getOutputStream());
+
+            //a connection that never sends its token does not keep a thread
+            link.setReadTimeout(BULK_HANDSHAKE_TIMEOUT);
+            String token = in.readUTF();
+            link.setReadTimeout(0);
+
+            Transfer transfer = pending.remove(token);
+            if (transfer == null || transfer.isExpired()) {
+                System.out.println("Bulk connection with an unknown or expired token");
+                failed.incrementAndGet();
+                return;
+            }
+
+            if (transfer.upload) {
+                receive(transfer.file, transfer.size, in);
+                out.writeByte(STORED);
+                out.flush();
+
+                uploads.incrementAndGet();
+                bytesReceived.addAndGet(transfer.size);
+                if (transfer.stored != null)
+                    transfer.stored.accept(transfer.file);
+            } else {
+                send(transfer.file, transfer.size, out);
+                out.flush();
+
+                downloads.incrementAndGet();
+                bytesSent.addAndGet(transfer.size);
+            }
+        } catch (IOException e) {
+            System.out.println("Bulk transfer failed: " + e.getMessage());
+            failed.incrementAndGet();
+        } finally {
+            try {
+                link.close();
+            } catch (IOException e) {
+                System.out.println("Failed to close bulk connection");
+            }
+        }
+    }
+
+    /**
+     * Sends a file to the bulk listener of a server, for a transfer it set up
+     *
+     * @param host  server ip
+     * @param port  bulk port
+     * @param token token of the transfer
+     * @param file  file to be sent
+     * @throws IOException if the file was not stored
+     */
+    public static void upload(String host, int port, String token, File file) throws IOException {
+        Transport.Link link = Transport.getDefault().connect(host, port);
+
+        try {
+            DataOutputStream out = new DataOutputStream(link.getOutputStream());
+            out.writeUTF(token);
+            send(file, file.length(), out);
+            out.flush();
+
+            if (link.getInputStream().read() != STORED)
+                throw new IOException("Upload of " + file.getName() + " was not stored");
+        } finally {
+            link.close();
+        }
+    }
+
+    /**
+     * Receives a file from the bulk listener of a server, for a transfer it set up
+     *
+     * @param host   server ip
+     * @param port   bulk port
+     * @param token  token of the transfer
+     * @param target file to be written, replaced once every byte arrived
+     * @param size   file size
+     * @throws IOException if the file did not arrive whole
+     */
+    public static void download(String host, int port, String token, File target, long size) throws IOException {
+        Transport.Link link = Transport.getDefault().connect(host, port);
+
+        try {
+            DataOutputStream out = new DataOutputStream(link.getOutputStream());
+            out.writeUTF(token);
+            out.flush();
+
+            receive(target, size, link.getInputStream());
+        } finally {
+            link.close();
+        }
+    }
+
+    /**
+     * Copies a file to a connection through a large buffer
+     * TLS sockets only take byte arrays: transferTo would copy through small pieces, a record each
+     */
+    private static void send(File file, long size, OutputStream out) throws IOException {
+        byte[] bytes = new byte[BULK_BUFFER_SIZE];
+
+        try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long position = 0;
+            while (position < size) {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, (int) Math.min(bytes.length, size - position));
+                int read = source.read(buffer, position);
+                if (read <= 0)
+                    throw new EOFException(file.getName() + " is shorter than " + size + " bytes");
+
+                out.write(bytes, 0, read);
+                position += read;
+            }
+        }
+    }
+
+    /**
+     * Copies a connection to a file through a large buffer, written next to the file and moved over it once
+     * every byte arrived, so a transfer that fails leaves the file as it was
+     */
+    private static void receive(File target, long size, InputStream in) throws IOException {
+        byte[] bytes = new byte[BULK_BUFFER_SIZE];
+
+        File parent = target.getAbsoluteFile().getParentFile();
+        if (parent != null)
+            parent.mkdirs();
+        File partial = new File(target.getPath() + ".part");
+
+        try (FileChannel file = FileChannel.open(partial.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = 0;
+            while (position < size) {
+                int length = (int) Math.min(bytes.length, size - position);
+                int read = in.readNBytes(bytes, 0, length);
+                if (read < length)
+                    throw new EOFException("Connection closed after " + (position + read) + " of " + size + " bytes");
+
+                ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, read);
+                while (buffer.hasRemaining())
+                    file.write(buffer);
+                position += read;
+            }
+        } catch (IOException e) {
+            partial.delete();
+            throw e;
+        }
+
+        Files.move(partial.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Drops the transfers set up and not started in time
+     */
+    public void evictExpired() {
+        for (Map.Entry<String, Transfer> entry : pending.entrySet())
+            if (entry.getValue().isExpired() && pending.remove(entry.getKey(), entry.getValue()))
+                expired.incrementAndGet();
+    }
+
+    public void close() {
+        listener.close();
+        connections.shutdownNow();
+    }
+
+    public long getUploads() {
+        return uploads.get();
+    }
+
+    public long getDownloads() {
+        return downloads.get();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    public void printMetrics() {
+        System.out.println("File transfers: " + uploads + " uploads (" + bytesReceived + " bytes), " + downloads + " downloads ("
+                + bytesSent + " bytes), " + failed + " failed, " + expired + " expired, " + pending.size() + " waiting");
+    }
+
+    /**
+     * Transfer set up and waiting for its bulk connection
+     */
+    private static class Transfer {
+
+        private final File file;
+        private final long size;
+        private final boolean upload;
+        private final Consumer<File> stored;
+        private final long expires = System.currentTimeMillis() + BULK_TOKEN_TIMEOUT;
+
+        private Transfer(File file, long size, boolean upload, Consumer<File> stored) {
+            this.file = file;
+            this.size = size;
+            this.upload = upload;
+            this.stored = stored;
+        }
+
+        private boolean isExpired() {
+            return System.currentTimeMillis() > expires;
+        }
+    }
+}
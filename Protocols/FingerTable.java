@@ -0,0 +1,132 @@
+package Protocols;
+
+import Server.Node;
+import Utilities.RingIdentifier;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Immutable snapshot of a finger table: entry 0 is the local node and entry i is the first
+ * known node that succeeds (n + 2^(i-1)) on the ring
+ * Updates return a new snapshot, so readers never lock nor see a table being rebuilt
+ */
+public final class FingerTable implements Serializable {
+
+    private final Node[] fingers;
+
+    /**
+     * Finger starts, shared by every snapshot of the same node and never modified
+     */
+    private final RingIdentifier[] starts;
+
+    /**
+     * Table where every finger is the local node
+     *
+     * @param localNode node this table belongs to
+     * @param starts    finger starts, indexed from 1 to m
+     */
+    public FingerTable(Node localNode, RingIdentifier[] starts) {
+        this.fingers = new Node[starts.length];
+        this.starts = starts;
+        Arrays.fill(fingers, localNode);
+    }
+
+    private FingerTable(Node[] fingers, RingIdentifier[] starts) {
+        this.fingers = fingers;
+        this.starts = starts;
+    }
+
+    /**
+     * @param i finger index, 0 being the local node
+     */
+    public Node get(int i) {
+        return fingers[i];
+    }
+
+    public int size() {
+        return fingers.length;
+    }
+
+    public Node getLocalNode() {
+        return fingers[0];
+    }
+
+    /**
+     * Learns a node: every finger whose start it succeeds more closely than the current finger is replaced
+     *
+     * @param newNode node on the ring
+     * @return new snapshot, or this one if no finger changed
+     */
+    public FingerTable with(Node newNode) {
+
+        if (newNode.equals(fingers[0]))
+            return this;
+
+        Node[] updated = null;
+
+        for (int i = 1; i < fingers.length; i++) {
+            Node node = fingers[i];
+            RingIdentifier start = starts[i];
+
+            if (node.getNodeId().equals(start))
+                continue;
+
+            if (newNode.getNodeId().equals(start) || newNode.getNodeId().isStrictlyBetween(start, node.getNodeId())) {
+                if (updated == null)
+                    updated = fingers.clone();
+                updated[i] = newNode;
+            }
+        }
+
+        return updated == null ? this : new FingerTable(updated, starts);
+    }
+
+    /**
+     * Sets the i-th finger
+     *
+     * @param i    finger index, from 1 to m
+     * @param node successor of the finger start
+     * @return new snapshot, or this one if the finger did not change
+     */
+    public FingerTable with(int i, Node node) {
+
+        if (node.equals(fingers[0]))
+            node = fingers[0];
+
+        if (fingers[i].equals(node))
+            return this;
+
+        Node[] updated = fingers.clone();
+        updated[i] = node;
+        return new FingerTable(updated, starts);
+    }
+
+    /**
+     * Searches the fingers, from the farthest to the nearest, for the node that most immediately precedes the key
+     *
+     * @param key ring identifier
+     * @return closest preceding node, or the local node if no finger precedes the key
+     */
+    public Node closestPrecedingFinger(RingIdentifier key) {
+
+        RingIdentifier localId = fingers[0].getNodeId();
+
+        for (int i = fingers.length - 1; i >= 1; i--) {
+            Node node = fingers[i];
+
+            if (node.getNodeId().isStrictlyBetween(localId, key))
+                return node;
+        }
+
+        return fingers[0];
+    }
+
+    /**
+     * @return copy of the fingers, local node first
+     */
+    public ArrayList<Node> toList() {
+        return new ArrayList<Node>(Arrays.asList(fingers));
+    }
+}
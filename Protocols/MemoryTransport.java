@@ -0,0 +1,286 @@
+package Protocols;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Transport over in-memory pipes, to run many nodes in one JVM
+ * Addresses are only names: connecting to an address nobody listens on is refused,
+ * and crashing an address closes its listener and every connection it accepted
+ */
+public class MemoryTransport extends Transport {
+
+    private static final int PIPE_SIZE = 64 * 1024;
+
+    private final ConcurrentHashMap<String, MemoryListener> listeners = new ConcurrentHashMap<>();
+
+    @Override
+    public Link connect(String ip, int port) throws IOException {
+        MemoryListener listener = listeners.get(address(ip, port));
+
+        if (listener == null)
+            throw new ConnectException("Connection refused: " + address(ip, port));
+
+        Pipe toServer = new Pipe();
+        Pipe toClient = new Pipe();
+
+        listener.offer(new MemoryLink(toServer, toClient));
+        return new MemoryLink(toClient, toServer);
+    }
+
+    @Override
+    public Listener listen(String ip, int port) throws IOException {
+        MemoryListener listener = new MemoryListener(address(ip, port));
+
+        if (listeners.putIfAbsent(listener.address, listener) != null)
+            throw new BindException("Address already in use: " + listener.address);
+
+        return listener;
+    }
+
+    /**
+     * Simulates a crash: the address stops accepting connections and every connection it accepted is closed
+     *
+     * @param ip   server ip
+     * @param port server port
+     */
+    public void crash(String ip, int port) {
+        MemoryListener listener = listeners.get(address(ip, port));
+
+        if (listener != null)
+            listener.close();
+    }
+
+    private static String address(String ip, int port) {
+        return ip + ":" + port;
+    }
+
+    private class MemoryListener implements Listener {
+
+        private final String address;
+        private final LinkedBlockingQueue<MemoryLink> pending = new LinkedBlockingQueue<>();
+        private final Set<MemoryLink> accepted = ConcurrentHashMap.newKeySet();
+        private volatile boolean closed = false;
+
+        private MemoryListener(String address) {
+            this.address = address;
+        }
+
+        private void offer(MemoryLink link) throws IOException {
+            if (closed)
+                throw new ConnectException("Connection refused: " + address);
+
+            pending.add(link);
+        }
+
+        @Override
+        public Link accept() throws IOException {
+            MemoryLink link;
+
+            try {
+                link = pending.take();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+
+            if (closed) {
+                link.close();
+                pending.add(link);
+                throw new SocketException("Listener closed: " + address);
+            }
+
+            accepted.removeIf(MemoryLink::isClosed);
+            accepted.add(link);
+            return link;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            listeners.remove(address, this);
+
+            for (MemoryLink link : accepted)
+                link.close();
+            for (MemoryLink link : pending)
+                link.close();
+
+            pending.add(new MemoryLink(new Pipe(), new Pipe()));
+        }
+
+        @Override
+        public boolean isClosed() {
+            return closed;
+        }
+    }
+
+    private static class MemoryLink implements Link {
+
+        private final Pipe in;
+        private final Pipe out;
+
+        private MemoryLink(Pipe in, Pipe out) {
+            this.in = in;
+            this.out = out;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    byte[] b = new byte[1];
+                    return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    return in.read(b, off, len);
+                }
+
+                @Override
+                public int available() {
+                    return in.available();
+                }
+
+                @Override
+                public void close() {
+                    MemoryLink.this.close();
+                }
+            };
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[]{(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void close() {
+                    MemoryLink.this.close();
+                }
+            };
+        }
+
+        @Override
+        public void setReadTimeout(int timeout) {
+            in.setReadTimeout(timeout);
+        }
+
+        @Override
+        public void close() {
+            in.close();
+            out.close();
+        }
+
+        private boolean isClosed() {
+            return in.isClosed();
+        }
+    }
+
+    /**
+     * Bounded byte queue between a writer and a reader: writes block while it is full,
+     * reads block while it is empty and return -1 once it is closed and drained
+     */
+    private static class Pipe {
+
+        private final byte[] buffer = new byte[PIPE_SIZE];
+        private int readPosition = 0;
+        private int count = 0;
+        private boolean closed = false;
+        private int readTimeout = 0;
+
+        private synchronized void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                while (count == buffer.length && !closed)
+                    await();
+
+                if (closed)
+                    throw new SocketException("Connection closed");
+
+                int writePosition = (readPosition + count) % buffer.length;
+                int n = Math.min(len, Math.min(buffer.length - count, buffer.length - writePosition));
+
+                System.arraycopy(b, off, buffer, writePosition, n);
+                count += n;
+                off += n;
+                len -= n;
+                notifyAll();
+            }
+        }
+
+        private synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+
+            long deadline = System.currentTimeMillis() + readTimeout;
+            while (count == 0 && !closed) {
+                if (readTimeout == 0) {
+                    await();
+                    continue;
+                }
+
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0)
+                    throw new SocketTimeoutException("Read timed out");
+                await(left);
+            }
+
+            if (count == 0)
+                return -1;
+
+            int n = Math.min(len, Math.min(count, buffer.length - readPosition));
+
+            System.arraycopy(buffer, readPosition, b, off, n);
+            readPosition = (readPosition + n) % buffer.length;
+            count -= n;
+            notifyAll();
+            return n;
+        }
+
+        private synchronized void setReadTimeout(int timeout) {
+            readTimeout = timeout;
+        }
+
+        private synchronized int available() {
+            return count;
+        }
+
+        private synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+
+        private synchronized boolean isClosed() {
+            return closed;
+        }
+
+        private void await() throws InterruptedIOException {
+            await(0);
+        }
+
+        private void await(long timeout) throws InterruptedIOException {
+            try {
+                wait(timeout);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package Protocols;
+
+import Messages.Message;
+
+import java.io.IOException;
+
+/**
+ * Connection driven by an event loop instead of a thread of its own, such as the connections
+ * accepted by the NIO front end: messages are queued and written when the connection is ready,
+ * and the messages received are handed to the connection handler
+ */
+public interface MessageChannel {
+
+    /**
+     * Queues a message, without waiting for it to be written
+     *
+     * @param message message to be sent
+     * @throws IOException if the connection is closed
+     */
+    void send(Message message) throws IOException;
+
+    /**
+     * Closes the connection once the queued messages are written
+     */
+    void close();
+
+    /**
+     * Closes the connection right away, dropping the queued messages
+     */
+    void abort();
+
+    /**
+     * @return messages queued and not yet written
+     */
+    int getQueued();
+
+    /**
+     * @return time, in milliseconds, since a queued message was last written, 0 if there is none queued
+     */
+    long getStalledFor();
+}
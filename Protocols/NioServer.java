@@ -0,0 +1,574 @@
+package Protocols;
+
+import Messages.Message;
+import Messages.MessageCodec;
+import Server.Server;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static Utilities.Constants.*;
+
+/**
+ * Non blocking TLS front end of a server
+ * A few event loops, each one a thread with a selector, read and write every accepted connection
+ * through an SSLEngine and split the bytes into message frames. Messages are handled on the shared dispatcher,
+ * so a connection only takes a thread while one of its messages is being handled
+ * Answers are queued on the connection and written by its event loop
+ */
+public class NioServer {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    /**
+     * Frame buffer kept by a connection between messages, at most this size
+     */
+    private static final int RETAINED_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Frames wrapped at once, and records written at once
+     */
+    private static final int MAX_GATHERED_FRAMES = 64;
+    private static final int OUTBOUND_RECORDS = 4;
+
+    private final Server server;
+    private final ServerSocketChannel serverChannel;
+    private final SSLContext sslContext;
+    private final EventLoop[] loops;
+    private int nextLoop = 0;
+    private volatile boolean closed = false;
+
+    /**
+     * Binds the server port and starts the event loops
+     *
+     * @param port   server port
+     * @param server server handling the messages
+     * @throws IOException if the port is in use or TLS is not configured
+     */
+    public NioServer(int port, Server server) throws IOException {
+        this.server = server;
+
+        try {
+            sslContext = SSLContext.getDefault();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("TLS is not available", e);
+        }
+
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+
+        loops = new EventLoop[NIO_IO_THREADS];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop();
+            Thread thread = new Thread(loops[i], "nio-loop-" + port + "-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Accepts connections until the server is closed, spreading them over the event loops
+     */
+    public void run() {
+        while (!closed) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+                SSLEngine engine = sslContext.createSSLEngine();
+                engine.setUseClientMode(false);
+                engine.setNeedClientAuth(true);
+                engine.setEnabledCipherSuites(engine.getSupportedCipherSuites());
+
+                EventLoop loop = loops[nextLoop++ % loops.length];
+                NioConnection connection = new NioConnection(channel, engine, loop);
+                loop.execute(connection::register);
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                if (closed)
+                    return;
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public void close() {
+        closed = true;
+
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            System.out.println("Failed to close server channel");
+        }
+
+        for (EventLoop loop : loops)
+            loop.selector.wakeup();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Thread waiting on a selector for its connections to be readable or writable
+     * Other threads hand it work through execute, since only this thread touches its connections
+     */
+    private class EventLoop implements Runnable {
+
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        private EventLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        private void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (!closed) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    break;
+                }
+
+                Runnable task;
+                while ((task = tasks.poll()) != null)
+                    task.run();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    NioConnection connection = (NioConnection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable())
+                            connection.read();
+                        if (key.isValid() && key.isWritable())
+                            connection.flush();
+                    } catch (IOException e) {
+                        connection.terminate();
+                    }
+                }
+            }
+
+            for (SelectionKey key : selector.keys())
+                ((NioConnection) key.attachment()).terminate();
+
+            try {
+                selector.close();
+            } catch (IOException e) {
+                System.out.println("Failed to close selector");
+            }
+        }
+    }
+
+    /**
+     * One accepted connection: TLS records in and out of the SSLEngine, and message frames in and out of the records
+     * Buffers are kept ready to be written into, and only touched by the event loop
+     */
+    private class NioConnection implements MessageChannel {
+
+        private final SocketChannel channel;
+        private final SSLEngine engine;
+        private final EventLoop loop;
+        private final ServerConnection connection;
+        private SelectionKey key;
+
+        private ByteBuffer netIn;
+        private ByteBuffer appIn;
+        private ByteBuffer netOut;
+
+        /**
+         * Frames waiting to be written, the first one possibly already partly written
+         */
+        private final ConcurrentLinkedQueue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+        private final MessageCodec codec = new MessageCodec();
+        private final AtomicInteger queued = new AtomicInteger();
+        private volatile long lastWritten = System.currentTimeMillis();
+        private final ByteBuffer[] gathered = new ByteBuffer[MAX_GATHERED_FRAMES];
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        private boolean tasksRunning = false;
+
+        /**
+         * Set while the connection has too many received messages waiting, so nothing is read until they are handled
+         */
+        private boolean paused = false;
+        private volatile boolean closing = false;
+        private volatile boolean closed = false;
+
+        private NioConnection(SocketChannel channel, SSLEngine engine, EventLoop loop) {
+            this.channel = channel;
+            this.engine = engine;
+            this.loop = loop;
+            this.connection = new ServerConnection(this, server);
+            connection.setOnDrained(() -> loop.execute(this::resume));
+
+            netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+            appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+            netOut = ByteBuffer.allocate(OUTBOUND_RECORDS * engine.getSession().getPacketBufferSize());
+        }
+
+        private void register() {
+            try {
+                key = channel.register(loop.selector, SelectionKey.OP_READ, this);
+                engine.beginHandshake();
+            } catch (IOException e) {
+                terminate();
+            }
+        }
+
+        @Override
+        public void send(Message message) throws IOException {
+            if (closing)
+                throw new IOException("Connection closed");
+
+            ByteBuffer frame = codec.encodeFrame(message);
+            if (queued.getAndIncrement() == 0)
+                lastWritten = System.currentTimeMillis();
+            outbound.add(frame);
+            scheduleFlush();
+        }
+
+        @Override
+        public void close() {
+            closing = true;
+            scheduleFlush();
+        }
+
+        @Override
+        public void abort() {
+            closing = true;
+            loop.execute(this::terminate);
+        }
+
+        @Override
+        public int getQueued() {
+            return queued.get();
+        }
+
+        @Override
+        public long getStalledFor() {
+            return queued.get() == 0 ? 0 : System.currentTimeMillis() - lastWritten;
+        }
+
+        private void scheduleFlush() {
+            if (flushScheduled.compareAndSet(false, true))
+                loop.execute(() -> {
+                    flushScheduled.set(false);
+                    try {
+                        flush();
+                    } catch (IOException e) {
+                        terminate();
+                    }
+                });
+        }
+
+        /**
+         * Reads the records available and unwraps them
+         */
+        private void read() throws IOException {
+            if (paused)
+                return;
+
+            netIn = ensureRemaining(netIn, engine.getSession().getPacketBufferSize());
+
+            if (channel.read(netIn) < 0) {
+                terminate();
+                return;
+            }
+
+            unwrap();
+        }
+
+        private void unwrap() throws IOException {
+            netIn.flip();
+
+            try {
+                while (netIn.hasRemaining() && !tasksRunning && !paused && !closed) {
+                    SSLEngineResult result = engine.unwrap(netIn, appIn);
+
+                    switch (result.getStatus()) {
+                        case BUFFER_OVERFLOW:
+                            appIn = ensureRemaining(appIn, engine.getSession().getApplicationBufferSize());
+                            continue;
+                        case BUFFER_UNDERFLOW:
+                            return;
+                        case CLOSED:
+                            terminate();
+                            return;
+                        default:
+                            break;
+                    }
+
+                    if (result.bytesProduced() > 0)
+                        readFrames();
+
+                    if (!handshake(result.getHandshakeStatus()))
+                        return;
+                }
+            } finally {
+                netIn.compact();
+            }
+        }
+
+        /**
+         * Advances the handshake
+         *
+         * @return false if it waits for delegated tasks, so nothing else can be unwrapped for now
+         */
+        private boolean handshake(SSLEngineResult.HandshakeStatus status) throws IOException {
+            switch (status) {
+                case NEED_TASK:
+                    tasksRunning = true;
+                    Dispatcher.getShared().execute(() -> {
+                        Runnable task;
+                        while ((task = engine.getDelegatedTask()) != null)
+                            task.run();
+
+                        loop.execute(() -> {
+                            tasksRunning = false;
+                            try {
+                                flush();
+                                unwrap();
+                            } catch (IOException e) {
+                                terminate();
+                            }
+                        });
+                    });
+                    return false;
+                case NEED_WRAP:
+                case FINISHED:
+                    flush();
+                    return true;
+                default:
+                    return true;
+            }
+        }
+
+        /**
+         * Splits the unwrapped bytes into frames and hands their messages to the connection, to be handled in order
+         */
+        private void readFrames() throws IOException {
+            appIn.flip();
+
+            while (appIn.remaining() >= 4 && !paused) {
+                int header = appIn.getInt(appIn.position());
+                int length = MessageCodec.frameLength(header);
+
+                if (appIn.remaining() < 4 + length) {
+                    int missing = 4 + length - appIn.remaining();
+                    appIn.compact();
+                    appIn = ensureRemaining(appIn, missing);
+                    return;
+                }
+
+                appIn.position(appIn.position() + 4);
+                byte[] frame = new byte[length];
+                appIn.get(frame);
+
+                Message message = codec.decodeFrame(header, frame);
+
+                //the other end offers to compress: answer with what this end can do, frames are compressed from now on
+                if (HELLO.equals(message.getMessageType())) {
+                    codec.acceptHello(message);
+                    send(MessageCodec.hello());
+                    continue;
+                }
+
+                connection.receive(message);
+                if (connection.isSaturated())
+                    pause();
+            }
+
+            appIn.compact();
+
+            //drop the room a large frame needed once it was read
+            if (appIn.position() == 0 && appIn.capacity() > RETAINED_BUFFER_SIZE)
+                appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+        }
+
+        /**
+         * Stops reading from the socket, the frames and records already read wait here
+         */
+        private void pause() {
+            paused = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+
+        /**
+         * Hands the frames already read to the connection and reads again, once it handled enough of its messages
+         */
+        private void resume() {
+            if (closed || !paused || connection.isSaturated())
+                return;
+
+            paused = false;
+            try {
+                readFrames();
+                if (paused)
+                    return;
+
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                if (!tasksRunning)
+                    unwrap();
+            } catch (IOException e) {
+                terminate();
+            }
+        }
+
+        /**
+         * Wraps queued frames, or handshake data, and writes the records, until the socket is full or there is
+         * nothing left to write
+         * Frames are wrapped together, so small messages share a TLS record, and records are written a few at a time
+         */
+        private void flush() throws IOException {
+            if (closed || tasksRunning)
+                return;
+
+            while (true) {
+                boolean room = netOut.remaining() >= engine.getSession().getPacketBufferSize();
+                SSLEngineResult result = room ? wrap() : null;
+
+                if (result != null) {
+                    switch (result.getStatus()) {
+                        case BUFFER_OVERFLOW:
+                            netOut = ensureRemaining(netOut, engine.getSession().getPacketBufferSize());
+                            continue;
+                        case CLOSED:
+                            terminate();
+                            return;
+                        default:
+                            break;
+                    }
+
+                    //keep wrapping while there is room for another record
+                    if (result.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NEED_TASK)
+                        continue;
+                }
+
+                netOut.flip();
+                channel.write(netOut);
+                boolean drained = !netOut.hasRemaining();
+                netOut.compact();
+
+                if (result != null) {
+                    handshake(SSLEngineResult.HandshakeStatus.NEED_TASK);
+                    return;
+                }
+
+                if (!drained) {
+                    key.interestOps((paused ? 0 : SelectionKey.OP_READ) | SelectionKey.OP_WRITE);
+                    return;
+                }
+
+                //nothing left to wrap, rather than no room for it
+                if (room) {
+                    key.interestOps(paused ? 0 : SelectionKey.OP_READ);
+                    if (closing && outbound.isEmpty())
+                        terminate();
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Wraps handshake data, or as many queued frames as fit in a record
+         *
+         * @return result, or null if there is nothing to wrap for now
+         */
+        private SSLEngineResult wrap() throws SSLException {
+            SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+
+            if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP)
+                return engine.wrap(EMPTY, netOut);
+            if (status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING)
+                return null;
+
+            int count = 0;
+            for (ByteBuffer frame : outbound) {
+                gathered[count++] = frame;
+                if (count == gathered.length)
+                    break;
+            }
+
+            if (count == 0)
+                return null;
+
+            SSLEngineResult result = engine.wrap(gathered, 0, count, netOut);
+
+            //frames are consumed in order, the ones written whole leave the queue
+            for (int i = 0; i < count && !gathered[i].hasRemaining(); i++) {
+                outbound.poll();
+                queued.decrementAndGet();
+                lastWritten = System.currentTimeMillis();
+            }
+            Arrays.fill(gathered, 0, count, null);
+            connection.signalRoom();
+
+            return result;
+        }
+
+        private void terminate() {
+            if (closed)
+                return;
+
+            closed = true;
+            closing = true;
+            outbound.clear();
+            queued.set(0);
+            connection.signalRoom();
+
+            if (key != null)
+                key.cancel();
+
+            try {
+                engine.closeOutbound();
+                channel.close();
+            } catch (IOException e) {
+                System.out.println("Failed to close connection");
+            }
+
+            System.out.println("Server closed Connection");
+            connection.stopTasks();
+        }
+    }
+
+    /**
+     * @return the buffer, or a larger copy of it, with room for at least size more bytes
+     */
+    private static ByteBuffer ensureRemaining(ByteBuffer buffer, int size) {
+        if (buffer.remaining() >= size)
+            return buffer;
+
+        ByteBuffer larger = ByteBuffer.allocate(buffer.position() + size);
+        buffer.flip();
+        larger.put(buffer);
+        return larger;
+    }
+}
@@ -0,0 +1,333 @@
+package Protocols;
+
+import Chat.Chat;
+import Chat.ChatMessage;
+import Messages.Message;
+import Messages.MessageCodec;
+import Server.ChatHistory;
+import Server.Node;
+import Server.Server;
+import Server.User;
+import Utilities.RingIdentifier;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static Utilities.Constants.*;
+
+/**
+ * Streams the users of a key range (from, target] to the node that took it over
+ * Users go in batches, with up to TRANSFER_WINDOW batches waiting for an ack, and only leave
+ * the container once acked, so a transfer interrupted by a dropped connection is resumed
+ * by scanning the container again for the users not acked yet
+ * A user replaced on the container while its batch was in flight is sent once more with its newer copy, then leaves
+ * the container whatever it holds, so every user is sent at most twice and the transfer ends
+ * Batches are cut at TRANSFER_BATCH_SIZE users or TRANSFER_BATCH_BYTES of chat messages, and the chat history of
+ * their users goes before them, read from disk in messages of TRANSFER_HISTORY_BYTES, so neither the frames nor the
+ * heap grow with the history of the users
+ */
+public class RangeTransfer {
+
+    private static final AtomicLong nextTransferId = new AtomicLong();
+
+    private final Server server;
+    private final Node target;
+    private final RingIdentifier from;
+    private final ConcurrentHashMap<BigInteger, User> container;
+
+    /**
+     * ADD_USER or BACKUP_USER, where the target stores the users
+     */
+    private final String type;
+    private final long transferId = nextTransferId.incrementAndGet();
+
+    /**
+     * Batches sent and not acked yet, by sequence number
+     */
+    private final HashMap<Integer, ArrayList<User>> inFlight = new HashMap<>();
+
+    /**
+     * Users that left the container, and users sent once more as they were replaced while in flight
+     */
+    private final HashSet<BigInteger> acked = new HashSet<>();
+    private final HashSet<BigInteger> replaced = new HashSet<>();
+    private int nextSequence = 0;
+    private long usersAcked = 0;
+    private long batchesAcked = 0;
+    private long startTime;
+
+    public RangeTransfer(Server server, Node target, RingIdentifier from, ConcurrentHashMap<BigInteger, User> container, String type) {
+        this.server = server;
+        this.target = target;
+        this.from = from;
+        this.container = container;
+        this.type = type;
+    }
+
+    /**
+     * Runs the transfer, reconnecting and resuming it up to TRANSFER_RETRIES times, each one waiting longer
+     *
+     * @return true if every user of the range was acked by the target
+     */
+    public boolean run() {
+
+        startTime = System.currentTimeMillis();
+        boolean reached = false;
+
+        for (int attempt = 0; attempt <= TRANSFER_RETRIES; attempt++) {
+            if (attempt > 0 && !waitBeforeRetry(attempt))
+                break;
+
+            ServerConnection handler = new ServerConnection(target.getNodeIp(), target.getNodePort(), server);
+
+            try {
+                handler.connect();
+            } catch (IOException e) {
+                System.out.println("Range transfer " + transferId + ": could not connect to " + target.getNodeId());
+                continue;
+            }
+            reached = true;
+
+            try {
+                while (stream(handler) > 0)
+                    ;
+                report("finished");
+                return true;
+            } catch (MessageCodec.FrameTooLargeException e) {
+                System.out.println("Range transfer " + transferId + ": " + e.getMessage());
+                break;
+            } catch (IOException | ClassNotFoundException e) {
+                System.out.println("Range transfer " + transferId + ": connection dropped, resuming");
+                inFlight.clear();
+            } finally {
+                handler.closeConnection();
+            }
+        }
+
+        report("aborted");
+
+        //a node that took connections and failed the transfer is up, and the users stay here
+        if (!reached)
+            server.serverDown(target);
+        return false;
+    }
+
+    /**
+     * Sends every user of the range still on the container and waits for all acks
+     *
+     * @return number of users sent
+     */
+    private int stream(ServerConnection handler) throws IOException, ClassNotFoundException {
+
+        int sent = 0;
+        ArrayList<User> batch = new ArrayList<>(TRANSFER_BATCH_SIZE);
+        long bytes = 0;
+
+        for (User user : container.values()) {
+            if (acked.contains(user.getUserId()) || !RingIdentifier.fromHash(user.getUserId()).isBetween(from, target.getNodeId()))
+                continue;
+
+            long userBytes = estimateBytes(user);
+            if (!batch.isEmpty() && bytes + userBytes > TRANSFER_BATCH_BYTES) {
+                send(handler, batch);
+                sent += batch.size();
+                batch = new ArrayList<>(TRANSFER_BATCH_SIZE);
+                bytes = 0;
+            }
+
+            batch.add(user);
+            bytes += userBytes;
+            if (batch.size() == TRANSFER_BATCH_SIZE) {
+                send(handler, batch);
+                sent += batch.size();
+                batch = new ArrayList<>(TRANSFER_BATCH_SIZE);
+                bytes = 0;
+            }
+        }
+
+        if (!batch.isEmpty()) {
+            send(handler, batch);
+            sent += batch.size();
+        }
+
+        while (!inFlight.isEmpty())
+            receiveAck(handler);
+
+        return sent;
+    }
+
+    /**
+     * Sends the chat history of the users of a batch, then the batch
+     * Message: [TRANSFER_BATCH] [SenderID] [TransferID] [Sequence] [Type] users
+     */
+    private void send(ServerConnection handler, ArrayList<User> batch) throws IOException, ClassNotFoundException {
+
+        //the users carry the chat messages after the history sent, including those moved to it meanwhile
+        ArrayList<User> users = new ArrayList<>(batch.size());
+        for (User user : batch) {
+            HashMap<BigInteger, Long> sentHistory = new HashMap<>();
+            for (Chat chat : user.getChats().values())
+                sentHistory.put(chat.getIdChat(), sendHistory(handler, user.getUserId(), chat));
+            users.add(server.getHistory().restore(user, sentHistory));
+        }
+
+        send(handler, new Message(TRANSFER_BATCH, server.getNodeId().toBigInteger(), RESPONSIBLE, users), batch, type);
+    }
+
+    /**
+     * Sends the chat history of a chat of a user, in messages of about TRANSFER_HISTORY_BYTES
+     * Message: [TRANSFER_HISTORY] [SenderID] [TransferID] [Sequence] [UserID] [ChatID] [First] chat messages
+     *
+     * @return sequence number after the last chat message sent
+     */
+    private long sendHistory(ServerConnection handler, BigInteger userId, Chat chat) throws IOException, ClassNotFoundException {
+
+        ChatHistory history = server.getHistory();
+        long end = chat.getFirstMessage();
+        long next = history.getStart(userId, chat.getIdChat(), end);
+        long first = next;
+
+        ArrayList<ChatMessage> chunk = new ArrayList<>();
+        long bytes = 0;
+
+        while (next < end) {
+            List<ChatMessage> read = history.read(userId, chat.getIdChat(), next, Math.min(end, next + HISTORY_TAIL));
+            if (read.isEmpty())
+                break;
+
+            for (ChatMessage chatMessage : read) {
+                chunk.add(chatMessage);
+                bytes += estimateBytes(chatMessage);
+
+                if (bytes >= TRANSFER_HISTORY_BYTES) {
+                    sendHistory(handler, userId, chat.getIdChat(), first, chunk);
+                    first += chunk.size();
+                    chunk = new ArrayList<>();
+                    bytes = 0;
+                }
+            }
+            next += read.size();
+        }
+
+        if (!chunk.isEmpty())
+            sendHistory(handler, userId, chat.getIdChat(), first, chunk);
+
+        return next;
+    }
+
+    private void sendHistory(ServerConnection handler, BigInteger userId, BigInteger chatId, long first, ArrayList<ChatMessage> chunk) throws IOException, ClassNotFoundException {
+        Message message = new Message(TRANSFER_HISTORY, server.getNodeId().toBigInteger(), RESPONSIBLE, chunk);
+        send(handler, message, new ArrayList<>(), userId.toString(), chatId.toString(), Long.toString(first));
+    }
+
+    /**
+     * Sends a message of the transfer, first waiting for acks while the window is full
+     *
+     * @param batch     users that leave the container once the message is acked
+     * @param arguments arguments after the transfer id and the sequence number
+     */
+    private void send(ServerConnection handler, Message message, ArrayList<User> batch, String... arguments) throws IOException, ClassNotFoundException {
+
+        while (inFlight.size() >= TRANSFER_WINDOW)
+            receiveAck(handler);
+
+        int sequence = nextSequence++;
+        String[] body = new String[arguments.length + 2];
+        body[0] = Long.toString(transferId);
+        body[1] = Integer.toString(sequence);
+        System.arraycopy(arguments, 0, body, 2, arguments.length);
+        message.setArguments(body);
+
+        inFlight.put(sequence, batch);
+        handler.sendOrThrow(message);
+    }
+
+    /**
+     * @return rough size of the chat messages a user carries, its chat history left out
+     */
+    private static long estimateBytes(User user) {
+        long bytes = 0;
+        for (Chat chat : user.getChats().values()) {
+            synchronized (chat) {
+                for (ChatMessage chatMessage : chat.getChatMessages())
+                    bytes += estimateBytes(chatMessage);
+                for (ChatMessage chatMessage : chat.getChatPendingMessages())
+                    bytes += estimateBytes(chatMessage);
+            }
+        }
+        return bytes;
+    }
+
+    private static long estimateBytes(ChatMessage chatMessage) {
+        byte[] content = chatMessage.getContent();
+        return 128 + (content == null ? 0 : content.length);
+    }
+
+    /**
+     * Waits for an ack and removes the users of that batch from the container
+     * Message: [TRANSFER_ACK] [SenderID] [TransferID] [Sequence]
+     */
+    private void receiveAck(ServerConnection handler) throws IOException, ClassNotFoundException {
+
+        Message ack = handler.receiveMessage();
+        if (ack.getMessageType().equals(SERVER_ERROR))
+            throw new IOException("Range transfer " + transferId + ": target failed to store part " + ack.getArguments()[1]);
+        if (!ack.getMessageType().equals(TRANSFER_ACK))
+            return;
+
+        ArrayList<User> batch = inFlight.remove(Integer.parseInt(ack.getArguments()[1]));
+        if (batch == null)
+            return;
+
+        for (User user : batch) {
+            BigInteger userId = user.getUserId();
+
+            boolean removed = container.remove(userId, user) || replaced.contains(userId) && container.remove(userId) != null;
+            if (!removed && container.containsKey(userId)) {
+                replaced.add(userId);
+                continue;
+            }
+
+            acked.add(userId);
+            if (removed) {
+                if (server.getStore() != null)
+                    server.getStore().deleteUser(type, userId);
+                server.dropHistory(userId);
+            }
+            if (type.equals(ADD_USER))
+                server.moveLoggedInUser(userId, target);
+        }
+
+        usersAcked += batch.size();
+        batchesAcked++;
+
+        if (batchesAcked % TRANSFER_WINDOW == 0)
+            report("in progress");
+    }
+
+    /**
+     * @return false if the thread was interrupted while waiting
+     */
+    private boolean waitBeforeRetry(int attempt) {
+        try {
+            Thread.sleep(TRANSFER_RETRY_DELAY * attempt);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void report(String state) {
+        long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+
+        System.out.println("Range transfer " + transferId + " (" + type + ") to " + target.getNodeId() + " " + state + ": "
+                + usersAcked + " users in " + batchesAcked + " batches, " + (usersAcked * 1000 / elapsed) + " users/s");
+    }
+}
@@ -0,0 +1,156 @@
+package Protocols;
+
+import Server.Node;
+import Utilities.RingIdentifier;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded LRU cache of ring key ranges (from, to] and the node that owns them
+ * Ranges are learned from lookups. A new node may split any of them, so they are all dropped when one is learned,
+ * while a server that fails only takes the ranges it owned to its successors
+ */
+public class RouteCache {
+
+    private final int capacity;
+
+    /**
+     * Routes indexed by the end of their range, to find the range of a key
+     */
+    private final TreeMap<RingIdentifier, Route> routes = new TreeMap<>();
+
+    /**
+     * Same routes in access order, to evict the least recently used one
+     */
+    private final LinkedHashMap<RingIdentifier, Route> recentlyUsed = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    public RouteCache(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Returns the cached owner of a key
+     *
+     * @param key ring identifier
+     * @return owner node, or null if no cached range contains the key
+     */
+    public synchronized Node get(RingIdentifier key) {
+
+        Route route = find(routes.ceilingEntry(key), key);
+        if (route == null)
+            route = find(routes.firstEntry(), key);
+
+        if (route == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        recentlyUsed.get(route.to);
+        hits.incrementAndGet();
+        return route.owner;
+    }
+
+    /**
+     * Caches the owner of the key range (from, owner]
+     *
+     * @param from  start of the range, exclusive
+     * @param owner node responsible for the range
+     */
+    public synchronized void put(RingIdentifier from, Node owner) {
+
+        if (capacity <= 0)
+            return;
+
+        Route route = new Route(from, owner);
+        routes.put(route.to, route);
+        recentlyUsed.put(route.to, route);
+
+        if (recentlyUsed.size() > capacity) {
+            Iterator<Map.Entry<RingIdentifier, Route>> eldest = recentlyUsed.entrySet().iterator();
+            routes.remove(eldest.next().getKey());
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Drops every cached route, used when the ring grows
+     */
+    public synchronized void invalidate() {
+
+        if (routes.isEmpty())
+            return;
+
+        routes.clear();
+        recentlyUsed.clear();
+        invalidations.incrementAndGet();
+    }
+
+    /**
+     * Drops the routes owned by a node that is down or by any other virtual node of its server,
+     * since they all fail together
+     *
+     * @param node node that is no longer reachable
+     */
+    public synchronized void invalidate(Node node) {
+        Iterator<Route> iterator = routes.values().iterator();
+
+        while (iterator.hasNext()) {
+            Route route = iterator.next();
+            if (route.owner.equals(node) || route.owner.isSameServer(node)) {
+                iterator.remove();
+                recentlyUsed.remove(route.to);
+                invalidations.incrementAndGet();
+            }
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    public synchronized int size() {
+        return routes.size();
+    }
+
+    @Override
+    public String toString() {
+        return "routes: " + size() + " hits: " + getHits() + " misses: " + getMisses() + " invalidations: " + getInvalidations();
+    }
+
+    private Route find(Map.Entry<RingIdentifier, Route> entry, RingIdentifier key) {
+
+        if (entry == null || !key.isBetween(entry.getValue().from, entry.getValue().to))
+            return null;
+
+        return entry.getValue();
+    }
+
+    private static class Route {
+
+        private final RingIdentifier from;
+        private final RingIdentifier to;
+        private final Node owner;
+
+        private Route(RingIdentifier from, Node owner) {
+            this.from = from;
+            this.to = owner.getNodeId();
+            this.owner = owner;
+        }
+    }
+}
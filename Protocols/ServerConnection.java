@@ -4,10 +4,9 @@ import Messages.Message;
 import Server.Node;
 import Server.Server;
 import Server.User;
+import Utilities.RingIdentifier;
 
-import javax.net.ssl.SSLSocket;
 import java.io.IOException;
-import java.util.ArrayList;
 
 import static Utilities.Constants.*;
 
@@ -21,8 +20,14 @@ public class ServerConnection extends Connection implements Runnable {
         this.server = server;
     }
 
-    public ServerConnection(SSLSocket socket, Server server) {
-        super(socket);
+    public ServerConnection(Transport.Link link, Server server) {
+        super(link);
+
+        this.server = server;
+    }
+
+    public ServerConnection(MessageChannel channel, Server server) {
+        super(channel);
 
         this.server = server;
     }
@@ -40,7 +45,6 @@ public class ServerConnection extends Connection implements Runnable {
      * @param message message to be sent
      */
     public void sendMessage(Message message) {
-        System.out.println("\nSending message - Header: " + message.getMessageType() + " Body " + message.getBody());
         try {
             super.sendMessage(message);
         } catch (IOException e) {
@@ -49,17 +53,74 @@ public class ServerConnection extends Connection implements Runnable {
         }
     }
 
+    /**
+     * Sends a message, failing if the connection is down instead of logging it
+     *
+     * @param message message to be sent
+     * @throws IOException if the connection is down
+     */
+    public void sendOrThrow(Message message) throws IOException {
+        super.sendMessage(message);
+    }
+
+    /**
+     * Pushes a message to the client of this connection, without waiting on a client that reads slowly
+     *
+     * @param message message to be sent
+     * @return true if the message was queued, false if it was dropped, following the push overflow policy,
+     * or the client is disconnected
+     */
+    public boolean push(Message message) {
+        return Backpressure.getShared().push(this, message);
+    }
+
     /**
      * Receives a message
      *
      * @return message received
      */
     public Message receiveMessage() throws IOException, ClassNotFoundException {
-        Message message = super.receiveMessage();
+        return super.receiveMessage();
+    }
 
-        System.out.println("\nReceiving message - Header: " + message.getMessageType() + " Sender: " + Integer.remainderUnsigned(message.getSenderId().intValue(), 128) + " Body " + message.getBody());
+    /**
+     * Hands a message read by the event loop of the connection to the dispatcher
+     *
+     * @param message message received
+     */
+    public void receive(Message message) {
+        dispatch(message);
+    }
 
-        return message;
+    /**
+     * Hands a received message to the dispatcher
+     * Messages are handled one at a time and in order, except requests carrying an id: they are independent
+     * of each other, so they are handled concurrently and their answers, carrying the same id, may go out of order
+     *
+     * @param message message received
+     */
+    private void dispatch(Message message) {
+        if (message.getRequestId() == NO_REQUEST_ID) {
+            service.execute(() -> handleMessage(message));
+            return;
+        }
+
+        ServerConnection request = new ServerConnection(new Reply(message.getRequestId()), server);
+        service.executeConcurrently(() -> request.handleMessage(message));
+    }
+
+    /**
+     * @return true if this connection has too many received messages waiting, so it must stop reading
+     */
+    public boolean isSaturated() {
+        return service.isSaturated();
+    }
+
+    /**
+     * @param onDrained called, on a dispatcher thread, when this connection can read again
+     */
+    public void setOnDrained(Runnable onDrained) {
+        service.setOnDrained(onDrained);
     }
 
     /**
@@ -77,6 +138,7 @@ public class ServerConnection extends Connection implements Runnable {
      */
     public void handleMessage(Message message) {
         String[] body;
+        DistributedHashTable vnode;
 
         switch (message.getMessageType()) {
             case SIGNIN:
@@ -89,6 +151,8 @@ public class ServerConnection extends Connection implements Runnable {
                 server.isResponsible(this, message);
                 break;
             case GET_CHAT:
+            case GET_CHAT_PAGE:
+            case SYNC:
                 server.isResponsible(this, message);
                 break;
             case GET_ALL_CHATS:
@@ -111,44 +175,50 @@ public class ServerConnection extends Connection implements Runnable {
                 server.isResponsible(this, message);
                 break;
             case NEWNODE:
-                body = message.getBody().split(" ");
+                body = message.getArguments();
                 server.newNode(body);
                 server.getDht().printFingerTable();
-                closeConnection();
                 break;
             case PREDECESSOR:
-                Node temp = (Node) message.getObject();
-                server.getDht().setPredecessor(temp);
-                server.sendFingerTableToSuccessor();
-                server.getDht().printFingerTable();
-                closeConnection();
+                vnode = server.getDht(message.getReceiver());
+                if (vnode != null)
+                    server.updatePredecessor(vnode, (Node) message.getObject());
                 break;
-            case SUCCESSOR_FT:
-                ArrayList<Node> ft = (ArrayList<Node>) message.getObject();
-                server.getDht().updateFingerTableFromSuccessor(ft);
-                server.getDht().setPredecessor(ft.get(0));
-                server.getDht().printFingerTable();
-                closeConnection();
+            case GET_PREDECESSOR:
+                vnode = server.getDht(message.getReceiver());
+                sendMessage(new Message(PREDECESSOR_ANSWER, server.getNodeId().toBigInteger(), RESPONSIBLE, vnode == null ? null : server.getNeighbours(vnode)));
                 break;
             case BACKUP_USER:
                 sendMessage(server.backupInfo(message));
-                closeConnection();
                 break;
             case ADD_USER:
                 sendMessage(server.addUser((User) message.getObject()));
                 break;
+            case TRANSFER_BATCH:
+                sendMessage(server.receiveTransferBatch(message));
+                break;
+            case TRANSFER_HISTORY:
+                sendMessage(server.receiveTransferHistory(message));
+                break;
             case USER_UPDATED_CONNECTION:
                 System.out.println("\nEntrei\n");
                 server.saveConnection(this, message.getSenderId());
                 break;
             case SERVER_SUCCESS:
-                body = message.getBody().split(" ");
+                body = message.getArguments();
                 server.printReturnCodes(body[0], message.getSenderId());
                 break;
             case SERVER_DOWN:
-                body = message.getBody().split(" ");
+                body = message.getArguments();
                 System.out.println("Server " + body[0] + " is down.");
-                server.handleNodeFailure(Integer.parseInt(body[0]), message);
+                server.handleNodeFailure(RingIdentifier.parse(body[0]), message);
+                break;
+            case PING:
+                sendMessage(new Message(PONG, server.getNodeId().toBigInteger(), RESPONSIBLE));
+                break;
+            case FIND_SUCCESSOR:
+                body = message.getArguments();
+                sendMessage(server.findSuccessor(RingIdentifier.parse(body[0])));
                 break;
             case FILE_TRANSACTION:
                 server.isResponsible(this, message);
@@ -181,17 +251,15 @@ public class ServerConnection extends Connection implements Runnable {
 
             try {
                 Message message = receiveMessage();
-
-                Runnable task = () -> {
-                    handleMessage(message);
-                };
-
-                service.execute(task);
+                dispatch(message);
+                service.awaitRoom();
             } catch (IOException e) {
                 System.out.println("Server closed Connection");
+                service.shutdown();
                 return;
             } catch (ClassNotFoundException e) {
                 System.out.println("Server closed Connection");
+                service.shutdown();
                 return;
             }
 
@@ -199,6 +267,44 @@ public class ServerConnection extends Connection implements Runnable {
 
     }
 
+    /**
+     * Answers of a request received with an id, written on this connection with the id of the request
+     * Closing it leaves this connection open, as other requests share it
+     */
+    private class Reply implements MessageChannel {
+
+        private final long requestId;
+
+        private Reply(long requestId) {
+            this.requestId = requestId;
+        }
+
+        @Override
+        public void send(Message message) throws IOException {
+            message.setRequestId(requestId);
+            ServerConnection.super.sendMessage(message);
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void abort() {
+            ServerConnection.this.abort();
+        }
+
+        @Override
+        public int getQueued() {
+            return ServerConnection.this.getQueued();
+        }
+
+        @Override
+        public long getStalledFor() {
+            return ServerConnection.this.getStalledFor();
+        }
+    }
+
     public Server getServer() {
         return server;
     }
@@ -0,0 +1,92 @@
+package Protocols;
+
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Transport over TLS sockets, configured with the javax.net.ssl key and trust store properties
+ * Servers require clients to authenticate
+ */
+public class SslTransport extends Transport {
+
+    @Override
+    public Link connect(String ip, int port) throws IOException {
+        SSLSocketFactory sslSocketFactory = (SSLSocketFactory) SSLSocketFactory.getDefault();
+        SSLSocket sslSocket = (SSLSocket) sslSocketFactory.createSocket(ip, port);
+        sslSocket.setEnabledCipherSuites(sslSocket.getSupportedCipherSuites());
+
+        return new SocketLink(sslSocket);
+    }
+
+    @Override
+    public Listener listen(String ip, int port) throws IOException {
+        SSLServerSocketFactory sslServerSocketFactory = (SSLServerSocketFactory) SSLServerSocketFactory.getDefault();
+        SSLServerSocket sslServerSocket = (SSLServerSocket) sslServerSocketFactory.createServerSocket(port);
+        sslServerSocket.setEnabledCipherSuites(sslServerSocket.getSupportedCipherSuites());
+        sslServerSocket.setNeedClientAuth(true);
+
+        return new SocketListener(sslServerSocket);
+    }
+
+    private static class SocketLink implements Link {
+
+        private final SSLSocket sslSocket;
+
+        private SocketLink(SSLSocket sslSocket) {
+            this.sslSocket = sslSocket;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return sslSocket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return sslSocket.getOutputStream();
+        }
+
+        @Override
+        public void setReadTimeout(int timeout) throws IOException {
+            sslSocket.setSoTimeout(timeout);
+        }
+
+        @Override
+        public void close() throws IOException {
+            sslSocket.close();
+        }
+    }
+
+    private static class SocketListener implements Listener {
+
+        private final SSLServerSocket sslServerSocket;
+
+        private SocketListener(SSLServerSocket sslServerSocket) {
+            this.sslServerSocket = sslServerSocket;
+        }
+
+        @Override
+        public Link accept() throws IOException {
+            return new SocketLink((SSLSocket) sslServerSocket.accept());
+        }
+
+        @Override
+        public void close() {
+            try {
+                sslServerSocket.close();
+            } catch (IOException e) {
+                System.out.println("Failed to close sslServerSocket");
+            }
+        }
+
+        @Override
+        public boolean isClosed() {
+            return sslServerSocket.isClosed();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package Protocols;
+
+import Server.Node;
+import Server.Server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static Utilities.Constants.*;
+
+/**
+ * Keeps the ring converging in the background: stabilize checks that the successor
+ * is still the closest node after a virtual node and notifies it, while fix fingers
+ * refreshes one finger table entry at a time with a lookup
+ * There is one stabilizer per virtual node, all sharing the server stabilization scheduler, apart from its local sweeps
+ */
+public class Stabilizer {
+
+    private Server server;
+    private DistributedHashTable dht;
+    private ScheduledExecutorService scheduler;
+    private List<ScheduledFuture<?>> tasks = new ArrayList<>();
+
+    /**
+     * Next finger to be fixed, from 1 to m
+     */
+    private int nextFinger = 0;
+
+    public Stabilizer(Server server, DistributedHashTable dht, ScheduledExecutorService scheduler) {
+        this.server = server;
+        this.dht = dht;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Schedules the stabilize and fix fingers tasks
+     */
+    public void start() {
+        tasks.add(scheduler.scheduleWithFixedDelay(this::runStabilize, STABILIZE_INTERVAL, STABILIZE_INTERVAL, TimeUnit.MILLISECONDS));
+        tasks.add(scheduler.scheduleWithFixedDelay(this::runFixFingers, FIX_FINGERS_INTERVAL, FIX_FINGERS_INTERVAL, TimeUnit.MILLISECONDS));
+    }
+
+    public void stop() {
+        for (ScheduledFuture<?> task : tasks)
+            task.cancel(true);
+        tasks.clear();
+    }
+
+    /**
+     * Asks the successor for its predecessor and successor list, adopts the predecessor
+     * as successor if it is between both nodes, refreshes the successor list and
+     * notifies the successor that this virtual node may be its predecessor
+     */
+    public void stabilize() {
+
+        Node successor = dht.getSuccessor();
+        Node candidate;
+        List<Node> successorSuccessors = new ArrayList<>();
+
+        if (successor == null) {
+            candidate = dht.getPredecessor();
+        } else {
+            ArrayList<Node> neighbours = server.requestNeighbours(successor);
+            if (neighbours == null)
+                return;
+            candidate = neighbours.get(0);
+            successorSuccessors = neighbours.subList(1, neighbours.size());
+        }
+
+        Node self = dht.getNode();
+        boolean changed = false;
+        if (!candidate.equals(self) && (successor == null || candidate.getNodeId().isStrictlyBetween(self.getNodeId(), successor.getNodeId()))) {
+            changed = dht.updateFingerTable(candidate);
+            if (successor != null)
+                successorSuccessors = Collections.singletonList(successor);
+            successor = candidate;
+            System.out.println("Stabilize: new successor " + successor.getNodeId());
+        }
+
+        if (successor != null)
+            dht.updateSuccessorList(successor, successorSuccessors);
+
+        if (changed)
+            server.getRouteCache().invalidate();
+
+        if (successor != null)
+            server.notifyNodeOfItsPredecessor(successor, self);
+    }
+
+    /**
+     * Looks up the successor of the next finger start and updates that finger,
+     * together with the following fingers whose start falls before the same node
+     */
+    public void fixFingers() {
+
+        nextFinger = nextFinger % MAX_FINGER_TABLE_SIZE + 1;
+
+        Node owner = server.lookUpOwner(dht.fingerStart(nextFinger));
+        if (owner == null)
+            return;
+
+        boolean changed = false;
+
+        do {
+            changed |= dht.setFinger(nextFinger, owner);
+            nextFinger++;
+        } while (nextFinger <= MAX_FINGER_TABLE_SIZE && dht.fingerStart(nextFinger).isBetween(dht.getNode().getNodeId(), owner.getNodeId()));
+
+        nextFinger--;
+
+        if (changed) {
+            server.getRouteCache().invalidate();
+            dht.printFingerTable();
+        }
+    }
+
+    private void runStabilize() {
+        try {
+            stabilize();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void runFixFingers() {
+        try {
+            fixFingers();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
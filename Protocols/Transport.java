@@ -0,0 +1,82 @@
+package Protocols;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Byte stream connections between nodes
+ * Servers and clients use TLS sockets by default, the simulator replaces them with in-memory pipes
+ */
+public abstract class Transport {
+
+    private static volatile Transport defaultTransport = new SslTransport();
+
+    public static Transport getDefault() {
+        return defaultTransport;
+    }
+
+    /**
+     * Replaces the transport used by every connection and server created afterwards
+     *
+     * @param transport new default transport
+     */
+    public static void setDefault(Transport transport) {
+        defaultTransport = transport;
+    }
+
+    /**
+     * Opens a connection to a server
+     *
+     * @param ip   server ip
+     * @param port server port
+     * @return open connection
+     * @throws IOException if the server is not reachable
+     */
+    public abstract Link connect(String ip, int port) throws IOException;
+
+    /**
+     * Starts accepting connections on an address
+     *
+     * @param ip   server ip
+     * @param port server port
+     * @return listener of the address
+     * @throws IOException if the address is already in use
+     */
+    public abstract Listener listen(String ip, int port) throws IOException;
+
+    /**
+     * Open connection, a pair of byte streams
+     */
+    public interface Link {
+
+        InputStream getInputStream() throws IOException;
+
+        OutputStream getOutputStream() throws IOException;
+
+        /**
+         * @param timeout time, in milliseconds, a read waits for data before failing with a
+         *                SocketTimeoutException, 0 to wait for as long as it takes
+         */
+        void setReadTimeout(int timeout) throws IOException;
+
+        void close() throws IOException;
+    }
+
+    /**
+     * Address accepting connections
+     */
+    public interface Listener {
+
+        /**
+         * Waits for the next connection
+         *
+         * @throws IOException if the listener is closed
+         */
+        Link accept() throws IOException;
+
+        void close();
+
+        boolean isClosed();
+    }
+}
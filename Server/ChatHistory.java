@@ -0,0 +1,287 @@
+package Server;
+
+import Chat.Chat;
+import Chat.ChatMessage;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static Utilities.Constants.HISTORY_TAIL;
+
+/**
+ * Chat messages moved out of the chats of the users of a server, on a ChatLog per chat of each user, on
+ * <directory>/<userId>/<chatId>
+ * Chats keep their last HISTORY_TAIL chat messages: once one holds twice that, the older ones are appended to the
+ * chat history and dropped from the chat, so the memory a chat takes does not grow with its chat messages
+ */
+public class ChatHistory {
+
+    private final File directory;
+    private final ConcurrentHashMap<String, ChatLog> logs = new ConcurrentHashMap<>();
+
+    private final AtomicLong moved = new AtomicLong();
+    private final AtomicLong read = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * @param directory directory of the chat histories
+     */
+    public ChatHistory(String directory) {
+        this.directory = new File(directory);
+        this.directory.mkdirs();
+    }
+
+    /**
+     * Moves the oldest chat messages of a chat to the chat history of every user holding it, once it holds
+     * 2 * HISTORY_TAIL chat messages
+     * If they could not be written, they stay on the chat
+     *
+     * @param chat    chat
+     * @param userIds users of this server holding that chat
+     */
+    public void trim(Chat chat, Collection<BigInteger> userIds) {
+        synchronized (chat) {
+            int count = chat.getChatMessages().size() - HISTORY_TAIL;
+            if (count < HISTORY_TAIL)
+                return;
+
+            ChatMessage[] oldest = chat.getChatMessages().subList(0, count).toArray(new ChatMessage[0]);
+            try {
+                for (BigInteger userId : userIds)
+                    getLog(userId, chat.getIdChat()).append(chat.getFirstMessage(), oldest);
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.out.println("Failed to move the messages of chat " + chat.getIdChat() + " to the chat history");
+                failed.incrementAndGet();
+                return;
+            }
+
+            chat.evictChatMessages(count);
+            moved.addAndGet(count);
+        }
+    }
+
+    /**
+     * Moves the oldest chat messages of every chat of a user to its chat history
+     *
+     * @param user user held by this server alone, such as a backup or a user handed over
+     */
+    public void trim(User user) {
+        for (Chat chat : user.getChats().values())
+            trim(chat, Collections.singletonList(user.getUserId()));
+    }
+
+    /**
+     * Keeps the chat messages a newer copy of a user no longer carries, as the backup of a user is replaced by
+     * its newer copy after every change, which only carries the last chat messages of each chat
+     *
+     * @param previous copy being replaced, or null
+     * @param next     newer copy
+     */
+    public void replace(User previous, User next) {
+        if (previous != null) {
+            for (Chat chat : next.getChats().values()) {
+                Chat old = previous.getChat(chat.getIdChat());
+                if (old == null)
+                    continue;
+
+                long first;
+                ChatMessage[] dropped;
+                synchronized (old) {
+                    first = old.getFirstMessage();
+                    int count = (int) Math.min(old.getChatMessages().size(), chat.getFirstMessage() - first);
+                    if (count <= 0)
+                        continue;
+                    dropped = old.getChatMessages().subList(0, count).toArray(new ChatMessage[0]);
+                }
+
+                try {
+                    getLog(next.getUserId(), chat.getIdChat()).append(first, dropped);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    System.out.println("Failed to keep the messages of chat " + chat.getIdChat() + " on the chat history");
+                    failed.incrementAndGet();
+                }
+            }
+        }
+
+        trim(next);
+    }
+
+    /**
+     * Copies a user with the history of its chats from given sequence numbers, for a server taking the user over
+     * that already got the history before them
+     *
+     * @param user   user
+     * @param starts sequence number of the first chat message the copy carries, by chat id, 0 for the chats missing
+     * @return copy of the user, or the user itself if its chats carry every chat message from there
+     * @throws IOException if the chat history could not be read
+     */
+    public User restore(User user, Map<BigInteger, Long> starts) throws IOException {
+        boolean trimmed = false;
+        for (Chat chat : user.getChats().values())
+            trimmed |= chat.getFirstMessage() > starts.getOrDefault(chat.getIdChat(), 0L);
+        if (!trimmed)
+            return user;
+
+        User copy = new User(user.getEmail(), user.getPassword(), user.getPrivateKey(), user.getPublicKey());
+        copy.getPendingRequests().putAll(user.getPendingRequests());
+
+        for (Chat chat : user.getChats().values()) {
+            Chat whole = new Chat(chat.getIdChat(), chat.getChatName(), chat.getCreatorEmail());
+            for (String participant : chat.getParticipants())
+                whole.addParticipant(participant);
+            whole.getUsersPubKeys().putAll(chat.getUsersPubKeys());
+
+            long first;
+            ChatMessage[] tail;
+            ChatMessage[] pending;
+            synchronized (chat) {
+                first = chat.getFirstMessage();
+                tail = chat.getChatMessages().toArray(new ChatMessage[0]);
+                pending = chat.getChatPendingMessages().toArray(new ChatMessage[0]);
+            }
+
+            List<ChatMessage> older = read(user.getUserId(), chat.getIdChat(), starts.getOrDefault(chat.getIdChat(), 0L), first);
+            whole.setFirstMessage(first - older.size());
+            for (ChatMessage chatMessage : older)
+                whole.addChatMessage(chatMessage);
+            for (ChatMessage chatMessage : tail)
+                whole.addChatMessage(chatMessage);
+            for (ChatMessage chatMessage : pending)
+                whole.addPendingChatMessage(chatMessage);
+
+            copy.addChat(whole);
+        }
+
+        return copy;
+    }
+
+    /**
+     * Appends chat messages of a chat of a user sent by the server that held the user before, skipping the ones
+     * already kept
+     *
+     * @param userId   user
+     * @param chatId   chat
+     * @param first    sequence number of the first chat message
+     * @param messages chat messages, in order
+     * @throws IOException if they could not be written
+     */
+    public void append(BigInteger userId, BigInteger chatId, long first, ChatMessage[] messages) throws IOException {
+        moved.addAndGet(getLog(userId, chatId).append(first, messages));
+    }
+
+    /**
+     * Reads the chat messages of a chat of a user kept on the chat history, with sequence numbers in [from, to)
+     *
+     * @param userId user
+     * @param chatId chat
+     * @param from   first sequence number
+     * @param to     sequence number after the last one
+     * @return chat messages, in order, fewer than asked for if some are not kept
+     * @throws IOException if the chat history could not be read
+     */
+    public List<ChatMessage> read(BigInteger userId, BigInteger chatId, long from, long to) throws IOException {
+        if (from >= to)
+            return new ArrayList<>();
+
+        ChatLog log = logs.get(key(userId, chatId));
+        if (log == null) {
+            if (!getDirectory(userId, chatId).exists())
+                return new ArrayList<>();
+            log = getLog(userId, chatId);
+        }
+
+        List<ChatMessage> messages = log.read(from, to);
+        read.addAndGet(messages.size());
+        return messages;
+    }
+
+    /**
+     * @param userId user
+     * @param chatId chat
+     * @param first  sequence number of the first chat message the chat keeps
+     * @return sequence number of the first chat message of a chat of a user this server keeps, on the chat history
+     * or else on the chat
+     * @throws IOException if the chat history could not be read
+     */
+    public long getStart(BigInteger userId, BigInteger chatId, long first) throws IOException {
+        if (first == 0 || !logs.containsKey(key(userId, chatId)) && !getDirectory(userId, chatId).exists())
+            return first;
+
+        ChatLog log = getLog(userId, chatId);
+        return log.getEnd() > log.getStart() ? Math.min(log.getStart(), first) : first;
+    }
+
+    private ChatLog getLog(BigInteger userId, BigInteger chatId) throws IOException {
+        String key = key(userId, chatId);
+        ChatLog log = logs.get(key);
+        if (log != null)
+            return log;
+
+        log = new ChatLog(getDirectory(userId, chatId));
+        ChatLog opened = logs.putIfAbsent(key, log);
+        return opened == null ? log : opened;
+    }
+
+    private File getDirectory(BigInteger userId, BigInteger chatId) {
+        return new File(new File(directory, userId.toString()), chatId.toString());
+    }
+
+    private static String key(BigInteger userId, BigInteger chatId) {
+        return userId + "/" + chatId;
+    }
+
+    /**
+     * Deletes the chat history of a user, once this server no longer holds it
+     *
+     * @param userId user
+     */
+    public void delete(BigInteger userId) {
+        String prefix = userId + "/";
+        for (Map.Entry<String, ChatLog> entry : logs.entrySet())
+            if (entry.getKey().startsWith(prefix) && logs.remove(entry.getKey(), entry.getValue()))
+                entry.getValue().delete();
+
+        File[] chats = new File(directory, userId.toString()).listFiles();
+        if (chats != null) {
+            for (File chat : chats) {
+                File[] segments = chat.listFiles();
+                if (segments != null)
+                    for (File segment : segments)
+                        segment.delete();
+                chat.delete();
+            }
+        }
+        new File(directory, userId.toString()).delete();
+    }
+
+    /**
+     * Closes the files of the chat histories not used for HISTORY_IDLE_TIMEOUT
+     */
+    public void releaseIdle() {
+        for (ChatLog log : logs.values())
+            log.releaseIfIdle();
+    }
+
+    public void close() {
+        for (ChatLog log : logs.values())
+            log.close();
+    }
+
+    public long getMoved() {
+        return moved.get();
+    }
+
+    public void printMetrics() {
+        System.out.println("Chat history: " + moved + " messages moved, " + read + " read, " + logs.size() + " chats, " + failed + " failed");
+    }
+}
@@ -0,0 +1,355 @@
+package Server;
+
+import Chat.ChatMessage;
+import Messages.MessageCodec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+import static Utilities.Constants.HISTORY_IDLE_TIMEOUT;
+import static Utilities.Constants.HISTORY_SEGMENT_BYTES;
+
+/**
+ * Chat messages of a chat of a user, moved out of memory, each with its sequence number on the chat
+ * They are kept on segments of up to HISTORY_SEGMENT_BYTES, named after the sequence number of their first chat
+ * message: a log of records [Length] [Chat message] and an index with the offset of every record on the log
+ * Segments are read memory mapped, so reading a chat message costs no system call and the segments take no heap
+ * A chat message is only appended once, and a chat message missing from the chat history starts a new segment
+ */
+public class ChatLog {
+
+    private static final String LOG_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".index";
+    private static final int ENTRY_BYTES = 4;
+
+    private final File directory;
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+
+    /**
+     * Channels of the last segment, open while chat messages are appended to it
+     */
+    private FileChannel log;
+    private FileChannel index;
+
+    private long lastUsed = System.currentTimeMillis();
+
+    /**
+     * Opens the chat history on a directory, dropping any record written in part
+     *
+     * @param directory directory of the segments
+     * @throws IOException if the segments could not be read
+     */
+    public ChatLog(File directory) throws IOException {
+        this.directory = directory;
+
+        File[] files = directory.listFiles();
+        if (files == null)
+            return;
+
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(LOG_SUFFIX))
+                continue;
+
+            try {
+                long first = Long.parseLong(name.substring(0, name.length() - LOG_SUFFIX.length()));
+                segments.put(first, new Segment(first));
+            } catch (NumberFormatException e) {
+                System.out.println("Ignoring " + file);
+            }
+        }
+
+        for (Segment segment : segments.values())
+            segment.recover();
+    }
+
+    /**
+     * @return sequence number of the first chat message kept
+     */
+    public synchronized long getStart() {
+        return segments.isEmpty() ? 0 : segments.firstKey();
+    }
+
+    /**
+     * @return sequence number after the last chat message kept
+     */
+    public synchronized long getEnd() {
+        return segments.isEmpty() ? 0 : segments.lastEntry().getValue().getEnd();
+    }
+
+    /**
+     * Appends chat messages not kept yet, and waits for them to be on disk
+     *
+     * @param first    sequence number of the first chat message
+     * @param messages chat messages, in order
+     * @return number of chat messages appended
+     * @throws IOException if they could not be written
+     */
+    public synchronized int append(long first, ChatMessage[] messages) throws IOException {
+        lastUsed = System.currentTimeMillis();
+
+        long end = getEnd();
+        if (end - first >= messages.length)
+            return 0;
+
+        int skip = (int) Math.max(0, end - first);
+        Segment segment = segments.isEmpty() || first > end ? startSegment(first) : segments.lastEntry().getValue();
+
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(records);
+        ByteBuffer entries = ByteBuffer.allocate((messages.length - skip) * ENTRY_BYTES);
+        int pending = 0;
+
+        for (int i = skip; i < messages.length; i++) {
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            MessageCodec.encode(messages[i], new DataOutputStream(record));
+
+            if (segment.bytes + records.size() > 0 && segment.bytes + records.size() + Integer.BYTES + record.size() > HISTORY_SEGMENT_BYTES) {
+                write(segment, records, entries, pending);
+                segment = startSegment(segment.getEnd());
+                pending = 0;
+            }
+
+            entries.putInt((int) (segment.bytes + records.size()));
+            out.writeInt(record.size());
+            record.writeTo(out);
+            pending++;
+        }
+
+        write(segment, records, entries, pending);
+        return messages.length - skip;
+    }
+
+    /**
+     * Writes records and their index entries at the end of a segment, the log first, and forces them to disk
+     */
+    private void write(Segment segment, ByteArrayOutputStream records, ByteBuffer entries, int count) throws IOException {
+        if (count == 0)
+            return;
+
+        if (log == null) {
+            log = FileChannel.open(segment.logFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            index = FileChannel.open(segment.indexFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(records.toByteArray());
+        while (buffer.hasRemaining())
+            log.write(buffer, segment.bytes + buffer.position());
+        log.force(false);
+
+        entries.flip();
+        while (entries.hasRemaining())
+            index.write(entries, (long) segment.count * ENTRY_BYTES + entries.position());
+        index.force(false);
+
+        segment.bytes += records.size();
+        segment.count += count;
+        records.reset();
+        entries.clear();
+    }
+
+    /**
+     * Closes the last segment and starts a new one, dropping the last segment if it holds no chat message
+     */
+    private Segment startSegment(long first) throws IOException {
+        closeChannels();
+
+        if (!segments.isEmpty() && segments.lastEntry().getValue().count == 0)
+            segments.pollLastEntry().getValue().delete();
+
+        directory.mkdirs();
+        Segment segment = new Segment(first);
+        segments.put(first, segment);
+        return segment;
+    }
+
+    /**
+     * Reads the chat messages kept with sequence numbers in [from, to)
+     *
+     * @param from first sequence number
+     * @param to   sequence number after the last one
+     * @return chat messages, in order
+     * @throws IOException if a segment could not be read
+     */
+    public synchronized List<ChatMessage> read(long from, long to) throws IOException {
+        lastUsed = System.currentTimeMillis();
+
+        ArrayList<ChatMessage> messages = new ArrayList<>();
+        Long start = segments.floorKey(from);
+
+        for (Segment segment : segments.tailMap(start == null ? from : start, true).values()) {
+            if (segment.first >= to)
+                break;
+
+            for (long sequence = Math.max(from, segment.first); sequence < Math.min(to, segment.getEnd()); sequence++)
+                messages.add(segment.read((int) (sequence - segment.first)));
+        }
+
+        return messages;
+    }
+
+    /**
+     * Closes the files and drops the mappings of a chat history not used for HISTORY_IDLE_TIMEOUT, opened again
+     * when used
+     *
+     * @return true if they were closed
+     */
+    public synchronized boolean releaseIfIdle() {
+        if (System.currentTimeMillis() - lastUsed < HISTORY_IDLE_TIMEOUT)
+            return false;
+
+        close();
+        return true;
+    }
+
+    public synchronized void close() {
+        closeChannels();
+        for (Segment segment : segments.values())
+            segment.unmap();
+    }
+
+    /**
+     * Deletes every segment
+     */
+    public synchronized void delete() {
+        close();
+        for (Segment segment : segments.values())
+            segment.delete();
+        segments.clear();
+        directory.delete();
+    }
+
+    private void closeChannels() {
+        try {
+            if (log != null)
+                log.close();
+            if (index != null)
+                index.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        log = null;
+        index = null;
+    }
+
+    /**
+     * Segment of the chat history: its log and index
+     */
+    private class Segment {
+
+        private final long first;
+        private final File logFile;
+        private final File indexFile;
+
+        private int count;
+        private long bytes;
+
+        private MappedByteBuffer mappedLog;
+        private MappedByteBuffer mappedIndex;
+        private int mappedCount;
+
+        private Segment(long first) {
+            this.first = first;
+            this.logFile = new File(directory, first + LOG_SUFFIX);
+            this.indexFile = new File(directory, first + INDEX_SUFFIX);
+        }
+
+        private long getEnd() {
+            return first + count;
+        }
+
+        /**
+         * Counts the chat messages of the segment, dropping index entries whose record is not whole on the log
+         * and anything after the last whole record
+         */
+        private void recover() throws IOException {
+            if (!indexFile.exists()) {
+                logFile.delete();
+                return;
+            }
+
+            try (FileChannel logChannel = FileChannel.open(logFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+                 FileChannel indexChannel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+
+                long logSize = logChannel.size();
+                count = (int) (indexChannel.size() / ENTRY_BYTES);
+                bytes = 0;
+
+                ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES);
+                while (count > 0) {
+                    buffer.clear();
+                    indexChannel.read(buffer, (long) (count - 1) * ENTRY_BYTES);
+                    long offset = buffer.getInt(0) & 0xFFFFFFFFL;
+
+                    buffer.clear();
+                    if (offset + Integer.BYTES <= logSize && logChannel.read(buffer, offset) == Integer.BYTES) {
+                        long end = offset + Integer.BYTES + buffer.getInt(0);
+                        if (end <= logSize && end > offset) {
+                            bytes = end;
+                            break;
+                        }
+                    }
+                    count--;
+                }
+
+                if (indexChannel.size() > (long) count * ENTRY_BYTES)
+                    indexChannel.truncate((long) count * ENTRY_BYTES);
+                if (logSize > bytes)
+                    logChannel.truncate(bytes);
+            }
+        }
+
+        /**
+         * @param position position of the chat message on the segment
+         */
+        private ChatMessage read(int position) throws IOException {
+            if (mappedLog == null || mappedCount < count)
+                map();
+
+            int offset = mappedIndex.getInt(position * ENTRY_BYTES);
+            int length = mappedLog.getInt(offset);
+
+            byte[] record = new byte[length];
+            ByteBuffer buffer = mappedLog.duplicate();
+            buffer.position(offset + Integer.BYTES);
+            buffer.get(record);
+
+            return MessageCodec.decodeChatMessage(new DataInputStream(new ByteArrayInputStream(record)));
+        }
+
+        /**
+         * Maps the log and index as they are, again once chat messages were appended
+         */
+        private void map() throws IOException {
+            try (FileChannel logChannel = FileChannel.open(logFile.toPath(), StandardOpenOption.READ);
+                 FileChannel indexChannel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+                mappedLog = logChannel.map(FileChannel.MapMode.READ_ONLY, 0, bytes);
+                mappedIndex = indexChannel.map(FileChannel.MapMode.READ_ONLY, 0, (long) count * ENTRY_BYTES);
+                mappedCount = count;
+            }
+        }
+
+        private void unmap() {
+            mappedLog = null;
+            mappedIndex = null;
+            mappedCount = 0;
+        }
+
+        private void delete() {
+            unmap();
+            logFile.delete();
+            indexFile.delete();
+        }
+    }
+}
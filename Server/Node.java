@@ -1,14 +1,13 @@
 package Server;
 
 
-import java.io.Serializable;
+import Utilities.RingIdentifier;
 
-import static Utilities.Utilities.createHash;
-import static Utilities.Utilities.get32bitHashValue;
+import java.io.Serializable;
 
 public class Node implements Serializable {
 
-    protected int nodeId;
+    protected RingIdentifier nodeId;
     protected String nodeIp;
     protected int nodePort;
 
@@ -18,7 +17,7 @@ public class Node implements Serializable {
         this.nodeId = setNodeIdentifier();
     }
 
-    public Node(String ip, int port, int key) {
+    public Node(String ip, int port, RingIdentifier key) {
         this.nodeIp = ip;
         this.nodePort = port;
         this.nodeId = key;
@@ -29,17 +28,16 @@ public class Node implements Serializable {
     }
 
     /**
-     * @return Returns 32-bit hash using serv
-     * er ip and server port
+     * @return Returns ring identifier hashed from server ip and server port
      */
-    public int setNodeIdentifier() {
-        return Math.abs(get32bitHashValue(createHash(nodeIp + Integer.toString(nodePort))));
+    public RingIdentifier setNodeIdentifier() {
+        return RingIdentifier.fromString(nodeIp + Integer.toString(nodePort));
     }
 
     /**
-     * @return Returns node identifier, 32-bit int hash
+     * @return Returns node identifier, a position on the ring
      */
-    public int getNodeId() {
+    public RingIdentifier getNodeId() {
         return nodeId;
     }
 
@@ -63,6 +61,17 @@ public class Node implements Serializable {
         return this;
     }
 
+    /**
+     * Verifies if a node is hosted by the same server, that is, if it has the same address
+     * Different virtual nodes of a server have different identifiers but the same address
+     *
+     * @param node node to be compared
+     * @return true if both nodes have the same ip and port
+     */
+    public boolean isSameServer(Node node) {
+        return nodeIp != null && nodeIp.equals(node.getNodeIp()) && nodePort == node.getNodePort();
+    }
+
     @Override
     public boolean equals(Object o) {
 
@@ -75,8 +84,13 @@ public class Node implements Serializable {
 
         final Node node = (Node) o;
 
-        return nodeId == ((Node) o).getNodeId();
+        return nodeId.equals(node.getNodeId());
 
     }
 
+    @Override
+    public int hashCode() {
+        return nodeId.hashCode();
+    }
+
 }
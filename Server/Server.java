@@ -2,23 +2,46 @@ package Server;
 
 import Chat.Chat;
 import Chat.ChatMessage;
+import Chat.ChatPage;
+import Chat.ChatUpdate;
 import Messages.Message;
+import Protocols.Backpressure;
+import Protocols.ConnectionPool;
 import Protocols.DistributedHashTable;
+import Protocols.FileTransfers;
+import Protocols.MessageChannel;
+import Protocols.NioServer;
+import Protocols.RangeTransfer;
+import Protocols.RouteCache;
 import Protocols.ServerConnection;
+import Protocols.SslTransport;
+import Protocols.Stabilizer;
+import Protocols.Transport;
+import Utilities.RingIdentifier;
+import Utilities.Threads;
 
-import javax.net.ssl.SSLServerSocket;
-import javax.net.ssl.SSLServerSocketFactory;
-import javax.net.ssl.SSLSocket;
 import java.io.*;
 import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import static Utilities.Constants.*;
 import static Utilities.Utilities.createHash;
@@ -36,41 +59,211 @@ public class Server extends Node implements Serializable {
      */
     private ConcurrentHashMap<BigInteger, User> backups;
 
+    /**
+     * Finger state of the first virtual node, which has the server identifier
+     */
     private DistributedHashTable dht;
+
+    /**
+     * Finger state of every virtual node of this server that already joined the ring
+     */
+    private CopyOnWriteArrayList<DistributedHashTable> dhts = new CopyOnWriteArrayList<>();
+
+    /**
+     * Owners of key ranges learned from previous lookups
+     */
+    transient private RouteCache routeCache = new RouteCache(ROUTE_CACHE_SIZE);
+
+    /**
+     * Periodic stabilize and fix fingers tasks, one stabilizer per virtual node
+     * They wait for answers from other servers, so they run on their own threads, one per virtual node
+     */
+    transient private ScheduledExecutorService stabilization = Executors.newScheduledThreadPool(VIRTUAL_NODES);
+
+    /**
+     * Periodic local sweeps: idle connections, stalled users, expired tokens, idle history files and snapshots
+     */
+    transient private ScheduledExecutorService maintenance = Executors.newScheduledThreadPool(2);
+    transient private ArrayList<Stabilizer> stabilizers = new ArrayList<>();
     /**
      * Logged in users
      */
     transient private ConcurrentHashMap<BigInteger, ServerConnection> loggedInUsers;
-    transient private SSLServerSocket sslServerSocket;
-    transient private ExecutorService threadPool = Executors.newFixedThreadPool(MAX_NUMBER_OF_REQUESTS);
+    transient private Transport.Listener listener;
+    transient private NioServer nioServer;
+    transient private ExecutorService threadPool = Threads.newTaskExecutor(MAX_NUMBER_OF_REQUESTS);
+
+    /**
+     * Connections to other servers, kept open between messages
+     */
+    transient private ConnectionPool connectionPool;
+
+    /**
+     * Threads reading the accepted connections, one per connection, since pooled connections stay open
+     */
+    transient private ExecutorService connectionThreads = Threads.newConnectionExecutor();
+
+    /**
+     * Files uploaded and downloaded on connections of their own, apart from the messages
+     */
+    transient private FileTransfers fileTransfers;
+
+    /**
+     * Log and snapshots of the users and backups, or null if they are only kept in memory
+     */
+    transient private UserStore store;
+
+    /**
+     * Chat messages moved out of the chats of the users and backups of this server
+     */
+    transient private ChatHistory history;
 
     /**
      * @param args ServerId ServerPort KnownServerId KnownServer Port
      */
     public Server(String args[]) {
         super(args[0], Integer.parseInt(args[1]));
-        dht = new DistributedHashTable(this);
+        dht = new DistributedHashTable(getNode());
+        connectionPool = new ConnectionPool(nodeId.toBigInteger());
 
         System.out.println("Server ID: " + this.getNodeId());
 
-        initServerSocket();
-        if (args.length > 2) {
-            Node knownNode = new Node(args[2], Integer.parseInt(args[3]));
-            joinNetwork(this, knownNode);
-        }
-
         //creating directories
         String usersPath = DATA_DIRECTORY + "/" + nodeId + "/" + USER_DIRECTORY;
         String chatsPath = DATA_DIRECTORY + "/" + nodeId + "/" + CHAT_DIRECTORY;
 
         createDir(DATA_DIRECTORY);
-        createDir(DATA_DIRECTORY + "/" + Integer.toString(nodeId));
+        createDir(DATA_DIRECTORY + "/" + nodeId);
         createDir(usersPath);
         createDir(chatsPath);
+        history = new ChatHistory(DATA_DIRECTORY + "/" + nodeId + "/" + HISTORY_DIRECTORY);
 
         users = new ConcurrentHashMap<>();
         loggedInUsers = new ConcurrentHashMap<>();
         backups = new ConcurrentHashMap<BigInteger, User>();
+
+        if (STORE_ENABLED)
+            openStore(usersPath);
+
+        initServerSocket();
+        if (args.length > 2) {
+            Node knownNode = new Node(args[2], Integer.parseInt(args[3]));
+            join(knownNode);
+        }
+
+        if (dhts.isEmpty())
+            createRing();
+
+        for (DistributedHashTable vnode : dhts) {
+            Stabilizer stabilizer = new Stabilizer(this, vnode, stabilization);
+            stabilizer.start();
+            stabilizers.add(stabilizer);
+        }
+
+        maintenance.scheduleWithFixedDelay(connectionPool::evictIdle, POOL_IDLE_TIMEOUT, POOL_IDLE_TIMEOUT / 2, TimeUnit.MILLISECONDS);
+        maintenance.scheduleWithFixedDelay(this::disconnectStalledUsers, PUSH_STALL_TIMEOUT, PUSH_STALL_TIMEOUT / 2, TimeUnit.MILLISECONDS);
+        if (fileTransfers != null)
+            maintenance.scheduleWithFixedDelay(fileTransfers::evictExpired, BULK_TOKEN_TIMEOUT, BULK_TOKEN_TIMEOUT, TimeUnit.MILLISECONDS);
+        maintenance.scheduleWithFixedDelay(history::releaseIdle, HISTORY_IDLE_TIMEOUT, HISTORY_IDLE_TIMEOUT / 2, TimeUnit.MILLISECONDS);
+        if (store != null) {
+            long check = Math.min(STORE_SNAPSHOT_INTERVAL, 10000);
+            maintenance.scheduleWithFixedDelay(() -> threadPool.submit(store::snapshotIfDue), check, check, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Recovers the users and backups kept on disk, before the server takes part in the ring
+     * A server whose store could not be read starts empty and keeps its users in memory only
+     *
+     * @param directory directory of the store
+     */
+    private void openStore(String directory) {
+        store = new UserStore(directory, users, backups);
+        try {
+            store.recover();
+            store.start();
+
+            //chat messages replayed from the log go back to the chat history
+            for (User user : users.values())
+                history.trim(user);
+            for (User user : backups.values())
+                history.trim(user);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Failed to recover the users, keeping them in memory only");
+            users.clear();
+            backups.clear();
+            store = null;
+        }
+    }
+
+    /**
+     * Logs the current state of a user of this server, after a change to it
+     *
+     * @param userId user id
+     */
+    private void saveUser(BigInteger userId) {
+        if (store != null && !store.saveUser(ADD_USER, users.get(userId)))
+            System.out.println("Failed to save user " + userId);
+    }
+
+    /**
+     * Adds a chat message to a chat of a user of this server and logs it
+     *
+     * @param userId      user id
+     * @param chat        chat of the user
+     * @param chatMessage chat message
+     * @param pending     true to add it to the pending messages of the chat
+     * @return false if it could not be logged
+     */
+    private boolean addChatMessage(BigInteger userId, Chat chat, ChatMessage chatMessage, boolean pending) {
+        if (store != null)
+            return store.addChatMessage(userId, chat, chatMessage, pending);
+
+        if (pending)
+            chat.addPendingChatMessage(chatMessage);
+        else
+            chat.addChatMessage(chatMessage);
+        return true;
+    }
+
+    /**
+     * Moves the oldest chat messages of a chat of a user of this server to the chat history, once it holds too many,
+     * for every user of this server holding that same chat
+     *
+     * @param userId user id
+     * @param chatId chat id
+     */
+    private void trimChat(BigInteger userId, BigInteger chatId) {
+        User user = users.get(userId);
+        Chat chat = user == null ? null : user.getChat(chatId);
+        if (chat == null)
+            return;
+
+        ArrayList<BigInteger> holders = new ArrayList<>();
+        holders.add(userId);
+        for (String participantEmail : chat.getParticipants()) {
+            BigInteger participantHash = createHash(participantEmail);
+            User participant = users.get(participantHash);
+            if (!participantHash.equals(userId) && participant != null && participant.getChat(chatId) == chat)
+                holders.add(participantHash);
+        }
+
+        history.trim(chat, holders);
+    }
+
+    /**
+     * Deletes the chat history of a user this server no longer holds
+     *
+     * @param userId user id
+     */
+    public void dropHistory(BigInteger userId) {
+        if (!users.containsKey(userId) && !backups.containsKey(userId))
+            history.delete(userId);
+    }
+
+    public ChatHistory getHistory() {
+        return history;
     }
 
     /**
@@ -86,56 +279,213 @@ public class Server extends Node implements Serializable {
      * Listens for incoming connection requests
      */
     public void listen() {
-        while (true) {
+        if (nioServer != null) {
+            System.out.println("Listening...");
+            nioServer.run();
+            return;
+        }
+
+        while (!listener.isClosed()) {
             try {
                 System.out.println("Listening...");
-                SSLSocket socket = (SSLSocket) sslServerSocket.accept();
-                sslServerSocket.setNeedClientAuth(true);
+                Transport.Link link = listener.accept();
 
-                ServerConnection connection = new ServerConnection(socket, this);
-                threadPool.submit(connection);
+                ServerConnection connection = new ServerConnection(link, this);
+                connectionThreads.submit(connection);
 
             } catch (IOException e) {
+                if (listener.isClosed())
+                    return;
                 e.printStackTrace();
             }
         }
     }
 
     /**
-     * Initiates the server socket for incoming requests
+     * Initiates the server socket for incoming requests, over the default transport
+     * TLS connections carrying binary frames are served by NIO event loops, anything else by a thread per connection
+     * Files are served on the port BULK_PORT_OFFSET above it
      */
     public void initServerSocket() {
-        SSLServerSocketFactory sslServerSocketFactory = (SSLServerSocketFactory) SSLServerSocketFactory.getDefault();
         try {
-            sslServerSocket = (SSLServerSocket) sslServerSocketFactory.createServerSocket(getNodePort());
-            sslServerSocket.setEnabledCipherSuites(sslServerSocket.getSupportedCipherSuites());
+            fileTransfers = new FileTransfers(nodeIp, getBulkPort());
+            fileTransfers.start();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Failed to listen for file transfers");
+        }
 
+        try {
+            if (USE_NIO && BINARY_WIRE_FORMAT && Transport.getDefault() instanceof SslTransport) {
+                nioServer = new NioServer(getNodePort(), this);
+                return;
+            }
+
+            listener = Transport.getDefault().listen(nodeIp, getNodePort());
         } catch (IOException e) {
             e.printStackTrace();
             System.out.println("Failed to create sslServerSocket");
         }
     }
 
+    /**
+     * Stops the ring maintenance and closes the listener, as when the server goes down
+     */
+    public void shutdown() {
+        for (Stabilizer stabilizer : stabilizers)
+            stabilizer.stop();
+
+        stabilization.shutdownNow();
+        maintenance.shutdownNow();
+        if (nioServer != null)
+            nioServer.close();
+        else
+            listener.close();
+        if (fileTransfers != null)
+            fileTransfers.close();
+        if (store != null)
+            store.close();
+        history.close();
+        connectionPool.close();
+        threadPool.shutdownNow();
+        connectionThreads.shutdownNow();
+    }
+
+    /**
+     * Ring position of a virtual node of this server
+     * The first virtual node keeps the server identifier, the others hash the address with their index
+     *
+     * @param index virtual node index, from 0 to VIRTUAL_NODES - 1
+     * @return plain node with this server address
+     */
+    private Node virtualNode(int index) {
+
+        if (index == 0)
+            return getNode();
+
+        return new Node(nodeIp, nodePort, RingIdentifier.fromString(nodeIp + nodePort + "#" + index));
+    }
+
+    /**
+     * Starts a new ring with the virtual nodes of this server, each one knowing the others
+     */
+    private void createRing() {
+
+        ArrayList<DistributedHashTable> vnodes = new ArrayList<>();
+        vnodes.add(dht);
+        for (int i = 1; i < VIRTUAL_NODES; i++)
+            vnodes.add(new DistributedHashTable(virtualNode(i)));
+
+        for (DistributedHashTable vnode : vnodes) {
+            for (DistributedHashTable other : vnodes)
+                vnode.updateFingerTable(other.getNode());
+        }
+
+        dhts.addAll(vnodes);
+
+        for (DistributedHashTable vnode : vnodes)
+            vnode.setPredecessor(getClosestDht(vnode.getNode().getNodeId()).getNode());
+    }
+
+    /**
+     * Joins the ring: each virtual node looks up its successor, the first one through a known node,
+     * and announces itself to it. Fingers and predecessors converge in the background
+     *
+     * @param knownNode any node of the ring
+     */
+    public void join(Node knownNode) {
+
+        for (int i = 0; i < VIRTUAL_NODES; i++) {
+            DistributedHashTable vnode = i == 0 ? dht : new DistributedHashTable(virtualNode(i));
+            Node self = vnode.getNode();
+
+            Node successor = dhts.isEmpty() ? lookUpOwner(self.getNodeId(), knownNode) : lookUpOwner(self.getNodeId());
+
+            if (successor == null) {
+                System.out.println("Failed to join the network through " + knownNode.getNodeIp() + ":" + knownNode.getNodePort());
+                if (dhts.isEmpty())
+                    return;
+                continue;
+            }
+
+            vnode.updateFingerTable(successor);
+            for (DistributedHashTable other : dhts) {
+                vnode.updateFingerTable(other.getNode());
+                other.updateFingerTable(self);
+            }
+
+            dhts.add(vnode);
+            joinNetwork(self, successor);
+        }
+    }
+
     /**
      * Sends a message to the network
      * Message: [NEWNODE] [SenderID] [NodeID] [NodeIp] [NodePort]
      */
     public void joinNetwork(Node newNode, Node knownNode) {
 
-        Message message = new Message(NEWNODE, BigInteger.valueOf(this.getNodeId()), RESPONSIBLE, Integer.toString(newNode.getNodeId()), newNode.getNodeIp(), Integer.toString(newNode.getNodePort()));
-
-        ServerConnection handler = new ServerConnection(knownNode.getNodeIp(), knownNode.getNodePort(), this);
+        Message message = new Message(NEWNODE, this.getNodeId().toBigInteger(), RESPONSIBLE, newNode.getNodeId().toString(), newNode.getNodeIp(), Integer.toString(newNode.getNodePort()));
 
-        try {
-            handler.connect();
-        } catch (IOException e) {
-            serverDown(knownNode);
-            joinNetwork(newNode, knownNode);
+        if (isSameServer(knownNode)) {
+            newNode(message.getArguments());
             return;
         }
-        handler.sendMessage(message);
-        handler.closeConnection();
 
+        if (!sendToLiveNode(getClosestDht(newNode.getNodeId()), knownNode, message))
+            System.out.println("Function joinNetwork: no live node to forward the new node");
+    }
+
+    /**
+     * Sends a message with no answer to a node, failing over to the next live successor of a virtual node when it is down
+     *
+     * @param vnode   virtual node whose successors are used to fail over
+     * @param node    preferred node
+     * @param message message to be sent
+     * @return true if the message was sent, false if neither the node nor any successor of another server is reachable
+     */
+    public boolean sendToLiveNode(DistributedHashTable vnode, Node node, Message message) {
+
+        for (int attempt = 0; attempt <= SUCCESSOR_LIST_SIZE && node != null && !isSameServer(node); attempt++) {
+            try {
+                connectionPool.send(node, message);
+                return true;
+            } catch (ConnectionPool.PeerUnreachableException e) {
+                serverDown(node);
+                node = vnode.getSuccessor();
+            } catch (IOException e) {
+                System.out.println("Function sendToLiveNode: Failed to send message");
+                return false;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Sends a request to a node and waits for the answer, failing over to the next live successor
+     * of a virtual node when it is down
+     *
+     * @param vnode   virtual node whose successors are used to fail over
+     * @param node    preferred node
+     * @param message request
+     * @return answer, or null if neither the node nor any successor of another server answered
+     */
+    public Message requestLiveNode(DistributedHashTable vnode, Node node, Message message) {
+
+        for (int attempt = 0; attempt <= SUCCESSOR_LIST_SIZE && node != null && !isSameServer(node); attempt++) {
+            try {
+                return connectionPool.request(node, message);
+            } catch (ConnectionPool.PeerUnreachableException e) {
+                serverDown(node);
+                node = vnode.getSuccessor();
+            } catch (IOException e) {
+                System.out.println("Function requestLiveNode: Failed to receive message");
+                return null;
+            }
+        }
+
+        return null;
     }
 
     /**
@@ -143,54 +493,93 @@ public class Server extends Node implements Serializable {
      *
      * @param downServerId Id of the node that is down
      */
-    public void handleNodeFailure(int downServerId, Message message) {
+    public void handleNodeFailure(RingIdentifier downServerId, Message message) {
 
-        dht.removeNode(downServerId);
+        Node downNode = findKnownNode(downServerId);
+        if (downNode == null)
+            downNode = new Node(null, -1, downServerId);
 
-        if (message.getResponsible().equals(RESPONSIBLE)) {
-            beginNodeFailureProtocol();
+        ArrayList<RingIdentifier> failedPredecessors = removeDownServer(downNode);
+
+        if (!failedPredecessors.isEmpty() || message.getResponsible().equals(RESPONSIBLE)) {
+            if (!failedPredecessors.contains(downServerId))
+                failedPredecessors.add(downServerId);
+            beginNodeFailureProtocol(failedPredecessors);
             return;
         }
 
-        Node downServerSuccessor = dht.nodeLookUp(downServerId + 1);
+        DistributedHashTable vnode = getClosestDht(downServerId.next());
+        Node downServerSuccessor = vnode.nodeLookUp(downServerId.next());
 
-        if (downServerSuccessor.getNodeId() == dht.getFingerTable().get(1).getNodeId()) {
+        if (vnode.isSuccessorResponsibleFor(downServerId.next())) {
             message.setResponsible(RESPONSIBLE);
         }
 
-        if (downServerSuccessor.getNodeId() == nodeId) {
-            Node successor = dht.getSuccessor();
-            if (successor == null) {
-                beginNodeFailureProtocol();
-                return;
-            }
-            downServerSuccessor = successor;
-        }
-
-        ServerConnection redirect = new ServerConnection(downServerSuccessor.getNodeIp(), downServerSuccessor.getNodePort(), this);
-        try {
-            redirect.connect();
-        } catch (IOException e) {
-            e.printStackTrace();
+        if (isSameServer(downServerSuccessor)) {
+            beginNodeFailureProtocol(Collections.singletonList(downServerId));
+            return;
         }
-        redirect.sendMessage(message);
-        redirect.closeConnection();
 
+        if (!sendToLiveNode(vnode, downServerSuccessor, message))
+            beginNodeFailureProtocol(Collections.singletonList(downServerId));
     }
 
     /**
-     * Copies all backup data from failed node to its server data
+     * Copies the backups of the users a failed node was responsible for to the server data
      * and backups the new data to successor
+     * A failed virtual node was responsible for (new predecessor, failed node], so only the backups in that range
+     * are taken over: the other backups come from servers that are still alive
+     *
+     * @param failedNodes identifiers of the failed virtual nodes that preceded virtual nodes of this server
      */
-    public void beginNodeFailureProtocol() {
+    public void beginNodeFailureProtocol(Collection<RingIdentifier> failedNodes) {
+
+        ArrayList<RingIdentifier[]> ranges = new ArrayList<>();
+        for (RingIdentifier failedNode : failedNodes)
+            ranges.add(new RingIdentifier[]{precedingLiveNode(failedNode), failedNode});
 
+        int promoted = 0;
         for (ConcurrentHashMap.Entry<BigInteger, User> entry : backups.entrySet()) {
+            RingIdentifier userId = RingIdentifier.fromHash(entry.getKey());
+
+            boolean inRange = false;
+            for (RingIdentifier[] range : ranges)
+                inRange |= userId.isBetween(range[0], range[1]);
+            if (!inRange || !backups.remove(entry.getKey(), entry.getValue()))
+                continue;
+
             users.put(entry.getKey(), entry.getValue());
+            if (store != null) {
+                store.saveUser(ADD_USER, entry.getValue());
+                store.deleteUser(BACKUP_USER, entry.getKey());
+            }
 
-            sendInfoToBackup(new Message(BACKUP_USER, BigInteger.valueOf(nodeId), RESPONSIBLE, entry.getValue()));
+            sendInfoToBackup(new Message(BACKUP_USER, nodeId.toBigInteger(), RESPONSIBLE, entry.getValue()));
+            promoted++;
         }
-        backups.clear();
-        System.out.println("Copied all backups to server data");
+        System.out.println("Copied " + promoted + " backups of failed nodes to server data, " + backups.size() + " left");
+    }
+
+    /**
+     * @param nodeId ring identifier of a failed node
+     * @return identifier of the live node that most immediately precedes it among the nodes known by this server,
+     * which takes its place as predecessor, or the identifier itself if no other node is known
+     */
+    private RingIdentifier precedingLiveNode(RingIdentifier nodeId) {
+        RingIdentifier closest = nodeId;
+
+        for (DistributedHashTable vnode : dhts) {
+            ArrayList<Node> known = vnode.getFingerTable().toList();
+            known.addAll(vnode.getSuccessorList());
+            known.add(vnode.getPredecessor());
+
+            for (Node node : known) {
+                if (node.getNodeId().isStrictlyBetween(closest, nodeId))
+                    closest = node.getNodeId();
+            }
+        }
+
+        return closest;
     }
 
 
@@ -202,105 +591,174 @@ public class Server extends Node implements Serializable {
      */
     public boolean isResponsibleFor(BigInteger clientId) {
 
-        int tempId = Math.abs(clientId.intValue());
+        return getResponsibleDht(RingIdentifier.fromHash(clientId)) != null;
+    }
+
+    /**
+     * @param key ring identifier
+     * @return virtual node of this server responsible for the key, or null if another server owns it
+     */
+    public DistributedHashTable getResponsibleDht(RingIdentifier key) {
+
+        for (DistributedHashTable vnode : dhts) {
+            if (vnode.isResponsibleFor(key))
+                return vnode;
+        }
+
+        return null;
+    }
+
+    /**
+     * Lookups for a key start on the virtual node of this server that most immediately precedes it,
+     * since its fingers are the closest ones to the key
+     *
+     * @param key ring identifier
+     * @return closest preceding virtual node of this server
+     */
+    public DistributedHashTable getClosestDht(RingIdentifier key) {
 
-        Node n = dht.nodeLookUp(tempId);
+        DistributedHashTable closest = dhts.isEmpty() ? dht : dhts.get(0);
 
-        return n.getNodeId() == this.getNodeId();
+        for (DistributedHashTable vnode : dhts) {
+            if (vnode.getNode().getNodeId().isStrictlyBetween(closest.getNode().getNodeId(), key))
+                closest = vnode;
+        }
+
+        return closest;
     }
 
     /**
      * Function called when a new node message arrives to the server and forwards it to the correct server
+     * The virtual node that succeeds the new node adopts it as predecessor, the others only learn it
+     * for their finger tables and let stabilization take care of the rest
      *
      * @param info ip, port and id from the new server
      */
     public void newNode(String[] info) {
-        Node previousPredecessor = dht.getPredecessor();
-        int newNodeKey = Integer.parseInt(info[0]);
+        RingIdentifier newNodeKey = RingIdentifier.parse(info[0]);
         String newNodeIp = info[1];
         int newNodePort = Integer.parseInt(info[2]);
 
         Node newNode = new Node(newNodeIp, newNodePort, newNodeKey);
-        dht.updateFingerTable(newNode);
-
-        dht.printFingerTable();
-
-        Node successor = dht.nodeLookUp(newNodeKey);
-
-        sendFingerTableToSuccessor();
-        sendFingerTableToPredecessor(dht.getPredecessor());
-
-        if (successor.getNodeId() == this.getNodeId()) {
-            sendFingerTableToPredecessor(newNode);
-            notifyNodeOfItsPredecessor(newNode, previousPredecessor);
-            sendInfoToPredecessor(newNode, users, ADD_USER);
-            sendInfoToPredecessor(newNode, backups, BACKUP_USER);
-        } else if (newNode.getNodeId() > dht.getPredecessor().getNodeId()) {
-            sendFingerTableToPredecessor(newNode);
-            notifyNodeOfItsPredecessor(newNode, dht.getPredecessor());
-            sendInfoToPredecessor(newNode, users, ADD_USER);
-            sendInfoToPredecessor(newNode, backups, BACKUP_USER);
+        DistributedHashTable successorVnode = getResponsibleDht(newNodeKey);
+        Node successor = getClosestDht(newNodeKey).nodeLookUp(newNodeKey);
+        if (successorVnode == null && isSameServer(successor))
+            successorVnode = getDht(successor.getNodeId().toBigInteger());
+        for (DistributedHashTable vnode : dhts)
+            vnode.updateFingerTable(newNode);
+        routeCache.invalidate();
+
+        if (successorVnode != null) {
+            Node previousPredecessor = successorVnode.getPredecessor();
+            if (updatePredecessor(successorVnode, newNode) && !previousPredecessor.equals(successorVnode.getNode()))
+                notifyNodeOfItsPredecessor(newNode, previousPredecessor.getNode());
         } else {
             joinNetwork(newNode, successor);
             System.out.println("Redirecting.");
         }
     }
 
+    /**
+     * Handles a node that may be the predecessor of a virtual node (Chord notify)
+     * If it is closer than the current predecessor it is adopted and receives the users
+     * between the previous virtual node of this server and itself
+     *
+     * @param vnode     virtual node of this server
+     * @param candidate node that may be the predecessor
+     * @return true if the predecessor changed
+     */
+    public boolean updatePredecessor(DistributedHashTable vnode, Node candidate) {
 
-    public void sendFingerTableToPredecessor(Node newNode) {
+        Node self = vnode.getNode();
+        Node predecessor = vnode.getPredecessor();
 
-        dht.setPredecessor(newNode);
+        if (candidate.equals(self))
+            return false;
 
-        Message message = new Message(SUCCESSOR_FT, new BigInteger(Integer.toString(this.getNodeId())), RESPONSIBLE, dht.getFingerTable());
+        if (!predecessor.equals(self) && !candidate.getNodeId().isStrictlyBetween(predecessor.getNodeId(), self.getNodeId()))
+            return false;
 
-        ServerConnection handler = new ServerConnection(newNode.getNodeIp(), newNode.getNodePort(), this);
+        if (!vnode.setPredecessor(candidate))
+            return false;
 
-        try {
-            handler.connect();
-        } catch (IOException e) {
-            serverDown(newNode);
-            sendFingerTableToPredecessor(newNode);
-            return;
-        }
-        handler.sendMessage(message);
-        handler.closeConnection();
+        routeCache.invalidate();
+        vnode.printFingerTable();
 
-    }
+        if (isSameServer(candidate))
+            return true;
 
-    public void sendFingerTableToSuccessor() {
+        RingIdentifier from = getClosestDht(self.getNodeId()).getNode().getNodeId();
+        if (!from.equals(self.getNodeId()) && !candidate.getNodeId().isStrictlyBetween(from, self.getNodeId()))
+            return true;
 
-        Node successor = dht.fingerTableNode(1);
+        threadPool.submit(() -> {
+            sendInfoToPredecessor(candidate, from, users, ADD_USER);
+            sendInfoToPredecessor(candidate, from, backups, BACKUP_USER);
+        });
 
-        Message message = new Message(SUCCESSOR_FT, new BigInteger(Integer.toString(this.getNodeId())), RESPONSIBLE, dht.getFingerTable());
+        return true;
+    }
 
-        ServerConnection handler = new ServerConnection(successor.getNodeIp(), successor.getNodePort(), this);
+    /**
+     * Asks a node for its predecessor and successor list
+     *
+     * @param node node to be asked, usually the successor
+     * @return predecessor of the node followed by its successor list, or null if the node could not answer
+     */
+    public ArrayList<Node> requestNeighbours(Node node) {
+
+        if (isSameServer(node)) {
+            DistributedHashTable vnode = getDht(node.getNodeId().toBigInteger());
+            return vnode == null ? null : getNeighbours(vnode);
+        }
+
+        Message request = new Message(GET_PREDECESSOR, nodeId.toBigInteger(), RESPONSIBLE);
+        request.setReceiver(node.getNodeId().toBigInteger());
 
         try {
-            handler.connect();
+            Object answer = connectionPool.request(node, request).getObject();
+            if (answer == null)
+                return null;
+
+            ArrayList<Node> neighbours = new ArrayList<>();
+            for (Object neighbour : (ArrayList<?>) answer)
+                neighbours.add((Node) neighbour);
+            return neighbours;
+        } catch (ConnectionPool.PeerUnreachableException e) {
+            serverDown(node);
+            return null;
         } catch (IOException e) {
-            serverDown(successor);
-            sendFingerTableToSuccessor();
-            return;
+            System.out.println("Function requestNeighbours: Failed to receive message");
+            return null;
         }
-        handler.sendMessage(message);
-        handler.closeConnection();
     }
 
+    /**
+     * Tells a node that another one may be its predecessor
+     * The receiver field selects the virtual node on the destination server
+     *
+     * @param node    node to be notified
+     * @param newNode node that may be its predecessor
+     */
     public void notifyNodeOfItsPredecessor(Node node, Node newNode) {
 
-        Message message = new Message(PREDECESSOR, new BigInteger(Integer.toString(this.getNodeId())), RESPONSIBLE, newNode);
+        if (isSameServer(node)) {
+            DistributedHashTable vnode = getDht(node.getNodeId().toBigInteger());
+            if (vnode != null)
+                updatePredecessor(vnode, newNode);
+            return;
+        }
 
-        ServerConnection handler = new ServerConnection(node.getNodeIp(), node.getNodePort(), this);
+        Message message = new Message(PREDECESSOR, this.getNodeId().toBigInteger(), RESPONSIBLE, newNode);
+        message.setReceiver(node.getNodeId().toBigInteger());
 
         try {
-            handler.connect();
-        } catch (IOException e) {
+            connectionPool.send(node, message);
+        } catch (ConnectionPool.PeerUnreachableException e) {
             serverDown(node);
-            notifyNodeOfItsPredecessor(node, newNode);
-            return;
+        } catch (IOException e) {
+            System.out.println("Function notifyNodeOfItsPredecessor: Failed to send message");
         }
-        handler.sendMessage(message);
-        handler.closeConnection();
     }
 
     /**
@@ -320,13 +778,14 @@ public class Server extends Node implements Serializable {
 
         if (users.containsKey(user_email)) {
             System.out.println("Email already exists. Try to sign in instead of sign up...");
-            message = new Message(CLIENT_ERROR, BigInteger.valueOf(nodeId), RESPONSIBLE, EMAIL_ALREADY_USED);
+            message = new Message(CLIENT_ERROR, nodeId.toBigInteger(), RESPONSIBLE, EMAIL_ALREADY_USED);
         } else {
             User newUser = new User(email, new BigInteger(password), privateKey, publicKey);
             users.put(user_email, newUser);
-            message = new Message(CLIENT_SUCCESS, BigInteger.valueOf(nodeId), RESPONSIBLE);
+            saveUser(user_email);
+            message = new Message(CLIENT_SUCCESS, nodeId.toBigInteger(), RESPONSIBLE);
             System.out.println("Account created with success!");
-            sendInfoToBackup(new Message(BACKUP_USER, BigInteger.valueOf(nodeId), RESPONSIBLE, newUser));
+            sendInfoToBackup(new Message(BACKUP_USER, nodeId.toBigInteger(), RESPONSIBLE, newUser));
         }
 
         return message;
@@ -344,7 +803,8 @@ public class Server extends Node implements Serializable {
         BigInteger userId = createHash(newUser.getEmail());
 
         users.put(userId, newUser);
-        return new Message(CLIENT_SUCCESS, BigInteger.valueOf(nodeId), RESPONSIBLE, USER_ADDED);
+        saveUser(userId);
+        return new Message(CLIENT_SUCCESS, nodeId.toBigInteger(), RESPONSIBLE, USER_ADDED);
     }
 
     /**
@@ -362,13 +822,13 @@ public class Server extends Node implements Serializable {
 
         if (users.get(user_email) == null) {
             System.out.println("Try to create an account. Your email was not found on the database...");
-            response = new Message(CLIENT_ERROR, BigInteger.valueOf(nodeId), RESPONSIBLE, EMAIL_NOT_FOUND);
+            response = new Message(CLIENT_ERROR, nodeId.toBigInteger(), RESPONSIBLE, EMAIL_NOT_FOUND);
         } else if (!users.get(user_email).getPassword().equals(new BigInteger(password))) {
             System.out.println("Impossible to sign in, wrong email or password...");
-            response = new Message(CLIENT_ERROR, BigInteger.valueOf(nodeId), RESPONSIBLE, WRONG_PASSWORD);
+            response = new Message(CLIENT_ERROR, nodeId.toBigInteger(), RESPONSIBLE, WRONG_PASSWORD);
         } else {
             System.out.println("Login with success!");
-            response = new Message(CLIENT_SUCCESS, BigInteger.valueOf(nodeId), RESPONSIBLE, users.get(user_email).getPrivateKey(), users.get(user_email).getPublicKey());
+            response = new Message(CLIENT_SUCCESS, nodeId.toBigInteger(), RESPONSIBLE, users.get(user_email).getPrivateKey(), users.get(user_email).getPublicKey());
         }
 
         System.out.println("Size1 " + users.get(user_email).pendingRequests.size());
@@ -407,11 +867,10 @@ public class Server extends Node implements Serializable {
             if (users.get(participantHash) != null) {
                 if (chat.getCreatorEmail().equals(participantEmail)) {
                     users.get(participantHash).addChat(chat);
-                    Message response = new Message(CLIENT_SUCCESS, BigInteger.valueOf(nodeId), RESPONSIBLE, chat.getIdChat().toString(), CREATED_CHAT_WITH_SUCCESS);
-                    ServerConnection serverConnection = loggedInUsers.get(participantHash);
-                    if (serverConnection != null)
-                        serverConnection.sendMessage(response);
-                    sendInfoToBackup(new Message(BACKUP_USER, BigInteger.valueOf(nodeId), RESPONSIBLE, users.get(participantHash)));
+                    saveUser(participantHash);
+                    Message response = new Message(CLIENT_SUCCESS, nodeId.toBigInteger(), RESPONSIBLE, chat.getIdChat().toString(), CREATED_CHAT_WITH_SUCCESS);
+                    pushToUser(participantHash, response);
+                    sendInfoToBackup(new Message(BACKUP_USER, nodeId.toBigInteger(), RESPONSIBLE, users.get(participantHash)));
                 } else inviteUserToChat(chat, participantHash);
             } else {
                 Message message = new Message(CREATE_CHAT_BY_INVITATION, senderId, NOT_RESPONSIBLE, chat, participantHash);
@@ -422,7 +881,7 @@ public class Server extends Node implements Serializable {
             }
         }
 
-        return new Message(CLIENT_SUCCESS, BigInteger.valueOf(nodeId), RESPONSIBLE, chat.getIdChat().toString(), SENT_INVITATIONS);
+        return new Message(CLIENT_SUCCESS, nodeId.toBigInteger(), RESPONSIBLE, chat.getIdChat().toString(), SENT_INVITATIONS);
 
     }
 
@@ -430,23 +889,23 @@ public class Server extends Node implements Serializable {
 
         printLoggedInUsers();
 
-        if (loggedInUsers.get(clientId) == null) {
+        Message invitation = new Message(NEW_CHAT_INVITATION, nodeId.toBigInteger(), RESPONSIBLE, chat, clientId);
+
+        if (pushToUser(clientId, invitation)) {
+            users.get(clientId).addChat(chat);
+            System.out.println("Sending invitation to logged in user");
+        } else {
             System.out.println("Added to pending chats");
             System.out.println("Chat name " + chat.getChatName());
             System.out.println("Client id " + clientId);
             if (users.get(clientId) != null)
                 users.get(clientId).addPendingChat(chat);
-        } else {
-            users.get(clientId).addChat(chat);
-            System.out.println("Sending invitation to logged in user");
-            Message response = new Message(NEW_CHAT_INVITATION, BigInteger.valueOf(nodeId), RESPONSIBLE, chat, clientId);
-            ServerConnection userConnection = loggedInUsers.get(clientId);
-            userConnection.sendMessage(response);
         }
+        saveUser(clientId);
 
-        sendInfoToBackup(new Message(BACKUP_USER, BigInteger.valueOf(nodeId), RESPONSIBLE, users.get(clientId)));
+        sendInfoToBackup(new Message(BACKUP_USER, nodeId.toBigInteger(), RESPONSIBLE, users.get(clientId)));
 
-        return new Message(SERVER_SUCCESS, BigInteger.valueOf(nodeId), RESPONSIBLE, SENT_INVITATIONS);
+        return new Message(SERVER_SUCCESS, nodeId.toBigInteger(), RESPONSIBLE, SENT_INVITATIONS);
     }
 
 
@@ -465,8 +924,10 @@ public class Server extends Node implements Serializable {
                 if (!chatMessage.getUserId().toString().equals(participantHash.toString())) {
                     sendMessageToUser(chatMessage, participantHash);
                 } else {
-                    users.get(participantHash).getChat(chatMessage.getChatId()).addChatMessage(chatMessage);
-                    sendInfoToBackup(new Message(BACKUP_USER, BigInteger.valueOf(nodeId), RESPONSIBLE, users.get(participantHash)));
+                    if (!addChatMessage(participantHash, users.get(participantHash).getChat(chatMessage.getChatId()), chatMessage, false))
+                        return new Message(CLIENT_ERROR, nodeId.toBigInteger(), RESPONSIBLE, MESSAGE_NOT_SENT);
+                    trimChat(participantHash, chatMessage.getChatId());
+                    sendInfoToBackup(new Message(BACKUP_USER, nodeId.toBigInteger(), RESPONSIBLE, users.get(participantHash)));
                 }
             } else {
                 Message message = new Message(NEW_MESSAGE_TO_PARTICIPANT, senderId, NOT_RESPONSIBLE, chatMessage, participantHash);
@@ -477,29 +938,32 @@ public class Server extends Node implements Serializable {
             }
         }
 
-        return new Message(CLIENT_SUCCESS, BigInteger.valueOf(nodeId), RESPONSIBLE, chat.getIdChat().toString(), SENT_MESSAGE);
+        return new Message(CLIENT_SUCCESS, nodeId.toBigInteger(), RESPONSIBLE, chat.getIdChat().toString(), SENT_MESSAGE);
 
     }
 
     public Message sendMessageToUser(ChatMessage chatMessage, BigInteger clientId) {
 
-        if (loggedInUsers.get(clientId) == null) {
+        Message push = new Message(NEW_MESSAGE, nodeId.toBigInteger(), RESPONSIBLE, chatMessage, clientId);
+
+        boolean saved = true;
+        if (pushToUser(clientId, push)) {
+            System.out.println("Sending message to logged in user");
+            saved = addChatMessage(clientId, users.get(clientId).getChat(chatMessage.getChatId()), chatMessage, false);
+            trimChat(clientId, chatMessage.getChatId());
+        } else {
             System.out.println("Added to pending messages");
             if (users.get(clientId) != null) {
                 if (users.get(clientId).getChats().get(chatMessage.getChatId()) != null)
-                    users.get(clientId).getChat(chatMessage.getChatId()).addPendingChatMessage(chatMessage);
+                    saved = addChatMessage(clientId, users.get(clientId).getChat(chatMessage.getChatId()), chatMessage, true);
             }
-        } else {
-            System.out.println("Sending message to logged in user");
-            users.get(clientId).getChat(chatMessage.getChatId()).addChatMessage(chatMessage);
-            Message response = new Message(NEW_MESSAGE, BigInteger.valueOf(nodeId), RESPONSIBLE, chatMessage, clientId);
-            ServerConnection userConnection = loggedInUsers.get(clientId);
-            userConnection.sendMessage(response);
         }
 
-        sendInfoToBackup(new Message(BACKUP_USER, BigInteger.valueOf(nodeId), RESPONSIBLE, users.get(clientId)));
+        sendInfoToBackup(new Message(BACKUP_USER, nodeId.toBigInteger(), RESPONSIBLE, users.get(clientId)));
 
-        return new Message(SERVER_SUCCESS, BigInteger.valueOf(nodeId), RESPONSIBLE, TEXT_MESSAGE);
+        if (!saved)
+            return new Message(SERVER_ERROR, nodeId.toBigInteger(), RESPONSIBLE, MESSAGE_NOT_SENT);
+        return new Message(SERVER_SUCCESS, nodeId.toBigInteger(), RESPONSIBLE, TEXT_MESSAGE);
     }
 
 
@@ -520,24 +984,140 @@ public class Server extends Node implements Serializable {
         if (chat == null)
             System.out.println("Null Chat");
 
-        Message message = new Message(CLIENT_SUCCESS, BigInteger.valueOf(nodeId), RESPONSIBLE, chat);
+        Message message = new Message(CLIENT_SUCCESS, nodeId.toBigInteger(), RESPONSIBLE, chat);
         return message;
     }
 
 
+    /**
+     * Returns a page of the chat messages of a chat, read from the chat and from its chat history
+     *
+     * @param clientId client id
+     * @param body     ChatId Cursor Direction Limit
+     * @return CHAT_PAGE message, or an error if the chat is not found
+     */
+    public Message getChatPage(BigInteger clientId, String[] body) {
+
+        BigInteger chatId = new BigInteger(body[0]);
+        User user = users.get(clientId);
+        Chat chat = user == null ? null : user.getChat(chatId);
+
+        if (chat == null)
+            return new Message(CLIENT_ERROR, nodeId.toBigInteger(), RESPONSIBLE, ERROR_LOADING_CHAT);
+
+        try {
+            long cursor = body[1].equals(CHAT_END) ? -1 : Long.parseLong(body[1]);
+            ChatPage page = readChatPage(clientId, chat, cursor, body[2].equals(NEWER), Integer.parseInt(body[3]));
+            return new Message(CHAT_PAGE, nodeId.toBigInteger(), RESPONSIBLE, page);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return new Message(CLIENT_ERROR, nodeId.toBigInteger(), RESPONSIBLE, ERROR_LOADING_CHAT);
+        }
+    }
+
+    /**
+     * Reads a page of the chat messages of a chat of a user, from the chat and from its chat history
+     *
+     * @param clientId client id
+     * @param chat     chat
+     * @param cursor   sequence number, or -1 for the end of the chat
+     * @param newer    true for the chat messages from the cursor, false for the ones before it
+     * @param limit    most chat messages, up to CHAT_PAGE_MAX
+     * @return chat page
+     * @throws IOException if the chat history could not be read
+     */
+    private ChatPage readChatPage(BigInteger clientId, Chat chat, long cursor, boolean newer, int limit) throws IOException {
+
+        long first;
+        ChatMessage[] tail;
+        synchronized (chat) {
+            first = chat.getFirstMessage();
+            tail = chat.getChatMessages().toArray(new ChatMessage[0]);
+        }
+
+        long start = history.getStart(clientId, chat.getIdChat(), first);
+        long end = first + tail.length;
+        cursor = cursor < 0 ? end : Math.max(start, Math.min(end, cursor));
+        limit = Math.max(1, Math.min(CHAT_PAGE_MAX, limit));
+
+        long from = newer ? cursor : Math.max(start, cursor - limit);
+        long to = newer ? Math.min(end, cursor + limit) : cursor;
+
+        ArrayList<ChatMessage> chatMessages = new ArrayList<>(history.read(clientId, chat.getIdChat(), from, Math.min(to, first)));
+        for (long sequence = Math.max(from, first); sequence < to; sequence++)
+            chatMessages.add(tail[(int) (sequence - first)]);
+
+        return new ChatPage(chat.getIdChat(), from, to, start, end, chatMessages);
+    }
+
+    /**
+     * Returns what changed on the chats of a user since the client last synced them: the chats it does not know,
+     * with their last page, and for the others the new chat messages and pending messages, and the participants and
+     * keys if they changed. Chats with no change are left out
+     * A client that missed more than CHAT_PAGE_MAX chat messages of a chat gets its last page instead
+     *
+     * @param clientId client id
+     * @param body     [ChatId Messages Pending Members]... for every chat the client knows
+     * @return CHAT_UPDATES message
+     */
+    public Message syncChats(BigInteger clientId, String[] body) {
+
+        User user = users.get(clientId);
+        if (user == null)
+            return new Message(CLIENT_ERROR, nodeId.toBigInteger(), RESPONSIBLE, ERROR_LOADING_CHAT);
+
+        HashMap<BigInteger, String[]> known = new HashMap<>();
+        for (int i = 0; i + 3 < body.length; i += 4)
+            known.put(new BigInteger(body[i]), new String[]{body[i + 1], body[i + 2], body[i + 3]});
+
+        ArrayList<ChatUpdate> updates = new ArrayList<>();
+        try {
+            for (Chat chat : user.getChats().values()) {
+                String[] seen = known.get(chat.getIdChat());
+
+                Chat header = null;
+                if (seen == null || Integer.parseInt(seen[2]) != chat.getMembersHash()) {
+                    header = new Chat(chat.getIdChat(), chat.getChatName(), chat.getCreatorEmail());
+                    for (String participant : chat.getParticipants())
+                        header.addParticipant(participant);
+                    header.getUsersPubKeys().putAll(chat.getUsersPubKeys());
+                }
+
+                long messages = seen == null ? -1 : Long.parseLong(seen[0]);
+                ChatPage page;
+                if (messages < 0 || chat.getMessageCount() - messages > CHAT_PAGE_MAX)
+                    page = readChatPage(clientId, chat, -1, false, CHAT_PAGE_SIZE);
+                else
+                    page = readChatPage(clientId, chat, messages, true, CHAT_PAGE_MAX);
+
+                ChatMessage[] pending;
+                synchronized (chat) {
+                    pending = chat.getChatPendingMessages().toArray(new ChatMessage[0]);
+                }
+                int pendingFrom = seen == null ? 0 : Math.max(0, Math.min(pending.length, Integer.parseInt(seen[1])));
+                ArrayList<ChatMessage> pendingMessages = new ArrayList<>(Arrays.asList(pending).subList(pendingFrom, pending.length));
+
+                if (seen == null || header != null || !page.getChatMessages().isEmpty() || !pendingMessages.isEmpty())
+                    updates.add(new ChatUpdate(chat.getIdChat(), header, page, pendingFrom, pendingMessages));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return new Message(CLIENT_ERROR, nodeId.toBigInteger(), RESPONSIBLE, ERROR_LOADING_CHAT);
+        }
+
+        return new Message(CHAT_UPDATES, nodeId.toBigInteger(), RESPONSIBLE, updates);
+    }
+
     public Message getAllChats(BigInteger clientId) {
 
         for (ConcurrentHashMap.Entry<BigInteger, Chat> entry : users.get(clientId).getChats().entrySet()) {
             Chat chat = entry.getValue();
 
-            if (loggedInUsers.get(clientId) != null) {
-                Message message = new Message(CLIENT_SUCCESS, BigInteger.valueOf(nodeId), RESPONSIBLE, chat);
-                ServerConnection userConnection = loggedInUsers.get(clientId);
-                userConnection.sendMessage(message);
-            }
+            if (loggedInUsers.get(clientId) != null)
+                pushToUser(clientId, new Message(CLIENT_SUCCESS, nodeId.toBigInteger(), RESPONSIBLE, chat));
         }
 
-        Message message = new Message(CLIENT_SUCCESS, BigInteger.valueOf(nodeId), RESPONSIBLE, SENT_CHATS);
+        Message message = new Message(CLIENT_SUCCESS, nodeId.toBigInteger(), RESPONSIBLE, SENT_CHATS);
         return message;
     }
 
@@ -547,134 +1127,157 @@ public class Server extends Node implements Serializable {
         for (ConcurrentHashMap.Entry<BigInteger, Chat> entry : users.get(clientId).getPendingRequests().entrySet()) {
             Chat chat = entry.getValue();
 
-            if (loggedInUsers.get(clientId) != null) {
+            //an invitation dropped as the client reads slowly stays pending
+            Message response = new Message(NEW_CHAT_INVITATION, nodeId.toBigInteger(), RESPONSIBLE, chat, clientId);
+            if (pushToUser(clientId, response)) {
                 users.get(clientId).addChat(chat);
                 users.get(clientId).deletePendingRequest(chat.getIdChat());
-                Message response = new Message(NEW_CHAT_INVITATION, BigInteger.valueOf(nodeId), RESPONSIBLE, chat, clientId);
-                ServerConnection userConnection = loggedInUsers.get(clientId);
-                userConnection.sendMessage(response);
             }
 
         }
+        saveUser(clientId);
 
-        Message message = new Message(CLIENT_SUCCESS, BigInteger.valueOf(nodeId), RESPONSIBLE, SENT_PENDING_CHATS);
+        Message message = new Message(CLIENT_SUCCESS, nodeId.toBigInteger(), RESPONSIBLE, SENT_PENDING_CHATS);
         return message;
     }
 
-    public Message downloadFile(ServerConnection connection, Message message, BigInteger clientId, BigInteger senderId) {
-
-        //inicio + fim do ficheiro
-        //requiredChatId.intValue() + "/" + filename;
-
-        FileInputStream inputStream;
-        String filename = "data/" + Integer.toString(getNodeId()) + "/" + message.getBody();
-        System.out.println(filename);
+    /**
+     * Sets up the download of a file stored for a client, sent on a bulk connection
+     *
+     * @param message DOWNLOAD_FILE message, with the path of the file: ClientId/ChatId/Filename
+     * @return FILE_TRANSFER with the token of the download, or an error if there is no such file
+     */
+    public Message downloadFile(Message message) {
+        File file = new File("data/" + getNodeId() + "/" + message.getBody());
+        System.out.println(file.getPath());
 
-        try {
-            inputStream = new FileInputStream(filename);
-        } catch (FileNotFoundException e) {
+        if (fileTransfers == null || !file.isFile()) {
             System.out.println("Could not open file to download.");
-            Message response = new Message(CLIENT_ERROR, BigInteger.valueOf(nodeId), RESPONSIBLE, ERROR_DOWNLOADING_FILE);
-            return response;
+            return new Message(CLIENT_ERROR, nodeId.toBigInteger(), RESPONSIBLE, ERROR_DOWNLOADING_FILE);
         }
 
-        String body[] = message.getBody().split("/");
-        String requiredChatId = body[1];
-
-        try {
-
-            int bytesRead;
-            byte[] chunk = new byte[8192];
-
-            while ((bytesRead = inputStream.read(chunk)) != -1) {
-
-                byte[] chunkToSend = new byte[bytesRead];
-                System.arraycopy(chunk, 0, chunkToSend, 0, bytesRead);
-
-                Message messageToSend = null;
-                Date date = new Date();
-                ChatMessage chatMessageToSend = new ChatMessage(new BigInteger(requiredChatId), date, new BigInteger(body[1]), chunkToSend, IMAGE_MESSAGE, body[2]);
-
-                messageToSend = new Message(DOWNLOADING_FILE, BigInteger.valueOf(nodeId), RESPONSIBLE, chatMessageToSend, new BigInteger(body[1]));
+        String token = fileTransfers.offerDownload(file);
+        return fileTransfer(token, DOWNLOAD, file.length(), file.getName(), null);
+    }
 
-                System.out.println("Sending file...........");
+    /**
+     * Sets up the upload of a file sent by a client to a chat, stored for each participant once it arrives
+     *
+     * @param message  FILE_TRANSACTION message, with the chat message of the file, its size and the upload id of the client
+     * @param clientId client sending the file
+     * @return FILE_TRANSFER with the token of the upload and the upload id, or an error if the chat is not known
+     */
+    public Message loadFileOnParticipants(Message message, BigInteger clientId) {
 
-                connection.sendMessage(messageToSend);
+        ChatMessage chatMessage = (ChatMessage) message.getObject();
+        User user = users.get(clientId);
 
-                  /*  Message response = connection.receiveMessage();
+        if (fileTransfers == null || user == null || user.getChat(chatMessage.getChatId()) == null)
+            return new Message(CLIENT_ERROR, nodeId.toBigInteger(), RESPONSIBLE, ERROR_UPLOADING_FILE);
 
-                    if (!response.getMessageType().equals(CLIENT_SUCCESS)) {
-                        System.out.println("ERROR SENDING FILE...");
-                        return;
-                    }*/
-            }
+        String[] arguments = message.getArguments();
+        long size = Long.parseLong(arguments[0]);
+        String token = fileTransfers.expectUpload(getFile(clientId, chatMessage), size, file -> storeFileOnParticipants(chatMessage, clientId, file));
 
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        Message response = new Message(SERVER_SUCCESS, BigInteger.valueOf(nodeId), RESPONSIBLE, SENT_FILE);
-        return response;
+        return fileTransfer(token, UPLOAD, size, chatMessage.getFilename(), arguments.length > 1 ? arguments[1] : null);
     }
 
-    public Message loadFileOnParticipants(ServerConnection connection, Message message, BigInteger clientId, BigInteger senderId) {
-
-        ChatMessage chatMessage = (ChatMessage) message.getObject();
+    /**
+     * Gives a copy of a file uploaded to a chat to each other participant: a local copy to those of this server,
+     * an upload to the servers of the others
+     */
+    private void storeFileOnParticipants(ChatMessage chatMessage, BigInteger clientId, File file) {
 
         Chat chat = users.get(clientId).getChat(chatMessage.getChatId());
 
         for (String participantEmail : chat.getParticipants()) {
 
-            System.out.println(1111111);
-
             BigInteger participantHash = createHash(participantEmail);
+            if (participantHash.equals(clientId))
+                continue;
 
             if (users.get(participantHash) != null) {
-                loadingFile(connection, message, participantHash);
+                File copy = getFile(participantHash, chatMessage);
+                copy.getParentFile().mkdirs();
+                try {
+                    Files.copy(file.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
             } else {
-
-                Message messageParticipant = new Message(STORE_FILE_ON_PARTICIPANT, participantHash, NOT_RESPONSIBLE, chatMessage, participantHash);
-                Runnable task = () -> {
-                    redirect(connection, messageParticipant);
-                };
-                threadPool.submit(task);
+                threadPool.submit(() -> uploadToParticipant(chatMessage, participantHash, file));
             }
         }
-        return new Message(CLIENT_SUCCESS, BigInteger.valueOf(nodeId), RESPONSIBLE, SENT_FILE);
     }
 
-    public Message loadingFile(ServerConnection connection, Message message, BigInteger clientId) {
+    /**
+     * Sets up the upload of a file on the server of a participant, then sends it there
+     */
+    private void uploadToParticipant(ChatMessage chatMessage, BigInteger participantHash, File file) {
+
+        Message request = new Message(STORE_FILE_ON_PARTICIPANT, participantHash, NOT_RESPONSIBLE, chatMessage, participantHash);
+        request.setArguments(Long.toString(file.length()));
+
+        Answer answer = new Answer();
+        redirect(new ServerConnection(answer, this), request);
+
+        Message response = answer.await(BULK_TOKEN_TIMEOUT);
+        if (response == null || !response.getMessageType().equals(FILE_TRANSFER)) {
+            System.out.println("Could not store " + file.getName() + " on participant " + RingIdentifier.fromHash(participantHash));
+            return;
+        }
+
+        String[] body = response.getArguments();
+        try {
+            FileTransfers.upload(body[2], Integer.parseInt(body[3]), body[0], file);
+        } catch (IOException e) {
+            System.out.println("Failed to send " + file.getName() + " to participant " + RingIdentifier.fromHash(participantHash) + ": " + e.getMessage());
+        }
+    }
 
+    /**
+     * Sets up the upload of a file to a chat, sent by the server of another participant
+     *
+     * @param message  STORE_FILE_ON_PARTICIPANT message, with the chat message of the file and its size
+     * @param clientId participant
+     * @return FILE_TRANSFER with the token of the upload
+     */
+    public Message loadingFile(Message message, BigInteger clientId) {
 
         System.out.println("Sender " + message.getSenderId());
         System.out.println("Receiver  " + message.getReceiver());
 
+        if (fileTransfers == null)
+            return new Message(SERVER_ERROR, nodeId.toBigInteger(), RESPONSIBLE, ERROR_UPLOADING_FILE);
+
         ChatMessage chatMessage = (ChatMessage) message.getObject();
-        String filename = new String(chatMessage.getFilename());
-        OutputStream outputStream = null;
-        Message newMessage = null;
+        long size = Long.parseLong(message.getArguments()[0]);
+        String token = fileTransfers.expectUpload(getFile(clientId, chatMessage), size, null);
 
-        File yourFile = new File("data/" + Integer.toString(getNodeId()) + "/" + clientId.intValue() + "/" + chatMessage.getChatId().intValue() + "/" + filename);
-        System.out.println(yourFile.getPath());
+        return fileTransfer(token, UPLOAD, size, chatMessage.getFilename(), null);
+    }
 
-        if (!yourFile.exists()) {
-            yourFile.getParentFile().mkdirs(); // Will create parent directories if not exists
-            try {
-                yourFile.createNewFile();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
-        try {
-            outputStream = new FileOutputStream(yourFile, true);
-            System.out.println(chatMessage.getContent().length);
-            outputStream.write(chatMessage.getContent());
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    /**
+     * @return file of a chat stored for a client
+     */
+    private File getFile(BigInteger clientId, ChatMessage chatMessage) {
+        return new File("data/" + getNodeId() + "/" + clientId.intValue() + "/" + chatMessage.getChatId().intValue() + "/" + chatMessage.getFilename());
+    }
 
-        Message response = new Message(SERVER_SUCCESS, BigInteger.valueOf(nodeId), RESPONSIBLE, SENT_FILE);
-        return response;
+    /**
+     * @param uploadId id the client gave to the upload, echoed back, or null
+     */
+    private Message fileTransfer(String token, String direction, long size, String filename, String uploadId) {
+        if (uploadId == null)
+            return new Message(FILE_TRANSFER, nodeId.toBigInteger(), RESPONSIBLE, token, direction, nodeIp, Integer.toString(getBulkPort()), Long.toString(size), filename);
+        return new Message(FILE_TRANSFER, nodeId.toBigInteger(), RESPONSIBLE, token, direction, nodeIp, Integer.toString(getBulkPort()), Long.toString(size), filename, uploadId);
+    }
+
+    /**
+     * @return port of the file transfers
+     */
+    public int getBulkPort() {
+        return getNodePort() + BULK_PORT_OFFSET;
     }
 
     public Message storeFileMessage(ServerConnection connection, ChatMessage chatMessage, BigInteger clientId, BigInteger senderId) {
@@ -689,7 +1292,7 @@ public class Server extends Node implements Serializable {
         PublicKey pubKey = message.getPublicKey();
         String chatId = message.getChatId();
 
-        System.out.println("RECEIVER ID: " + Integer.remainderUnsigned(receiverId.intValue(), 128));
+        System.out.println("RECEIVER ID: " + RingIdentifier.fromHash(receiverId));
 
         Chat chat = users.get(senderId).getChats().get(new BigInteger(chatId));
 
@@ -700,16 +1303,13 @@ public class Server extends Node implements Serializable {
             //if this server is responsible for this participant send client a message
             if (users.get(participantHash) != null) {
                 users.get(participantHash).getChats().get(new BigInteger(chatId)).getUsersPubKeys().put(senderId, pubKey);
+                saveUser(participantHash);
                 System.out.println("ADDING pub key");
             } else {
-                Node n = this.getDht().nodeLookUp(Integer.remainderUnsigned(participantHash.intValue(), 128));
-                ServerConnection connection = new ServerConnection(n.getNodeIp(), n.getNodePort(), this);
-                message.setSenderId(participantHash);
-                message.setMessageType(ADD_PUBLIC_KEY);
-                message.setResponsible(NOT_RESPONSIBLE);
-                message.setReceiver(senderId);
+                //forwarded through the connection pool, its answer taken here since no client waits for it
+                Message addPubKey = new Message(ADD_PUBLIC_KEY, participantHash, NOT_RESPONSIBLE, chatId, pubKey, senderId);
                 Runnable task = () -> {
-                    redirect(connection, message);
+                    redirect(new ServerConnection(new Answer(), this), addPubKey);
                 };
                 threadPool.submit(task);
                 System.out.println("REDIRENCTING pub key");
@@ -723,7 +1323,7 @@ public class Server extends Node implements Serializable {
             System.out.println("Key: " + value);
         }
 
-        return new Message(CLIENT_SUCCESS, BigInteger.valueOf(nodeId), RESPONSIBLE, SENT_PUB_KEYS);
+        return new Message(CLIENT_SUCCESS, nodeId.toBigInteger(), RESPONSIBLE, SENT_PUB_KEYS);
     }
 
     public Message addPubKeyToChat(Message message) {
@@ -733,7 +1333,7 @@ public class Server extends Node implements Serializable {
         PublicKey pubKey = message.getPublicKey();
         String chatId = message.getChatId();
 
-        System.out.println("RECEIVER ID: " + Integer.remainderUnsigned(senderId.intValue(), 128));
+        System.out.println("RECEIVER ID: " + RingIdentifier.fromHash(senderId));
 
         Chat chat = users.get(senderId).getChats().get(new BigInteger(chatId));
 
@@ -744,8 +1344,9 @@ public class Server extends Node implements Serializable {
             //if this server is responsible for this participant send client a message
             if (users.get(participantHash) != null) {
                 users.get(participantHash).getChats().get(new BigInteger(chatId)).getUsersPubKeys().put(receiverId, pubKey);
+                saveUser(participantHash);
                 System.out.println("ADDING pub key");
-                loggedInUsers.get(participantHash).sendMessage(new Message(ADDED_PUB_KEYS, BigInteger.valueOf(nodeId), RESPONSIBLE, chatId, pubKey, receiverId));
+                pushToUser(participantHash, new Message(ADDED_PUB_KEYS, nodeId.toBigInteger(), RESPONSIBLE, chatId, pubKey, receiverId));
             }
         }
 
@@ -756,7 +1357,7 @@ public class Server extends Node implements Serializable {
             System.out.println("Key: " + value);
         }
 
-        return new Message(CLIENT_SUCCESS, BigInteger.valueOf(nodeId), RESPONSIBLE, ADDED_PUB_KEYS);
+        return new Message(CLIENT_SUCCESS, nodeId.toBigInteger(), RESPONSIBLE, ADDED_PUB_KEYS);
     }
 
     /**
@@ -767,6 +1368,37 @@ public class Server extends Node implements Serializable {
         printLoggedInUsers();
     }
 
+    /**
+     * Pushes a message to a logged in user, without waiting on a client that reads slowly
+     * A user whose client is disconnected for reading too slowly is signed out, so what follows goes to its inbox
+     *
+     * @param clientId id of the user
+     * @param message  message to be sent
+     * @return true if the message was queued to the client, false if the user is not logged in or it was dropped
+     */
+    private boolean pushToUser(BigInteger clientId, Message message) {
+        ServerConnection connection = loggedInUsers.get(clientId);
+        if (connection == null)
+            return false;
+
+        if (connection.push(message))
+            return true;
+
+        if (connection.isAborted() && loggedInUsers.remove(clientId, connection))
+            System.out.println("\nSigned out slow user with id: " + clientId);
+        return false;
+    }
+
+    /**
+     * Disconnects and signs out the logged in users whose clients stopped reading, releasing the threads
+     * stuck writing to them
+     */
+    private void disconnectStalledUsers() {
+        for (Map.Entry<BigInteger, ServerConnection> entry : loggedInUsers.entrySet())
+            if (Backpressure.getShared().disconnectIfStalled(entry.getValue()) && loggedInUsers.remove(entry.getKey(), entry.getValue()))
+                System.out.println("\nSigned out stalled user with id: " + entry.getKey());
+    }
+
     public void printLoggedInUsers() {
 
         System.out.println("");
@@ -791,39 +1423,46 @@ public class Server extends Node implements Serializable {
             System.out.println("\nSigned out user with id: " + userId);
         }
 
-        return (new Message(CLIENT_SUCCESS, BigInteger.valueOf(nodeId), RESPONSIBLE));
+        return (new Message(CLIENT_SUCCESS, nodeId.toBigInteger(), RESPONSIBLE));
     }
 
     /**
-     * Replicates info to his successor
+     * Replicates info to the successor of the virtual node that owns it, skipping
+     * successors hosted by this server, or to the next live node of the successor list
      *
      * @param message message with all the info to be backed up
      */
     public void sendInfoToBackup(Message message) {
-        Node successor = dht.getSuccessor();
+        DistributedHashTable vnode = dht;
 
-        if (successor == null) {
-            System.out.println("Successor unavailable");
-            return;
+        if (message.getObject() instanceof User) {
+            DistributedHashTable owner = getResponsibleDht(RingIdentifier.fromHash(((User) message.getObject()).getUserId()));
+            if (owner != null)
+                vnode = owner;
         }
 
-        ServerConnection handler = new ServerConnection(successor.getNodeIp(), successor.getNodePort(), this);
+        Node successor = null;
+        ArrayList<Node> successors = new ArrayList<>(vnode.getSuccessorList());
+        if (vnode.getSuccessor() != null)
+            successors.add(0, vnode.getSuccessor());
 
-        try {
-            handler.connect();
-        } catch (IOException e) {
-            serverDown(successor);
-            sendInfoToBackup(message);
-            return;
+        for (Node node : successors) {
+            if (!isSameServer(node)) {
+                successor = node;
+                break;
+            }
         }
-        handler.sendMessage(message);
-        try {
-            handler.receiveMessage();
-        } catch (IOException e) {
-            System.out.println("Function sendInfoToBackup: Failed to receive message");
-        } catch (ClassNotFoundException e) {
-            System.out.println("Function sendInfoToBackup: Failed to receive message");
+
+        if (successor == null) {
+            System.out.println("Successor unavailable");
+            return;
         }
+
+        Message response = requestLiveNode(vnode, successor, message);
+        if (response == null)
+            System.out.println("Function sendInfoToBackup: no live successor");
+        else if (response.getMessageType().equals(SERVER_ERROR))
+            System.out.println("Function sendInfoToBackup: backup failed on " + successor.getNodeId());
     }
 
     /**
@@ -842,9 +1481,13 @@ public class Server extends Node implements Serializable {
             case BACKUP_USER:
                 user = (User) message.getObject();
                 System.out.println("EHEHEHEHHEHEHE " + user.getUserId());
-                backups.put(user.getUserId(), user);
+                history.replace(backups.put(user.getUserId(), user), user);
+                if (store != null && !store.saveUser(BACKUP_USER, user)) {
+                    response = new Message(SERVER_ERROR, nodeId.toBigInteger(), RESPONSIBLE, BACKUP_USER);
+                    break;
+                }
                 System.out.println("Back up user from server " + message.getSenderId());
-                response = new Message(SERVER_SUCCESS, BigInteger.valueOf(nodeId), RESPONSIBLE, BACKUP_USER_DONE);
+                response = new Message(SERVER_SUCCESS, nodeId.toBigInteger(), RESPONSIBLE, BACKUP_USER_DONE);
                 break;
             default:
                 break;
@@ -860,7 +1503,7 @@ public class Server extends Node implements Serializable {
      */
     public void verifyState(Message response) {
 
-        String body[] = response.getBody().split(" ");
+        String body[] = response.getArguments();
 
         if (body.length == 0)
             return;
@@ -875,71 +1518,115 @@ public class Server extends Node implements Serializable {
     }
 
     /**
-     * Gets the respective users of a new server from a given container(users,backups) of the server
+     * Streams to a new node the users of the range (from, node] held on a given container
      *
      * @param node      New node/server
+     * @param from      start of the range, exclusive: the virtual node of this server that precedes the new node
      * @param container server user containers, users and backups
-     * @return a container of users
+     * @param type      ADD_USER or BACKUP_USER
      */
-    public Queue<User> getUsersOfANewServer(Node node, ConcurrentHashMap<BigInteger, User> container) {
-
-        Queue<User> newServerUsers = new LinkedList<User>();
-
-        int newNodeId = node.getNodeId();
+    public void sendInfoToPredecessor(Node node, RingIdentifier from, ConcurrentHashMap<BigInteger, User> container, String type) {
 
-        container.forEach((userId, user) -> {
-
-            int tempUserId = Integer.remainderUnsigned(userId.intValue(), 128);
+        System.out.println("Enviando info para o predecessor");
 
-            if (tempUserId < newNodeId || (tempUserId > nodeId && tempUserId < MAX_NUMBER_OF_NODES)) {
-                System.out.println("VOU APAGAR USER!!! " + tempUserId);
-                newServerUsers.add(user);
-                container.remove(userId, user);
-            }
+        new RangeTransfer(this, node, from, container, type).run();
+    }
 
-        });
+    /**
+     * Stores a batch of a range transfer, on the users or on the backups depending on its type
+     *
+     * @param message TRANSFER_BATCH message
+     * @return acknowledgement of the batch
+     */
+    public Message receiveTransferBatch(Message message) {
+
+        String[] body = message.getArguments();
+        ConcurrentHashMap<BigInteger, User> container = body[2].equals(BACKUP_USER) ? backups : users;
+
+        boolean saved = true;
+        for (Object object : (ArrayList<?>) message.getObject()) {
+            User user = (User) object;
+            container.put(user.getUserId(), user);
+            history.trim(user);
+            if (store != null)
+                saved &= store.saveUser(body[2].equals(BACKUP_USER) ? BACKUP_USER : ADD_USER, user);
+        }
 
-        return newServerUsers;
+        if (!saved)
+            return new Message(SERVER_ERROR, nodeId.toBigInteger(), RESPONSIBLE, body[0], body[1]);
+        return new Message(TRANSFER_ACK, nodeId.toBigInteger(), RESPONSIBLE, body[0], body[1]);
     }
 
-    public void sendInfoToPredecessor(Node node, ConcurrentHashMap<BigInteger, User> container, String type) {
-
-        Queue<User> predecessorUsers = getUsersOfANewServer(node, container);
+    /**
+     * Stores chat messages of the chat history of a user of a key range being transferred to this server
+     *
+     * @param message TRANSFER_HISTORY message
+     * @return TRANSFER_ACK, or SERVER_ERROR if they could not be stored
+     */
+    public Message receiveTransferHistory(Message message) {
 
-        System.out.println("Enviando info para o predecessor");
+        String[] body = message.getArguments();
+        ArrayList<?> objects = (ArrayList<?>) message.getObject();
+        ChatMessage[] chatMessages = new ChatMessage[objects.size()];
+        for (int i = 0; i < chatMessages.length; i++)
+            chatMessages[i] = (ChatMessage) objects.get(i);
 
-        Message message = null;
-        ServerConnection handler = new ServerConnection(node.getNodeIp(), node.getNodePort(), this);
         try {
-            handler.connect();
+            history.append(new BigInteger(body[2]), new BigInteger(body[3]), Long.parseLong(body[4]), chatMessages);
         } catch (IOException e) {
-            serverDown(node);
-            sendInfoToPredecessor(node, container, type);
-            return;
+            e.printStackTrace();
+            return new Message(SERVER_ERROR, nodeId.toBigInteger(), RESPONSIBLE, body[0], body[1]);
         }
 
-        Runnable task = null;
+        return new Message(TRANSFER_ACK, nodeId.toBigInteger(), RESPONSIBLE, body[0], body[1]);
+    }
+
+    /**
+     * Tells a logged in user whose data moved to another server to connect to it
+     *
+     * @param userId user id
+     * @param node   server that now holds the user
+     */
+    public void moveLoggedInUser(BigInteger userId, Node node) {
 
-        for (User user : predecessorUsers) {
+        ServerConnection connection = loggedInUsers.remove(userId);
+        if (connection == null)
+            return;
 
-            if (type.equals(ADD_USER) && loggedInUsers.containsKey(user.getUserId())) {
-                Message warnClient = new Message(SERVER_UPDATE_CONNECTION, BigInteger.valueOf(nodeId), RESPONSIBLE, node.getNodeIp(), Integer.toString(node.getNodePort()));
-                ServerConnection connection = loggedInUsers.get(user.getUserId());
-                connection.sendMessage(warnClient);
-                connection.closeConnection();
-                loggedInUsers.remove(user.getUserId());
-            }
+        Message warnClient = new Message(SERVER_UPDATE_CONNECTION, nodeId.toBigInteger(), RESPONSIBLE, node.getNodeIp(), Integer.toString(node.getNodePort()));
+        connection.sendMessage(warnClient);
+        connection.closeConnection();
+    }
 
-            //type = ADD_USER or BACKUP_USER
-            message = new Message(type, BigInteger.valueOf(nodeId), RESPONSIBLE, user);
-            handler.sendMessage(message);
-            try {
-                handler.receiveMessage();
-            } catch (IOException e) {
-                System.out.println("Function sendInfoToPredecessor: Failed to receive message");
-            } catch (ClassNotFoundException e) {
-                System.out.println("Function sendInfoToPredecessor: Failed to receive message");
-            }
+    /**
+     * Verifies if the owner answers a message with exactly one message on the connection it came from,
+     * so the connection can be given back to the pool afterwards
+     * Sign ins and sign ups are not: the owner keeps the connection to reach the user. Neither are
+     * messages whose handling forwards copies to other owners and relays their answers on the same connection
+     * Files are not sent on the connection: uploads and downloads are answered with the token of a bulk transfer
+     *
+     * @param messageType message type
+     * @return true if the message can go through the connection pool
+     */
+    public boolean isAnsweredOnce(String messageType) {
+
+        switch (messageType) {
+            case GET_CHAT:
+            case GET_CHAT_PAGE:
+            case SYNC:
+            case GET_ALL_CHATS:
+            case GET_ALL_PENDING_CHATS:
+            case SIGNOUT:
+            case CREATE_CHAT_BY_INVITATION:
+            case NEW_MESSAGE_TO_PARTICIPANT:
+            case FILE_TRANSACTION:
+            case STORE_FILE_ON_PARTICIPANT:
+            case DOWNLOAD_FILE:
+            case PUBLIC_KEY:
+            case ADD_PUBLIC_KEY:
+                return true;
+            default:
+                return false;
         }
     }
 
@@ -957,10 +1644,10 @@ public class Server extends Node implements Serializable {
 
     public void isResponsible(ServerConnection connection, Message message) {
         String[] body = {""};
-        if (message.getBody() != null)
-            body = message.getBody().split(" ");
+        if (message.getArguments().length > 0)
+            body = message.getArguments();
 
-        System.out.println("REQUEST ID: " + Integer.remainderUnsigned(message.getSenderId().intValue(), 128));
+        System.out.println("REQUEST ID: " + RingIdentifier.fromHash(message.getSenderId()));
 
         if (isToUseReceiver(message.getMessageType())) {
             if (message.getResponsible().equals(NOT_RESPONSIBLE)) {
@@ -997,6 +1684,12 @@ public class Server extends Node implements Serializable {
             case GET_CHAT:
                 response = getChat(body[0], message.getSenderId());
                 break;
+            case GET_CHAT_PAGE:
+                response = getChatPage(message.getSenderId(), body);
+                break;
+            case SYNC:
+                response = syncChats(message.getSenderId(), body);
+                break;
             case GET_ALL_CHATS:
                 response = getAllChats(message.getSenderId());
                 break;
@@ -1010,27 +1703,25 @@ public class Server extends Node implements Serializable {
                 if (users.containsKey(message.getReceiver()))
                     response = inviteUserToChat((Chat) message.getObject(), message.getReceiver());
                 else
-                    response = new Message(SERVER_ERROR, BigInteger.valueOf(nodeId), RESPONSIBLE, USER_NOT_EXISTS);
+                    response = new Message(SERVER_ERROR, nodeId.toBigInteger(), RESPONSIBLE, USER_NOT_EXISTS);
                 break;
             case NEW_MESSAGE_TO_PARTICIPANT:
                 if (users.containsKey(message.getReceiver()))
                     response = sendMessageToUser((ChatMessage) message.getObject(), message.getReceiver());
                 else
-                    response = new Message(SERVER_ERROR, BigInteger.valueOf(nodeId), RESPONSIBLE, MESSAGE_NOT_SENT);
+                    response = new Message(SERVER_ERROR, nodeId.toBigInteger(), RESPONSIBLE, MESSAGE_NOT_SENT);
                 break;
             case FILE_TRANSACTION:
-                System.out.println("CHEGUEIIII 111111");
-                response = loadFileOnParticipants(connection, message, message.getReceiver(), message.getSenderId());
+                response = loadFileOnParticipants(message, message.getReceiver());
                 break;
             case STORE_FILE_ON_PARTICIPANT:
-                System.out.println("CHEGUEIIII");
-                response = loadingFile(connection, message, message.getReceiver());
+                response = loadingFile(message, message.getReceiver());
                 break;
             case STORE_FILE_MESSAGE:
                 response = storeFileMessage(connection, (ChatMessage) message.getObject(), message.getReceiver(), message.getSenderId());
                 break;
             case DOWNLOAD_FILE:
-                response = downloadFile(connection, message, message.getReceiver(), message.getSenderId());
+                response = downloadFile(message);
                 break;
             case PUBLIC_KEY:
                 response = sendPubKeyToChat(message);
@@ -1048,85 +1739,239 @@ public class Server extends Node implements Serializable {
     }
 
 
+    /**
+     * Answers a FIND_SUCCESSOR request with the owner of the key, if it is known by
+     * this server, or with the next hop the origin has to ask
+     * Answers with the owner carry on the body the start of the range it owns
+     *
+     * @param key ring identifier
+     * @return FIND_SUCCESSOR_ANSWER message
+     */
+    public Message findSuccessor(RingIdentifier key) {
+
+        Message answer;
+        DistributedHashTable owner = getResponsibleDht(key);
+        DistributedHashTable closest = getClosestDht(key);
+
+        if (owner != null) {
+            answer = new Message(FIND_SUCCESSOR_ANSWER, nodeId.toBigInteger(), RESPONSIBLE, owner.getNode());
+            answer.setArguments(owner.getPredecessor().getNodeId().toString());
+        } else if (closest.isSuccessorResponsibleFor(key)) {
+            answer = new Message(FIND_SUCCESSOR_ANSWER, nodeId.toBigInteger(), RESPONSIBLE, closest.nodeLookUp(key));
+            answer.setArguments(closest.getNode().getNodeId().toString());
+        } else {
+            answer = new Message(FIND_SUCCESSOR_ANSWER, nodeId.toBigInteger(), NOT_RESPONSIBLE, closest.nodeLookUp(key));
+        }
+
+        return answer;
+    }
+
+    /**
+     * Iteratively looks up the server responsible for a key: the hops are asked for
+     * the next one with FIND_SUCCESSOR, and no request is proxied through them
+     *
+     * @param key ring identifier
+     * @return responsible node, or null if the lookup could not be completed
+     */
+    public Node lookUpOwner(RingIdentifier key) {
+        return lookUpOwner(key, findSuccessor(key));
+    }
+
+    /**
+     * Iteratively looks up the server responsible for a key, starting on a given node
+     *
+     * @param key       ring identifier
+     * @param startNode first node to be asked
+     * @return responsible node, or null if the lookup could not be completed
+     */
+    public Node lookUpOwner(RingIdentifier key, Node startNode) {
+        return lookUpOwner(key, new Message(FIND_SUCCESSOR_ANSWER, nodeId.toBigInteger(), NOT_RESPONSIBLE, startNode));
+    }
+
+    private Node lookUpOwner(RingIdentifier key, Message answer) {
+
+        int hops = 0;
+
+        while (answer.getResponsible().equals(NOT_RESPONSIBLE)) {
+
+            if (++hops > MAX_LOOKUP_HOPS) {
+                System.out.println("Lookup of " + key + " exceeded " + MAX_LOOKUP_HOPS + " hops");
+                return null;
+            }
+
+            Node next = (Node) answer.getObject();
+            if (isSameServer(next)) {
+                answer = findSuccessor(key);
+                continue;
+            }
+
+            try {
+                answer = connectionPool.request(next, new Message(FIND_SUCCESSOR, nodeId.toBigInteger(), NOT_RESPONSIBLE, key.toString()));
+            } catch (ConnectionPool.PeerUnreachableException e) {
+                serverDown(next);
+                return null;
+            } catch (IOException e) {
+                System.out.println("Function lookUpOwner: Failed to receive message");
+                return null;
+            }
+        }
+
+        Node owner = (Node) answer.getObject();
+        if (answer.getArguments().length > 0)
+            routeCache.put(RingIdentifier.parse(answer.getArguments()[0]), owner);
+
+        return owner;
+    }
+
+    /**
+     * Forwards a message to the server responsible for it
+     * The owner is taken from the route cache or, on iterative mode, looked up first
+     * and contacted directly, otherwise the message goes one hop closer to it
+     *
+     * @param initialConnection connection where the response must be sent
+     * @param message           message to be forwarded
+     */
     public void redirect(ServerConnection initialConnection, Message message) {
+        redirect(initialConnection, message, 0);
+    }
+
+    /**
+     * @param attempt number of nodes already found down while forwarding this message
+     */
+    private void redirect(ServerConnection initialConnection, Message message, int attempt) {
 
-        int tempId;
-        boolean foundResponsible = false;
+        RingIdentifier tempId;
         if (isToUseReceiver(message.getMessageType())) {
-            tempId = Integer.remainderUnsigned(message.getReceiver().intValue(), 128);
+            tempId = RingIdentifier.fromHash(message.getReceiver());
             System.out.println("RECEIVER");
         } else {
-            tempId = Integer.remainderUnsigned(message.getSenderId().intValue(), 128);
+            tempId = RingIdentifier.fromHash(message.getSenderId());
             System.out.println("SENDER");
         }
 
         System.out.println("REDIRECTING ID: " + tempId);
 
-        Node n = dht.nodeLookUp(tempId);
+        boolean isLocal = getResponsibleDht(tempId) != null;
+        Node owner = null;
+        if (!isLocal) {
+            owner = routeCache.get(tempId);
+            if (owner == null && ITERATIVE_LOOKUP)
+                owner = lookUpOwner(tempId);
+        }
 
-        if (n.getNodeId() == this.getNodeId()) {
-            System.out.println("Redirect to successor");
-            n = dht.getFingerTable().get(1);
-        } else if (n.getNodeId() == dht.getFingerTable().get(1).getNodeId()) {
-            System.out.println("Responsible for " + tempId + " is " + n.getNodeId());
+        if (isLocal || (owner != null && isSameServer(owner))) {
+            System.out.println("Responsible for " + tempId + " is this server");
+            message.setResponsible(RESPONSIBLE);
+            isResponsible(initialConnection, message);
+            return;
+        }
+
+        Node n;
+        boolean foundResponsible;
+
+        if (owner != null) {
+            n = owner;
             foundResponsible = true;
         } else {
-            n = dht.nodeLookUp(n.getNodeId());
-            if (n.getNodeId() == this.getNodeId()) {
-                System.out.println("Redirect to successor");
-                n = dht.getFingerTable().get(1);
-            }
-            System.out.println("Jumping message to " + n.getNodeId());
+            DistributedHashTable closest = getClosestDht(tempId);
+            n = closest.nodeLookUp(tempId);
+            foundResponsible = closest.isSuccessorResponsibleFor(tempId);
         }
 
-        ServerConnection redirect = new ServerConnection(n.getNodeIp(), n.getNodePort(), this);
-        try {
-            redirect.connect();
-        } catch (IOException e) {
-            serverDown(n);
-            redirect(initialConnection, message);
-            return;
-        }
+        if (foundResponsible)
+            System.out.println("Responsible for " + tempId + " is " + n.getNodeId());
+        else
+            System.out.println("Jumping message to " + n.getNodeId());
+
         if (foundResponsible) {
             message.setResponsible(RESPONSIBLE);
         } else {
             message.setResponsible(NOT_RESPONSIBLE);
         }
 
-        redirect.sendMessage(message);
+        Message response;
+        try {
+            response = forward(n, message);
+        } catch (ConnectionPool.PeerUnreachableException e) {
+            serverDown(n);
+            if (attempt < SUCCESSOR_LIST_SIZE)
+                redirect(initialConnection, message, attempt + 1);
+            else
+                System.out.println("Function redirect: gave up after " + (attempt + 1) + " nodes down");
+            return;
+        } catch (IOException e) {
+            System.out.println("Function redirect: Failed to receive message");
+            return;
+        }
+
+        initialConnection.sendMessage(response);
+    }
+
+    /**
+     * Sends a message to another server and waits for its answer
+     * Messages answered once go through the connection pool, the others on a connection of their own
+     *
+     * @param node    destination server
+     * @param message message to be sent
+     * @return answer
+     * @throws ConnectionPool.PeerUnreachableException if the server could not be reached
+     * @throws IOException                             if the answer did not arrive
+     */
+    private Message forward(Node node, Message message) throws IOException {
 
+        if (isAnsweredOnce(message.getMessageType()))
+            return connectionPool.request(node, message);
 
+        ServerConnection connection = new ServerConnection(node.getNodeIp(), node.getNodePort(), this);
         try {
-            Message response = redirect.receiveMessage();
-            initialConnection.sendMessage(response);
-
+            connection.connect();
         } catch (IOException e) {
-            System.out.println("Function redirect: Failed to receive message");
-        } catch (ClassNotFoundException e) {
-            System.out.println("Function redirect: Failed to receive message");
+            throw new ConnectionPool.PeerUnreachableException(node, e);
         }
-        redirect.closeConnection();
 
+        try {
+            //the connection is its own, answers need no id
+            message.setRequestId(NO_REQUEST_ID);
+            connection.sendMessage(message);
+            return connection.receiveMessage();
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        } finally {
+            connection.closeConnection();
+        }
     }
 
+    /**
+     * Removes a node that did not answer, and the other virtual nodes of its server, from the ring
+     * state, so the next live successors take their place, and alerts the node that follows it
+     * If this server follows it, its backups are taken over right away
+     *
+     * @param downNode node that is down
+     */
     public void serverDown(Node downNode) {
         System.out.println("\n Node " + downNode.getNodeId() + " is down.");
 
-        Node successor = dht.nodeLookUp(downNode.getNodeId() + 1);
+        if (downNode.getNodeIp() != null)
+            connectionPool.remove(downNode);
+
+        ArrayList<RingIdentifier> failedPredecessors = removeDownServer(downNode);
+        if (!failedPredecessors.isEmpty()) {
+            beginNodeFailureProtocol(failedPredecessors);
+            return;
+        }
+
+        Node successor = getClosestDht(downNode.getNodeId().next()).nodeLookUp(downNode.getNodeId().next());
 
+        if (isSameServer(successor))
+            return;
 
-        Message message = new Message(SERVER_DOWN, new BigInteger(Integer.toString(this.getNodeId())), NOT_RESPONSIBLE, Integer.toString(downNode.getNodeId()));
-        ServerConnection redirect = new ServerConnection(successor.getNodeIp(), successor.getNodePort(), this);
+        Message message = new Message(SERVER_DOWN, this.getNodeId().toBigInteger(), NOT_RESPONSIBLE, downNode.getNodeId().toString());
 
         try {
-            redirect.connect();
+            connectionPool.send(successor, message);
         } catch (IOException e) {
-            e.printStackTrace();
+            System.out.println("Function serverDown: could not alert node " + successor.getNodeId());
         }
-
-        redirect.sendMessage(message);
-        dht.removeNode(downNode.getNodeId());
-
     }
 
     /**
@@ -1142,17 +1987,166 @@ public class Server extends Node implements Serializable {
         }
     }
 
+    /**
+     * Removes a node that is down, and every other virtual node of its server, from all virtual nodes
+     *
+     * @param downNode node that is down
+     * @return identifiers of the virtual nodes of that server that preceded a virtual node of this server, whose
+     * backups this server holds
+     */
+    private ArrayList<RingIdentifier> removeDownServer(Node downNode) {
+        ArrayList<RingIdentifier> failedPredecessors = new ArrayList<>();
+
+        for (DistributedHashTable vnode : dhts) {
+            Node predecessor = vnode.getPredecessor();
+            if ((predecessor.equals(downNode) || predecessor.isSameServer(downNode)) && !failedPredecessors.contains(predecessor.getNodeId()))
+                failedPredecessors.add(predecessor.getNodeId());
+            vnode.removeServer(downNode);
+        }
+
+        routeCache.invalidate(downNode);
+        return failedPredecessors;
+    }
+
+    /**
+     * @param nodeId ring identifier
+     * @return node with the given identifier known by any virtual node, or null if it is unknown
+     */
+    private Node findKnownNode(RingIdentifier nodeId) {
+
+        for (DistributedHashTable vnode : dhts) {
+            Node node = vnode.findKnownNode(nodeId);
+            if (node != null)
+                return node;
+        }
+
+        return null;
+    }
+
+    /**
+     * @return finger state of the first virtual node, which has the server identifier
+     */
     public DistributedHashTable getDht() {
         return dht;
     }
 
+    /**
+     * Selects the virtual node a ring maintenance message is addressed to
+     *
+     * @param vnodeId receiver of the message, null on messages addressed to the server itself
+     * @return virtual node, or null if this server has no virtual node with that identifier
+     */
+    public DistributedHashTable getDht(BigInteger vnodeId) {
+
+        if (vnodeId == null)
+            return dht;
+
+        RingIdentifier id = RingIdentifier.fromHash(vnodeId);
+
+        if (dht.getNode().getNodeId().equals(id))
+            return dht;
+
+        for (DistributedHashTable vnode : dhts) {
+            if (vnode.getNode().getNodeId().equals(id))
+                return vnode;
+        }
+
+        return null;
+    }
+
+    public List<DistributedHashTable> getDhts() {
+        return dhts;
+    }
+
+    /**
+     * @param vnode virtual node of this server
+     * @return predecessor followed by the successor list, as plain nodes
+     */
+    public ArrayList<Node> getNeighbours(DistributedHashTable vnode) {
+        ArrayList<Node> neighbours = new ArrayList<>();
+
+        neighbours.add(vnode.getPredecessor().getNode());
+        for (Node node : vnode.getSuccessorList())
+            neighbours.add(node.getNode());
+
+        return neighbours;
+    }
+
+    public ConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    public RouteCache getRouteCache() {
+        return routeCache;
+    }
+
+    /**
+     * @return plain node with this server address and identifier, to be sent to other nodes
+     */
+    @Override
+    public Node getNode() {
+        return new Node(nodeIp, nodePort, nodeId);
+    }
+
     public ConcurrentHashMap<BigInteger, User> getBackups() {
         return backups;
     }
 
+    /**
+     * @return log and snapshots of the users and backups, or null if they are only kept in memory
+     */
+    public UserStore getStore() {
+        return store;
+    }
+
     public ConcurrentHashMap<BigInteger, User> getUsers() {
         return users;
     }
 
-}
 
+    /**
+     * Takes the answer to a message this server forwards for itself, instead of writing it to a connection
+     */
+    private static class Answer implements MessageChannel {
+
+        private final CompletableFuture<Message> answer = new CompletableFuture<>();
+
+        @Override
+        public void send(Message message) {
+            answer.complete(message);
+        }
+
+        /**
+         * @param timeout time, in milliseconds, to wait for the answer
+         * @return answer, or null if it did not arrive in time
+         */
+        private Message await(long timeout) {
+            try {
+                return answer.get(timeout, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (ExecutionException | TimeoutException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void abort() {
+        }
+
+        @Override
+        public int getQueued() {
+            return 0;
+        }
+
+        @Override
+        public long getStalledFor() {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,706 @@
+package Server;
+
+import Chat.Chat;
+import Chat.ChatMessage;
+import Messages.Message;
+import Messages.MessageCodec;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+
+import static Utilities.Constants.*;
+
+/**
+ * Users and backups of a server, kept on disk so a server that restarts comes back with them
+ * Every change is appended to a log, as a record: [Length] [CRC] [User hash] [Message]. The message is encoded
+ * with the binary codec: ADD_USER or BACKUP_USER carry the whole user, NEW_MESSAGE a chat message added to a chat
+ * of the user, REMOVE_USER the removal of a user
+ * Records are written by one thread, in batches: each batch is written and forced to disk at once, and the threads
+ * that appended to it wait for that (group commit), unless STORE_SYNC is off
+ * A batch that fails to be written fails its writers and every change after it: what reached the disk is no longer
+ * known, so the store stops taking changes rather than acknowledge changes it may not have
+ * A snapshot starts a new log segment and writes every user, in partitions written in parallel; the segments
+ * before it are then deleted. It is taken while changes go on, so the records after it are replayed on top: they
+ * can all be applied twice, a chat message carrying its position on the chat
+ * Recovery loads the snapshot partitions in parallel, then replays the log with the records of each user on the
+ * same thread, in order, and the users spread over STORE_PARTITIONS threads
+ */
+public class UserStore {
+
+    public static final String REMOVE_USER = "REMOVE_USER";
+
+    private static final String LOG_PREFIX = "log-";
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String MANIFEST = "snapshot";
+    private static final String MESSAGES = "messages";
+    private static final String PENDING = "pending";
+    private static final int HEADER_BYTES = 12;
+    private static final int REPLAY_QUEUE = 1024;
+    private static final long CLOSE_TIMEOUT = 5000;
+
+    private final File directory;
+    private final ConcurrentHashMap<BigInteger, User> users;
+    private final ConcurrentHashMap<BigInteger, User> backups;
+    private final int partitions;
+
+    /**
+     * Records appended and not yet written, guarded by this store
+     */
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private ByteArrayOutputStream writing = new ByteArrayOutputStream();
+    private long appended;
+    private long durable;
+    private boolean rotating;
+    private boolean closed;
+    private IOException failure;
+
+    private FileChannel log;
+    private long generation;
+    private long logBytes;
+    private long lastSnapshot = System.currentTimeMillis();
+    private final Object snapshotLock = new Object();
+
+    private final ExecutorService writer = Executors.newSingleThreadExecutor();
+    private final AtomicLong records = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong snapshots = new AtomicLong();
+
+    /**
+     * @param directory directory of the log and snapshots
+     * @param users     users of the server
+     * @param backups   backups of the server
+     */
+    public UserStore(String directory, ConcurrentHashMap<BigInteger, User> users, ConcurrentHashMap<BigInteger, User> backups) {
+        this(directory, users, backups, STORE_PARTITIONS);
+    }
+
+    /**
+     * @param partitions threads writing snapshots and recovering
+     */
+    public UserStore(String directory, ConcurrentHashMap<BigInteger, User> users, ConcurrentHashMap<BigInteger, User> backups, int partitions) {
+        this.directory = new File(directory);
+        this.users = users;
+        this.backups = backups;
+        this.partitions = partitions;
+        this.directory.mkdirs();
+    }
+
+    /**
+     * Loads the last snapshot and replays the log after it, then starts a new log segment
+     *
+     * @throws IOException if the store could not be read
+     */
+    public void recover() throws IOException {
+        long start = System.nanoTime();
+
+        long snapshot = readManifest();
+        if (snapshot > 0)
+            loadSnapshot(snapshot);
+
+        long[] segments = listSegments();
+        long replayed = 0;
+        for (int i = 0; i < segments.length; i++)
+            if (segments[i] >= snapshot)
+                replayed += replay(segments[i], i == segments.length - 1);
+
+        generation = segments.length > 0 ? segments[segments.length - 1] + 1 : Math.max(snapshot, 1);
+        log = openSegment(generation);
+
+        System.out.println("Recovered " + users.size() + " users and " + backups.size() + " backups in " + (System.nanoTime() - start) / 1000000
+                + " ms: snapshot " + snapshot + ", " + replayed + " records replayed on " + partitions + " threads");
+    }
+
+    /**
+     * Starts writing the records appended
+     */
+    public void start() {
+        writer.execute(this::write);
+    }
+
+    /**
+     * Saves a user, after any change to it
+     *
+     * @param container ADD_USER for the users of the server, BACKUP_USER for its backups
+     * @param user      user
+     * @return false if it could not be saved
+     */
+    public boolean saveUser(String container, User user) {
+        return user == null || append(user.getUserId(), new Message(container, user.getUserId(), null, user));
+    }
+
+    /**
+     * Adds a chat message to a chat of a user and saves it
+     * The record carries the position of the chat message on the chat, so both are taken under the lock of the
+     * chat: records of one chat are on the log in the order of their positions, as the replay expects
+     *
+     * @param userId      user
+     * @param chat        chat of the user
+     * @param chatMessage chat message
+     * @param pending     true to add it to the pending messages of the chat
+     * @return false if it could not be saved
+     */
+    public boolean addChatMessage(BigInteger userId, Chat chat, ChatMessage chatMessage, boolean pending) {
+        long sequence;
+
+        synchronized (chat) {
+            if (pending)
+                chat.addPendingChatMessage(chatMessage);
+            else
+                chat.addChatMessage(chatMessage);
+
+            long position = pending ? chat.getChatPendingMessages().size() : chat.getMessageCount();
+
+            Message record = new Message(NEW_MESSAGE, userId, null, chatMessage);
+            record.setArguments(pending ? PENDING : MESSAGES, Long.toString(position));
+            sequence = enqueue(userId, record);
+        }
+
+        return awaitDurable(sequence);
+    }
+
+    /**
+     * Saves the removal of a user
+     *
+     * @param container ADD_USER for the users of the server, BACKUP_USER for its backups
+     * @param userId    user
+     * @return false if it could not be saved
+     */
+    public boolean deleteUser(String container, BigInteger userId) {
+        return append(userId, new Message(REMOVE_USER, userId, null, container));
+    }
+
+    /**
+     * Appends a record and, if STORE_SYNC is on, waits for it to be on disk
+     *
+     * @return false if it could not be written
+     */
+    private boolean append(BigInteger userId, Message message) {
+        return awaitDurable(enqueue(userId, message));
+    }
+
+    /**
+     * Appends a record to the next batch
+     *
+     * @return sequence number of the record, or -1 if it could not be appended
+     */
+    private long enqueue(BigInteger userId, Message message) {
+        byte[] record;
+        try {
+            record = encode(userId, message);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return -1;
+        }
+
+        synchronized (this) {
+            if (closed || failure != null)
+                return -1;
+
+            pending.write(record, 0, record.length);
+            records.incrementAndGet();
+            notifyAll();
+            return ++appended;
+        }
+    }
+
+    /**
+     * If STORE_SYNC is on, waits for a record to be on disk
+     *
+     * @param sequence sequence number of the record
+     * @return false if it was not appended, or its batch failed to be written
+     */
+    private boolean awaitDurable(long sequence) {
+        if (sequence < 0)
+            return false;
+
+        synchronized (this) {
+            if (!STORE_SYNC)
+                return failure == null;
+
+            while (durable < sequence && failure == null && !closed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+
+            return durable >= sequence;
+        }
+    }
+
+    /**
+     * Writes the records appended, a batch at a time: what was appended while the previous batch was written
+     */
+    private void write() {
+        while (true) {
+            long sequence;
+            boolean rotate;
+
+            synchronized (this) {
+                while (pending.size() == 0 && !rotating && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed && pending.size() == 0)
+                    return;
+
+                ByteArrayOutputStream batch = pending;
+                pending = writing;
+                writing = batch;
+                sequence = appended;
+                rotate = rotating;
+            }
+
+            try {
+                if (writing.size() > 0) {
+                    ByteBuffer buffer = ByteBuffer.wrap(writing.toByteArray());
+                    while (buffer.hasRemaining())
+                        log.write(buffer);
+                    log.force(false);
+
+                    batches.incrementAndGet();
+                    bytes.addAndGet(writing.size());
+                    logBytes += writing.size();
+                    writing.reset();
+                }
+
+                if (rotate) {
+                    log.close();
+                    log = openSegment(++generation);
+                    logBytes = 0;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.out.println("Failed to write the user log, no more changes are saved");
+
+                synchronized (this) {
+                    failure = e;
+                    rotating = false;
+                    pending.reset();
+                    writing.reset();
+                    notifyAll();
+                }
+                return;
+            }
+
+            synchronized (this) {
+                durable = sequence;
+                if (rotate)
+                    rotating = false;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Takes a snapshot if STORE_SNAPSHOT_INTERVAL passed since the last one with changes logged since, or the log
+     * reached STORE_SNAPSHOT_BYTES
+     */
+    public void snapshotIfDue() {
+        long logged;
+        synchronized (this) {
+            logged = logBytes;
+        }
+
+        if (logged > 0 && (logged >= STORE_SNAPSHOT_BYTES || System.currentTimeMillis() - lastSnapshot >= STORE_SNAPSHOT_INTERVAL))
+            snapshot();
+    }
+
+    /**
+     * Starts a new log segment and writes every user to a snapshot, then deletes the log and snapshot before it
+     */
+    public void snapshot() {
+        synchronized (snapshotLock) {
+            long start = System.nanoTime();
+            long snapshot;
+
+            //the writer starts the new segment with the next batch
+            synchronized (this) {
+                rotating = true;
+                notifyAll();
+                while (rotating && !closed && failure == null) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                if (closed || failure != null)
+                    return;
+
+                snapshot = generation;
+                lastSnapshot = System.currentTimeMillis();
+            }
+
+            //written while changes go on, logged on the new segment
+            try {
+                writeSnapshot(snapshot);
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.out.println("Failed to write snapshot " + snapshot);
+                return;
+            }
+
+            snapshots.incrementAndGet();
+            System.out.println("Snapshot " + snapshot + " of " + users.size() + " users and " + backups.size() + " backups in "
+                    + (System.nanoTime() - start) / 1000000 + " ms");
+        }
+    }
+
+    private void writeSnapshot(long snapshot) throws IOException {
+        ExecutorService writers = Executors.newFixedThreadPool(partitions);
+        try {
+            ArrayList<Future<Void>> written = new ArrayList<>();
+            for (int p = 0; p < partitions; p++) {
+                int partition = p;
+                written.add(writers.submit(() -> {
+                    writePartition(snapshot, partition);
+                    return null;
+                }));
+            }
+            for (Future<Void> future : written)
+                future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing snapshot " + snapshot);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } finally {
+            writers.shutdown();
+        }
+
+        //the snapshot counts once the manifest names it
+        File manifest = new File(directory, MANIFEST + ".tmp");
+        try (FileOutputStream stream = new FileOutputStream(manifest);
+             DataOutputStream out = new DataOutputStream(stream)) {
+            out.writeLong(snapshot);
+            out.flush();
+            stream.getFD().sync();
+        }
+        Files.move(manifest.toPath(), new File(directory, MANIFEST).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        for (File file : listFiles())
+            if (file.getName().startsWith(LOG_PREFIX) ? parseGeneration(file, LOG_PREFIX) < snapshot
+                    : file.getName().startsWith(SNAPSHOT_PREFIX) && parseGeneration(file, SNAPSHOT_PREFIX) != snapshot)
+                file.delete();
+    }
+
+    /**
+     * Writes the users and backups whose hash falls on a partition
+     */
+    private void writePartition(long snapshot, int partition) throws IOException {
+        File file = new File(directory, SNAPSHOT_PREFIX + snapshot + "-" + partition);
+
+        try (FileOutputStream stream = new FileOutputStream(file);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16))) {
+            for (Map.Entry<BigInteger, User> entry : users.entrySet())
+                if (Math.floorMod(entry.getKey().hashCode(), partitions) == partition)
+                    out.write(encode(entry.getKey(), new Message(ADD_USER, entry.getKey(), null, entry.getValue())));
+            for (Map.Entry<BigInteger, User> entry : backups.entrySet())
+                if (Math.floorMod(entry.getKey().hashCode(), partitions) == partition)
+                    out.write(encode(entry.getKey(), new Message(BACKUP_USER, entry.getKey(), null, entry.getValue())));
+            out.flush();
+            stream.getFD().sync();
+        }
+    }
+
+    private long readManifest() throws IOException {
+        File manifest = new File(directory, MANIFEST);
+        if (!manifest.exists())
+            return 0;
+
+        try (DataInputStream in = new DataInputStream(new FileInputStream(manifest))) {
+            return in.readLong();
+        }
+    }
+
+    /**
+     * Loads the partitions of a snapshot, each on its own thread: they hold different users
+     */
+    private void loadSnapshot(long snapshot) throws IOException {
+        ArrayList<File> files = new ArrayList<>();
+        for (File file : listFiles())
+            if (file.getName().startsWith(SNAPSHOT_PREFIX + snapshot + "-"))
+                files.add(file);
+
+        ExecutorService loaders = Executors.newFixedThreadPool(Math.max(1, Math.min(partitions, files.size())));
+        try {
+            ArrayList<Future<Long>> loaded = new ArrayList<>();
+            for (File partition : files)
+                loaded.add(loaders.submit(() -> {
+                    long count = 0;
+                    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(partition), 1 << 16))) {
+                        byte[] record;
+                        while ((record = readRecord(in, partition)) != null) {
+                            apply(MessageCodec.decode(Arrays.copyOfRange(record, HEADER_BYTES, record.length)));
+                            count++;
+                        }
+                    }
+                    return count;
+                }));
+            for (Future<Long> future : loaded)
+                future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading snapshot " + snapshot);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to load snapshot " + snapshot, e.getCause());
+        } finally {
+            loaders.shutdown();
+        }
+    }
+
+    /**
+     * Replays a log segment: this thread reads and checks the records, and hands each one to the thread of the
+     * partition of its user, which decodes and applies it
+     * A record cut short or corrupted, as when the server went down while writing it, ends the segment; the last
+     * segment is truncated there
+     *
+     * @return records replayed
+     */
+    private long replay(long segment, boolean last) throws IOException {
+        File file = new File(directory, LOG_PREFIX + segment);
+
+        ArrayList<BlockingQueue<byte[]>> queues = new ArrayList<>();
+        ExecutorService replayers = Executors.newFixedThreadPool(partitions);
+        ArrayList<Future<Void>> replaying = new ArrayList<>();
+        byte[] end = new byte[0];
+
+        for (int p = 0; p < partitions; p++) {
+            BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(REPLAY_QUEUE);
+            queues.add(queue);
+            replaying.add(replayers.submit(() -> {
+                byte[] record;
+                while ((record = queue.take()) != end)
+                    apply(MessageCodec.decode(Arrays.copyOfRange(record, HEADER_BYTES, record.length)));
+                return null;
+            }));
+        }
+
+        long count = 0;
+        long valid = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            byte[] record;
+            while ((record = readRecord(in, file)) != null) {
+                int hash = ByteBuffer.wrap(record, 8, 4).getInt();
+                queues.get(Math.floorMod(hash, partitions)).put(record);
+                valid += record.length;
+                count++;
+            }
+
+            for (BlockingQueue<byte[]> queue : queues)
+                queue.put(end);
+            for (Future<Void> future : replaying)
+                future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while replaying " + file.getName());
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to replay " + file.getName(), e.getCause());
+        } finally {
+            replayers.shutdownNow();
+        }
+
+        if (last && valid < file.length()) {
+            System.out.println("Truncating " + file.getName() + " from " + file.length() + " to " + valid + " bytes");
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(valid);
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * @return next record, with its header, or null at the end of the file or at a record cut short or corrupted
+     */
+    private static byte[] readRecord(DataInputStream in, File file) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+
+        if (length < HEADER_BYTES || length > MAX_FRAME_SIZE + HEADER_BYTES) {
+            System.out.println("Corrupted record on " + file.getName());
+            return null;
+        }
+
+        byte[] record = new byte[length];
+        ByteBuffer.wrap(record).putInt(length);
+        try {
+            in.readFully(record, 4, length - 4);
+        } catch (EOFException e) {
+            System.out.println("Record cut short on " + file.getName());
+            return null;
+        }
+
+        CRC32C crc = new CRC32C();
+        crc.update(record, 8, length - 8);
+        if ((int) crc.getValue() != ByteBuffer.wrap(record, 4, 4).getInt()) {
+            System.out.println("Corrupted record on " + file.getName());
+            return null;
+        }
+
+        return record;
+    }
+
+    /**
+     * @return record: [Length] [CRC of the rest] [User hash] [Message]
+     */
+    private static byte[] encode(BigInteger userId, Message message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeInt(userId.hashCode());
+        MessageCodec.encode(message, out);
+
+        byte[] record = bytes.toByteArray();
+        CRC32C crc = new CRC32C();
+        crc.update(record, 8, record.length - 8);
+        ByteBuffer.wrap(record).putInt(record.length).putInt((int) crc.getValue());
+        return record;
+    }
+
+    /**
+     * Applies a record to the users and backups
+     * Every record can be applied more than once: users are replaced, and chat messages only added at their position
+     */
+    private void apply(Message record) {
+        switch (record.getMessageType()) {
+            case ADD_USER:
+                users.put(record.getSenderId(), (User) record.getObject());
+                break;
+            case BACKUP_USER:
+                backups.put(record.getSenderId(), (User) record.getObject());
+                break;
+            case REMOVE_USER:
+                (record.getArguments()[0].equals(BACKUP_USER) ? backups : users).remove(record.getSenderId());
+                break;
+            case NEW_MESSAGE:
+                User user = users.get(record.getSenderId());
+                ChatMessage chatMessage = (ChatMessage) record.getObject();
+                Chat chat = user == null ? null : user.getChat(chatMessage.getChatId());
+                if (chat == null)
+                    break;
+
+                String[] body = record.getArguments();
+                boolean pending = body[0].equals(PENDING);
+                long position = pending ? chat.getChatPendingMessages().size() : chat.getMessageCount();
+                if (position < Long.parseLong(body[1])) {
+                    if (pending)
+                        chat.addPendingChatMessage(chatMessage);
+                    else
+                        chat.addChatMessage(chatMessage);
+                }
+                break;
+            default:
+                System.out.println("Unknown record " + record.getMessageType());
+                break;
+        }
+    }
+
+    private FileChannel openSegment(long segment) throws IOException {
+        return FileChannel.open(new File(directory, LOG_PREFIX + segment).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private long[] listSegments() {
+        ArrayList<Long> segments = new ArrayList<>();
+        for (File file : listFiles())
+            if (file.getName().startsWith(LOG_PREFIX))
+                segments.add(parseGeneration(file, LOG_PREFIX));
+
+        return segments.stream().mapToLong(Long::longValue).sorted().toArray();
+    }
+
+    private File[] listFiles() {
+        File[] files = directory.listFiles();
+        return files == null ? new File[0] : files;
+    }
+
+    private static long parseGeneration(File file, String prefix) {
+        String name = file.getName().substring(prefix.length());
+        int dash = name.indexOf('-');
+        try {
+            return Long.parseLong(dash < 0 ? name : name.substring(0, dash));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Writes the records appended so far and stops
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+
+        writer.shutdown();
+        try {
+            writer.awaitTermination(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS);
+            if (log != null)
+                log.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public long getRecords() {
+        return records.get();
+    }
+
+    /**
+     * @return batches written, each forced to disk once
+     */
+    public long getBatches() {
+        return batches.get();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public void printMetrics() {
+        System.out.println("User store: " + records + " records in " + batches + " batches (" + bytes + " bytes), " + snapshots + " snapshots");
+    }
+}
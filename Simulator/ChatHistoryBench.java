@@ -0,0 +1,95 @@
+package Simulator;
+
+import Chat.Chat;
+import Chat.ChatMessage;
+import Server.ChatHistory;
+import Server.User;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static Utilities.Constants.*;
+
+/**
+ * Adds chat messages to one chat as a server does, moving the older ones to the chat history, and prints the heap
+ * used as the chat grows, then reads pages of chat messages from random places of the chat history
+ */
+public class ChatHistoryBench {
+
+    private static final int PAGE = 50;
+
+    /**
+     * @param args [messages] [page reads]
+     */
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        int reads = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+
+        File directory = Files.createTempDirectory("history").toFile();
+        try {
+            ChatHistory history = new ChatHistory(directory.getPath());
+            User user = new User("user@bench", BigInteger.ONE);
+            Chat chat = new Chat(user.getEmail(), "bench");
+            chat.addParticipant(user.getEmail());
+            user.addChat(chat);
+
+            System.out.println(messages + " messages, tail of " + HISTORY_TAIL + ", segments of " + HISTORY_SEGMENT_BYTES / 1024 + " KB");
+            System.out.println(String.format("%12s %10s %10s %10s", "messages", "on heap", "heap MB", "disk MB"));
+
+            long start = System.nanoTime();
+            for (int i = 1; i <= messages; i++) {
+                byte[] content = ("message " + i + " of a chat that keeps growing").getBytes(StandardCharsets.UTF_8);
+                chat.addChatMessage(new ChatMessage(chat.getIdChat(), new Date(), user.getUserId(), content, TEXT_MESSAGE));
+                history.trim(chat, Collections.singletonList(user.getUserId()));
+
+                if (i % (messages / 5) == 0)
+                    System.out.println(String.format("%,12d %,10d %10.1f %10.1f", i, chat.getChatMessages().size(), heapUsed(), diskUsed(directory)));
+            }
+            long elapsed = Math.max(1, (System.nanoTime() - start) / 1000000);
+            System.out.println(String.format("Added %,d messages in %,d ms: %,.0f messages/s", messages, elapsed, messages * 1000.0 / elapsed));
+
+            Random random = new Random(1);
+            long end = chat.getFirstMessage();
+            start = System.nanoTime();
+            for (int i = 0; i < reads; i++) {
+                long from = (long) (random.nextDouble() * (end - PAGE));
+                List<ChatMessage> page = history.read(user.getUserId(), chat.getIdChat(), from, from + PAGE);
+                String expected = "message " + (from + 1) + " ";
+                if (page.size() != PAGE || !new String(page.get(0).getContent(), StandardCharsets.UTF_8).startsWith(expected))
+                    System.out.println("Wrong page at " + from);
+            }
+            elapsed = Math.max(1, (System.nanoTime() - start) / 1000000);
+            System.out.println(String.format("Read %,d pages of %d messages in %,d ms: %,.0f pages/s, heap %.1f MB",
+                    reads, PAGE, elapsed, reads * 1000.0 / elapsed, heapUsed()));
+
+            history.printMetrics();
+            history.close();
+        } finally {
+            try (Stream<Path> files = Files.walk(directory.toPath())) {
+                files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    private static double heapUsed() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++)
+            System.gc();
+        return (runtime.totalMemory() - runtime.freeMemory()) / 1024.0 / 1024.0;
+    }
+
+    private static double diskUsed(File directory) throws Exception {
+        try (Stream<Path> files = Files.walk(directory.toPath())) {
+            return files.map(Path::toFile).filter(File::isFile).mapToLong(File::length).sum() / 1024.0 / 1024.0;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package Simulator;
+
+import Chat.Chat;
+import Chat.ChatMessage;
+import Messages.Message;
+import Messages.MessageCodec;
+import Server.User;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Random;
+
+import static Utilities.Constants.*;
+import static Utilities.Utilities.createHash;
+
+/**
+ * Encodes and decodes replication and chat traffic with the binary codec, uncompressed and deflated at a few
+ * levels, and reports the bytes each frame takes on the wire against the time spent encoding and decoding it
+ * Frames under the compression threshold, and file chunks that do not get smaller, are sent as they are
+ */
+public class CompressionBench {
+
+    private static final int[] LEVELS = {0, 1, 6, 9};
+
+    private static final String[] WORDS = ("the a to and of is in it you that he was for on are with as I his they be at one have "
+            + "this from or had by hot word but what some we can out other were all there when up use your how said an each "
+            + "she which do their time if will way about many then them write would like so these her long make thing see "
+            + "him two has look more day could go come did number sound no most people my over know water than call first "
+            + "who may down side been now find exam meeting tomorrow lunch project deadline report server message chat").split(" ");
+
+    private final Random random = new Random(42);
+    private final KeyPair keys;
+
+    private CompressionBench() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        keys = generator.generateKeyPair();
+    }
+
+    /**
+     * @param args [messages per chat] [iterations]
+     */
+    public static void main(String[] args) throws Exception {
+        int messagesPerChat = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+        CompressionBench bench = new CompressionBench();
+        BigInteger sender = createHash("server");
+
+        User user = bench.user(0, messagesPerChat);
+        ArrayList<User> batch = new ArrayList<>();
+        for (int i = 0; i < 16; i++)
+            batch.add(bench.user(i, messagesPerChat / 5));
+
+        ChatMessage text = bench.chatMessage(createHash("chat"), createHash("user"), 12);
+        byte[] textChunk = bench.text(8192).getBytes(StandardCharsets.UTF_8);
+        byte[] binaryChunk = new byte[8192];
+        bench.random.nextBytes(binaryChunk);
+
+        System.out.println("Threshold " + COMPRESSION_THRESHOLD + " bytes, " + iterations + " iterations each");
+        System.out.println(String.format("%-26s %6s %10s %8s %12s %12s %10s", "message", "level", "bytes", "saved", "encode us", "decode us", "MB/s"));
+
+        bench.run("BACKUP_USER", new Message(BACKUP_USER, sender, RESPONSIBLE, user), iterations);
+        bench.run("TRANSFER_BATCH (16 users)", new Message(TRANSFER_BATCH, sender, RESPONSIBLE, batch), iterations / 4);
+        bench.run("NEW_MESSAGE", new Message(NEW_MESSAGE, sender, RESPONSIBLE, text, createHash("user")), iterations * 10);
+        bench.run("DOWNLOADING_FILE (text)", bench.chunk(sender, textChunk, "notes.txt"), iterations);
+        bench.run("DOWNLOADING_FILE (image)", bench.chunk(sender, binaryChunk, "photo.jpg"), iterations);
+    }
+
+    private void run(String name, Message message, int iterations) throws IOException {
+        long uncompressed = -1;
+
+        for (int level : LEVELS) {
+            MessageCodec codec = new MessageCodec(Math.max(1, level));
+            if (level > 0)
+                codec.acceptHello(MessageCodec.hello());
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+
+            //warm up, then measure
+            long encode = 0, decode = 0;
+            for (int round = 0; round < 2; round++) {
+                long start = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    bytes.reset();
+                    codec.write(message, out);
+                }
+                encode = System.nanoTime() - start;
+
+                byte[] frame = bytes.toByteArray();
+                start = System.nanoTime();
+                for (int i = 0; i < iterations; i++)
+                    codec.read(new DataInputStream(new ByteArrayInputStream(frame)));
+                decode = System.nanoTime() - start;
+            }
+
+            int size = bytes.size();
+            if (level == 0)
+                uncompressed = size;
+
+            double encodeMicros = encode / 1000.0 / iterations;
+            System.out.println(String.format("%-26s %6s %,10d %7.1f%% %12.1f %12.1f %10.1f", name, level == 0 ? "off" : Integer.toString(level),
+                    size, 100.0 * (uncompressed - size) / uncompressed, encodeMicros, decode / 1000.0 / iterations,
+                    uncompressed / encodeMicros));
+        }
+    }
+
+    private User user(int index, int messagesPerChat) {
+        String email = "user" + index + "@fe.up.pt";
+        User user = new User(email, createHash("password" + index), new byte[1232], keys.getPublic());
+
+        for (int c = 0; c < 5; c++) {
+            Chat chat = new Chat(createHash(email + c), "chat " + c, email);
+            for (int p = 0; p < 4; p++)
+                chat.addParticipant("user" + (index + p) + "@fe.up.pt");
+            for (int m = 0; m < messagesPerChat; m++)
+                chat.addChatMessage(chatMessage(chat.getIdChat(), createHash("user" + (index + m % 4) + "@fe.up.pt"), 4 + random.nextInt(20)));
+            chat.getUsersPubKeys().put(createHash(email), keys.getPublic());
+            user.addChat(chat);
+        }
+
+        return user;
+    }
+
+    private ChatMessage chatMessage(BigInteger chatId, BigInteger userId, int words) {
+        return new ChatMessage(chatId, new Date(), userId, text(words * 6).getBytes(StandardCharsets.UTF_8), TEXT_MESSAGE);
+    }
+
+    private Message chunk(BigInteger sender, byte[] content, String filename) {
+        ChatMessage chatMessage = new ChatMessage(createHash("chat"), new Date(), createHash("user"), content, IMAGE_MESSAGE, filename);
+        return new Message(DOWNLOADING_FILE, sender, RESPONSIBLE, chatMessage, createHash("user"));
+    }
+
+    /**
+     * @return words picked at random, about length characters
+     */
+    private String text(int length) {
+        StringBuilder text = new StringBuilder();
+        while (text.length() < length)
+            text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+        return text.substring(0, length);
+    }
+}
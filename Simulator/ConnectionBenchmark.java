@@ -0,0 +1,214 @@
+package Simulator;
+
+import Messages.Message;
+import Protocols.Connection;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static Utilities.Constants.*;
+
+/**
+ * Compares the ways a server can serve its connections (-Dserver.io=blocking, virtual or nio)
+ * For each mode, starts a server in its own JVM, opens many TLS connections to it and keeps them open,
+ * reporting how many could be opened, the server threads and memory per connection, and the PING latency
+ * while every connection is open. Threads and memory are read from /proc, so they are only reported on Linux
+ * Takes the javax.net.ssl properties of this JVM, as a client would
+ */
+public class ConnectionBenchmark {
+
+    private static final String HOST = "localhost";
+    private static final int CLIENT_THREADS = 32;
+    private static final long STARTUP_TIMEOUT = 30000;
+
+    private final int connections;
+    private final int pings;
+    private final int port;
+
+    public ConnectionBenchmark(int connections, int pings, int port) {
+        this.connections = connections;
+        this.pings = pings;
+        this.port = port;
+    }
+
+    /**
+     * @param args [connections] [pings per connection] [modes, comma separated] [port]
+     */
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int pings = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        String[] modes = (args.length > 2 ? args[2] : "blocking,virtual").split(",");
+        int port = args.length > 3 ? Integer.parseInt(args[3]) : 5100;
+
+        ConnectionBenchmark benchmark = new ConnectionBenchmark(connections, pings, port);
+
+        System.out.println(String.format("%-9s %11s %8s %12s %14s %9s %9s", "mode", "connections", "failed", "threads", "KB/connection", "p50 ms", "p99 ms"));
+        for (String mode : modes)
+            benchmark.run(mode);
+    }
+
+    /**
+     * Benchmarks one mode on a new server
+     *
+     * @param mode value of server.io for the server
+     */
+    public void run(String mode) throws Exception {
+        Path directory = Files.createTempDirectory("benchmark-" + mode);
+        Process server = startServer(mode, directory.toFile());
+        List<Connection> open = Collections.synchronizedList(new ArrayList<>());
+        ExecutorService clients = Executors.newFixedThreadPool(CLIENT_THREADS);
+
+        try {
+            waitForServer(server);
+            long baseMemory = readStatus(server, "VmRSS");
+
+            ArrayList<Future<Connection>> opening = new ArrayList<>();
+            for (int i = 0; i < connections; i++)
+                opening.add(clients.submit(() -> {
+                    Connection connection = new Connection(HOST, port);
+                    connection.connect();
+                    ping(connection);
+                    return connection;
+                }));
+
+            int failed = 0;
+            for (Future<Connection> future : opening) {
+                try {
+                    open.add(future.get());
+                } catch (Exception e) {
+                    failed++;
+                }
+            }
+
+            long threads = readStatus(server, "Threads");
+            long memory = readStatus(server, "VmRSS");
+
+            ArrayList<Future<long[]>> pinging = new ArrayList<>();
+            for (Connection connection : open)
+                pinging.add(clients.submit(() -> {
+                    long[] times = new long[pings];
+                    for (int i = 0; i < pings; i++)
+                        times[i] = ping(connection);
+                    return times;
+                }));
+
+            ArrayList<Long> latencies = new ArrayList<>();
+            for (Future<long[]> future : pinging) {
+                try {
+                    for (long time : future.get())
+                        latencies.add(time);
+                } catch (Exception e) {
+                    failed++;
+                }
+            }
+            Collections.sort(latencies);
+
+            String memoryPerConnection = memory < 0 || open.isEmpty() ? "n/a" : String.valueOf((memory - baseMemory) / open.size());
+            System.out.println(String.format("%-9s %11d %8d %12s %14s %9.2f %9.2f", mode, open.size(), failed,
+                    threads < 0 ? "n/a" : String.valueOf(threads), memoryPerConnection,
+                    percentile(latencies, 0.5), percentile(latencies, 0.99)));
+
+            if (mode.equals("virtual") && Runtime.version().feature() < 21)
+                System.out.println("          (virtual threads need Java 21, the server used platform threads)");
+        } finally {
+            for (Connection connection : open)
+                connection.closeConnection();
+            clients.shutdownNow();
+            server.destroy();
+            server.waitFor(10, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * @return round trip time in nanoseconds
+     */
+    private static long ping(Connection connection) throws IOException, ClassNotFoundException {
+        long start = System.nanoTime();
+        connection.sendMessage(new Message(PING, BigInteger.ZERO, RESPONSIBLE));
+
+        Message answer = connection.receiveMessage();
+        if (!answer.getMessageType().equals(PONG))
+            throw new IOException("Unexpected answer " + answer.getMessageType());
+
+        return System.nanoTime() - start;
+    }
+
+    private Process startServer(String mode, File directory) throws IOException {
+        ArrayList<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+
+        for (String name : System.getProperties().stringPropertyNames())
+            if (name.startsWith("javax.net.ssl.") || name.equals("wire.format"))
+                command.add("-D" + name + "=" + System.getProperty(name));
+
+        command.add("-Dserver.io=" + mode);
+        command.add("Server.Server");
+        command.add(HOST);
+        command.add(String.valueOf(port));
+
+        return new ProcessBuilder(command)
+                .directory(directory)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.DISCARD)
+                .start();
+    }
+
+    private void waitForServer(Process server) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT;
+
+        while (true) {
+            if (!server.isAlive())
+                throw new IOException("Server exited with " + server.exitValue());
+
+            Connection connection = new Connection(HOST, port);
+            try {
+                connection.connect();
+                ping(connection);
+                connection.closeConnection();
+                return;
+            } catch (IOException | ClassNotFoundException e) {
+                if (System.currentTimeMillis() > deadline)
+                    throw new IOException("Server did not start", e);
+                Thread.sleep(200);
+            }
+        }
+    }
+
+    /**
+     * Reads a field of /proc/[pid]/status, memory fields being in KB
+     *
+     * @return value, or -1 if it can not be read
+     */
+    private static long readStatus(Process process, String field) {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc", String.valueOf(process.pid()), "status")))
+                if (line.startsWith(field + ":"))
+                    return Long.parseLong(line.substring(field.length() + 1).trim().split("\\s+")[0]);
+        } catch (IOException | NumberFormatException e) {
+            return -1;
+        }
+
+        return -1;
+    }
+
+    private static double percentile(List<Long> sorted, double percentile) {
+        if (sorted.isEmpty())
+            return 0;
+
+        int index = (int) Math.ceil(percentile * sorted.size()) - 1;
+        return sorted.get(Math.max(0, index)) / 1e6;
+    }
+}
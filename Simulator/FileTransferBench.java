@@ -0,0 +1,220 @@
+package Simulator;
+
+import Chat.ChatMessage;
+import Messages.Message;
+import Protocols.Connection;
+import Protocols.FileTransfers;
+import Protocols.MemoryTransport;
+import Protocols.Transport;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static Utilities.Constants.*;
+
+/**
+ * Uploads a file as chunk messages on a message connection, as files used to go, and on a bulk connection, while
+ * pinging the server on the message connection, and reports the upload throughput and the PING latency during it
+ * Chunks and pings share the message connection, so a ping waits behind the chunks written before it
+ * Runs over TLS, taking the javax.net.ssl properties of this JVM as a client would, or over the in-memory transport
+ */
+public class FileTransferBench {
+
+    private static final String HOST = "localhost";
+    private static final int CHUNK_SIZE = 8192;
+    private static final long PING_INTERVAL = 5;
+
+    private final File source;
+    private final long size;
+    private final Transport.Listener listener;
+    private final FileTransfers transfers;
+    private final int port;
+    private final int bulkPort;
+
+    private FileTransferBench(File source, int port) throws IOException {
+        this.source = source;
+        this.size = source.length();
+        this.listener = Transport.getDefault().listen(HOST, port);
+        this.port = port;
+        this.bulkPort = port + 1;
+        this.transfers = new FileTransfers(HOST, bulkPort);
+        transfers.start();
+    }
+
+    /**
+     * @param args [megabytes] [ssl or memory] [rounds] [port]
+     */
+    public static void main(String[] args) throws Exception {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        boolean ssl = args.length <= 1 || args[1].equals("ssl");
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+        int port = args.length > 3 ? Integer.parseInt(args[3]) : 5200;
+
+        if (!ssl)
+            Transport.setDefault(new MemoryTransport());
+
+        File source = File.createTempFile("bench", ".bin");
+        source.deleteOnExit();
+        byte[] bytes = new byte[1024 * 1024];
+        Random random = new Random(42);
+        try (OutputStream out = new FileOutputStream(source)) {
+            for (int i = 0; i < megabytes; i++) {
+                random.nextBytes(bytes);
+                out.write(bytes);
+            }
+        }
+
+        FileTransferBench bench = new FileTransferBench(source, port);
+        System.out.println((ssl ? "TLS" : "In-memory") + ", " + megabytes + " MB file, " + (BINARY_WIRE_FORMAT ? "binary" : "serialized")
+                + " messages, " + BULK_BUFFER_SIZE / 1024 + " KB bulk buffer");
+        System.out.println(String.format("%-8s %10s %10s %8s %12s %12s", "upload", "ms", "MB/s", "pings", "ping p50 ms", "ping max ms"));
+
+        for (int round = 0; round < rounds; round++) {
+            bench.run(false);
+            bench.run(true);
+        }
+
+        bench.transfers.printMetrics();
+
+        //writer threads are not daemons
+        System.exit(0);
+    }
+
+    /**
+     * @param bulk true to upload on a bulk connection, false as chunk messages on the message connection
+     */
+    private void run(boolean bulk) throws Exception {
+        File target = File.createTempFile("bench", ".bin");
+        target.deleteOnExit();
+
+        Thread server = new Thread(() -> serve(bulk ? null : target));
+        server.start();
+
+        Connection connection = new Connection(HOST, port);
+        connection.connect();
+
+        //pongs are read on their own thread, each matched with the oldest ping waiting
+        ConcurrentLinkedQueue<Long> waiting = new ConcurrentLinkedQueue<>();
+        ArrayList<Long> latencies = new ArrayList<>();
+        Thread reader = new Thread(() -> {
+            try {
+                while (true) {
+                    Message message = connection.receiveMessage();
+                    if (message.getMessageType().equals(PONG))
+                        latencies.add(System.nanoTime() - waiting.poll());
+                    else
+                        return;
+                }
+            } catch (IOException | ClassNotFoundException e) {
+                //connection closed at the end
+            }
+        });
+        reader.start();
+
+        AtomicBoolean done = new AtomicBoolean();
+        Thread pinger = new Thread(() -> {
+            while (!done.get()) {
+                try {
+                    waiting.add(System.nanoTime());
+                    connection.sendMessage(new Message(PING, BigInteger.ONE, RESPONSIBLE));
+                    Thread.sleep(PING_INTERVAL);
+                } catch (IOException | InterruptedException e) {
+                    return;
+                }
+            }
+        });
+
+        long start = System.nanoTime();
+        pinger.start();
+
+        if (bulk) {
+            String token = transfers.expectUpload(target, size, null);
+            FileTransfers.upload(HOST, bulkPort, token, source);
+        } else {
+            sendChunks(connection);
+        }
+
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        done.set(true);
+        pinger.join();
+
+        //the last message, answered once every chunk and ping before it was
+        connection.sendMessage(new Message(SENT_FILE, BigInteger.ONE, RESPONSIBLE));
+        reader.join();
+        server.join();
+        connection.closeConnection();
+
+        if (target.length() != size)
+            System.out.println("Upload stored " + target.length() + " of " + size + " bytes");
+        target.delete();
+
+        Collections.sort(latencies);
+        System.out.println(String.format("%-8s %,10d %10.1f %8d %12.2f %12.2f", bulk ? "bulk" : "chunks", elapsed, size / 1000.0 / Math.max(1, elapsed),
+                latencies.size(), percentile(latencies, 50), percentile(latencies, 100)));
+    }
+
+    private void sendChunks(Connection connection) throws IOException {
+        byte[] chunk = new byte[CHUNK_SIZE];
+        Date date = new Date();
+
+        try (InputStream in = Files.newInputStream(source.toPath())) {
+            int read;
+            while ((read = in.read(chunk)) != -1) {
+                byte[] content = new byte[read];
+                System.arraycopy(chunk, 0, content, 0, read);
+
+                ChatMessage chatMessage = new ChatMessage(BigInteger.ONE, date, BigInteger.ONE, content, IMAGE_MESSAGE, source.getName());
+                connection.sendMessage(new Message(FILE_TRANSACTION, BigInteger.ONE, RESPONSIBLE, chatMessage, BigInteger.ONE));
+            }
+        }
+    }
+
+    /**
+     * Answers pings and appends chunks to the target file, in the order they arrive, until SENT_FILE
+     *
+     * @param target file the chunks are appended to, or null if the file goes on a bulk connection
+     */
+    private void serve(File target) {
+        try {
+            Connection connection = new Connection(listener.accept());
+
+            try (OutputStream out = target == null ? OutputStream.nullOutputStream() : new FileOutputStream(target, true)) {
+                while (true) {
+                    Message message = connection.receiveMessage();
+
+                    switch (message.getMessageType()) {
+                        case PING:
+                            connection.sendMessage(new Message(PONG, BigInteger.ONE, RESPONSIBLE));
+                            break;
+                        case FILE_TRANSACTION:
+                            out.write(((ChatMessage) message.getObject()).getContent());
+                            break;
+                        case SENT_FILE:
+                            connection.sendMessage(new Message(SERVER_SUCCESS, BigInteger.ONE, RESPONSIBLE, SENT_FILE));
+                            return;
+                    }
+                }
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static double percentile(ArrayList<Long> sorted, int percentile) {
+        if (sorted.isEmpty())
+            return 0;
+        int index = Math.min(sorted.size() - 1, sorted.size() * percentile / 100);
+        return sorted.get(index) / 1000000.0;
+    }
+}
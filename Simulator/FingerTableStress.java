@@ -0,0 +1,215 @@
+package Simulator;
+
+import Protocols.DistributedHashTable;
+import Server.Node;
+import Utilities.RingIdentifier;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static Utilities.Constants.*;
+
+/**
+ * Runs lookups on one finger table from several threads while another thread keeps learning and removing nodes
+ * The predecessor and successors never change, so every lookup has one right answer: this node for the keys it
+ * is responsible for, its successor for the keys the successor is responsible for, and otherwise a known node
+ * strictly between this node and the key
+ * Reports the lookups and updates per second, the wrong answers and the bytes the lookup threads allocated,
+ * and exits with status 1 if any answer was wrong or the lookups allocated
+ */
+public class FingerTableStress {
+
+    /**
+     * Bytes per lookup above which the lookup path is taken to allocate
+     * Stays above zero for the few objects the JIT and the measurement itself allocate
+     */
+    private static final double ALLOCATION_THRESHOLD = 0.01;
+
+    private static final int KEYS = 4096;
+
+    /**
+     * @param args [seconds] [lookup threads] [nodes] [seed]
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        int readers = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int nodes = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+        long seed = args.length > 3 ? Long.parseLong(args[3]) : 1;
+
+        //finger tables print themselves when nodes are removed
+        PrintStream report = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+
+        Random random = new Random(seed);
+        Node local = new Node("localhost", 5000, new RingIdentifier(BigInteger.ZERO));
+
+        //nodes that stay on the ring, the first being the successor and the last the predecessor
+        TreeMap<RingIdentifier, Node> stable = new TreeMap<>();
+        while (stable.size() < nodes) {
+            RingIdentifier nodeId = new RingIdentifier(new BigInteger(RING_BITS, random));
+            if (nodeId.compareTo(local.getNodeId()) > 0)
+                stable.put(nodeId, new Node("localhost", 5001 + stable.size(), nodeId));
+        }
+        ArrayList<Node> ring = new ArrayList<>(stable.values());
+        Node successor = ring.get(0);
+        Node predecessor = ring.get(ring.size() - 1);
+
+        //nodes that join and leave, between the successor and the predecessor so neither changes
+        Node[] churn = new Node[4 * nodes];
+        for (int i = 0; i < churn.length; i++) {
+            RingIdentifier nodeId;
+            do {
+                nodeId = new RingIdentifier(new BigInteger(RING_BITS, random));
+            } while (!nodeId.isStrictlyBetween(successor.getNodeId(), predecessor.getNodeId()) || stable.containsKey(nodeId));
+            churn[i] = new Node("localhost", 6000 + i, nodeId);
+        }
+
+        HashSet<Node> known = new HashSet<>(ring);
+        for (Node node : churn)
+            known.add(node);
+        known.add(local);
+
+        DistributedHashTable table = new DistributedHashTable(local);
+        for (Node node : ring)
+            table.updateFingerTable(node);
+        table.setPredecessor(predecessor);
+        table.updateSuccessorList(successor, ring.subList(1, Math.min(ring.size(), SUCCESSOR_LIST_SIZE)));
+
+        RingIdentifier[][] keys = new RingIdentifier[readers][KEYS];
+        for (RingIdentifier[] readerKeys : keys) {
+            for (int i = 0; i < KEYS; i++) {
+                switch (i % 8) {
+                    case 0:
+                        readerKeys[i] = ring.get(random.nextInt(ring.size())).getNodeId();
+                        break;
+                    case 1:
+                        readerKeys[i] = churn[random.nextInt(churn.length)].getNodeId().next();
+                        break;
+                    default:
+                        readerKeys[i] = new RingIdentifier(new BigInteger(RING_BITS, random));
+                }
+            }
+            readerKeys[0] = local.getNodeId();
+            readerKeys[1] = successor.getNodeId();
+            readerKeys[2] = predecessor.getNodeId().next();
+        }
+
+        com.sun.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean
+                ? (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean() : null;
+
+        AtomicBoolean measuring = new AtomicBoolean(false);
+        AtomicBoolean stop = new AtomicBoolean(false);
+        AtomicLong lookups = new AtomicLong();
+        AtomicLong wrong = new AtomicLong();
+        AtomicLong allocated = new AtomicLong();
+        AtomicLong updates = new AtomicLong();
+
+        Thread writer = new Thread(() -> {
+            Random writes = new Random(seed + 1);
+            boolean[] joined = new boolean[churn.length];
+            long published = 0;
+
+            while (!stop.get()) {
+                int i = writes.nextInt(churn.length);
+
+                if (writes.nextInt(8) == 0) {
+                    published += table.setFinger(2 + writes.nextInt(MAX_FINGER_TABLE_SIZE - 1), joined[i] ? churn[i] : ring.get(writes.nextInt(ring.size()))) ? 1 : 0;
+                } else if (joined[i]) {
+                    table.removeNode(churn[i].getNodeId());
+                    joined[i] = false;
+                    published++;
+                } else {
+                    published += table.updateFingerTable(churn[i]) ? 1 : 0;
+                    joined[i] = true;
+                }
+            }
+            updates.set(published);
+        });
+
+        Thread[] lookupThreads = new Thread[readers];
+        for (int t = 0; t < readers; t++) {
+            RingIdentifier[] readerKeys = keys[t];
+            lookupThreads[t] = new Thread(() -> {
+                RingIdentifier localId = local.getNodeId();
+                RingIdentifier successorId = successor.getNodeId();
+                RingIdentifier predecessorId = predecessor.getNodeId();
+                long count = 0, errors = 0, startBytes = 0;
+                boolean counting = false;
+
+                while (!stop.get()) {
+                    if (!counting && measuring.get()) {
+                        counting = true;
+                        count = 0;
+                        errors = 0;
+                        startBytes = threads == null ? 0 : threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+                    }
+
+                    for (RingIdentifier key : readerKeys) {
+                        Node next = table.nodeLookUp(key);
+                        boolean right;
+
+                        if (next.equals(local))
+                            right = key.isBetween(predecessorId, localId);
+                        else if (next.equals(successor) && key.isBetween(localId, successorId))
+                            right = true;
+                        else
+                            right = !key.isBetween(predecessorId, localId) && !key.isBetween(localId, successorId)
+                                    && next.getNodeId().isStrictlyBetween(localId, key) && known.contains(next);
+
+                        if (!right)
+                            errors++;
+                    }
+                    count += readerKeys.length;
+                }
+
+                if (threads != null)
+                    allocated.addAndGet(threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - startBytes);
+                lookups.addAndGet(count);
+                wrong.addAndGet(errors);
+            });
+        }
+
+        writer.start();
+        for (Thread thread : lookupThreads)
+            thread.start();
+
+        //warm up before counting, so the lookups run compiled
+        Thread.sleep(Math.min(2000, seconds * 500L));
+        long start = System.nanoTime();
+        measuring.set(true);
+        Thread.sleep(seconds * 1000L);
+        stop.set(true);
+        writer.join();
+        for (Thread thread : lookupThreads)
+            thread.join();
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        double bytesPerLookup = (double) allocated.get() / Math.max(1, lookups.get());
+        report.println(nodes + " nodes, " + churn.length + " joining and leaving, " + readers + " lookup threads");
+        report.println(String.format("%,d lookups (%,.0f per second), %,d wrong", lookups.get(), lookups.get() / elapsed, wrong.get()));
+        report.println(String.format("%,d finger table updates (%,.0f per second)", updates.get(), updates.get() / elapsed));
+        if (threads != null)
+            report.println(String.format("%,d bytes allocated by the lookup threads, %.4f per lookup", allocated.get(), bytesPerLookup));
+        else
+            report.println("Allocation not measured on this runtime");
+
+        boolean allocates = threads != null && bytesPerLookup > ALLOCATION_THRESHOLD;
+        System.exit(wrong.get() == 0 && !allocates ? 0 : 1);
+    }
+}
@@ -0,0 +1,393 @@
+package Simulator;
+
+import Protocols.DistributedHashTable;
+import Protocols.FingerTable;
+import Server.Node;
+import Utilities.RingIdentifier;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static Utilities.Constants.*;
+
+/**
+ * Checks the routing of the ring without servers: ring intervals on both sides of zero and with equal bounds,
+ * finger tables against the nodes they were built from, and iterative lookups over rings of finger tables,
+ * with full fingers, with successors only and after a node is removed
+ * Prints every failed check and exits with status 1 if any failed
+ */
+public class RoutingTest {
+
+    private static final BigInteger MAX = RING_SIZE.subtract(BigInteger.ONE);
+
+    private final Random random;
+    private final PrintStream report;
+    private int checks = 0;
+    private int failures = 0;
+
+    public RoutingTest(long seed, PrintStream report) {
+        this.random = new Random(seed);
+        this.report = report;
+    }
+
+    /**
+     * @param args [nodes] [lookups] [seed]
+     */
+    public static void main(String[] args) {
+        int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 1;
+
+        //finger tables print themselves when built and changed
+        PrintStream report = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+
+        RoutingTest test = new RoutingTest(seed, report);
+        test.intervals();
+        test.fingerTables(nodes);
+        test.lookUps(nodes, lookups);
+        test.wrappingRing();
+        test.singleNode();
+
+        report.println(test.checks + " checks, " + test.failures + " failed");
+        System.exit(test.failures == 0 ? 0 : 1);
+    }
+
+    /**
+     * Intervals (from, to] and (from, to): inside, on each bound, across zero and with equal bounds
+     */
+    private void intervals() {
+        check(id(15).isBetween(id(10), id(20)), "15 in (10, 20]");
+        check(id(20).isBetween(id(10), id(20)), "20 in (10, 20]");
+        check(!id(10).isBetween(id(10), id(20)), "10 not in (10, 20]");
+        check(!id(25).isBetween(id(10), id(20)), "25 not in (10, 20]");
+        check(!id(5).isBetween(id(10), id(20)), "5 not in (10, 20]");
+        check(!id(20).isStrictlyBetween(id(10), id(20)), "20 not in (10, 20)");
+        check(!id(10).isStrictlyBetween(id(10), id(20)), "10 not in (10, 20)");
+        check(id(11).isStrictlyBetween(id(10), id(20)), "11 in (10, 20)");
+
+        //across zero
+        RingIdentifier top = new RingIdentifier(MAX.subtract(BigInteger.valueOf(4)));
+        check(id(0).isBetween(top, id(5)), "0 in (max - 4, 5]");
+        check(new RingIdentifier(MAX).isBetween(top, id(5)), "max in (max - 4, 5]");
+        check(id(5).isBetween(top, id(5)), "5 in (max - 4, 5]");
+        check(!top.isBetween(top, id(5)), "max - 4 not in (max - 4, 5]");
+        check(!id(6).isBetween(top, id(5)), "6 not in (max - 4, 5]");
+        check(!id(100).isBetween(top, id(5)), "100 not in (max - 4, 5]");
+        check(id(0).isStrictlyBetween(top, id(5)), "0 in (max - 4, 5)");
+        check(!id(5).isStrictlyBetween(top, id(5)), "5 not in (max - 4, 5)");
+        check(id(0).isBetween(new RingIdentifier(MAX), id(0)), "0 in (max, 0]");
+        check(!id(1).isBetween(new RingIdentifier(MAX), id(0)), "1 not in (max, 0]");
+
+        //equal bounds: the whole ring, without the bound if strict
+        check(id(7).isBetween(id(7), id(7)), "7 in (7, 7]");
+        check(id(8).isBetween(id(7), id(7)), "8 in (7, 7]");
+        check(id(6).isBetween(id(7), id(7)), "6 in (7, 7]");
+        check(id(0).isBetween(id(7), id(7)), "0 in (7, 7]");
+        check(!id(7).isStrictlyBetween(id(7), id(7)), "7 not in (7, 7)");
+        check(id(8).isStrictlyBetween(id(7), id(7)), "8 in (7, 7)");
+        check(id(6).isStrictlyBetween(id(7), id(7)), "6 in (7, 7)");
+
+        //identifiers wrap at 2^m
+        check(new RingIdentifier(RING_SIZE).equals(id(0)), "2^m is 0");
+        check(new RingIdentifier(MAX).next().equals(id(0)), "max + 1 is 0");
+        check(id(3).addPowerOfTwo(RING_BITS - 1).addPowerOfTwo(RING_BITS - 1).equals(id(3)), "3 + 2^(m-1) + 2^(m-1) is 3");
+
+        //brute force on random identifiers against the ring distance
+        for (int i = 0; i < 10000; i++) {
+            RingIdentifier from = randomId();
+            RingIdentifier to = random.nextInt(10) == 0 ? from : randomId();
+            RingIdentifier key = random.nextInt(10) == 0 ? (random.nextBoolean() ? from : to) : randomId();
+
+            BigInteger keyDistance = distance(from, key);
+            BigInteger toDistance = from.equals(to) ? RING_SIZE : distance(from, to);
+            boolean between = keyDistance.signum() > 0 ? keyDistance.compareTo(toDistance) <= 0 : from.equals(to);
+            boolean strictlyBetween = keyDistance.signum() > 0 && keyDistance.compareTo(toDistance) < 0;
+
+            check(key.isBetween(from, to) == between, key + " in (" + from + ", " + to + "] is " + between);
+            check(key.isStrictlyBetween(from, to) == strictlyBetween, key + " in (" + from + ", " + to + ") is " + strictlyBetween);
+        }
+    }
+
+    /**
+     * Every finger is the first of the known nodes succeeding its start, and the closest preceding finger of a key
+     * precedes it with no finger in between
+     */
+    private void fingerTables(int nodes) {
+        ArrayList<Node> ring = randomRing(nodes);
+        Node local = ring.get(0);
+
+        DistributedHashTable table = new DistributedHashTable(local);
+        for (int i = ring.size() - 1; i >= 1; i--)
+            table.updateFingerTable(ring.get(i));
+        FingerTable fingers = table.getFingerTable();
+
+        check(fingers.get(0).equals(local), "finger 0 is the local node");
+        for (int i = 1; i < fingers.size(); i++) {
+            Node expected = successor(ring, table.fingerStart(i));
+            check(fingers.get(i).equals(expected), "finger " + i + " of " + local.getNodeId() + " is " + expected.getNodeId()
+                    + ", not " + fingers.get(i).getNodeId());
+        }
+
+        //learning a node already known, or the local node, keeps the same snapshot
+        check(fingers.with(ring.get(1)) == fingers, "known node keeps the finger table");
+        check(fingers.with(local) == fingers, "local node keeps the finger table");
+
+        ArrayList<RingIdentifier> keys = new ArrayList<>();
+        for (Node node : ring) {
+            keys.add(node.getNodeId());
+            keys.add(node.getNodeId().next());
+        }
+        keys.add(id(0));
+        keys.add(new RingIdentifier(MAX));
+        for (int i = 0; i < 1000; i++)
+            keys.add(randomId());
+
+        for (RingIdentifier key : keys) {
+            Node closest = fingers.closestPrecedingFinger(key);
+
+            if (closest.equals(local)) {
+                for (int i = 1; i < fingers.size(); i++)
+                    check(!fingers.get(i).getNodeId().isStrictlyBetween(local.getNodeId(), key),
+                            "finger " + i + " precedes " + key + " but the closest preceding finger is the local node");
+                continue;
+            }
+
+            check(closest.getNodeId().isStrictlyBetween(local.getNodeId(), key), "closest preceding finger of " + key
+                    + " is " + closest.getNodeId() + ", not before it");
+            for (int i = 1; i < fingers.size(); i++)
+                check(!fingers.get(i).getNodeId().isStrictlyBetween(closest.getNodeId(), key), "finger " + i + " is closer to "
+                        + key + " than " + closest.getNodeId());
+        }
+    }
+
+    /**
+     * Iterative lookups from random nodes reach the successor of the key, in a logarithmic number of hops
+     * with full fingers and in at most one hop per node with successors only
+     */
+    private void lookUps(int nodes, int lookups) {
+        ArrayList<Node> ring = randomRing(nodes);
+        HashMap<Node, DistributedHashTable> tables = fullRing(ring);
+
+        int bound = 2 * (32 - Integer.numberOfLeadingZeros(nodes)) + 1;
+        int maxHops = lookUp(ring, tables, lookups, bound, "full fingers");
+        report.println("Full fingers: " + nodes + " nodes, at most " + maxHops + " hops");
+
+        HashMap<Node, DistributedHashTable> successorsOnly = new HashMap<>();
+        for (int i = 0; i < ring.size(); i++) {
+            DistributedHashTable table = new DistributedHashTable(ring.get(i));
+            table.updateFingerTable(ring.get((i + 1) % ring.size()));
+            table.setPredecessor(ring.get((i + ring.size() - 1) % ring.size()));
+            successorsOnly.put(ring.get(i), table);
+        }
+        maxHops = lookUp(ring, successorsOnly, lookups / 10, nodes, "successors only");
+        report.println("Successors only: " + nodes + " nodes, at most " + maxHops + " hops");
+
+        //a node that is down leaves every table, and its keys go to its successor
+        Node down = ring.remove(random.nextInt(ring.size()));
+        tables.remove(down);
+        for (DistributedHashTable table : tables.values())
+            table.removeNode(down.getNodeId());
+        Node next = successor(ring, down.getNodeId());
+        check(tables.get(next).getPredecessor().equals(next), "successor of the removed node forgets its predecessor");
+        tables.get(next).setPredecessor(predecessor(ring, next.getNodeId()));
+
+        maxHops = lookUp(ring, tables, lookups, bound + 1, "node removed");
+        check(next.equals(walk(ring, tables, down.getNodeId(), ring.get(0))), "keys of the removed node go to its successor");
+        report.println("Node removed: " + ring.size() + " nodes, at most " + maxHops + " hops");
+    }
+
+    /**
+     * Ring where every node sits next to zero, so lookups and fingers wrap around it
+     */
+    private void wrappingRing() {
+        ArrayList<Node> ring = new ArrayList<>();
+        ring.add(node(BigInteger.valueOf(3)));
+        ring.add(node(BigInteger.valueOf(12)));
+        ring.add(node(MAX.subtract(BigInteger.TEN)));
+        ring.add(node(MAX.subtract(BigInteger.valueOf(5))));
+        HashMap<Node, DistributedHashTable> tables = fullRing(ring);
+
+        for (Node from : ring) {
+            check(ring.get(0).equals(walk(ring, tables, new RingIdentifier(MAX), from)), "max goes to 3 from " + from.getNodeId());
+            check(ring.get(0).equals(walk(ring, tables, id(0), from)), "0 goes to 3 from " + from.getNodeId());
+            check(ring.get(0).equals(walk(ring, tables, id(3), from)), "3 goes to 3 from " + from.getNodeId());
+            check(ring.get(1).equals(walk(ring, tables, id(4), from)), "4 goes to 12 from " + from.getNodeId());
+            check(ring.get(2).equals(walk(ring, tables, id(13), from)), "13 goes to max - 10 from " + from.getNodeId());
+            check(ring.get(3).equals(walk(ring, tables, ring.get(3).getNodeId(), from)), "max - 5 goes to itself from " + from.getNodeId());
+        }
+        lookUp(ring, tables, 1000, ring.size() + 1, "wrapping ring");
+    }
+
+    /**
+     * A node alone on the ring is responsible for every key
+     */
+    private void singleNode() {
+        Node node = node(BigInteger.valueOf(42));
+        DistributedHashTable table = new DistributedHashTable(node);
+
+        for (RingIdentifier key : new RingIdentifier[]{id(0), id(41), id(42), id(43), new RingIdentifier(MAX), randomId()}) {
+            check(table.isResponsibleFor(key), "single node is responsible for " + key);
+            check(table.nodeLookUp(key).equals(node), "single node looks up " + key + " on itself");
+        }
+    }
+
+    /**
+     * Looks up random keys, the node identifiers and their neighbours from random nodes
+     *
+     * @return largest number of hops taken
+     */
+    private int lookUp(ArrayList<Node> ring, HashMap<Node, DistributedHashTable> tables, int lookups, int bound, String name) {
+        ArrayList<RingIdentifier> keys = new ArrayList<>();
+        for (Node node : ring) {
+            keys.add(node.getNodeId());
+            keys.add(node.getNodeId().next());
+            keys.add(new RingIdentifier(node.getNodeId().toBigInteger().subtract(BigInteger.ONE)));
+        }
+        for (int i = 0; i < lookups; i++)
+            keys.add(randomId());
+
+        int maxHops = 0;
+        for (RingIdentifier key : keys) {
+            Node from = ring.get(random.nextInt(ring.size()));
+            Node current = from;
+            int hops = 0;
+
+            while (hops <= bound) {
+                Node next = tables.get(current).nodeLookUp(key);
+                if (next.equals(current))
+                    break;
+                current = next;
+                hops++;
+            }
+
+            Node expected = successor(ring, key);
+            check(current.equals(expected), name + ": " + key + " from " + from.getNodeId() + " reached "
+                    + current.getNodeId() + ", not " + expected.getNodeId());
+            check(hops <= bound, name + ": " + key + " from " + from.getNodeId() + " took " + hops + " hops, more than " + bound);
+            check(tables.get(current).isResponsibleFor(key), name + ": " + current.getNodeId() + " is not responsible for " + key);
+            maxHops = Math.max(maxHops, hops);
+        }
+
+        return maxHops;
+    }
+
+    /**
+     * @return node where an iterative lookup of the key from a node ends, or null if it does not end
+     */
+    private Node walk(ArrayList<Node> ring, HashMap<Node, DistributedHashTable> tables, RingIdentifier key, Node from) {
+        Node current = from;
+
+        for (int hops = 0; hops <= MAX_LOOKUP_HOPS; hops++) {
+            Node next = tables.get(current).nodeLookUp(key);
+            if (next.equals(current))
+                return current;
+            current = next;
+        }
+
+        return null;
+    }
+
+    /**
+     * Finger tables knowing every node of the ring, each with its predecessor and successor list
+     */
+    private HashMap<Node, DistributedHashTable> fullRing(ArrayList<Node> ring) {
+        HashMap<Node, DistributedHashTable> tables = new HashMap<>();
+
+        for (int i = 0; i < ring.size(); i++) {
+            Node local = ring.get(i);
+            DistributedHashTable table = new DistributedHashTable(local);
+
+            for (Node node : ring)
+                table.updateFingerTable(node);
+            table.setPredecessor(ring.get((i + ring.size() - 1) % ring.size()));
+
+            ArrayList<Node> successors = new ArrayList<>();
+            for (int j = 2; j <= SUCCESSOR_LIST_SIZE; j++)
+                successors.add(ring.get((i + j) % ring.size()));
+            table.updateSuccessorList(ring.get((i + 1) % ring.size()), successors);
+
+            tables.put(local, table);
+        }
+
+        return tables;
+    }
+
+    /**
+     * @return nodes at distinct random positions, sorted by identifier
+     */
+    private ArrayList<Node> randomRing(int nodes) {
+        TreeMap<RingIdentifier, Node> ring = new TreeMap<>();
+
+        while (ring.size() < nodes) {
+            RingIdentifier nodeId = randomId();
+            ring.put(nodeId, new Node("localhost", 5000 + ring.size(), nodeId));
+        }
+
+        return new ArrayList<>(ring.values());
+    }
+
+    /**
+     * @return first node of a sorted ring at or after the key
+     */
+    private static Node successor(ArrayList<Node> ring, RingIdentifier key) {
+        for (Node node : ring) {
+            if (node.getNodeId().compareTo(key) >= 0)
+                return node;
+        }
+
+        return ring.get(0);
+    }
+
+    /**
+     * @return last node of a sorted ring before the key
+     */
+    private static Node predecessor(ArrayList<Node> ring, RingIdentifier key) {
+        for (int i = ring.size() - 1; i >= 0; i--) {
+            if (ring.get(i).getNodeId().compareTo(key) < 0)
+                return ring.get(i);
+        }
+
+        return ring.get(ring.size() - 1);
+    }
+
+    /**
+     * @return clockwise distance from one identifier to another
+     */
+    private static BigInteger distance(RingIdentifier from, RingIdentifier to) {
+        return to.toBigInteger().subtract(from.toBigInteger()).mod(RING_SIZE);
+    }
+
+    private RingIdentifier randomId() {
+        return new RingIdentifier(new BigInteger(RING_BITS, random));
+    }
+
+    private static RingIdentifier id(long value) {
+        return new RingIdentifier(BigInteger.valueOf(value));
+    }
+
+    private static Node node(BigInteger nodeId) {
+        return new Node("localhost", 5000 + nodeId.mod(BigInteger.valueOf(1000)).intValue(), new RingIdentifier(nodeId));
+    }
+
+    private void check(boolean condition, String description) {
+        checks++;
+        if (!condition) {
+            failures++;
+            report.println("FAILED: " + description);
+        }
+    }
+}
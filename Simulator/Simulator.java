@@ -0,0 +1,474 @@
+package Simulator;
+
+import Messages.Message;
+import Messages.MessageCodec;
+import Protocols.Connection;
+import Protocols.ConnectionPool;
+import Protocols.Dispatcher;
+import Protocols.DistributedHashTable;
+import Protocols.MemoryTransport;
+import Protocols.Transport;
+import Server.Node;
+import Server.Server;
+import Utilities.RingIdentifier;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static Utilities.Constants.*;
+import static Utilities.Utilities.createHash;
+
+/**
+ * Runs a ring of servers in one JVM over the in-memory transport, to benchmark routing
+ * Joins the servers one at a time, signs up users through random servers, runs lookups and
+ * crashes some servers, reporting hop counts, convergence times and the key load of each server
+ * Server logs and stack traces are discarded unless -Dsim.verbose=true
+ */
+public class Simulator {
+
+    private static final int PORT = 4445;
+    private static final long CONVERGENCE_TIMEOUT = 60000;
+
+    /**
+     * Times the expected ring share spread, 1/sqrt(v) of the mean, above which the spread is reported
+     * Random rings of 16 servers go above it less than once in 500
+     */
+    private static final double SPREAD_TOLERANCE = 1.5;
+
+    private final MemoryTransport transport = new MemoryTransport();
+    private final ArrayList<Server> servers = new ArrayList<>();
+    private final ArrayList<String> emails = new ArrayList<>();
+    private final Random random;
+    private final PrintStream report;
+
+    public Simulator(long seed, PrintStream report) {
+        this.random = new Random(seed);
+        this.report = report;
+    }
+
+    /**
+     * @param args [nodes] [users] [lookups] [failures] [seed]
+     */
+    public static void main(String[] args) throws InterruptedException {
+
+        //faster ring maintenance than the default, unless configured
+        setDefault("ring.stabilize.interval", "100");
+        setDefault("ring.fixfingers.interval", "50");
+        //servers start empty on every run, keeping nothing on disk
+        setDefault("store", "none");
+
+        int nodes = argument(args, 0, 16);
+        int users = argument(args, 1, 1000);
+        int lookups = argument(args, 2, 10000);
+        int failures = argument(args, 3, 2);
+        long seed = argument(args, 4, 1);
+
+        PrintStream report = System.out;
+        if (!Boolean.getBoolean("sim.verbose")) {
+            PrintStream discard = new PrintStream(new OutputStream() {
+                @Override
+                public void write(int b) {
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                }
+            });
+            System.setOut(discard);
+            System.setErr(discard);
+        }
+
+        Simulator simulator = new Simulator(seed, report);
+        simulator.run(nodes, users, lookups, Math.min(failures, nodes - 1));
+        System.exit(0);
+    }
+
+    public void run(int nodes, int users, int lookups, int failures) throws InterruptedException {
+
+        Transport.setDefault(transport);
+
+        report.println("Ring of " + nodes + " servers, " + VIRTUAL_NODES + " virtual nodes each, " + RING_BITS + "-bit identifiers");
+
+        join(nodes);
+        signUp(users);
+        printLoad();
+        lookUp(lookups);
+        printConnections();
+
+        if (failures > 0) {
+            crash(failures);
+            lookUp(lookups);
+            printLoad();
+            printConnections();
+        }
+    }
+
+    /**
+     * Starts the servers one at a time, each joining through the first one,
+     * and waits for the ring to converge after every join
+     */
+    private void join(int nodes) throws InterruptedException {
+
+        long[] convergence = new long[nodes];
+        long start = System.nanoTime();
+
+        for (int i = 0; i < nodes; i++) {
+            long joinStart = System.nanoTime();
+            startServer(i);
+            convergence[i] = awaitConsistentRing(joinStart);
+        }
+
+        report.println();
+        report.println("Joins: " + nodes + " servers in " + elapsed(start) + " ms");
+        printTimes("  convergence after each join", convergence);
+    }
+
+    private void startServer(int index) {
+
+        String[] args = index == 0
+                ? new String[]{address(index), Integer.toString(PORT)}
+                : new String[]{address(index), Integer.toString(PORT), address(0), Integer.toString(PORT)};
+
+        Server server = new Server(args);
+
+        Thread listener = new Thread(server::listen);
+        listener.setDaemon(true);
+        listener.start();
+
+        servers.add(server);
+    }
+
+    /**
+     * Signs up users through random servers, so requests are redirected to their owners
+     */
+    private void signUp(int users) {
+
+        int failed = 0;
+        long start = System.nanoTime();
+
+        for (int i = 0; i < users; i++) {
+            String email = "user" + i + "@simulator";
+            Server entry = servers.get(random.nextInt(servers.size()));
+
+            Message message = new Message(SIGNUP, createHash(email), NOT_RESPONSIBLE, email, createHash(email + i).toString(), new byte[0], null);
+            Message response = request(entry, message);
+
+            if (response != null && response.getMessageType().equals(CLIENT_SUCCESS))
+                emails.add(email);
+            else
+                failed++;
+        }
+
+        report.println();
+        report.println("Sign ups: " + emails.size() + " users in " + elapsed(start) + " ms, " + failed + " failed");
+    }
+
+    private Message request(Server server, Message message) {
+
+        Connection connection = new Connection(server.getNodeIp(), server.getNodePort());
+
+        try {
+            connection.connect();
+            connection.sendMessage(message);
+            return connection.receiveMessage();
+        } catch (IOException | ClassNotFoundException e) {
+            return null;
+        } finally {
+            connection.closeConnection();
+        }
+    }
+
+    /**
+     * Looks up random keys from random servers, asking each hop with findSuccessor,
+     * and checks the answers against the actual owners
+     */
+    private void lookUp(int lookups) {
+
+        TreeMap<RingIdentifier, Server> ring = ring();
+        int[] histogram = new int[MAX_LOOKUP_HOPS + 2];
+        int wrong = 0;
+        int failed = 0;
+
+        for (int i = 0; i < lookups; i++) {
+            RingIdentifier key = new RingIdentifier(new BigInteger(RING_BITS, random));
+            Server server = servers.get(random.nextInt(servers.size()));
+
+            Message answer = server.findSuccessor(key);
+            int hops = 0;
+
+            while (answer.getResponsible().equals(NOT_RESPONSIBLE) && hops <= MAX_LOOKUP_HOPS) {
+                server = find((Node) answer.getObject());
+                if (server == null)
+                    break;
+
+                answer = server.findSuccessor(key);
+                hops++;
+            }
+
+            if (answer.getResponsible().equals(NOT_RESPONSIBLE)) {
+                failed++;
+                continue;
+            }
+
+            histogram[hops]++;
+            if (!((Node) answer.getObject()).getNodeId().equals(ownerId(ring, key)))
+                wrong++;
+        }
+
+        report.println();
+        report.println("Lookups: " + lookups + " random keys, " + wrong + " wrong owners, " + failed + " failed");
+        printHistogram(histogram);
+    }
+
+    /**
+     * Crashes random servers, other than the first one, and waits for the ring to repair itself
+     */
+    private void crash(int failures) throws InterruptedException {
+
+        long start = System.nanoTime();
+
+        for (int i = 0; i < failures; i++) {
+            Server server = servers.remove(1 + random.nextInt(servers.size() - 1));
+            server.shutdown();
+            transport.crash(server.getNodeIp(), server.getNodePort());
+            report.println();
+            report.println("Crashed server " + server.getNodeId());
+        }
+
+        long convergence = awaitConsistentRing(start);
+        report.println("Ring repaired in " + (convergence < 0 ? "more than " + CONVERGENCE_TIMEOUT : convergence) + " ms");
+    }
+
+    /**
+     * Waits until every virtual node has the right predecessor and successor
+     *
+     * @param start time the ring started changing, from System.nanoTime
+     * @return milliseconds since start, or -1 if the ring did not converge before the timeout
+     */
+    private long awaitConsistentRing(long start) throws InterruptedException {
+
+        while (!isRingConsistent()) {
+            if (elapsed(start) > CONVERGENCE_TIMEOUT)
+                return -1;
+            Thread.sleep(10);
+        }
+
+        return elapsed(start);
+    }
+
+    private boolean isRingConsistent() {
+
+        TreeMap<RingIdentifier, DistributedHashTable> vnodes = new TreeMap<>();
+        for (Server server : servers) {
+            for (DistributedHashTable vnode : server.getDhts())
+                vnodes.put(vnode.getNode().getNodeId(), vnode);
+        }
+
+        if (vnodes.size() < servers.size() * VIRTUAL_NODES)
+            return false;
+
+        if (vnodes.size() == 1)
+            return true;
+
+        RingIdentifier[] ids = vnodes.keySet().toArray(new RingIdentifier[0]);
+
+        for (int i = 0; i < ids.length; i++) {
+            DistributedHashTable vnode = vnodes.get(ids[i]);
+            Node successor = vnode.getSuccessor();
+
+            if (!vnode.getPredecessor().getNodeId().equals(ids[(i + ids.length - 1) % ids.length]))
+                return false;
+            if (successor == null || !successor.getNodeId().equals(ids[(i + 1) % ids.length]))
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Prints, for each server, the share of the ring it owns and the users it holds, and checks the spread of the
+     * ring shares against the one expected from the virtual nodes
+     */
+    private void printLoad() {
+
+        TreeMap<RingIdentifier, Server> ring = ring();
+        HashMap<Server, Integer> expected = new HashMap<>();
+        HashMap<Server, BigInteger> share = new HashMap<>();
+        int misplaced = 0;
+
+        for (String email : emails) {
+            RingIdentifier key = RingIdentifier.fromHash(createHash(email));
+            Server owner = ring.get(ownerId(ring, key));
+            expected.merge(owner, 1, Integer::sum);
+
+            if (!owner.getUsers().containsKey(createHash(email)))
+                misplaced++;
+        }
+
+        RingIdentifier previous = ring.lastKey();
+        for (Map.Entry<RingIdentifier, Server> entry : ring.entrySet()) {
+            BigInteger range = entry.getKey().toBigInteger().subtract(previous.toBigInteger()).mod(RING_SIZE);
+            share.merge(entry.getValue(), range, BigInteger::add);
+            previous = entry.getKey();
+        }
+
+        report.println();
+        int held = servers.stream().mapToInt(server -> server.getUsers().size()).sum();
+        report.println("Key load: " + emails.size() + " users, " + misplaced + " not held by their owner, "
+                + (held - emails.size() + misplaced) + " copies held by other servers");
+        report.println(String.format("  %-12s %10s %8s %8s", "server", "ring share", "users", "expected"));
+
+        int[] load = new int[servers.size()];
+        double[] shares = new double[servers.size()];
+        for (int i = 0; i < servers.size(); i++) {
+            Server server = servers.get(i);
+            double percentage = new java.math.BigDecimal(share.getOrDefault(server, BigInteger.ZERO).multiply(BigInteger.valueOf(10000)).divide(RING_SIZE)).doubleValue() / 100;
+            load[i] = expected.getOrDefault(server, 0);
+            shares[i] = percentage;
+            report.println(String.format("  %-12s %9.2f%% %8d %8d", server.getNodeId(), percentage, server.getUsers().size(), load[i]));
+        }
+
+        double mean = (double) emails.size() / servers.size();
+        int max = Arrays.stream(load).max().orElse(0);
+        double variance = Arrays.stream(load).mapToDouble(l -> (l - mean) * (l - mean)).sum() / load.length;
+        report.println(String.format("  users: mean %.1f, max/mean %.2f, standard deviation %.1f (%.0f%% of the mean, %.0f%% from hashing the users alone)",
+                mean, mean == 0 ? 0 : max / mean, Math.sqrt(variance), mean == 0 ? 0 : 100 * Math.sqrt(variance) / mean, mean == 0 ? 0 : 100 / Math.sqrt(mean)));
+
+        //with v positions per server, the share of a server deviates from the mean by about 1/sqrt(v) of it
+        double meanShare = 100.0 / servers.size();
+        double maxShare = Arrays.stream(shares).max().orElse(0);
+        double deviation = Math.sqrt(Arrays.stream(shares).map(s -> (s - meanShare) * (s - meanShare)).sum() / shares.length) / meanShare;
+        double bound = 1 / Math.sqrt(VIRTUAL_NODES);
+        report.println(String.format("  ring share: max/mean %.2f, standard deviation %.0f%% of the mean, %.0f%% expected with %d virtual nodes%s",
+                maxShare / meanShare, 100 * deviation, 100 * bound, VIRTUAL_NODES, deviation > SPREAD_TOLERANCE * bound ? ", SPREAD ABOVE THE EXPECTED ONE" : ""));
+    }
+
+    /**
+     * Prints the connection pool metrics, added over the live servers, and the dispatcher metrics
+     */
+    private void printConnections() {
+
+        long opened = 0, reused = 0, pipelined = 0, healthChecks = 0, failedHealthChecks = 0, broken = 0, evicted = 0;
+        for (Server server : servers) {
+            ConnectionPool pool = server.getConnectionPool();
+            opened += pool.getOpened();
+            reused += pool.getReused();
+            pipelined += pool.getPipelined();
+            healthChecks += pool.getHealthChecks();
+            failedHealthChecks += pool.getFailedHealthChecks();
+            broken += pool.getBroken();
+            evicted += pool.getEvicted();
+        }
+
+        report.println();
+        report.println(String.format("Server connections: %d opened, %d reused (%.1f%% of handshakes avoided), %d pipelined, %d health checks (%d failed), %d broken, %d evicted",
+                opened, reused, opened + reused == 0 ? 0 : 100.0 * reused / (opened + reused), pipelined, healthChecks, failedHealthChecks, broken, evicted));
+
+        Dispatcher dispatcher = Dispatcher.getShared();
+        report.println(String.format("Dispatcher: %d threads, %d queued, %d times a connection stopped reading, %d live threads in the process",
+                dispatcher.getThreads(), dispatcher.getQueueDepth(), dispatcher.getSaturated(), Thread.activeCount()));
+
+        long before = MessageCodec.getUncompressedBytes(), after = MessageCodec.getDeflatedBytes();
+        report.println(String.format("Compression: %d frames, %.1f KB to %.1f KB (%.0f%% saved), %d ms deflating",
+                MessageCodec.getCompressedFrames(), before / 1024.0, after / 1024.0, before == 0 ? 0 : 100.0 * (before - after) / before,
+                MessageCodec.getCompressionNanos() / 1000000));
+    }
+
+    private void printHistogram(int[] histogram) {
+
+        int total = Arrays.stream(histogram).sum();
+        int sum = 0;
+        int seen = 0;
+        int median = -1;
+        int p99 = -1;
+        int max = 0;
+
+        for (int hops = 0; hops < histogram.length; hops++) {
+            if (histogram[hops] == 0)
+                continue;
+
+            sum += hops * histogram[hops];
+            seen += histogram[hops];
+            max = hops;
+            if (median < 0 && seen * 2 >= total)
+                median = hops;
+            if (p99 < 0 && seen * 100 >= total * 99)
+                p99 = hops;
+
+            report.println(String.format("  %2d hops %7d %6.2f%%", hops, histogram[hops], 100.0 * histogram[hops] / total));
+        }
+
+        if (total > 0)
+            report.println(String.format("  mean %.2f, median %d, p99 %d, max %d", (double) sum / total, median, p99, max));
+    }
+
+    private void printTimes(String title, long[] times) {
+
+        long[] sorted = times.clone();
+        Arrays.sort(sorted);
+        int timeouts = (int) Arrays.stream(sorted).filter(t -> t < 0).count();
+        long[] converged = Arrays.copyOfRange(sorted, timeouts, sorted.length);
+
+        if (converged.length == 0) {
+            report.println(title + ": never converged");
+            return;
+        }
+
+        report.println(String.format("%s: min %d ms, mean %.0f ms, max %d ms, %d timeouts", title,
+                converged[0], Arrays.stream(converged).average().orElse(0), converged[converged.length - 1], timeouts));
+    }
+
+    /**
+     * @return every virtual node of the live servers, with the server hosting it
+     */
+    private TreeMap<RingIdentifier, Server> ring() {
+
+        TreeMap<RingIdentifier, Server> ring = new TreeMap<>();
+        for (Server server : servers) {
+            for (DistributedHashTable vnode : server.getDhts())
+                ring.put(vnode.getNode().getNodeId(), server);
+        }
+
+        return ring;
+    }
+
+    private static RingIdentifier ownerId(TreeMap<RingIdentifier, Server> ring, RingIdentifier key) {
+        RingIdentifier owner = ring.ceilingKey(key);
+        return owner == null ? ring.firstKey() : owner;
+    }
+
+    private Server find(Node node) {
+        for (Server server : servers) {
+            if (server.isSameServer(node))
+                return server;
+        }
+
+        return null;
+    }
+
+    private static String address(int index) {
+        return "10.0." + (index / 256) + "." + (index % 256);
+    }
+
+    private static long elapsed(long start) {
+        return (System.nanoTime() - start) / 1000000;
+    }
+
+    private static void setDefault(String property, String value) {
+        if (System.getProperty(property) == null)
+            System.setProperty(property, value);
+    }
+
+    private static int argument(String[] args, int index, int defaultValue) {
+        return args.length > index ? Integer.parseInt(args[index]) : defaultValue;
+    }
+}
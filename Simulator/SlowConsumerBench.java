@@ -0,0 +1,161 @@
+package Simulator;
+
+import Messages.Message;
+import Protocols.Backpressure;
+import Protocols.Connection;
+import Protocols.MemoryTransport;
+import Protocols.Transport;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static Utilities.Constants.*;
+
+/**
+ * Pushes messages to two clients, one reading them and one that stopped reading, as a server pushing the
+ * messages of a chat to its participants at a steady rate, and reports how long the pushing thread took and what
+ * each client got
+ * Writing straight to the connections, as pushes used to, the pushing thread gets stuck on the stopped client
+ * and the other one stops receiving too; each overflow policy is then run in turn
+ * Runs over the in-memory transport, on the wire format selected with -Dwire.format
+ */
+public class SlowConsumerBench {
+
+    private static final String ADDRESS = "slow";
+    private static final int PORT = 1;
+    private static final int QUEUE_LIMIT = 256;
+    private static final long BLOCK_TIMEOUT = 100;
+    private static final long STALL_TIMEOUT = 2000;
+    private static final int MESSAGE_SIZE = 512;
+
+    private final Transport.Listener listener;
+    private final int messages;
+    private final int rate;
+
+    private SlowConsumerBench(int messages, int rate) throws IOException {
+        MemoryTransport transport = new MemoryTransport();
+        Transport.setDefault(transport);
+
+        this.listener = transport.listen(ADDRESS, PORT);
+        this.messages = messages;
+        this.rate = rate;
+    }
+
+    /**
+     * @param args [messages] [messages per second]
+     */
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int rate = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        SlowConsumerBench bench = new SlowConsumerBench(messages, rate);
+
+        System.out.println("Wire format: " + (BINARY_WIRE_FORMAT ? "binary" : "serialized") + ", " + messages + " messages of "
+                + MESSAGE_SIZE + " bytes to each client at " + rate + "/s, queue limit " + QUEUE_LIMIT);
+        System.out.println(String.format("%-12s %10s %14s %12s %12s  %s", "policy", "pusher ms", "fast received", "fast dropped", "slow dropped", "slow client"));
+
+        bench.run(null);
+        for (Backpressure.Overflow overflow : Backpressure.Overflow.values())
+            bench.run(overflow);
+
+        //writer threads are not daemons
+        System.exit(0);
+    }
+
+    /**
+     * @param overflow overflow policy, or null to write straight to the connections
+     */
+    private void run(Backpressure.Overflow overflow) throws Exception {
+        Connection[] fast = connect();
+        Connection[] slow = connect();
+
+        AtomicLong received = new AtomicLong();
+        Thread reader = new Thread(() -> {
+            try {
+                while (true) {
+                    fast[1].receiveMessage();
+                    received.incrementAndGet();
+                }
+            } catch (IOException | ClassNotFoundException e) {
+                //connection closed at the end
+            }
+        });
+        reader.start();
+
+        Backpressure backpressure = overflow == null ? null : new Backpressure(overflow, QUEUE_LIMIT, BLOCK_TIMEOUT, STALL_TIMEOUT);
+        Connection[] clients = {fast[0], slow[0]};
+        AtomicLong[] dropped = {new AtomicLong(), new AtomicLong()};
+        AtomicLong pushes = new AtomicLong();
+        String body = String.format("%" + MESSAGE_SIZE + "s", "message");
+        long start = System.nanoTime();
+
+        Thread pusher = new Thread(() -> {
+            for (int i = 0; i < messages; i++) {
+                long due = start + i * 1000000000L / rate;
+                while (System.nanoTime() < due)
+                    Thread.onSpinWait();
+
+                for (int c = 0; c < clients.length; c++) {
+                    Message message = new Message(NEW_MESSAGE, BigInteger.ONE, RESPONSIBLE, body);
+                    try {
+                        if (backpressure == null)
+                            clients[c].sendMessage(message);
+                        else if (!backpressure.push(clients[c], message))
+                            dropped[c].incrementAndGet();
+                    } catch (IOException e) {
+                        dropped[c].incrementAndGet();
+                    }
+                    pushes.incrementAndGet();
+                }
+            }
+        });
+
+        pusher.start();
+        pusher.join(messages * 1000L / rate + STALL_TIMEOUT * 2);
+        long elapsed = (System.nanoTime() - start) / 1000000;
+
+        String result;
+        if (pusher.isAlive()) {
+            result = "pusher stuck after " + pushes.get() + " pushes";
+        } else {
+            //let the fast client read what is still queued
+            long deadline = System.currentTimeMillis() + STALL_TIMEOUT;
+            while (received.get() + dropped[0].get() < messages && System.currentTimeMillis() < deadline)
+                Thread.sleep(1);
+            result = slow[0].isAborted() ? "disconnected" : slow[0].getQueued() + " queued";
+        }
+
+        System.out.println(String.format("%-12s %,10d %,14d %,12d %,12d  %s", overflow == null ? "direct" : overflow.name().toLowerCase(),
+                elapsed, received.get(), dropped[0].get(), dropped[1].get(), result));
+        if (backpressure != null)
+            backpressure.printMetrics();
+
+        slow[0].abort();
+        fast[0].abort();
+        pusher.join();
+        fast[1].closeConnection();
+        slow[1].closeConnection();
+        reader.join();
+    }
+
+    /**
+     * @return server side and client side of a new connection
+     */
+    private Connection[] connect() throws Exception {
+        Connection[] accepted = new Connection[1];
+        Thread acceptor = new Thread(() -> {
+            try {
+                accepted[0] = new Connection(listener.accept());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        acceptor.start();
+
+        Connection client = new Connection(ADDRESS, PORT);
+        client.connect();
+        acceptor.join();
+
+        return new Connection[]{accepted[0], client};
+    }
+}
@@ -0,0 +1,120 @@
+package Simulator;
+
+import Chat.Chat;
+import Chat.ChatMessage;
+import Server.User;
+import Server.UserStore;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+import static Utilities.Constants.*;
+
+/**
+ * Logs users and chat messages to a user store from several threads, and reports the append throughput and how many
+ * records shared each write to disk, then how long a restart takes to recover them: replaying the log on one
+ * thread and on STORE_PARTITIONS threads, and loading a snapshot of them
+ */
+public class StoreBench {
+
+    /**
+     * @param args [users] [messages per user] [threads]
+     */
+    public static void main(String[] args) throws Exception {
+        int users = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+
+        File directory = Files.createTempDirectory("store").toFile();
+        try {
+            System.out.println(users + " users, " + messages + " messages each, " + threads + " threads, "
+                    + (STORE_SYNC ? "waiting for the disk" : "not waiting for the disk"));
+
+            append(directory.getPath(), users, messages, threads);
+
+            recover(directory.getPath(), 1, "log, 1 thread");
+            recover(directory.getPath(), STORE_PARTITIONS, "log, " + STORE_PARTITIONS + " threads");
+
+            UserStore store = new UserStore(directory.getPath(), new ConcurrentHashMap<>(), new ConcurrentHashMap<>());
+            store.recover();
+            store.start();
+            long start = System.nanoTime();
+            store.snapshot();
+            System.out.println("Snapshot taken in " + (System.nanoTime() - start) / 1000000 + " ms");
+            store.close();
+
+            recover(directory.getPath(), STORE_PARTITIONS, "snapshot, " + STORE_PARTITIONS + " threads");
+        } finally {
+            try (Stream<Path> files = Files.walk(directory.toPath())) {
+                files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    /**
+     * Signs up the users, each with a chat, and sends the messages to their chats, every thread with its own users
+     */
+    private static void append(String directory, int users, int messages, int threads) throws Exception {
+        ConcurrentHashMap<BigInteger, User> map = new ConcurrentHashMap<>();
+        UserStore store = new UserStore(directory, map, new ConcurrentHashMap<>());
+        store.recover();
+        store.start();
+
+        long start = System.nanoTime();
+        ArrayList<Thread> appenders = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int first = t;
+            Thread appender = new Thread(() -> {
+                for (int i = first; i < users; i += threads) {
+                    User user = new User("user" + i + "@bench", BigInteger.valueOf(i));
+                    Chat chat = new Chat(user.getEmail(), "chat " + i);
+                    chat.addParticipant(user.getEmail());
+                    user.addChat(chat);
+                    map.put(user.getUserId(), user);
+                    store.saveUser(ADD_USER, user);
+
+                    for (int m = 0; m < messages; m++) {
+                        byte[] content = ("message " + m + " of " + user.getEmail()).getBytes(StandardCharsets.UTF_8);
+                        ChatMessage chatMessage = new ChatMessage(chat.getIdChat(), new Date(), user.getUserId(), content, TEXT_MESSAGE);
+                        store.addChatMessage(user.getUserId(), chat, chatMessage, false);
+                    }
+                }
+            });
+            appender.start();
+            appenders.add(appender);
+        }
+        for (Thread appender : appenders)
+            appender.join();
+        store.close();
+
+        long elapsed = Math.max(1, (System.nanoTime() - start) / 1000000);
+        System.out.println(String.format("Appended %,d records (%,d bytes) in %,d ms: %,.0f records/s, %,d batches, %.1f records per batch",
+                store.getRecords(), store.getBytes(), elapsed, store.getRecords() * 1000.0 / elapsed, store.getBatches(),
+                store.getRecords() / (double) Math.max(1, store.getBatches())));
+    }
+
+    private static void recover(String directory, int partitions, String label) throws IOException {
+        ConcurrentHashMap<BigInteger, User> users = new ConcurrentHashMap<>();
+        UserStore store = new UserStore(directory, users, new ConcurrentHashMap<>(), partitions);
+
+        long start = System.nanoTime();
+        store.recover();
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        store.close();
+
+        long messages = 0;
+        for (User user : users.values())
+            for (Chat chat : user.getChats().values())
+                messages += chat.getChatMessages().size();
+        System.out.println(String.format("Recovered from %-22s %,8d ms: %,d users, %,d messages", label, elapsed, users.size(), messages));
+    }
+}
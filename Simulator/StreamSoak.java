@@ -0,0 +1,121 @@
+package Simulator;
+
+import Chat.Chat;
+import Chat.ChatMessage;
+import Messages.Message;
+import Protocols.Connection;
+import Protocols.MemoryTransport;
+import Protocols.Transport;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static Utilities.Constants.*;
+
+/**
+ * Sends messages over one long lived connection, as a client session does, and samples the heap after a
+ * collection: it should stay flat however many messages go through, as connections keep nothing they sent
+ * Each message carries a new chat holding a chat message, and a chat reused and renamed on every message,
+ * which must arrive with its new name rather than as the copy sent first
+ * Runs over the in-memory transport, on the wire format selected with -Dwire.format
+ */
+public class StreamSoak {
+
+    private static final String ADDRESS = "soak";
+    private static final int PORT = 1;
+
+    /**
+     * @param args [messages] [samples]
+     */
+    public static void main(String[] args) throws Exception {
+        long messages = args.length > 0 ? Long.parseLong(args[0]) : 1000000;
+        int samples = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        MemoryTransport transport = new MemoryTransport();
+        Transport.setDefault(transport);
+        Transport.Listener listener = transport.listen(ADDRESS, PORT);
+
+        Connection[] accepted = new Connection[1];
+        Thread acceptor = new Thread(() -> {
+            try {
+                accepted[0] = new Connection(listener.accept());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        acceptor.start();
+
+        Connection sender = new Connection(ADDRESS, PORT);
+        sender.connect();
+        acceptor.join();
+        Connection receiver = accepted[0];
+
+        AtomicLong received = new AtomicLong();
+        AtomicLong stale = new AtomicLong();
+        Thread reader = new Thread(() -> {
+            try {
+                while (true) {
+                    Message message = receiver.receiveMessage();
+                    ArrayList<?> chats = (ArrayList<?>) message.getObject();
+                    Chat reused = (Chat) chats.get(1);
+
+                    if (!reused.getChatName().equals(message.getArguments()[0]))
+                        stale.incrementAndGet();
+                    received.incrementAndGet();
+                }
+            } catch (IOException | ClassNotFoundException e) {
+                //connection closed at the end
+            }
+        });
+        reader.start();
+
+        System.out.println("Wire format: " + (BINARY_WIRE_FORMAT ? "binary" : "serialized"));
+        System.out.println(String.format("%14s %12s", "messages", "heap MB"));
+
+        Chat reused = new Chat(BigInteger.ONE, "reused", "soak@test");
+        BigInteger userId = BigInteger.TEN;
+        long step = Math.max(1, messages / samples);
+        double first = -1, last = 0;
+        long start = System.nanoTime();
+
+        for (long i = 1; i <= messages; i++) {
+            Chat chat = new Chat(BigInteger.valueOf(i), "chat " + i, "soak@test");
+            chat.addChatMessage(new ChatMessage(chat.getIdChat(), new Date(), userId, ("message " + i).getBytes(), "text"));
+            reused.setChatName("reused " + i);
+
+            ArrayList<Chat> chats = new ArrayList<>();
+            chats.add(chat);
+            chats.add(reused);
+
+            Message message = new Message(NEW_MESSAGE, userId, RESPONSIBLE, chats);
+            message.setArguments(reused.getChatName());
+            sender.sendMessage(message);
+
+            if (i % step == 0) {
+                while (received.get() < i)
+                    Thread.sleep(1);
+
+                last = usedHeap();
+                if (first < 0)
+                    first = last;
+                System.out.println(String.format("%,14d %12.1f", i, last));
+            }
+        }
+
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        sender.closeConnection();
+        reader.join();
+
+        System.out.println(String.format("%,d messages in %,d ms (%.1f us each), heap %+.1f MB since the first sample, %d stale chats",
+                received.get(), elapsed, elapsed * 1000.0 / Math.max(1, received.get()), last - first, stale.get()));
+    }
+
+    private static double usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return (runtime.totalMemory() - runtime.freeMemory()) / (1024.0 * 1024.0);
+    }
+}
@@ -1,5 +1,6 @@
 package Utilities;
 
+import java.math.BigInteger;
 
 public class Constants {
 
@@ -14,8 +15,9 @@ public class Constants {
     public static final String FINGERTABLE = "FINGERTABLE";
     public static final String NEWNODE = "NEWNODE"; //Format: [NEWNODE] [SenderID] [NodeID] [NodeIp] [NodePort]
     public static final String NEWNODE_ANSWER = "NEWNODE ANSWER";
-    public static final String PREDECESSOR = "PREDECESSOR";
-    public static final String SUCCESSOR_FT = "SUCCESSOR_FT";
+    public static final String PREDECESSOR = "PREDECESSOR"; //Format: [PREDECESSOR] [SenderID] Node that may be the receiver predecessor
+    public static final String GET_PREDECESSOR = "GET_PREDECESSOR";
+    public static final String PREDECESSOR_ANSWER = "PREDECESSOR_ANSWER"; //Format: [PREDECESSOR_ANSWER] [SenderID] [Predecessor, Successor1 .. SuccessorR]
     public static final String USER_UPDATED_CONNECTION = "USER_UPDATED_CONNECTION";
 
     //INVITE_USER SenderId Chat password
@@ -95,20 +97,159 @@ public class Constants {
     //SERVER_UPDATE_CONNECTION newServerIp newServerPort
     public static final String SERVER_UPDATE_CONNECTION = "SERVER_UPDATE_CONNECTION";
 
+    //FIND_SUCCESSOR SenderId Key
+    public static final String FIND_SUCCESSOR = "FIND_SUCCESSOR";
+
+    //FIND_SUCCESSOR_ANSWER SenderId Node (RESPONSIBLE if the node owns the key, NOT_RESPONSIBLE if it is the next hop)
+    public static final String FIND_SUCCESSOR_ANSWER = "FIND_SUCCESSOR_ANSWER";
+
+    //TRANSFER_BATCH SenderId TransferId Sequence Type(ADD_USER or BACKUP_USER) [Users]
+    public static final String TRANSFER_BATCH = "TRANSFER_BATCH";
+
+    //TRANSFER_ACK SenderId TransferId Sequence
+    public static final String TRANSFER_ACK = "TRANSFER_ACK";
+
+    //TRANSFER_HISTORY SenderId TransferId Sequence UserId ChatId First [ChatMessages], chat messages from the chat
+    //history of a user of a key range transfer, sent before the batch with the user and answered with TRANSFER_ACK
+    public static final String TRANSFER_HISTORY = "TRANSFER_HISTORY";
+
+    //PING SenderId, health check of a pooled connection, answered with PONG
+    public static final String PING = "PING";
+    public static final String PONG = "PONG";
+
+    //HELLO [Codecs], sent by the end opening a binary connection and answered with the codecs of the other end;
+    //frames are compressed with a codec both ends list
+    public static final String HELLO = "HELLO";
+    public static final String DEFLATE = "deflate";
+
+    //FILE_TRANSFER SenderId Token Direction(UPLOAD or DOWNLOAD) Host BulkPort Size Filename [UploadId], answer to FILE_TRANSACTION
+    //(Size UploadId), STORE_FILE_ON_PARTICIPANT (Size) and DOWNLOAD_FILE: the file goes on a bulk connection, token first;
+    //the upload id a client gives is echoed back, so it knows which of its files to send
+    public static final String FILE_TRANSFER = "FILE_TRANSFER";
+    public static final String UPLOAD = "UPLOAD";
+    public static final String DOWNLOAD = "DOWNLOAD";
+
+    //GET_CHAT_PAGE SenderId ChatId Cursor Direction(OLDER or NEWER) Limit, answered with CHAT_PAGE SenderId ChatPage:
+    //the chat messages before the cursor, a sequence number, or from it; the cursor END stands for the end of the chat
+    public static final String GET_CHAT_PAGE = "GET_CHAT_PAGE";
+    public static final String CHAT_PAGE = "CHAT_PAGE";
+    public static final String OLDER = "OLDER";
+    public static final String NEWER = "NEWER";
+    public static final String CHAT_END = "END";
+
+    //SYNC SenderId [ChatId Messages Pending Members]..., with, for every chat the client knows, the chat messages and
+    //pending messages it has and the hash of the participants and keys it has; answered with CHAT_UPDATES SenderId
+    //[ChatUpdate]: the chats it does not know and what changed on the others
+    public static final String SYNC = "SYNC";
+    public static final String CHAT_UPDATES = "CHAT_UPDATES";
+
     //Directories
     public static final String USER_DIRECTORY = "users";
     public static final String CHAT_DIRECTORY = "chats";
     public static final String DATA_DIRECTORY = "data";
+    public static final String HISTORY_DIRECTORY = "history";
 
     //Numbers
     public static final int MAX_NUMBER_OF_THREADS = 5;
 
-    //TODO: CHANGE max finger table size to 32 on final version
-    public static final int MAX_FINGER_TABLE_SIZE = 7;
     public static final int MAX_NUMBER_OF_REQUESTS = 10;
     public static final int AFTER = 10;
     public static final int BEFORE = 20;
-    public static final long MAX_NUMBER_OF_NODES = (long) Math.pow(2, MAX_FINGER_TABLE_SIZE);
+
+    //Ring identifiers have m bits (-Dring.bits=m, 1 <= m <= 160) and the finger table has m entries
+    public static final int MAX_RING_BITS = 160;
+    public static final int RING_BITS = Math.max(1, Math.min(MAX_RING_BITS, Integer.getInteger("ring.bits", 32)));
+    public static final int MAX_FINGER_TABLE_SIZE = RING_BITS;
+    public static final BigInteger RING_SIZE = BigInteger.ONE.shiftLeft(RING_BITS);
+
+    //Lookups are iterative (the origin asks each hop for the next one) unless -Dlookup.mode=recursive
+    public static final boolean ITERATIVE_LOOKUP = !"recursive".equals(System.getProperty("lookup.mode"));
+    public static final int MAX_LOOKUP_HOPS = 2 * RING_BITS;
+    public static final int ROUTE_CACHE_SIZE = Integer.getInteger("route.cache.size", 1024);
+
+    //Number of successors each node keeps to fail over to (-Dring.successors=r)
+    public static final int SUCCESSOR_LIST_SIZE = Math.max(1, Integer.getInteger("ring.successors", 3));
+
+    //Background ring maintenance intervals, in milliseconds
+    public static final long STABILIZE_INTERVAL = Long.getLong("ring.stabilize.interval", 1000);
+    public static final long FIX_FINGERS_INTERVAL = Long.getLong("ring.fixfingers.interval", 500);
+
+    //Positions each server takes on the ring, to balance the key ranges it owns (-Dring.vnodes=v): the share of a
+    //server deviates from the mean by about 1/sqrt(v) of it, while each position runs its own stabilization
+    public static final int VIRTUAL_NODES = Math.max(1, Integer.getInteger("ring.vnodes", 32));
+
+    //Key range transfers: users per batch, batches waiting for an ack and reconnections before giving up
+    public static final int TRANSFER_BATCH_SIZE = Math.max(1, Integer.getInteger("transfer.batch", 512));
+    public static final int TRANSFER_WINDOW = Math.max(1, Integer.getInteger("transfer.window", 8));
+    public static final int TRANSFER_RETRIES = 3;
+    //Bytes of chat messages per batch of users and per message of chat history of a key range transfer, roughly
+    public static final int TRANSFER_BATCH_BYTES = Math.max(1, Integer.getInteger("transfer.batch.bytes", 8 * 1024 * 1024));
+    public static final int TRANSFER_HISTORY_BYTES = Math.max(1, Integer.getInteger("transfer.history.bytes", 1024 * 1024));
+    public static final long TRANSFER_RETRY_DELAY = 1000;
+
+    //Messages go as binary frames, or as serialized objects with -Dwire.format=serialized (every node must use the same)
+    public static final boolean BINARY_WIRE_FORMAT = !"serialized".equals(System.getProperty("wire.format"));
+    public static final int MAX_FRAME_SIZE = Integer.getInteger("wire.max.frame", 64 * 1024 * 1024);
+    //Binary frames of at least wire.compression.threshold bytes are deflated, at wire.compression.level (1, the
+    //fastest, to 9), on connections whose ends both agree to it; -Dwire.compression=none turns it off
+    public static final boolean WIRE_COMPRESSION = !"none".equals(System.getProperty("wire.compression"));
+    public static final int COMPRESSION_THRESHOLD = Integer.getInteger("wire.compression.threshold", 512);
+    public static final int COMPRESSION_LEVEL = Math.max(1, Math.min(9, Integer.getInteger("wire.compression.level", 1)));
+    //Pooled server connections: connections shared by the requests to a server, times a message is sent again on
+    //another connection after one failed, time (ms) waiting for an answer, idle time (ms) before a health check and before being closed
+    public static final int POOL_CONNECTIONS_PER_SERVER = Math.max(1, Integer.getInteger("pool.connections", 2));
+    public static final int POOL_RETRIES = Math.max(0, Integer.getInteger("pool.retries", 2));
+    public static final long POOL_REQUEST_TIMEOUT = Long.getLong("pool.request.timeout", 60000);
+    public static final long POOL_VALIDATE_AFTER = Long.getLong("pool.validate.after", 5000);
+    public static final long POOL_IDLE_TIMEOUT = Long.getLong("pool.idle.timeout", 30000);
+    //Incoming TLS connections are served by NIO event loops (-Dserver.io=nio), or by a thread each: a platform
+    //thread with -Dserver.io=blocking, a virtual thread with -Dserver.io=virtual, which also applies to the client
+    public static final String SERVER_IO = System.getProperty("server.io", "nio");
+    public static final boolean USE_NIO = "nio".equals(SERVER_IO);
+    public static final boolean VIRTUAL_THREADS = "virtual".equals(SERVER_IO);
+    public static final int NIO_IO_THREADS = Math.max(1, Integer.getInteger("nio.threads", Math.min(4, Runtime.getRuntime().availableProcessors())));
+    //Threads shared by every connection of the process to handle received messages, threads started while all of them are busy,
+    //and messages a connection can have waiting before it stops reading
+    public static final int DISPATCHER_THREADS = Math.max(1, Integer.getInteger("dispatcher.threads", Math.max(16, 4 * Runtime.getRuntime().availableProcessors())));
+    public static final int DISPATCHER_MAX_THREADS = Math.max(DISPATCHER_THREADS, Integer.getInteger("dispatcher.max.threads", 4 * DISPATCHER_THREADS));
+    public static final int DISPATCHER_CONNECTION_QUEUE = Math.max(2, Integer.getInteger("dispatcher.connection.queue", 64));
+    //Pushes to clients: messages waiting to be written to a client before a push overflows, what an overflowing push does
+    //(-Dpush.overflow=drop leaves it in the offline inbox of the user; block waits up to push.block.timeout ms for room,
+    //then drops it; disconnect also signs the client out), and time (ms) a client may take to read a queued message
+    public static final int PUSH_QUEUE_LIMIT = Math.max(1, Integer.getInteger("push.queue", 256));
+    public static final String PUSH_OVERFLOW = System.getProperty("push.overflow", "drop");
+    public static final long PUSH_BLOCK_TIMEOUT = Long.getLong("push.block.timeout", 2000);
+    public static final long PUSH_STALL_TIMEOUT = Long.getLong("push.stall.timeout", 15000);
+    //Files go on connections of their own, to the server port plus bulk.port.offset, copied through buffers of
+    //bulk.buffer bytes; a transfer set up and not started within bulk.token.timeout ms expires, and a bulk connection
+    //that does not send its token within bulk.handshake.timeout ms is closed
+    public static final int BULK_PORT_OFFSET = Integer.getInteger("bulk.port.offset", 1000);
+    public static final int BULK_BUFFER_SIZE = Math.max(8192, Integer.getInteger("bulk.buffer", 256 * 1024));
+    public static final long BULK_TOKEN_TIMEOUT = Long.getLong("bulk.token.timeout", 30000);
+    public static final int BULK_HANDSHAKE_TIMEOUT = Math.max(1, Integer.getInteger("bulk.handshake.timeout", 5000));
+    //Users and backups are logged on data/<nodeId>/users and recovered on restart; -Dstore=none keeps them in memory
+    //only. Log writes wait for the disk, unless -Dstore.sync=none. A snapshot is taken every store.snapshot.interval ms
+    //with changes logged, or once the log reaches store.snapshot.bytes; recovery runs on store.partitions threads
+    public static final boolean STORE_ENABLED = !"none".equals(System.getProperty("store"));
+    public static final boolean STORE_SYNC = !"none".equals(System.getProperty("store.sync"));
+    public static final long STORE_SNAPSHOT_INTERVAL = Long.getLong("store.snapshot.interval", 300000);
+    public static final long STORE_SNAPSHOT_BYTES = Long.getLong("store.snapshot.bytes", 64L * 1024 * 1024);
+    public static final int STORE_PARTITIONS = Math.max(1, Integer.getInteger("store.partitions", Runtime.getRuntime().availableProcessors()));
+    //Chats of a server keep their last history.tail messages in memory; older ones go, history.tail at a time, to the
+    //chat history on data/<nodeId>/history, in segments of up to history.segment.bytes read memory mapped. The files
+    //of a chat history not read or written for history.idle.timeout ms are closed
+    public static final int HISTORY_TAIL = Math.max(1, Integer.getInteger("history.tail", 256));
+    public static final int HISTORY_SEGMENT_BYTES = Math.max(64 * 1024, Integer.getInteger("history.segment.bytes", 16 * 1024 * 1024));
+    public static final long HISTORY_IDLE_TIMEOUT = Long.getLong("history.idle.timeout", 60000);
+    //Chat messages a client asks for at a time, and the most a server answers with
+    public static final int CHAT_PAGE_SIZE = Math.max(1, Integer.getInteger("chat.page.size", 50));
+    public static final int CHAT_PAGE_MAX = 500;
+
+    //Requests sent with no id, their answer being the next message on the connection
+    public static final long NO_REQUEST_ID = 0;
+
+    //Sender, receiver, user and chat ids are SHA-256 hashes
+    public static final int ID_BYTES = 32;
 
     //Code meaning
     public static final String EMAIL_ALREADY_USED = "-1";
@@ -119,6 +260,8 @@ public class Constants {
     public static final String ERROR_DOWNLOADING_FILE = "-6";
     public static final String USER_NOT_EXISTS = "-7";
     public static final String MESSAGE_NOT_SENT = "-8";
+    public static final String ERROR_UPLOADING_FILE = "-9";
+    public static final String ERROR_LOADING_CHAT = "-10";
     public static final String USER_ADDED = "1";
     public static final String SENT_INVITATIONS = "2";
     public static final String CREATED_CHAT_WITH_SUCCESS = "3";
@@ -0,0 +1,120 @@
+package Utilities;
+
+import java.io.Serializable;
+import java.math.BigInteger;
+
+import static Utilities.Constants.RING_SIZE;
+import static Utilities.Utilities.createHash;
+
+/**
+ * Identifier of a position on the Chord ring, an integer in [0, 2^m[
+ * The ring width m is configured with the ring.bits system property (up to 160 bits)
+ */
+public final class RingIdentifier implements Serializable, Comparable<RingIdentifier> {
+
+    private final BigInteger value;
+
+    public RingIdentifier(BigInteger value) {
+        this.value = value.mod(RING_SIZE);
+    }
+
+    /**
+     * Maps a hash (user id, chat id, ...) to its position on the ring
+     *
+     * @param hash hash value
+     * @return ring identifier
+     */
+    public static RingIdentifier fromHash(BigInteger hash) {
+        return new RingIdentifier(hash);
+    }
+
+    /**
+     * Hashes a string and maps it to its position on the ring
+     *
+     * @param data data to be hashed
+     * @return ring identifier
+     */
+    public static RingIdentifier fromString(String data) {
+        return new RingIdentifier(createHash(data));
+    }
+
+    /**
+     * Parses a decimal ring identifier
+     *
+     * @param value decimal representation
+     * @return ring identifier
+     */
+    public static RingIdentifier parse(String value) {
+        return new RingIdentifier(new BigInteger(value));
+    }
+
+    /**
+     * @return identifier (n + 2^exponent) mod 2^m
+     */
+    public RingIdentifier addPowerOfTwo(int exponent) {
+        return new RingIdentifier(value.add(BigInteger.ONE.shiftLeft(exponent)));
+    }
+
+    /**
+     * @return identifier (n + 1) mod 2^m
+     */
+    public RingIdentifier next() {
+        return new RingIdentifier(value.add(BigInteger.ONE));
+    }
+
+    /**
+     * Verifies if this identifier is on the ring interval (from, to]
+     * When from equals to the interval is the whole ring
+     */
+    public boolean isBetween(RingIdentifier from, RingIdentifier to) {
+        int order = from.compareTo(to);
+
+        if (order < 0)
+            return compareTo(from) > 0 && compareTo(to) <= 0;
+
+        return compareTo(from) > 0 || compareTo(to) <= 0;
+    }
+
+    /**
+     * Verifies if this identifier is on the ring interval (from, to)
+     * When from equals to the interval is the whole ring except that point
+     */
+    public boolean isStrictlyBetween(RingIdentifier from, RingIdentifier to) {
+        int order = from.compareTo(to);
+
+        if (order < 0)
+            return compareTo(from) > 0 && compareTo(to) < 0;
+
+        return compareTo(from) > 0 || compareTo(to) < 0;
+    }
+
+    public BigInteger toBigInteger() {
+        return value;
+    }
+
+    @Override
+    public int compareTo(RingIdentifier o) {
+        return value.compareTo(o.value);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+
+        if (this == o)
+            return true;
+        if (!(o instanceof RingIdentifier))
+            return false;
+
+        return value.equals(((RingIdentifier) o).value);
+    }
+
+    @Override
+    public int hashCode() {
+        return value.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return value.toString();
+    }
+}
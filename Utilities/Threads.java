@@ -0,0 +1,69 @@
+package Utilities;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static Utilities.Constants.VIRTUAL_THREADS;
+
+/**
+ * Executors for connections and their tasks
+ * With -Dserver.io=virtual every task runs on its own virtual thread, so the number of connections is not
+ * capped by the threads the system can afford. Virtual threads need Java 21, older runtimes fall back to platform threads
+ */
+public final class Threads {
+
+    private static final Method NEW_VIRTUAL_EXECUTOR = lookUpVirtualExecutor();
+
+    private Threads() {
+    }
+
+    /**
+     * @return true if connections and their tasks run on virtual threads
+     */
+    public static boolean isVirtual() {
+        return NEW_VIRTUAL_EXECUTOR != null;
+    }
+
+    /**
+     * Executor for connections, each one taking a thread for as long as it is open
+     *
+     * @return executor starting a thread per connection
+     */
+    public static ExecutorService newConnectionExecutor() {
+        return isVirtual() ? newVirtualExecutor() : Executors.newCachedThreadPool();
+    }
+
+    /**
+     * Executor for short tasks, such as handling a message
+     *
+     * @param threads platform threads, the tasks running at once when virtual threads are not used
+     * @return executor
+     */
+    public static ExecutorService newTaskExecutor(int threads) {
+        return isVirtual() ? newVirtualExecutor() : Executors.newFixedThreadPool(threads);
+    }
+
+    private static ExecutorService newVirtualExecutor() {
+        try {
+            return (ExecutorService) NEW_VIRTUAL_EXECUTOR.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Failed to create virtual thread executor", e);
+        }
+    }
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor, looked up so the code still runs on older Java versions
+     */
+    private static Method lookUpVirtualExecutor() {
+        if (!VIRTUAL_THREADS)
+            return null;
+
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            System.out.println("Virtual threads need Java 21, using platform threads");
+            return null;
+        }
+    }
+}
@@ -42,10 +42,6 @@ public class Utilities {
         return DatatypeConverter.printHexBinary(hash);
     }
 
-    public static int get32bitHashValue(BigInteger bigInteger) {
-        return Integer.remainderUnsigned(Math.abs(bigInteger.intValue()), 128);
-    }
-
     public static long getTimestamp() {
         Timestamp timestamp = new Timestamp(System.currentTimeMillis());
         return timestamp.getTime();